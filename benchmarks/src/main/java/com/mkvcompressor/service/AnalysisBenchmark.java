@@ -0,0 +1,94 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Metadata analysis of one file: native Matroska header parsing, parsing of
+ * an FFprobe JSON document, and a lookup in the on-disk analysis cache
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    private static final String FFPROBE_JSON = "{\"streams\":["
+            + "{\"index\":0,\"codec_name\":\"hevc\",\"codec_type\":\"video\",\"width\":3840,\"height\":2160,"
+            + "\"pix_fmt\":\"yuv420p10le\",\"r_frame_rate\":\"24000/1001\",\"avg_frame_rate\":\"24000/1001\","
+            + "\"disposition\":{\"default\":1,\"forced\":0},\"tags\":{\"language\":\"eng\"}},"
+            + "{\"index\":1,\"codec_name\":\"truehd\",\"codec_type\":\"audio\",\"channels\":8,"
+            + "\"disposition\":{\"default\":1,\"forced\":0},\"tags\":{\"language\":\"eng\",\"title\":\"Atmos\"}},"
+            + "{\"index\":2,\"codec_name\":\"ac3\",\"codec_type\":\"audio\",\"channels\":6,"
+            + "\"disposition\":{\"default\":0,\"forced\":0},\"tags\":{\"language\":\"por\"}},"
+            + "{\"index\":3,\"codec_name\":\"hdmv_pgs_subtitle\",\"codec_type\":\"subtitle\","
+            + "\"disposition\":{\"default\":0,\"forced\":1},\"tags\":{\"language\":\"por\"}}],"
+            + "\"format\":{\"filename\":\"movie.mkv\",\"duration\":\"7834.112000\",\"size\":\"58123456789\","
+            + "\"bit_rate\":\"59354321\",\"tags\":{\"title\":\"Movie\"}}}";
+
+    private Path dir;
+    private Path file;
+    private MatroskaParser matroskaParser;
+    private FFprobeJsonParser ffprobeParser;
+    private AnalysisCache cache;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("mkvc-bench-");
+        file = dir.resolve("episode.mkv");
+        SyntheticMkv.write(file, 4 * 1024 * 1024);
+        matroskaParser = new MatroskaParser();
+        ffprobeParser = new FFprobeJsonParser();
+
+        cache = new AnalysisCache(dir.resolve("analysis-cache.bin"));
+        VideoFile videoFile = new VideoFile(file.toString());
+        matroskaParser.parse(videoFile);
+        cache.put(file.toFile(), videoFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cache.close();
+        Files.deleteIfExists(dir.resolve("analysis-cache.bin"));
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public VideoFile matroskaHeaders() throws IOException {
+        VideoFile videoFile = new VideoFile(file.toString());
+        matroskaParser.parse(videoFile);
+        return videoFile;
+    }
+
+    @Benchmark
+    public VideoFile ffprobeJson() throws IOException {
+        VideoFile videoFile = new VideoFile(file.toString());
+        ffprobeParser.parse(new StringReader(FFPROBE_JSON), videoFile);
+        return videoFile;
+    }
+
+    @Benchmark
+    public VideoFile cacheLookup() throws IOException {
+        return cache.get(file.toFile());
+    }
+}
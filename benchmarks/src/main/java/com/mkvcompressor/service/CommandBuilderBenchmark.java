@@ -0,0 +1,51 @@
+package com.mkvcompressor.service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Building the FFmpeg command line, once per file
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBuilderBenchmark {
+
+    private VideoCompressor compressor;
+    private VideoFile videoFile;
+
+    @Setup
+    public void setup() {
+        compressor = new VideoCompressor(new CompressionSettings());
+        videoFile = new VideoFile("/media/Show/Season 01/Show - S01E01 - Pilot.mkv");
+    }
+
+    @Benchmark
+    public List<String> encodeCommand() {
+        return compressor.buildFFmpegCommand(videoFile, "/output/Show/Season 01/Show - S01E01 - Pilot.mkv.part",
+                false, 23);
+    }
+
+    @Benchmark
+    public List<String> remuxCommand() {
+        return compressor.buildFFmpegCommand(videoFile, "/output/Show/Season 01/Show - S01E01 - Pilot.mkv.part",
+                true, 23);
+    }
+}
@@ -0,0 +1,65 @@
+package com.mkvcompressor.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of FFmpeg -progress output, which replaced the regex-based
+ * extractTimeSeconds. One block is what FFmpeg writes twice a second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressParserBenchmark {
+
+    private static final String BLOCK = "frame=12345\nfps=48.21\nstream_0_0_q=28.0\nbitrate=2345.6kbits/s\n"
+            + "total_size=123456789\nout_time_us=514937500\nout_time_ms=514937500\nout_time=00:08:34.937500\n"
+            + "dup_frames=0\ndrop_frames=0\nspeed=2.01x\nprogress=continue\n";
+
+    private byte[] block;
+    private byte[] thousandBlocks;
+    private ProgressParser parser;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        block = BLOCK.getBytes(StandardCharsets.US_ASCII);
+        StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            many.append(BLOCK);
+        }
+        thousandBlocks = many.toString().getBytes(StandardCharsets.US_ASCII);
+        parser = new ProgressParser("/media/movie.mkv", 2640.0, event -> this.blackhole.consume(event));
+    }
+
+    @Benchmark
+    public void singleBlock() {
+        parser.feed(block, 0, block.length);
+    }
+
+    /**
+     * 1000 blocks fed in 8 KB reads, like the pipe delivers them
+     */
+    @Benchmark
+    public void thousandBlocksChunked() {
+        for (int offset = 0; offset < thousandBlocks.length; offset += 8192) {
+            parser.feed(thousandBlocks, offset, Math.min(8192, thousandBlocks.length - offset));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mkvcompressor.service;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionJob;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.JobOrder;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Overhead of the batch machinery itself, with analysis and encoding stubbed out:
+ * queuing and running thousands of jobs, and ordering a large library
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SchedulingBenchmark {
+
+    @Param({"10000"})
+    private int jobCount;
+
+    @Param({"100000"})
+    private int libraryFiles;
+
+    @Param({"4"})
+    private int workers;
+
+    private PrintStream originalOut;
+    private PrintStream originalErr;
+    private VideoAnalyzer analyzer;
+    private VideoCompressor compressor;
+    private List<LibraryScanner.Entry> library;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // The scheduler logs every job; keep the console out of the measurement
+        originalOut = System.out;
+        originalErr = System.err;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard);
+        System.setErr(discard);
+
+        analyzer = new VideoAnalyzer() {
+            @Override
+            public VideoFile analyzeVideo(String filePath) {
+                VideoFile videoFile = new VideoFile(filePath);
+                videoFile.setOriginalSize(1_500_000_000L);
+                return videoFile;
+            }
+        };
+        compressor = new VideoCompressor(new CompressionSettings()) {
+            @Override
+            public void compressVideo(VideoFile videoFile, String outputPath) {
+                videoFile.setDecision(new CompressionDecision(CompressionDecision.Action.SKIP, "benchmark"));
+                videoFile.setCompressedSize(videoFile.getOriginalSize());
+            }
+        };
+
+        Random random = new Random(42);
+        library = new ArrayList<>(libraryFiles);
+        for (int i = 0; i < libraryFiles; i++) {
+            VideoFile videoFile = new VideoFile("/media/show" + (i % 500) + "/episode" + i + ".mkv");
+            videoFile.setOriginalSize(500_000_000L + random.nextInt(1_000_000_000));
+            videoFile.setDurationSeconds(1200 + random.nextInt(6000));
+            videoFile.setResolution(random.nextBoolean() ? "1920x1080" : "3840x2160");
+            library.add(new LibraryScanner.Entry(Paths.get(videoFile.getFilePath()),
+                    1_600_000_000_000L + random.nextInt(), videoFile, random.nextInt(800_000_000)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+    }
+
+    @Benchmark
+    public List<CompressionJob> runSyntheticBatch() throws InterruptedException {
+        BatchScheduler scheduler = new BatchScheduler(analyzer, compressor, workers);
+        for (int i = 0; i < jobCount; i++) {
+            scheduler.submit("/media/in/file" + i + ".mkv", "/media/out/file" + i + ".mkv");
+        }
+        return scheduler.awaitCompletion();
+    }
+
+    @Benchmark
+    public List<LibraryScanner.Entry> orderLargestSavingsFirst() {
+        List<LibraryScanner.Entry> entries = new ArrayList<>(library);
+        entries.sort(LibraryScanner.comparator(JobOrder.LARGEST_SAVINGS_FIRST));
+        return entries;
+    }
+
+    @Benchmark
+    public List<LibraryScanner.Entry> orderShortestFirst() {
+        List<LibraryScanner.Entry> entries = new ArrayList<>(library);
+        entries.sort(LibraryScanner.comparator(JobOrder.SHORTEST_FIRST));
+        return entries;
+    }
+}
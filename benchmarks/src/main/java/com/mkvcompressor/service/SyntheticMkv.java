@@ -0,0 +1,89 @@
+package com.mkvcompressor.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes a small but well-formed Matroska file: EBML header, Info, Tracks
+ * (one HEVC video, one AAC audio, one subtitle track) and a dummy Cluster
+ */
+final class SyntheticMkv {
+
+    private SyntheticMkv() {
+    }
+
+    static void write(Path path, int clusterBytes) throws IOException {
+        byte[] ebmlHeader = element(0x1A45DFA3, concat(
+                element(0x4286, uint(1)),           // EBMLVersion
+                element(0x4282, text("matroska")),  // DocType
+                element(0x4287, uint(4))));         // DocTypeVersion
+
+        byte[] info = element(0x1549A966, concat(
+                element(0x2AD7B1, uint(1_000_000)), // TimecodeScale: 1 ms
+                element(0x4489, float64(2_640_000)))); // Duration: 44 minutes
+
+        byte[] video = element(0xAE, concat(
+                element(0xD7, uint(1)),
+                element(0x83, uint(1)),
+                element(0x86, text("V_MPEGH/ISO/HEVC")),
+                element(0x23E383, uint(41_708_333)), // DefaultDuration: 23.976 fps
+                element(0xE0, concat(element(0xB0, uint(3840)), element(0xBA, uint(2160))))));
+        byte[] audio = element(0xAE, concat(
+                element(0xD7, uint(2)),
+                element(0x83, uint(2)),
+                element(0x86, text("A_AAC")),
+                element(0x22B59C, text("eng")),
+                element(0xE1, element(0x9F, uint(6)))));
+        byte[] subtitle = element(0xAE, concat(
+                element(0xD7, uint(3)),
+                element(0x83, uint(17)),
+                element(0x86, text("S_TEXT/UTF8")),
+                element(0x22B59C, text("por")),
+                element(0x55AA, uint(1))));          // FlagForced
+        byte[] tracks = element(0x1654AE6B, concat(video, audio, subtitle));
+
+        byte[] cluster = element(0x1F43B675, new byte[clusterBytes]);
+        byte[] segment = element(0x18538067, concat(info, tracks, cluster));
+
+        Files.write(path, concat(ebmlHeader, segment));
+    }
+
+    private static byte[] element(int id, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int idLength = id > 0xFFFFFF ? 4 : id > 0xFFFF ? 3 : id > 0xFF ? 2 : 1;
+        for (int i = idLength - 1; i >= 0; i--) {
+            out.write(id >>> (8 * i));
+        }
+        // Always an 8-byte size, which every EBML reader accepts
+        out.write(0x01);
+        for (int i = 6; i >= 0; i--) {
+            out.write((int) ((long) payload.length >>> (8 * i)));
+        }
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] uint(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static byte[] float64(double value) {
+        return ByteBuffer.allocate(8).putDouble(value).array();
+    }
+
+    private static byte[] text(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
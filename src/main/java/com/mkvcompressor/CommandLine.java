@@ -0,0 +1,633 @@
+package com.mkvcompressor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mkvcompressor.model.CompressionJob;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.DuplicateHandling;
+import com.mkvcompressor.model.JobOrder;
+import com.mkvcompressor.model.VideoFile;
+import com.mkvcompressor.service.AnalysisCache;
+import com.mkvcompressor.service.BatchCoordinator;
+import com.mkvcompressor.service.BatchJournal;
+import com.mkvcompressor.service.BatchWorker;
+import com.mkvcompressor.service.FFmpegCapabilities;
+import com.mkvcompressor.service.LibraryIndex;
+import com.mkvcompressor.service.LibraryScanner;
+import com.mkvcompressor.service.MetricsRegistry;
+import com.mkvcompressor.service.MetricsServer;
+import com.mkvcompressor.service.VideoAnalyzer;
+import com.mkvcompressor.service.VideoCompressor;
+import com.mkvcompressor.service.WatchFolderDaemon;
+
+/**
+ * Non-interactive entry point for scripts: everything comes from the arguments,
+ * and settings are checked against the installed FFmpeg before any work starts.
+ * Exit codes: 0 success, 1 some file failed, 2 invalid arguments or settings.
+ */
+public class CommandLine {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    private static final Pattern FILTER = Pattern.compile("(\\w+)(<=|>=|=|<|>)(.+)");
+
+    private static final String USAGE = String.join("\n",
+            "Usage: mkv-compressor <command> [options]",
+            "",
+            "Commands:",
+            "  compress <input.mkv> [output.mkv]   Compress one file",
+            "  batch <input-dir> [output-dir]      Compress every MKV below a directory",
+            "  watch <watch-dir> [output-dir]      Compress files dropped into a folder until stopped",
+            "  manifest <file|->                   Compress the files listed in a manifest (- reads stdin),",
+            "                                      one \"input<TAB>output<TAB>priority\" per line, output",
+            "                                      optional, priority LOW|NORMAL|URGENT (URGENT pauses a job)",
+            "  coordinate <input-dir> [output-dir]  Queue a library on shared storage for workers on other",
+            "                                      hosts, until every file is done",
+            "  work <coordinator-url>              Take jobs from a coordinator until its batch is over",
+            "  index <library-dir>                 Scan a library into the library index without compressing",
+            "  query [FILTER...]                   List indexed files, e.g. codec=H.264 height>=1080",
+            "                                      bitrate>8000 audio=eng sort=-savings limit=50; fields:",
+            "                                      codec audio size savings width height bitrate duration",
+            "  capabilities                        Show the detected FFmpeg and its encoders",
+            "",
+            "Options:",
+            "  --quality high|medium|low|auto      CRF 20/23/28, or pick the CRF per file (default medium)",
+            "  --crf N                             Constant rate factor 0-51",
+            "  --bitrate KBPS                      Encode the video at this bit rate instead of the CRF",
+            "  --budget SIZE                       batch: fit the whole output in SIZE (e.g. 4T, 750G), the",
+            "                                      CRF is the quality no file goes beyond",
+            "  --single-pass                       Skip the (cached) first pass of bit rate encodes",
+            "  --codec ENCODER                     Video encoder (default libx265)",
+            "  --preset NAME                       Encoder preset (default medium)",
+            "  --convert-audio                     Convert audio to AAC instead of copying every track",
+            "  --no-subtitle-copy                  Do not stream-copy the subtitle tracks",
+            "  --segmented                         Encode long files as parallel segments",
+            "  --split-streams                     With --convert-audio: convert the audio tracks in",
+            "                                      parallel with the video and mux at the end",
+            "  --verify                            Check streams, duration and sampled SSIM of every output",
+            "  --jobs N|auto                       Files compressed at the same time",
+            "  --order savings|shortest|oldest|path  Batch order (default savings)",
+            "  --duplicates link|skip|encode       Files whose content was compressed before: link the",
+            "                                      earlier output (default), skip them, or encode again",
+            "  --scratch DIR                       Stage batch inputs and outputs on a fast local disk",
+            "  --cache-hash                        Also hash the start and end of files before reusing a",
+            "                                      cached analysis (catches in-place edits)",
+            "  --early-abort-ratio R               Stop encodes projected above R x the source (0 = off)",
+            "  --port N                            coordinate: port workers connect to (default 8700)",
+            "  --lease-seconds N                   coordinate: time a worker has to renew its job before",
+            "                                      it goes to another one (default 60)",
+            "  --metrics-port N                    Serve Prometheus metrics on this port");
+
+    /**
+     * Parsed arguments
+     */
+    static final class Options {
+        String command;
+        final List<String> operands = new ArrayList<>();
+        final CompressionSettings settings = new CompressionSettings();
+        int metricsPort = -1;
+        int port = -1; // Coordinator port, -1 when not given
+        long leaseMillis = -1;
+    }
+
+    private CommandLine() {
+    }
+
+    /**
+     * Runs the command and returns the process exit code
+     */
+    public static int run(String[] args) {
+        Options options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_USAGE;
+        }
+        if (options.command.equals("help")) {
+            System.out.println(USAGE);
+            return EXIT_OK;
+        }
+        if (options.command.equals("query")) {
+            try {
+                return query(options); // Reads only the index, FFmpeg is not needed
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                return EXIT_USAGE;
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+                return EXIT_FAILED;
+            }
+        }
+
+        // Cached probe: spawns FFmpeg only the first time or after it was updated
+        FFmpegCapabilities capabilities;
+        try {
+            capabilities = FFmpegCapabilities.detect();
+            if (!options.command.equals("capabilities")) {
+                capabilities.validate(options.settings);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_USAGE;
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+
+        try {
+            switch (options.command) {
+                case "capabilities":
+                    printCapabilities(capabilities);
+                    return EXIT_OK;
+                case "compress":
+                    return compress(options);
+                case "batch":
+                    return batch(options);
+                case "watch":
+                    return watch(options);
+                case "coordinate":
+                    return coordinate(options);
+                case "work":
+                    return work(options);
+                case "index":
+                    return index(options);
+                default:
+                    return manifest(options);
+            }
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_FAILED;
+        }
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        CompressionSettings settings = options.settings;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                if (options.command == null) {
+                    options.command = arg;
+                } else {
+                    options.operands.add(arg);
+                }
+                continue;
+            }
+            switch (arg) {
+                case "--help":
+                    options.command = "help";
+                    return options;
+                case "--quality":
+                    String quality = value(args, ++i, arg);
+                    if (quality.equals("auto")) {
+                        settings.setAutoCrf(true);
+                    } else if (quality.matches("high|medium|low")) {
+                        settings.setQuality(quality);
+                    } else {
+                        throw new IllegalArgumentException("Unknown quality: " + quality);
+                    }
+                    break;
+                case "--crf":
+                    settings.setCrf(number(args, ++i, arg));
+                    break;
+                case "--bitrate":
+                    settings.setTargetBitrateKbps(number(args, ++i, arg));
+                    break;
+                case "--budget":
+                    settings.setLibraryBudgetBytes(size(value(args, ++i, arg), arg));
+                    break;
+                case "--single-pass":
+                    settings.setTwoPass(false);
+                    break;
+                case "--codec":
+                    settings.setOutputCodec(value(args, ++i, arg));
+                    break;
+                case "--preset":
+                    settings.setPreset(value(args, ++i, arg));
+                    break;
+                case "--convert-audio":
+                    settings.setKeepAllAudioTracks(false);
+                    break;
+                case "--no-subtitle-copy":
+                    settings.setKeepAllSubtitles(false);
+                    break;
+                case "--segmented":
+                    settings.setSegmentedEncoding(true);
+                    break;
+                case "--split-streams":
+                    settings.setSplitStreams(true);
+                    break;
+                case "--verify":
+                    settings.setVerifyOutput(true);
+                    break;
+                case "--jobs":
+                    String jobs = value(args, ++i, arg);
+                    if (jobs.equals("auto")) {
+                        settings.setAdaptiveConcurrency(true);
+                    } else {
+                        settings.setParallelJobs(number(args, i, arg));
+                    }
+                    break;
+                case "--order":
+                    settings.setJobOrder(jobOrder(value(args, ++i, arg)));
+                    break;
+                case "--duplicates":
+                    settings.setDuplicateHandling(duplicateHandling(value(args, ++i, arg)));
+                    break;
+                case "--scratch":
+                    settings.setScratchDirectory(value(args, ++i, arg));
+                    break;
+                case "--cache-hash":
+                    settings.setCacheContentHash(true);
+                    break;
+                case "--early-abort-ratio":
+                    try {
+                        settings.setEarlyAbortRatio(Double.parseDouble(value(args, ++i, arg)));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(arg + " needs a number");
+                    }
+                    break;
+                case "--metrics-port":
+                    options.metricsPort = number(args, ++i, arg);
+                    break;
+                case "--port":
+                    options.port = number(args, ++i, arg);
+                    if (options.port < 0 || options.port > 65535) {
+                        throw new IllegalArgumentException(arg + " must be between 0 and 65535");
+                    }
+                    break;
+                case "--lease-seconds":
+                    int leaseSeconds = number(args, ++i, arg);
+                    if (leaseSeconds <= 0) {
+                        throw new IllegalArgumentException(arg + " must be positive");
+                    }
+                    options.leaseMillis = leaseSeconds * 1000L;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (options.command == null) {
+            throw new IllegalArgumentException("No command given");
+        }
+        int operands = options.operands.size();
+        switch (options.command) {
+            case "capabilities":
+                expect(operands == 0, options.command);
+                break;
+            case "compress":
+            case "batch":
+            case "watch":
+            case "coordinate":
+                expect(operands == 1 || operands == 2, options.command);
+                break;
+            case "manifest":
+            case "index":
+            case "work":
+                expect(operands == 1, options.command);
+                break;
+            case "query":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + options.command);
+        }
+        if (settings.getLibraryBudgetBytes() > 0 && !options.command.equals("batch")) {
+            throw new IllegalArgumentException("--budget only works with batch");
+        }
+        if ((options.port >= 0 || options.leaseMillis > 0) && !options.command.equals("coordinate")) {
+            throw new IllegalArgumentException("--port and --lease-seconds only work with coordinate");
+        }
+        return options;
+    }
+
+    private static int compress(Options options) throws Exception {
+        String input = options.operands.get(0);
+        String output = options.operands.size() > 1 ? options.operands.get(1)
+                : VideoCompressor.defaultOutputPath(input);
+        VideoFile videoFile = new VideoAnalyzer().analyzeVideo(input);
+        new VideoCompressor(options.settings).compressVideo(videoFile, output);
+        return EXIT_OK;
+    }
+
+    private static int batch(Options options) throws Exception {
+        String output = options.operands.size() > 1 ? options.operands.get(1) : "output";
+        VideoCompressor compressor = new VideoCompressor(options.settings);
+        MetricsServer metrics = startMetricsServer(options);
+        try (AnalysisCache cache = openCache(options)) {
+            compressor.setAnalyzer(analyzer(cache));
+            return exitCode(compressor.compressBatch(options.operands.get(0), output));
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+        }
+    }
+
+    private static int watch(Options options) throws Exception {
+        String output = options.operands.size() > 1 ? options.operands.get(1) : "output";
+        VideoCompressor compressor = new VideoCompressor(options.settings);
+        compressor.setConsoleProgress(false); // Several files encode at once
+        MetricsServer metrics = startMetricsServer(options);
+        CountDownLatch finished = new CountDownLatch(1);
+        try (AnalysisCache cache = openCache(options)) {
+            VideoAnalyzer analyzer = analyzer(cache);
+            compressor.setAnalyzer(analyzer);
+            WatchFolderDaemon daemon = new WatchFolderDaemon(analyzer, compressor, options.operands.get(0), output);
+            stopOnShutdown(daemon::stop, finished);
+            daemon.run();
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+            finished.countDown();
+        }
+        return EXIT_OK;
+    }
+
+    private static int coordinate(Options options) throws Exception {
+        String output = options.operands.size() > 1 ? options.operands.get(1) : "output";
+        int port = options.port >= 0 ? options.port : BatchCoordinator.DEFAULT_PORT;
+        long leaseMillis = options.leaseMillis > 0 ? options.leaseMillis : BatchCoordinator.DEFAULT_LEASE_MILLIS;
+        // Workers use their own settings; these decide the order of the queue
+        VideoCompressor compressor = new VideoCompressor(options.settings);
+        MetricsServer metrics = startMetricsServer(options);
+        try (AnalysisCache cache = openCache(options)) {
+            compressor.setAnalyzer(analyzer(cache));
+            return exitCode(compressor.coordinateBatch(options.operands.get(0), output, port, leaseMillis));
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+        }
+    }
+
+    private static int work(Options options) throws Exception {
+        VideoCompressor compressor = new VideoCompressor(options.settings);
+        compressor.setConsoleProgress(false); // Several files encode at once
+        MetricsServer metrics = startMetricsServer(options);
+        CountDownLatch finished = new CountDownLatch(1);
+        try (AnalysisCache cache = openCache(options)) {
+            VideoAnalyzer analyzer = analyzer(cache);
+            compressor.setAnalyzer(analyzer);
+            BatchWorker worker = new BatchWorker(options.operands.get(0), analyzer, compressor);
+            stopOnShutdown(worker::stop, finished);
+            worker.run();
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+            finished.countDown();
+        }
+        return EXIT_OK;
+    }
+
+    private static int manifest(Options options) throws Exception {
+        String source = options.operands.get(0);
+        boolean stdin = source.equals("-");
+        // The journal sits next to the manifest, or in the working directory for stdin
+        Path journalDir = stdin ? Paths.get("") : Paths.get(source).toAbsolutePath().getParent();
+        VideoCompressor compressor = new VideoCompressor(options.settings);
+        compressor.setConsoleProgress(false); // Several files encode at once
+        MetricsServer metrics = startMetricsServer(options);
+        try (AnalysisCache cache = openCache(options);
+             BufferedReader reader = stdin
+                     ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                     : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            compressor.setAnalyzer(analyzer(cache));
+            return exitCode(compressor.compressManifest(reader, journalDir.resolve(BatchJournal.FILE_NAME)));
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+        }
+    }
+
+    private static int index(Options options) throws Exception {
+        Path root = Paths.get(options.operands.get(0)).toAbsolutePath().normalize();
+        try (AnalysisCache cache = openCache(options)) {
+            System.out.println("Scanning " + root + "...");
+            List<LibraryScanner.Entry> entries = new LibraryScanner(analyzer(cache)).scan(root, null, options.settings);
+            LibraryIndex index = LibraryIndex.open(LibraryIndex.defaultPath()).update(root, entries);
+            System.out.println("Indexed " + entries.size() + " files, the index holds " + index.size());
+        }
+        return EXIT_OK;
+    }
+
+    /**
+     * Runs the filters of the operands against the library index and prints the matches
+     */
+    private static int query(Options options) throws Exception {
+        LibraryIndex index = LibraryIndex.open(LibraryIndex.defaultPath());
+        LibraryIndex.Query query = index.query();
+        for (String filter : options.operands) {
+            Matcher matcher = FILTER.matcher(filter);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid filter: " + filter);
+            }
+            String field = matcher.group(1);
+            String operator = matcher.group(2);
+            String value = matcher.group(3);
+            if (field.equals("sort") || field.equals("limit") || field.equals("codec") || field.equals("audio")) {
+                if (!operator.equals("=")) {
+                    throw new IllegalArgumentException(field + " only supports =");
+                }
+                if (field.equals("sort")) {
+                    boolean descending = value.startsWith("-");
+                    query.sortBy(column(descending ? value.substring(1) : value), descending);
+                } else if (field.equals("limit")) {
+                    query.limit((int) number(value, field));
+                } else if (field.equals("codec")) {
+                    query.videoCodec(value);
+                } else {
+                    query.audioLanguage(value);
+                }
+                continue;
+            }
+
+            LibraryIndex.Column column = column(field);
+            long number = column == LibraryIndex.Column.SIZE || column == LibraryIndex.Column.EXPECTED_SAVINGS
+                    ? size(value, field) : number(value, field);
+            if (operator.contains(">") || operator.equals("=")) {
+                query.atLeast(column, operator.equals(">") ? number + 1 : number);
+            }
+            if (operator.contains("<") || operator.equals("=")) {
+                query.atMost(column, operator.equals("<") ? number - 1 : number);
+            }
+        }
+
+        int[] rows = query.rows();
+        for (int row : rows) {
+            String resolution = index.getWidth(row) > 0 ? index.getWidth(row) + "x" + index.getHeight(row) : "?";
+            System.out.printf(Locale.ROOT, "%10s %10s  %-6s %9s %7d kb/s  %s%n",
+                    VideoFile.formatFileSize(index.getExpectedSavings(row)),
+                    VideoFile.formatFileSize(index.getSize(row)),
+                    index.getVideoCodec(row) != null ? index.getVideoCodec(row) : "?", resolution,
+                    index.getBitrateKbps(row), index.getPath(row));
+        }
+        System.out.println(rows.length + " of " + index.size() + " files (columns: expected savings, size,"
+                + " codec, resolution, bit rate, path)");
+        return EXIT_OK;
+    }
+
+    private static LibraryIndex.Column column(String field) {
+        switch (field) {
+            case "size":
+                return LibraryIndex.Column.SIZE;
+            case "modified":
+                return LibraryIndex.Column.LAST_MODIFIED;
+            case "savings":
+                return LibraryIndex.Column.EXPECTED_SAVINGS;
+            case "width":
+                return LibraryIndex.Column.WIDTH;
+            case "height":
+                return LibraryIndex.Column.HEIGHT;
+            case "bitrate":
+                return LibraryIndex.Column.BITRATE_KBPS;
+            case "duration":
+                return LibraryIndex.Column.DURATION_SECONDS;
+            default:
+                throw new IllegalArgumentException("Unknown field: " + field);
+        }
+    }
+
+    private static long number(String value, String field) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(field + " needs a number");
+        }
+    }
+
+    private static void printCapabilities(FFmpegCapabilities capabilities) {
+        System.out.println("FFmpeg " + capabilities.getVersion() + " at " + capabilities.getBinaryPath());
+        System.out.println("Encoders: " + capabilities.getEncoders().size()
+                + ", filters: " + capabilities.getFilters().size());
+        for (String encoder : new String[] {"libx265", "libx264", "libsvtav1", "libaom-av1", "aac"}) {
+            System.out.println("  " + encoder + ": " + (capabilities.hasEncoder(encoder) ? "yes" : "no"));
+        }
+    }
+
+    private static AnalysisCache openCache(Options options) throws IOException {
+        AnalysisCache cache = AnalysisCache.openDefault();
+        cache.setContentHashEnabled(options.settings.isCacheContentHash());
+        return cache;
+    }
+
+    private static VideoAnalyzer analyzer(AnalysisCache cache) {
+        VideoAnalyzer analyzer = new VideoAnalyzer();
+        analyzer.setCache(cache);
+        return analyzer;
+    }
+
+    private static MetricsServer startMetricsServer(Options options) throws Exception {
+        return options.metricsPort < 0 ? null : new MetricsServer(options.metricsPort, MetricsRegistry.getDefault());
+    }
+
+    private static int exitCode(List<CompressionJob> jobs) {
+        for (CompressionJob job : jobs) {
+            if (job.getStatus() == CompressionJob.Status.FAILED) {
+                return EXIT_FAILED;
+            }
+        }
+        return EXIT_OK;
+    }
+
+    private static JobOrder jobOrder(String name) {
+        switch (name) {
+            case "savings":
+                return JobOrder.LARGEST_SAVINGS_FIRST;
+            case "shortest":
+                return JobOrder.SHORTEST_FIRST;
+            case "oldest":
+                return JobOrder.OLDEST_FIRST;
+            case "path":
+                return JobOrder.PATH;
+            default:
+                throw new IllegalArgumentException("Unknown order: " + name);
+        }
+    }
+
+    private static DuplicateHandling duplicateHandling(String name) {
+        switch (name) {
+            case "link":
+                return DuplicateHandling.LINK;
+            case "skip":
+                return DuplicateHandling.SKIP;
+            case "encode":
+                return DuplicateHandling.ENCODE;
+            default:
+                throw new IllegalArgumentException("Unknown duplicate handling: " + name);
+        }
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    private static int number(String[] args, int index, String option) {
+        try {
+            return Integer.parseInt(value(args, index, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number");
+        }
+    }
+
+    /**
+     * Parses a size in bytes with an optional K, M, G or T suffix (binary units)
+     */
+    static long size(String value, String option) {
+        String number = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        int suffix = "KMGT".indexOf(number.isEmpty() ? ' ' : number.charAt(number.length() - 1));
+        if (suffix >= 0) {
+            unit = 1L << (10 * (suffix + 1));
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            return (long) (Double.parseDouble(number) * unit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a size like 750G or 4T");
+        }
+    }
+
+    /**
+     * On SIGTERM or Ctrl+C, calls stop and holds the JVM until finished is counted down,
+     * so running encodes end and the cache and journal are closed before it exits
+     */
+    static void stopOnShutdown(Runnable stop, CountDownLatch finished) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stop.run();
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "shutdown"));
+    }
+
+    private static void expect(boolean valid, String command) {
+        if (!valid) {
+            throw new IllegalArgumentException("Wrong number of arguments for " + command);
+        }
+    }
+}
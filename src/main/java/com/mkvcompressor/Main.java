@@ -1,11 +1,21 @@
 package com.mkvcompressor;
 
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
 
+import com.mkvcompressor.model.CompressionDecision;
 import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.JobOrder;
 import com.mkvcompressor.model.VideoFile;
+import com.mkvcompressor.service.AnalysisCache;
+import com.mkvcompressor.service.BatchCoordinator;
+import com.mkvcompressor.service.BatchWorker;
+import com.mkvcompressor.service.FFmpegCapabilities;
+import com.mkvcompressor.service.MetricsRegistry;
+import com.mkvcompressor.service.MetricsServer;
 import com.mkvcompressor.service.VideoAnalyzer;
 import com.mkvcompressor.service.VideoCompressor;
+import com.mkvcompressor.service.WatchFolderDaemon;
 
 /**
  * Main class for MKV video compression application
@@ -16,12 +26,16 @@ import com.mkvcompressor.service.VideoCompressor;
 public class Main {
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(CommandLine.run(args));
+        }
+
         System.out.println("╔════════════════════════════════════════╗");
         System.out.println("║   MKV Video Compressor v1.0.0         ║");
         System.out.println("║   Compress videos without losing quality ║");
         System.out.println("╚════════════════════════════════════════╝\n");
 
-        // Check if FFmpeg is installed
+        // Check if FFmpeg is installed (cached, FFmpeg only runs again after it changed)
         VideoAnalyzer analyzer = new VideoAnalyzer();
         if (!analyzer.isFFmpegInstalled()) {
             System.err.println("ERROR: FFmpeg is not installed!");
@@ -37,7 +51,10 @@ public class Main {
             System.out.println("Select an option:");
             System.out.println("1 - Compress a single file");
             System.out.println("2 - Compress multiple files (batch)");
-            System.out.println("3 - Exit");
+            System.out.println("3 - Watch a folder and compress new files");
+            System.out.println("4 - Coordinate a batch for worker machines");
+            System.out.println("5 - Work for a coordinator");
+            System.out.println("6 - Exit");
             System.out.print("\nOption: ");
 
             int option = scanner.nextInt();
@@ -51,6 +68,15 @@ public class Main {
                     compressBatch(scanner);
                     break;
                 case 3:
+                    watchFolder(scanner);
+                    break;
+                case 4:
+                    coordinateBatch(scanner);
+                    break;
+                case 5:
+                    runWorker(scanner);
+                    break;
+                case 6:
                     System.out.println("Exiting...");
                     break;
                 default:
@@ -76,8 +102,7 @@ public class Main {
         String outputPath = scanner.nextLine().trim();
 
         if (outputPath.isEmpty()) {
-            String filename = inputPath.substring(inputPath.lastIndexOf('/') + 1);
-            outputPath = "output/" + filename.replace(".mkv", "_compressed.mkv");
+            outputPath = VideoCompressor.defaultOutputPath(inputPath);
         }
 
         // Compression settings
@@ -91,6 +116,12 @@ public class Main {
         VideoCompressor compressor = new VideoCompressor(settings);
         compressor.compressVideo(videoFile, outputPath);
 
+        CompressionDecision decision = videoFile.getDecision();
+        if (decision != null && decision.getAction() == CompressionDecision.Action.SKIP) {
+            System.out.println("\n✓ Nothing to do: " + decision.getReason());
+            return;
+        }
+
         System.out.println("\n✓ Compression completed successfully!");
         System.out.println("File saved at: " + outputPath);
     }
@@ -99,7 +130,7 @@ public class Main {
      * Compresses multiple files in batch mode
      */
     private static void compressBatch(Scanner scanner) throws Exception {
-        System.out.print("\nDirectory with MKV files: ");
+        System.out.print("\nDirectory with MKV files (subfolders included): ");
         String inputDir = scanner.nextLine().trim();
 
         System.out.print("Output directory (leave empty for 'output'): ");
@@ -112,23 +143,221 @@ public class Main {
         // Compression settings
         CompressionSettings settings = configureCompression(scanner);
 
-        // Compress batch
+        configureParallelJobs(scanner, settings);
+
+        System.out.print("Scratch directory on a fast local disk (leave empty to disable): ");
+        String scratchDir = scanner.nextLine().trim();
+        if (!scratchDir.isEmpty()) {
+            settings.setScratchDirectory(scratchDir);
+            System.out.print("Scratch budget in GB (leave empty for 80% of free space): ");
+            String budgetInput = scanner.nextLine().trim();
+            if (!budgetInput.isEmpty()) {
+                settings.setScratchBudgetBytes((long) (Double.parseDouble(budgetInput) * 1024 * 1024 * 1024));
+            }
+        }
+
+        System.out.print("Size budget for the whole output in GB (leave empty to use the CRF): ");
+        String libraryBudget = scanner.nextLine().trim();
+        if (!libraryBudget.isEmpty()) {
+            settings.setLibraryBudgetBytes((long) (Double.parseDouble(libraryBudget) * 1024 * 1024 * 1024));
+        }
+
+        configureJobOrder(scanner, settings);
+
+        // Compress batch, reusing analysis results of files that did not change
         VideoCompressor compressor = new VideoCompressor(settings);
-        compressor.compressBatch(inputDir, outputDir);
+        MetricsServer metrics = startMetricsServer(scanner);
+        try (AnalysisCache cache = AnalysisCache.openDefault()) {
+            VideoAnalyzer analyzer = new VideoAnalyzer();
+            analyzer.setCache(cache);
+            compressor.setAnalyzer(analyzer);
+            compressor.compressBatch(inputDir, outputDir);
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+        }
 
         System.out.println("\n✓ Batch compression completed!");
     }
 
+    /**
+     * Watches a folder and compresses files dropped into it until the program is stopped
+     */
+    private static void watchFolder(Scanner scanner) throws Exception {
+        System.out.print("\nFolder to watch: ");
+        String watchDir = scanner.nextLine().trim();
+
+        System.out.print("Output directory (leave empty for 'output'): ");
+        String outputDir = scanner.nextLine().trim();
+
+        if (outputDir.isEmpty()) {
+            outputDir = "output";
+        }
+
+        // Compression settings
+        CompressionSettings settings = configureCompression(scanner);
+
+        configureParallelJobs(scanner, settings);
+
+        VideoCompressor compressor = new VideoCompressor(settings);
+        compressor.setConsoleProgress(false); // Several files encode at once
+        MetricsServer metrics = startMetricsServer(scanner);
+        CountDownLatch finished = new CountDownLatch(1);
+        try (AnalysisCache cache = AnalysisCache.openDefault()) {
+            VideoAnalyzer analyzer = new VideoAnalyzer();
+            analyzer.setCache(cache);
+            compressor.setAnalyzer(analyzer);
+
+            WatchFolderDaemon daemon = new WatchFolderDaemon(analyzer, compressor, watchDir, outputDir);
+            CommandLine.stopOnShutdown(daemon::stop, finished);
+            System.out.println("Press Ctrl+C to stop");
+            daemon.run();
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Scans a library and hands its files to worker processes until all are done
+     */
+    private static void coordinateBatch(Scanner scanner) throws Exception {
+        System.out.print("\nDirectory with MKV files on shared storage (subfolders included): ");
+        String inputDir = scanner.nextLine().trim();
+
+        System.out.print("Output directory on shared storage (leave empty for 'output'): ");
+        String outputDir = scanner.nextLine().trim();
+
+        if (outputDir.isEmpty()) {
+            outputDir = "output";
+        }
+
+        // Workers use their own settings; these decide the order of the queue
+        CompressionSettings settings = configureCompression(scanner);
+        configureJobOrder(scanner, settings);
+
+        System.out.print("Coordinator port [" + BatchCoordinator.DEFAULT_PORT + "]: ");
+        String portInput = scanner.nextLine().trim();
+        int port = portInput.isEmpty() ? BatchCoordinator.DEFAULT_PORT : Integer.parseInt(portInput);
+
+        System.out.print("Lease seconds [" + BatchCoordinator.DEFAULT_LEASE_MILLIS / 1000 + "]: ");
+        String leaseInput = scanner.nextLine().trim();
+        long leaseMillis = leaseInput.isEmpty() ? BatchCoordinator.DEFAULT_LEASE_MILLIS
+                : Long.parseLong(leaseInput) * 1000;
+
+        VideoCompressor compressor = new VideoCompressor(settings);
+        MetricsServer metrics = startMetricsServer(scanner);
+        try (AnalysisCache cache = AnalysisCache.openDefault()) {
+            VideoAnalyzer analyzer = new VideoAnalyzer();
+            analyzer.setCache(cache);
+            compressor.setAnalyzer(analyzer);
+            compressor.coordinateBatch(inputDir, outputDir, port, leaseMillis);
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+        }
+
+        System.out.println("\n✓ Distributed batch completed!");
+    }
+
+    /**
+     * Takes jobs from a coordinator until its batch is over
+     */
+    private static void runWorker(Scanner scanner) throws Exception {
+        System.out.print("\nCoordinator URL (e.g. http://host:8700): ");
+        String coordinatorUrl = scanner.nextLine().trim();
+
+        // Compression settings
+        CompressionSettings settings = configureCompression(scanner);
+
+        configureParallelJobs(scanner, settings);
+
+        VideoCompressor compressor = new VideoCompressor(settings);
+        compressor.setConsoleProgress(false); // Several files encode at once
+        MetricsServer metrics = startMetricsServer(scanner);
+        CountDownLatch finished = new CountDownLatch(1);
+        try (AnalysisCache cache = AnalysisCache.openDefault()) {
+            VideoAnalyzer analyzer = new VideoAnalyzer();
+            analyzer.setCache(cache);
+            compressor.setAnalyzer(analyzer);
+
+            BatchWorker worker = new BatchWorker(coordinatorUrl, analyzer, compressor);
+            CommandLine.stopOnShutdown(worker::stop, finished);
+            worker.run();
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Asks which files of a batch go first
+     */
+    private static void configureJobOrder(Scanner scanner, CompressionSettings settings) {
+        System.out.println("\nProcessing order:");
+        System.out.println("1 - Largest expected savings first (recommended)");
+        System.out.println("2 - Shortest jobs first");
+        System.out.println("3 - Oldest files first");
+        System.out.println("4 - Alphabetical");
+        System.out.print("Choose order [1]: ");
+        String orderInput = scanner.nextLine().trim();
+        switch (orderInput.isEmpty() ? 1 : Integer.parseInt(orderInput)) {
+            case 2:
+                settings.setJobOrder(JobOrder.SHORTEST_FIRST);
+                break;
+            case 3:
+                settings.setJobOrder(JobOrder.OLDEST_FIRST);
+                break;
+            case 4:
+                settings.setJobOrder(JobOrder.PATH);
+                break;
+            default:
+                settings.setJobOrder(JobOrder.LARGEST_SAVINGS_FIRST);
+        }
+    }
+
+    /**
+     * Asks for a fixed number of parallel jobs, or "auto" to follow load and free memory
+     */
+    private static void configureParallelJobs(Scanner scanner, CompressionSettings settings) {
+        System.out.print("Parallel jobs (number or 'auto') [" + settings.getParallelJobs() + "]: ");
+        String parallelInput = scanner.nextLine().trim();
+        if (parallelInput.equalsIgnoreCase("auto")) {
+            settings.setAdaptiveConcurrency(true);
+        } else if (!parallelInput.isEmpty()) {
+            settings.setParallelJobs(Integer.parseInt(parallelInput));
+        }
+    }
+
+    /**
+     * Asks for a port and starts the Prometheus metrics endpoint, or returns null
+     */
+    private static MetricsServer startMetricsServer(Scanner scanner) throws Exception {
+        System.out.print("Metrics port (leave empty to disable): ");
+        String portInput = scanner.nextLine().trim();
+        if (portInput.isEmpty()) {
+            return null;
+        }
+        return new MetricsServer(Integer.parseInt(portInput), MetricsRegistry.getDefault());
+    }
+
     /**
      * Allows user to configure compression options
      */
-    private static CompressionSettings configureCompression(Scanner scanner) {
+    private static CompressionSettings configureCompression(Scanner scanner) throws Exception {
         CompressionSettings settings = new CompressionSettings();
 
         System.out.println("\n=== Compression Settings ===");
         System.out.println("1 - High quality (CRF 20, larger file)");
         System.out.println("2 - Medium quality (CRF 23, recommended)");
         System.out.println("3 - Low quality (CRF 28, smaller file)");
+        System.out.println("4 - Auto (pick CRF per file for SSIM 0.98, slower start)");
         System.out.print("Choose quality [2]: ");
 
         String qualityInput = scanner.nextLine().trim();
@@ -141,6 +370,9 @@ public class Main {
             case 3:
                 settings.setQuality("low");
                 break;
+            case 4:
+                settings.setAutoCrf(true);
+                break;
             default:
                 settings.setQuality("medium");
         }
@@ -148,11 +380,25 @@ public class Main {
         System.out.print("Keep all audio tracks? (Y/n): ");
         String keepAudio = scanner.nextLine().trim().toLowerCase();
         settings.setKeepAllAudioTracks(!keepAudio.equals("n"));
+        if (!settings.isKeepAllAudioTracks()) {
+            System.out.print("Convert audio in parallel with the video? (y/N): ");
+            String splitStreams = scanner.nextLine().trim().toLowerCase();
+            settings.setSplitStreams(splitStreams.equals("y"));
+        }
 
         System.out.print("Keep all subtitles? (Y/n): ");
         String keepSubtitles = scanner.nextLine().trim().toLowerCase();
         settings.setKeepAllSubtitles(!keepSubtitles.equals("n"));
 
+        System.out.print("Encode long files as parallel segments? (y/N): ");
+        String segmented = scanner.nextLine().trim().toLowerCase();
+        settings.setSegmentedEncoding(segmented.equals("y"));
+
+        System.out.print("Verify outputs (streams, duration, sampled SSIM)? (y/N): ");
+        String verify = scanner.nextLine().trim().toLowerCase();
+        settings.setVerifyOutput(verify.equals("y"));
+
+        FFmpegCapabilities.detect().validate(settings);
         return settings;
     }
 }
@@ -0,0 +1,38 @@
+package com.mkvcompressor.model;
+
+/**
+ * What to do with a file before spending CPU on it, and why
+ */
+public class CompressionDecision {
+
+    /**
+     * Possible outcomes of the pre-flight check
+     */
+    public enum Action {
+        SKIP,      // Leave the file alone, re-encoding would not save space
+        REMUX,     // Copy the video stream, only change audio/subtitles
+        ENCODE,    // Full video re-encode
+        DUPLICATE  // Same content as a file compressed before, its output is reused
+    }
+
+    private final Action action;
+    private final String reason;
+
+    public CompressionDecision(Action action, String reason) {
+        this.action = action;
+        this.reason = reason;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return action + " (" + reason + ")";
+    }
+}
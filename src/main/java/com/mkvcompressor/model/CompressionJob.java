@@ -0,0 +1,152 @@
+package com.mkvcompressor.model;
+
+/**
+ * Represents a single file scheduled for compression in batch mode
+ */
+public class CompressionJob {
+
+    /**
+     * Lifecycle of a batch job
+     */
+    public enum Status {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    /**
+     * Order in the batch queue; an URGENT job may pause lower ones to start at once
+     */
+    public enum Priority {
+        LOW,
+        NORMAL,
+        URGENT
+    }
+
+    private final int id;
+    private final String inputPath;
+    private final String outputPath;
+    private volatile Status status;
+    private volatile Priority priority;
+    private volatile boolean paused; // Suspended to make room for an urgent job
+    private VideoFile videoFile;
+    private String errorMessage;
+    private long startTime;
+    private long endTime;
+    private boolean resumed; // Finished by an earlier, interrupted run
+
+    public CompressionJob(int id, String inputPath, String outputPath) {
+        this.id = id;
+        this.inputPath = inputPath;
+        this.outputPath = outputPath;
+        this.status = Status.QUEUED;
+        this.priority = Priority.NORMAL;
+    }
+
+    // Getters and Setters
+    public int getId() {
+        return id;
+    }
+
+    public String getInputPath() {
+        return inputPath;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public VideoFile getVideoFile() {
+        return videoFile;
+    }
+
+    public void setVideoFile(VideoFile videoFile) {
+        this.videoFile = videoFile;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(long endTime) {
+        this.endTime = endTime;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    /**
+     * Returns how long the job ran, in milliseconds
+     */
+    public long getElapsedMillis() {
+        if (startTime == 0) return 0;
+        long end = endTime == 0 ? System.currentTimeMillis() : endTime;
+        return end - startTime;
+    }
+
+    /**
+     * Checks if the job has finished, successfully or not
+     */
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionJob{" +
+                "id=" + id +
+                ", inputPath='" + inputPath + '\'' +
+                ", outputPath='" + outputPath + '\'' +
+                ", status=" + status +
+                (priority != Priority.NORMAL ? ", priority=" + priority : "") +
+                (paused ? ", paused" : "") +
+                (errorMessage != null ? ", error='" + errorMessage + '\'' : "") +
+                '}';
+    }
+}
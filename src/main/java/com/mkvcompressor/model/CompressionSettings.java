@@ -10,6 +10,36 @@ public class CompressionSettings {
     private boolean keepAllSubtitles;
     private String preset;
     private int crf; // Constant Rate Factor (0-51, lower = better quality)
+    private int targetBitrateKbps; // Video bit rate instead of the CRF, 0 = CRF mode
+    private boolean twoPass; // Run a first pass before bit rate encodes
+    private long libraryBudgetBytes; // Total output size a batch must fit in, 0 = no budget
+    private int parallelJobs; // Files compressed at the same time in batch mode
+    private boolean adaptiveConcurrency; // Let the load and free memory decide instead of parallelJobs
+    private JobOrder jobOrder; // Which files a batch processes first
+    private DuplicateHandling duplicateHandling; // Files whose content was already compressed
+    private String scratchDirectory; // Fast local disk for staging batch inputs/outputs, null = off
+    private long scratchBudgetBytes; // 0 = 80% of the free space on the scratch disk
+    private boolean segmentedEncoding; // Split long files and encode the pieces in parallel
+    private int segmentSeconds;
+    private int segmentParallelism;
+    private boolean splitStreams; // Convert the audio tracks next to the video encode, then mux
+    private boolean smartSkip; // Skip or remux files that would not shrink
+    private int minBitrateKbps; // Sources below this bit rate are never re-encoded
+    private double reencodeMinBitsPerPixel; // Sources already in the target codec below this are kept
+    private double earlyAbortRatio; // Stop an encode projected above this fraction of the source, 0 = off
+    private boolean autoCrf; // Pick the CRF per file from sample encodes
+    private String autoCrfMetric; // "ssim" or "psnr"
+    private double autoCrfTarget;
+    private int autoCrfSamples;
+    private int autoCrfSampleSeconds;
+    private int autoCrfMin;
+    private int autoCrfMax;
+    private boolean cacheContentHash; // Also compare a hash of the file ends before reusing an analysis
+    private boolean verifyOutput; // Check streams, duration and sampled quality of every output
+    private String verifyMetric; // "ssim" or "psnr"
+    private double verifyMinScore; // Lowest acceptable score of a sampled window
+    private int verifySamples;
+    private int verifySampleSeconds;
 
     public CompressionSettings() {
         // Default values for high quality compression
@@ -19,6 +49,35 @@ public class CompressionSettings {
         this.keepAllSubtitles = true;
         this.preset = "medium";
         this.crf = 23; // Balance between quality and size
+        this.targetBitrateKbps = 0;
+        this.twoPass = true;
+        this.libraryBudgetBytes = 0;
+        // x265 keeps roughly 8 cores busy per encode, so share the rest with more files
+        this.parallelJobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 8);
+        this.adaptiveConcurrency = false;
+        this.jobOrder = JobOrder.LARGEST_SAVINGS_FIRST;
+        this.duplicateHandling = DuplicateHandling.LINK;
+        this.segmentedEncoding = false;
+        this.segmentSeconds = 120;
+        this.segmentParallelism = Math.max(2, Runtime.getRuntime().availableProcessors() / 8);
+        this.splitStreams = false;
+        this.smartSkip = true;
+        this.minBitrateKbps = 1500;
+        this.reencodeMinBitsPerPixel = 0.10;
+        this.earlyAbortRatio = 0.95;
+        this.autoCrf = false;
+        this.autoCrfMetric = "ssim";
+        this.autoCrfTarget = 0.98;
+        this.autoCrfSamples = 4;
+        this.autoCrfSampleSeconds = 10;
+        this.autoCrfMin = 18;
+        this.autoCrfMax = 32;
+        this.cacheContentHash = false;
+        this.verifyOutput = false;
+        this.verifyMetric = "ssim";
+        this.verifyMinScore = 0.90; // Far below any sane encode: catches corruption, not fine quality loss
+        this.verifySamples = 4;
+        this.verifySampleSeconds = 2;
     }
 
     // Getters and Setters
@@ -85,6 +144,327 @@ public class CompressionSettings {
         this.crf = crf;
     }
 
+    public int getTargetBitrateKbps() {
+        return targetBitrateKbps;
+    }
+
+    /**
+     * Encodes every file at this video bit rate instead of the CRF (0 goes back to CRF mode)
+     */
+    public void setTargetBitrateKbps(int targetBitrateKbps) {
+        if (targetBitrateKbps < 0) {
+            throw new IllegalArgumentException("Target bit rate cannot be negative");
+        }
+        this.targetBitrateKbps = targetBitrateKbps;
+    }
+
+    public boolean isTwoPass() {
+        return twoPass;
+    }
+
+    /**
+     * Whether bit rate encodes run a first pass (cached per file) before the real one
+     */
+    public void setTwoPass(boolean twoPass) {
+        this.twoPass = twoPass;
+    }
+
+    public long getLibraryBudgetBytes() {
+        return libraryBudgetBytes;
+    }
+
+    /**
+     * Total size the outputs of a batch must fit in; each file gets a video bit rate
+     * from its complexity, and the CRF becomes the quality no file goes beyond (0 = off)
+     */
+    public void setLibraryBudgetBytes(long libraryBudgetBytes) {
+        if (libraryBudgetBytes < 0) {
+            throw new IllegalArgumentException("Library budget cannot be negative");
+        }
+        this.libraryBudgetBytes = libraryBudgetBytes;
+    }
+
+    public int getParallelJobs() {
+        return parallelJobs;
+    }
+
+    public void setParallelJobs(int parallelJobs) {
+        if (parallelJobs < 1) {
+            throw new IllegalArgumentException("Parallel jobs must be at least 1");
+        }
+        this.parallelJobs = parallelJobs;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public JobOrder getJobOrder() {
+        return jobOrder;
+    }
+
+    public void setJobOrder(JobOrder jobOrder) {
+        this.jobOrder = jobOrder;
+    }
+
+    public DuplicateHandling getDuplicateHandling() {
+        return duplicateHandling;
+    }
+
+    public void setDuplicateHandling(DuplicateHandling duplicateHandling) {
+        if (duplicateHandling == null) {
+            throw new IllegalArgumentException("Duplicate handling must not be null");
+        }
+        this.duplicateHandling = duplicateHandling;
+    }
+
+    public String getScratchDirectory() {
+        return scratchDirectory;
+    }
+
+    public void setScratchDirectory(String scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    public long getScratchBudgetBytes() {
+        return scratchBudgetBytes;
+    }
+
+    public void setScratchBudgetBytes(long scratchBudgetBytes) {
+        if (scratchBudgetBytes < 0) {
+            throw new IllegalArgumentException("Scratch budget can't be negative");
+        }
+        this.scratchBudgetBytes = scratchBudgetBytes;
+    }
+
+    public boolean isSegmentedEncoding() {
+        return segmentedEncoding;
+    }
+
+    public void setSegmentedEncoding(boolean segmentedEncoding) {
+        this.segmentedEncoding = segmentedEncoding;
+    }
+
+    /**
+     * Whether converted audio tracks and the subtitles are processed by their own
+     * FFmpeg processes while the video encodes, and muxed at the end
+     */
+    public boolean isSplitStreams() {
+        return splitStreams;
+    }
+
+    public void setSplitStreams(boolean splitStreams) {
+        this.splitStreams = splitStreams;
+    }
+
+    public int getSegmentSeconds() {
+        return segmentSeconds;
+    }
+
+    public void setSegmentSeconds(int segmentSeconds) {
+        if (segmentSeconds < 10) {
+            throw new IllegalArgumentException("Segments must be at least 10 seconds long");
+        }
+        this.segmentSeconds = segmentSeconds;
+    }
+
+    /**
+     * Number of encoder processes run at once for a single file (segments, CRF samples)
+     */
+    public int getSegmentParallelism() {
+        return segmentParallelism;
+    }
+
+    public void setSegmentParallelism(int segmentParallelism) {
+        if (segmentParallelism < 1) {
+            throw new IllegalArgumentException("Segment parallelism must be at least 1");
+        }
+        this.segmentParallelism = segmentParallelism;
+    }
+
+    public boolean isSmartSkip() {
+        return smartSkip;
+    }
+
+    public void setSmartSkip(boolean smartSkip) {
+        this.smartSkip = smartSkip;
+    }
+
+    public int getMinBitrateKbps() {
+        return minBitrateKbps;
+    }
+
+    public void setMinBitrateKbps(int minBitrateKbps) {
+        if (minBitrateKbps < 0) {
+            throw new IllegalArgumentException("Minimum bit rate cannot be negative");
+        }
+        this.minBitrateKbps = minBitrateKbps;
+    }
+
+    public double getReencodeMinBitsPerPixel() {
+        return reencodeMinBitsPerPixel;
+    }
+
+    public void setReencodeMinBitsPerPixel(double reencodeMinBitsPerPixel) {
+        if (reencodeMinBitsPerPixel < 0) {
+            throw new IllegalArgumentException("Bits per pixel threshold cannot be negative");
+        }
+        this.reencodeMinBitsPerPixel = reencodeMinBitsPerPixel;
+    }
+
+    public double getEarlyAbortRatio() {
+        return earlyAbortRatio;
+    }
+
+    /**
+     * Fraction of the source size above which a running encode is abandoned (0 disables the check)
+     */
+    public void setEarlyAbortRatio(double earlyAbortRatio) {
+        if (earlyAbortRatio < 0) {
+            throw new IllegalArgumentException("Early abort ratio cannot be negative");
+        }
+        this.earlyAbortRatio = earlyAbortRatio;
+    }
+
+    public boolean isAutoCrf() {
+        return autoCrf;
+    }
+
+    public void setAutoCrf(boolean autoCrf) {
+        this.autoCrf = autoCrf;
+    }
+
+    public String getAutoCrfMetric() {
+        return autoCrfMetric;
+    }
+
+    public void setAutoCrfMetric(String autoCrfMetric) {
+        String metric = autoCrfMetric.toLowerCase();
+        if (!metric.equals("ssim") && !metric.equals("psnr")) {
+            throw new IllegalArgumentException("Auto CRF metric must be ssim or psnr");
+        }
+        this.autoCrfMetric = metric;
+    }
+
+    /**
+     * Minimum score a CRF must reach: SSIM (0-1) or PSNR (dB), depending on the metric
+     */
+    public double getAutoCrfTarget() {
+        return autoCrfTarget;
+    }
+
+    public void setAutoCrfTarget(double autoCrfTarget) {
+        this.autoCrfTarget = autoCrfTarget;
+    }
+
+    public int getAutoCrfSamples() {
+        return autoCrfSamples;
+    }
+
+    public void setAutoCrfSamples(int autoCrfSamples) {
+        if (autoCrfSamples < 1) {
+            throw new IllegalArgumentException("Auto CRF needs at least 1 sample");
+        }
+        this.autoCrfSamples = autoCrfSamples;
+    }
+
+    public int getAutoCrfSampleSeconds() {
+        return autoCrfSampleSeconds;
+    }
+
+    public void setAutoCrfSampleSeconds(int autoCrfSampleSeconds) {
+        if (autoCrfSampleSeconds < 1) {
+            throw new IllegalArgumentException("Auto CRF samples must be at least 1 second long");
+        }
+        this.autoCrfSampleSeconds = autoCrfSampleSeconds;
+    }
+
+    public int getAutoCrfMin() {
+        return autoCrfMin;
+    }
+
+    public int getAutoCrfMax() {
+        return autoCrfMax;
+    }
+
+    public void setAutoCrfRange(int autoCrfMin, int autoCrfMax) {
+        if (autoCrfMin < 0 || autoCrfMax > 51 || autoCrfMin > autoCrfMax) {
+            throw new IllegalArgumentException("Auto CRF range must be within 0-51");
+        }
+        this.autoCrfMin = autoCrfMin;
+        this.autoCrfMax = autoCrfMax;
+    }
+
+    public boolean isCacheContentHash() {
+        return cacheContentHash;
+    }
+
+    public void setCacheContentHash(boolean cacheContentHash) {
+        this.cacheContentHash = cacheContentHash;
+    }
+
+    public boolean isVerifyOutput() {
+        return verifyOutput;
+    }
+
+    public void setVerifyOutput(boolean verifyOutput) {
+        this.verifyOutput = verifyOutput;
+    }
+
+    public String getVerifyMetric() {
+        return verifyMetric;
+    }
+
+    /**
+     * Sets the metric of the sampled check ("ssim" or "psnr") and resets the
+     * minimum score to that metric's default (SSIM 0.90, PSNR 30 dB)
+     */
+    public void setVerifyMetric(String verifyMetric) {
+        String metric = verifyMetric.toLowerCase();
+        if (!metric.equals("ssim") && !metric.equals("psnr")) {
+            throw new IllegalArgumentException("Verify metric must be ssim or psnr");
+        }
+        this.verifyMetric = metric;
+        this.verifyMinScore = metric.equals("ssim") ? 0.90 : 30.0;
+    }
+
+    public double getVerifyMinScore() {
+        return verifyMinScore;
+    }
+
+    public void setVerifyMinScore(double verifyMinScore) {
+        this.verifyMinScore = verifyMinScore;
+    }
+
+    public int getVerifySamples() {
+        return verifySamples;
+    }
+
+    /**
+     * Windows compared per output; 0 checks only streams and duration
+     */
+    public void setVerifySamples(int verifySamples) {
+        if (verifySamples < 0) {
+            throw new IllegalArgumentException("Verify samples cannot be negative");
+        }
+        this.verifySamples = verifySamples;
+    }
+
+    public int getVerifySampleSeconds() {
+        return verifySampleSeconds;
+    }
+
+    public void setVerifySampleSeconds(int verifySampleSeconds) {
+        if (verifySampleSeconds < 1) {
+            throw new IllegalArgumentException("Verify sample length must be at least 1 second");
+        }
+        this.verifySampleSeconds = verifySampleSeconds;
+    }
+
     @Override
     public String toString() {
         return "CompressionSettings{" +
@@ -93,7 +473,18 @@ public class CompressionSettings {
                 ", keepAllAudioTracks=" + keepAllAudioTracks +
                 ", keepAllSubtitles=" + keepAllSubtitles +
                 ", preset='" + preset + '\'' +
-                ", crf=" + crf +
+                ", crf=" + (autoCrf ? "auto(" + autoCrfMetric + ">=" + autoCrfTarget + ")" : crf) +
+                (libraryBudgetBytes > 0 ? ", budget=" + VideoFile.formatFileSize(libraryBudgetBytes) : "") +
+                (targetBitrateKbps > 0 ? ", bitrate=" + targetBitrateKbps + "k" : "") +
+                (libraryBudgetBytes > 0 || targetBitrateKbps > 0 ? ", twoPass=" + twoPass : "") +
+                ", parallelJobs=" + (adaptiveConcurrency ? "adaptive" : String.valueOf(parallelJobs)) +
+                ", jobOrder=" + jobOrder +
+                (duplicateHandling != DuplicateHandling.LINK ? ", duplicates=" + duplicateHandling : "") +
+                (scratchDirectory != null ? ", scratchDirectory='" + scratchDirectory + '\'' : "") +
+                (verifyOutput ? ", verify=" + verifyMetric + ">=" + verifyMinScore + " x" + verifySamples : "") +
+                (segmentedEncoding ? ", segmentSeconds=" + segmentSeconds
+                        + ", segmentParallelism=" + segmentParallelism : "") +
+                (splitStreams ? ", splitStreams=true" : "") +
                 '}';
     }
 }
@@ -0,0 +1,11 @@
+package com.mkvcompressor.model;
+
+/**
+ * What a batch does with a file whose content was already compressed,
+ * under another name or in an earlier run
+ */
+public enum DuplicateHandling {
+    LINK,   // Hard-link (or copy) the existing output instead of encoding again
+    SKIP,   // Leave the file alone, produce no output
+    ENCODE  // Encode it like any other file
+}
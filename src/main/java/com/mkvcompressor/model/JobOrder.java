@@ -0,0 +1,11 @@
+package com.mkvcompressor.model;
+
+/**
+ * Order in which a batch processes the files it found
+ */
+public enum JobOrder {
+    LARGEST_SAVINGS_FIRST, // Biggest expected reduction in bytes first
+    SHORTEST_FIRST,        // Least encoding work (duration x pixels) first
+    OLDEST_FIRST,          // Oldest modification time first
+    PATH                   // Alphabetical by path
+}
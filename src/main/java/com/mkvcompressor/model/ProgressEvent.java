@@ -0,0 +1,97 @@
+package com.mkvcompressor.model;
+
+/**
+ * Progress of a running FFmpeg encode, as reported by "-progress"
+ */
+public class ProgressEvent {
+
+    private final String inputPath;
+    private final long frame;
+    private final double fps;
+    private final long outTimeMicros;
+    private final double bitrateKbps;
+    private final double speed;
+    private final long totalSize;
+    private final double percent;
+    private final boolean finished;
+
+    public ProgressEvent(String inputPath, long frame, double fps, long outTimeMicros, double bitrateKbps,
+                         double speed, long totalSize, double percent, boolean finished) {
+        this.inputPath = inputPath;
+        this.frame = frame;
+        this.fps = fps;
+        this.outTimeMicros = outTimeMicros;
+        this.bitrateKbps = bitrateKbps;
+        this.speed = speed;
+        this.totalSize = totalSize;
+        this.percent = percent;
+        this.finished = finished;
+    }
+
+    // Getters
+    public String getInputPath() {
+        return inputPath;
+    }
+
+    public long getFrame() {
+        return frame;
+    }
+
+    public double getFps() {
+        return fps;
+    }
+
+    public long getOutTimeMicros() {
+        return outTimeMicros;
+    }
+
+    public double getOutTimeSeconds() {
+        return outTimeMicros / 1_000_000.0;
+    }
+
+    public double getBitrateKbps() {
+        return bitrateKbps;
+    }
+
+    /**
+     * Encoding speed relative to real time (2.0 = twice as fast as playback)
+     */
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Bytes written to the output so far
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Percentage done (0-100), or -1 when the duration is unknown
+     */
+    public double getPercent() {
+        return percent;
+    }
+
+    /**
+     * True for the last event of an encode
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgressEvent{" +
+                "frame=" + frame +
+                ", fps=" + fps +
+                ", outTime=" + String.format("%.2f", getOutTimeSeconds()) + "s" +
+                ", bitrate=" + bitrateKbps + "kbit/s" +
+                ", speed=" + speed + "x" +
+                ", totalSize=" + totalSize +
+                ", percent=" + String.format("%.1f", percent) +
+                (finished ? ", finished" : "") +
+                '}';
+    }
+}
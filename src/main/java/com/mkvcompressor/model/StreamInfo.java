@@ -0,0 +1,113 @@
+package com.mkvcompressor.model;
+
+/**
+ * Describes one stream (video, audio, subtitle...) inside a video file
+ */
+public class StreamInfo {
+
+    public static final String TYPE_VIDEO = "video";
+    public static final String TYPE_AUDIO = "audio";
+    public static final String TYPE_SUBTITLE = "subtitle";
+
+    private int index;
+    private String type;
+    private String codec;
+    private String language;
+    private String title;
+    private boolean defaultTrack;
+    private boolean forced;
+    private int channels;
+    private long bitRate; // Bits per second when the file states it, 0 otherwise
+
+    public StreamInfo(int index, String type, String codec) {
+        this.index = index;
+        this.type = type;
+        this.codec = codec;
+    }
+
+    // Getters and Setters
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public boolean isDefaultTrack() {
+        return defaultTrack;
+    }
+
+    public void setDefaultTrack(boolean defaultTrack) {
+        this.defaultTrack = defaultTrack;
+    }
+
+    public boolean isForced() {
+        return forced;
+    }
+
+    public void setForced(boolean forced) {
+        this.forced = forced;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public void setChannels(int channels) {
+        this.channels = channels;
+    }
+
+    public long getBitRate() {
+        return bitRate;
+    }
+
+    public void setBitRate(long bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamInfo{" +
+                "index=" + index +
+                ", type='" + type + '\'' +
+                ", codec='" + codec + '\'' +
+                ", language='" + language + '\'' +
+                (title != null ? ", title='" + title + '\'' : "") +
+                ", default=" + defaultTrack +
+                ", forced=" + forced +
+                '}';
+    }
+}
@@ -14,11 +14,21 @@ public class VideoFile {
     private List<String> subtitleTracks;
     private String videoCodec;
     private String resolution;
+    private double durationSeconds; // 0 when unknown
+    private long bitRate; // Overall bit rate in bits per second, 0 when unknown
+    private double frameRate;
+    private String pixelFormat;
+    private List<StreamInfo> streams;
+    private CompressionDecision decision;
+    private int targetBitrateKbps; // Video bit rate assigned by a library budget, 0 = none
+    private String segmentUid; // Matroska SegmentUID in hex, null when unknown
+    private String fingerprint; // Sampled content hash, see ContentFingerprint
 
     public VideoFile(String filePath) {
         this.filePath = filePath;
         this.audioTracks = new ArrayList<>();
         this.subtitleTracks = new ArrayList<>();
+        this.streams = new ArrayList<>();
     }
 
     // Getters and Setters
@@ -78,6 +88,78 @@ public class VideoFile {
         this.resolution = resolution;
     }
 
+    public double getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public void setDurationSeconds(double durationSeconds) {
+        this.durationSeconds = durationSeconds;
+    }
+
+    public long getBitRate() {
+        return bitRate;
+    }
+
+    public void setBitRate(long bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public String getPixelFormat() {
+        return pixelFormat;
+    }
+
+    public void setPixelFormat(String pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
+    public List<StreamInfo> getStreams() {
+        return streams;
+    }
+
+    public void addStream(StreamInfo stream) {
+        this.streams.add(stream);
+    }
+
+    public CompressionDecision getDecision() {
+        return decision;
+    }
+
+    public void setDecision(CompressionDecision decision) {
+        this.decision = decision;
+    }
+
+    public int getTargetBitrateKbps() {
+        return targetBitrateKbps;
+    }
+
+    public void setTargetBitrateKbps(int targetBitrateKbps) {
+        this.targetBitrateKbps = targetBitrateKbps;
+    }
+
+    public String getSegmentUid() {
+        return segmentUid;
+    }
+
+    public void setSegmentUid(String segmentUid) {
+        this.segmentUid = segmentUid;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
     /**
      * Calculates the size reduction percentage
      */
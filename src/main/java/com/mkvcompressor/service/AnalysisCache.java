@@ -0,0 +1,478 @@
+package com.mkvcompressor.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Persistent cache of analysis results, so unchanged files are not analyzed again.
+ * Entries are keyed by canonical path, size and last-modified time (plus an optional
+ * hash of the first and last 64 KB) and stored in an append-only binary file.
+ * Recently used records are also kept in memory in an LRU map.
+ *
+ * Batch, watch and manifest runs may share the file. Loading, appending and
+ * compacting hold a lock on a sibling ".lock" file; before appending, a process
+ * picks up the records others appended, or re-reads the file when another process
+ * compacted it. A damaged file is started over instead of failing the run.
+ */
+public class AnalysisCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x4D4B5643; // "MKVC"
+    private static final int VERSION = 3; // 2: SegmentUID and fingerprint, 3: stream bit rates
+    private static final int HEADER_SIZE = 8;
+    private static final int HASH_CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_MEMORY_ENTRIES = 4096;
+
+    // File locks are held per JVM, so threads with their own cache on the same file queue here first
+    private static final Map<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path cachePath;
+    private final FileChannel lockChannel;
+    private final Object jvmLock;
+    private RandomAccessFile storage;
+    private Object fileKey; // Identity of the opened file, to notice a compaction by another process
+    private long indexedLength; // End of the last record in the index
+    private final Map<String, IndexEntry> index = new HashMap<>();
+    private final LinkedHashMap<String, byte[]> memory;
+    private boolean contentHashEnabled;
+    private long hits;
+    private long misses;
+    private int staleRecords;
+
+    public AnalysisCache(Path cachePath) throws IOException {
+        this(cachePath, DEFAULT_MEMORY_ENTRIES);
+    }
+
+    public AnalysisCache(Path cachePath, int memoryEntries) throws IOException {
+        this.cachePath = cachePath;
+        this.memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+
+        Path parent = cachePath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path lockPath = cachePath.resolveSibling(cachePath.getFileName() + ".lock");
+        this.jvmLock = JVM_LOCKS.computeIfAbsent(lockPath.toAbsolutePath().normalize(), key -> new Object());
+        this.lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            locked(() -> {
+                open();
+                return null;
+            });
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the cache in the user's home directory (~/.mkv-compressor/analysis-cache.bin)
+     */
+    public static AnalysisCache openDefault() throws IOException {
+        return new AnalysisCache(Paths.get(System.getProperty("user.home"), ".mkv-compressor", "analysis-cache.bin"));
+    }
+
+    /**
+     * Also compares a hash of the first and last 64 KB of the file (see
+     * {@link com.mkvcompressor.model.CompressionSettings#isCacheContentHash()}).
+     * Catches in-place rewrites that keep size and mtime, at the cost of two small reads.
+     */
+    public void setContentHashEnabled(boolean contentHashEnabled) {
+        this.contentHashEnabled = contentHashEnabled;
+    }
+
+    /**
+     * Returns the cached analysis for the file, or null when missing or out of date
+     */
+    public synchronized VideoFile get(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        IndexEntry entry = index.get(key);
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()
+                || (contentHashEnabled && entry.contentHash != contentHash(file))) {
+            if (entry != null) {
+                // The file changed since it was analyzed
+                index.remove(key);
+                memory.remove(key);
+                staleRecords++;
+            }
+            misses++;
+            return null;
+        }
+
+        VideoFile videoFile;
+        try {
+            byte[] record = memory.get(key);
+            if (record == null) {
+                record = new byte[entry.length];
+                storage.seek(entry.offset);
+                storage.readFully(record);
+            }
+            videoFile = decode(record);
+            memory.put(key, record);
+        } catch (IOException e) {
+            // Damaged record, or the file was started over by another process: analyze again
+            index.remove(key);
+            memory.remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        videoFile.setFilePath(file.getPath());
+        return videoFile;
+    }
+
+    /**
+     * Stores the analysis of a file, replacing any previous entry
+     */
+    public synchronized void put(File file, VideoFile videoFile) throws IOException {
+        String key = file.getCanonicalPath();
+        long hash = contentHashEnabled ? contentHash(file) : 0;
+        byte[] record = encode(key, file.length(), file.lastModified(), hash, videoFile);
+
+        long offset = locked(() -> {
+            refresh();
+            long end = storage.length();
+            storage.seek(end);
+            storage.writeInt(record.length);
+            storage.write(record);
+            indexedLength = storage.length();
+            return end;
+        });
+
+        if (index.put(key, new IndexEntry(offset + 4, record.length, file.length(), file.lastModified(), hash)) != null) {
+            staleRecords++;
+        }
+        memory.put(key, record);
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Rewrites the cache file with only the current entries when it holds many stale ones
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            locked(() -> {
+                try {
+                    refresh(); // Keep what other processes added
+                    if (staleRecords > index.size()) {
+                        Path compacted = writeCompacted();
+                        Files.move(compacted, cachePath, StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } finally {
+                    storage.close();
+                }
+                return null;
+            });
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * Runs the action while holding the cache file lock
+     */
+    private <T> T locked(LockedAction<T> action) throws IOException {
+        synchronized (jvmLock) {
+            FileLock lock = lockChannel.lock();
+            try {
+                return action.run();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Opens the cache file and indexes its records (lock held)
+     */
+    private void open() throws IOException {
+        storage = new RandomAccessFile(cachePath.toFile(), "rw");
+        fileKey = Files.readAttributes(cachePath, BasicFileAttributes.class).fileKey();
+        index.clear();
+        memory.clear();
+        staleRecords = 0;
+        loadIndex();
+    }
+
+    /**
+     * Catches up with the other processes sharing the file (lock held)
+     */
+    private void refresh() throws IOException {
+        Object currentKey = Files.exists(cachePath)
+                ? Files.readAttributes(cachePath, BasicFileAttributes.class).fileKey() : null;
+        if (currentKey == null || !currentKey.equals(fileKey) || storage.length() < indexedLength) {
+            // Compacted or started over by another process: read the new file
+            storage.close();
+            open();
+        } else if (storage.length() > indexedLength) {
+            indexRecords(indexedLength);
+        }
+    }
+
+    private void loadIndex() throws IOException {
+        if (storage.length() < HEADER_SIZE) {
+            reset();
+            return;
+        }
+        storage.seek(0);
+        if (storage.readInt() != MAGIC || storage.readInt() != VERSION) {
+            // Unknown format: start over rather than fail the analysis
+            reset();
+            return;
+        }
+        indexRecords(HEADER_SIZE);
+    }
+
+    /**
+     * Adds the records from the position to the end of the file to the index
+     */
+    private void indexRecords(long position) throws IOException {
+        long fileLength = storage.length();
+        while (position + 4 <= fileLength) {
+            storage.seek(position);
+            int length = storage.readInt();
+            if (length <= 0 || position + 4 + length > fileLength) {
+                break; // Truncated tail from an interrupted write
+            }
+            byte[] record = new byte[length];
+            storage.readFully(record);
+            IndexEntry entry;
+            String key;
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                key = in.readUTF();
+                entry = new IndexEntry(position + 4, length, in.readLong(), in.readLong(), in.readLong());
+            } catch (IOException e) {
+                System.err.println("Warning: analysis cache " + cachePath + " is damaged, starting over");
+                reset();
+                return;
+            }
+            if (index.put(key, entry) != null) {
+                staleRecords++;
+            }
+            position += 4 + length;
+        }
+        if (position < fileLength) {
+            storage.setLength(position); // Safe: every writer holds the lock
+        }
+        indexedLength = position;
+    }
+
+    /**
+     * Empties the cache file and the index (lock held)
+     */
+    private void reset() throws IOException {
+        storage.setLength(0);
+        storage.seek(0);
+        storage.writeInt(MAGIC);
+        storage.writeInt(VERSION);
+        index.clear();
+        memory.clear();
+        staleRecords = 0;
+        indexedLength = HEADER_SIZE;
+    }
+
+    /**
+     * Copies the current records to a new file, leaving out stale ones
+     */
+    private Path writeCompacted() throws IOException {
+        Path directory = cachePath.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, cachePath.getFileName().toString(), ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp.toFile(), "rw")) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (IndexEntry entry : index.values()) {
+                byte[] record = new byte[entry.length];
+                storage.seek(entry.offset);
+                storage.readFully(record);
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    private static byte[] encode(String key, long size, long lastModified, long hash, VideoFile videoFile)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(key);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeLong(hash);
+
+        out.writeLong(videoFile.getOriginalSize());
+        writeNullable(out, videoFile.getVideoCodec());
+        writeNullable(out, videoFile.getResolution());
+        out.writeDouble(videoFile.getDurationSeconds());
+        out.writeLong(videoFile.getBitRate());
+        out.writeDouble(videoFile.getFrameRate());
+        writeNullable(out, videoFile.getPixelFormat());
+        writeNullable(out, videoFile.getSegmentUid());
+        writeNullable(out, videoFile.getFingerprint());
+        writeStrings(out, videoFile.getAudioTracks());
+        writeStrings(out, videoFile.getSubtitleTracks());
+
+        List<StreamInfo> streams = videoFile.getStreams();
+        out.writeShort(streams.size());
+        for (StreamInfo stream : streams) {
+            out.writeShort(stream.getIndex());
+            writeNullable(out, stream.getType());
+            writeNullable(out, stream.getCodec());
+            writeNullable(out, stream.getLanguage());
+            writeNullable(out, stream.getTitle());
+            out.writeByte((stream.isDefaultTrack() ? 1 : 0) | (stream.isForced() ? 2 : 0));
+            out.writeByte(stream.getChannels());
+            out.writeLong(stream.getBitRate());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static VideoFile decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String key = in.readUTF();
+        in.readLong(); // size
+        in.readLong(); // last modified
+        in.readLong(); // content hash
+
+        VideoFile videoFile = new VideoFile(key);
+        videoFile.setOriginalSize(in.readLong());
+        videoFile.setVideoCodec(readNullable(in));
+        videoFile.setResolution(readNullable(in));
+        videoFile.setDurationSeconds(in.readDouble());
+        videoFile.setBitRate(in.readLong());
+        videoFile.setFrameRate(in.readDouble());
+        videoFile.setPixelFormat(readNullable(in));
+        videoFile.setSegmentUid(readNullable(in));
+        videoFile.setFingerprint(readNullable(in));
+        int audioCount = in.readShort();
+        for (int i = 0; i < audioCount; i++) {
+            videoFile.addAudioTrack(in.readUTF());
+        }
+        int subtitleCount = in.readShort();
+        for (int i = 0; i < subtitleCount; i++) {
+            videoFile.addSubtitleTrack(in.readUTF());
+        }
+
+        int streamCount = in.readShort();
+        for (int i = 0; i < streamCount; i++) {
+            int index = in.readShort();
+            StreamInfo stream = new StreamInfo(index, readNullable(in), readNullable(in));
+            stream.setLanguage(readNullable(in));
+            stream.setTitle(readNullable(in));
+            int flags = in.readByte();
+            stream.setDefaultTrack((flags & 1) != 0);
+            stream.setForced((flags & 2) != 0);
+            stream.setChannels(in.readUnsignedByte());
+            stream.setBitRate(in.readLong());
+            videoFile.addStream(stream);
+        }
+        return videoFile;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeShort(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Hashes the first and last 64 KB of a file
+     */
+    static long contentHash(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(HASH_CHUNK_SIZE);
+            channel.read(buffer, 0);
+            buffer.flip();
+            crc.update(buffer);
+            if (size > HASH_CHUNK_SIZE) {
+                buffer.clear();
+                channel.read(buffer, Math.max(HASH_CHUNK_SIZE, size - HASH_CHUNK_SIZE));
+                buffer.flip();
+                crc.update(buffer);
+            }
+            return crc.getValue() ^ (size << 32);
+        }
+    }
+
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Location and key fields of one record in the cache file
+     */
+    private static final class IndexEntry {
+        final long offset;
+        final int length;
+        final long size;
+        final long lastModified;
+        final long contentHash;
+
+        IndexEntry(long offset, int length, long size, long lastModified, long contentHash) {
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+    }
+}
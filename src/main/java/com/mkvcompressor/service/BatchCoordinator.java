@@ -0,0 +1,447 @@
+package com.mkvcompressor.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionJob;
+import com.mkvcompressor.model.VideoFile;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Owns the job queue of a batch and hands jobs to {@link BatchWorker} processes over HTTP.
+ *
+ * Workers ask for a lease on the next job (POST /lease), renew it while they encode
+ * (POST /heartbeat) and report the outcome (POST /result); GET /status lists the jobs.
+ * Requests and replies are java.util.Properties text. A lease that is not renewed in
+ * time puts its job back in the queue at its original priority, so work held by a
+ * worker that died is picked up by another one. Workers read and write the files on
+ * shared storage mounted at the same paths; only the coordinator writes the journal.
+ *
+ * There is no authentication: run it on a trusted network.
+ */
+public class BatchCoordinator implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8700;
+    public static final long DEFAULT_LEASE_MILLIS = 60_000;
+    static final int MAX_ATTEMPTS = 3; // Leases a job may lose before it is marked failed
+    private static final long DRAIN_MILLIS = 2 * BatchWorker.IDLE_POLL_MILLIS;
+
+    /**
+     * A submitted job and its place in the queue
+     */
+    private static final class Task {
+        final CompressionJob job;
+        final int order;
+        int attempts;
+        Lease lease;
+
+        Task(CompressionJob job, int order) {
+            this.job = job;
+            this.order = order;
+        }
+    }
+
+    /**
+     * A job handed to a worker until expiresAt
+     */
+    private static final class Lease {
+        final String id;
+        final Task task;
+        final String worker;
+        long expiresAt;
+        double percent = -1;
+
+        Lease(String id, Task task, String worker, long expiresAt) {
+            this.id = id;
+            this.task = task;
+            this.worker = worker;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final BatchJournal journal;
+    private final long leaseMillis;
+    private final HttpServer server;
+    private final ScheduledExecutorService reaper;
+
+    private final List<Task> tasks = new ArrayList<>();
+    private final PriorityQueue<Task> pending = new PriorityQueue<>(Comparator.comparingInt((Task t) -> t.order));
+    private final Map<String, Lease> leases = new HashMap<>();
+    private final Set<String> workers = new HashSet<>(); // Seen and not yet told the batch is over
+    private int unfinished;
+    private boolean accepting = true;
+
+    /**
+     * Starts serving on the given port on all interfaces (0 picks a free port)
+     */
+    public BatchCoordinator(int port, BatchJournal journal, long leaseMillis) throws IOException {
+        if (leaseMillis < 1000) {
+            throw new IllegalArgumentException("Lease must be at least one second");
+        }
+        this.journal = journal;
+        this.leaseMillis = leaseMillis;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/lease", exchange -> handle(exchange, "POST", this::lease));
+        server.createContext("/heartbeat", exchange -> handle(exchange, "POST", this::heartbeat));
+        server.createContext("/result", exchange -> handle(exchange, "POST", this::result));
+        server.createContext("/status", exchange -> handle(exchange, "GET", request -> status()));
+        server.setExecutor(Executors.newFixedThreadPool(4, daemonThreads("coordinator-http")));
+        server.start();
+
+        this.reaper = Executors.newSingleThreadScheduledExecutor(daemonThreads("lease-reaper"));
+        long period = Math.max(500, leaseMillis / 10);
+        reaper.scheduleWithFixedDelay(this::expireLeases, period, period, TimeUnit.MILLISECONDS);
+        System.out.println("Coordinator listening on port " + getPort() + " (lease " + leaseMillis / 1000 + "s)");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Queues a file; jobs are leased in submission order. Files the journal
+     * shows as done are completed right away.
+     */
+    public synchronized CompressionJob submit(String inputPath, String outputPath, VideoFile videoFile) {
+        CompressionJob job = new CompressionJob(tasks.size() + 1, inputPath, outputPath);
+        job.setVideoFile(videoFile != null ? videoFile : new VideoFile(inputPath)); // Null when the scan failed
+        Task task = new Task(job, tasks.size());
+        tasks.add(task);
+        if (journal != null && journal.isDone(inputPath, outputPath)) {
+            job.setResumed(true);
+            job.setStatus(CompressionJob.Status.COMPLETED);
+            return job;
+        }
+        pending.add(task);
+        unfinished++;
+        EncodeMetrics.JOBS_QUEUED.inc();
+        return job;
+    }
+
+    /**
+     * Stops accepting jobs and waits until workers have finished every one
+     */
+    public synchronized List<CompressionJob> awaitCompletion() throws InterruptedException {
+        accepting = false;
+        while (unfinished > 0) {
+            wait();
+        }
+        List<CompressionJob> jobs = new ArrayList<>();
+        for (Task task : tasks) {
+            jobs.add(task.job);
+        }
+        return jobs;
+    }
+
+    /**
+     * Gives idle workers a moment to learn the batch is over, then stops serving
+     */
+    @Override
+    public void close() {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        synchronized (this) {
+            while (!accepting && unfinished == 0 && !workers.isEmpty() && System.currentTimeMillis() < deadline) {
+                try {
+                    wait(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        reaper.shutdownNow();
+        server.stop(1); // Lets the reply telling the last worker the batch is over go out
+    }
+
+    private synchronized Reply lease(Properties request) throws IOException {
+        String worker = request.getProperty("worker", "unknown");
+        Task task = pending.poll();
+        if (task == null) {
+            if (!accepting && unfinished == 0) {
+                workers.remove(worker);
+                notifyAll();
+                return new Reply(410, null); // Batch over, the worker can exit
+            }
+            workers.add(worker);
+            return new Reply(204, null); // Everything is leased, ask again later
+        }
+        workers.add(worker);
+
+        Lease lease = new Lease(UUID.randomUUID().toString(), task, worker,
+                System.currentTimeMillis() + leaseMillis);
+        leases.put(lease.id, lease);
+        task.lease = lease;
+        task.attempts++;
+        CompressionJob job = task.job;
+        job.setStatus(CompressionJob.Status.RUNNING);
+        if (job.getStartTime() == 0) {
+            job.setStartTime(System.currentTimeMillis());
+        }
+        EncodeMetrics.JOBS_QUEUED.dec();
+        if (journal != null) {
+            journal.record(BatchJournal.State.ENCODING, job.getInputPath(), job.getOutputPath(), -1, 0,
+                    "leased to " + worker);
+        }
+        System.out.println("[job " + job.getId() + "] Leased to " + worker + ": "
+                + new File(job.getInputPath()).getName());
+
+        Properties reply = new Properties();
+        reply.setProperty("lease", lease.id);
+        reply.setProperty("job", String.valueOf(job.getId()));
+        reply.setProperty("input", job.getInputPath());
+        reply.setProperty("output", job.getOutputPath());
+        reply.setProperty("leaseMillis", String.valueOf(leaseMillis));
+        return new Reply(200, reply);
+    }
+
+    private synchronized Reply heartbeat(Properties request) {
+        Lease lease = leases.get(request.getProperty("lease", ""));
+        if (lease == null) {
+            return new Reply(409, null); // Expired and requeued, the worker must stop
+        }
+        lease.expiresAt = System.currentTimeMillis() + leaseMillis;
+        lease.percent = Double.parseDouble(request.getProperty("percent", "-1"));
+        return new Reply(200, null);
+    }
+
+    private Reply result(Properties request) {
+        Lease lease;
+        synchronized (this) {
+            lease = leases.remove(request.getProperty("lease", ""));
+            if (lease == null) {
+                return new Reply(409, null); // Too late, another worker has the job
+            }
+            lease.task.lease = null;
+        }
+
+        // Outside the lock: the output checksum reads the whole file
+        CompressionJob job = lease.task.job;
+        if ("COMPLETED".equals(request.getProperty("status"))) {
+            VideoFile videoFile = job.getVideoFile();
+            videoFile.setOriginalSize(Long.parseLong(request.getProperty("originalSize", "0")));
+            videoFile.setCompressedSize(Long.parseLong(request.getProperty("compressedSize", "0")));
+            String action = request.getProperty("decision");
+            if (action != null) {
+                videoFile.setDecision(new CompressionDecision(CompressionDecision.Action.valueOf(action),
+                        request.getProperty("reason", "")));
+            }
+            complete(job);
+            System.out.println("[job " + job.getId() + "] Done by " + lease.worker + ": "
+                    + new File(job.getInputPath()).getName());
+        } else {
+            fail(job, request.getProperty("message", "failed on " + lease.worker));
+        }
+        synchronized (this) {
+            finish(job);
+        }
+        return new Reply(200, null);
+    }
+
+    private Reply status() {
+        StringBuilder text = new StringBuilder();
+        synchronized (this) {
+            for (Task task : tasks) {
+                CompressionJob job = task.job;
+                text.append(job.getId()).append('\t').append(job.getStatus());
+                Lease lease = task.lease;
+                if (lease != null) {
+                    text.append('\t').append(lease.worker)
+                            .append(String.format("\t%.0f%%", Math.max(0, lease.percent)));
+                }
+                text.append('\t').append(job.getInputPath()).append('\n');
+            }
+        }
+        return new Reply(200, text.toString());
+    }
+
+    /**
+     * Requeues the jobs of workers that stopped renewing their lease
+     */
+    private synchronized void expireLeases() {
+        long now = System.currentTimeMillis();
+        Iterator<Lease> iterator = leases.values().iterator();
+        while (iterator.hasNext()) {
+            Lease lease = iterator.next();
+            if (lease.expiresAt > now) {
+                continue;
+            }
+            iterator.remove();
+            Task task = lease.task;
+            task.lease = null;
+            CompressionJob job = task.job;
+            removePartialOutput(job, lease);
+            if (task.attempts >= MAX_ATTEMPTS) {
+                fail(job, "lease expired " + task.attempts + " times, last on " + lease.worker);
+                finish(job);
+                continue;
+            }
+            System.out.println("[job " + job.getId() + "] Lease of " + lease.worker + " expired, requeued");
+            job.setStatus(CompressionJob.Status.QUEUED);
+            pending.add(task);
+            EncodeMetrics.JOBS_QUEUED.inc();
+        }
+    }
+
+    /**
+     * Deletes the partial output of an expired lease. Its worker stopped the encode
+     * itself half a lease ago, or is gone.
+     */
+    private static void removePartialOutput(CompressionJob job, Lease lease) {
+        Path partial = Paths.get(VideoCompressor.partialPath(job.getOutputPath(), lease.id));
+        try {
+            Files.deleteIfExists(partial);
+        } catch (IOException e) {
+            System.err.println("Warning: could not remove " + partial + ": " + e.getMessage());
+        }
+    }
+
+    private void complete(CompressionJob job) {
+        VideoFile videoFile = job.getVideoFile();
+        CompressionDecision decision = videoFile.getDecision();
+        try {
+            record(BatchJournal.State.DONE, job, decision == null ? null : decision.toString());
+        } catch (IOException e) {
+            fail(job, "could not record the result: " + e.getMessage());
+            return;
+        }
+        job.setStatus(CompressionJob.Status.COMPLETED);
+        EncodeMetrics.JOBS_COMPLETED.inc();
+        if (decision == null || decision.getAction() != CompressionDecision.Action.SKIP) {
+            EncodeMetrics.INPUT_BYTES.add(videoFile.getOriginalSize());
+            EncodeMetrics.OUTPUT_BYTES.add(videoFile.getCompressedSize());
+            EncodeMetrics.BYTES_SAVED.add(Math.max(0, videoFile.getOriginalSize() - videoFile.getCompressedSize()));
+        }
+    }
+
+    private void fail(CompressionJob job, String message) {
+        EncodeMetrics.JOBS_FAILED.inc();
+        job.setErrorMessage(message);
+        job.setStatus(CompressionJob.Status.FAILED);
+        System.err.println("[job " + job.getId() + "] Failed: " + new File(job.getInputPath()).getName()
+                + " - " + message);
+        try {
+            record(BatchJournal.State.FAILED, job, message);
+        } catch (IOException e) {
+            System.err.println("[job " + job.getId() + "] Could not write journal: " + e.getMessage());
+        }
+    }
+
+    private void finish(CompressionJob job) {
+        job.setEndTime(System.currentTimeMillis());
+        unfinished--;
+        notifyAll();
+    }
+
+    private void record(BatchJournal.State state, CompressionJob job, String message) throws IOException {
+        if (journal == null) {
+            return;
+        }
+        long size = -1;
+        long checksum = 0;
+        File output = new File(job.getOutputPath());
+        if (state == BatchJournal.State.DONE && output.isFile()) {
+            size = output.length();
+            checksum = BatchJournal.checksum(output);
+        }
+        journal.record(state, job.getInputPath(), job.getOutputPath(), size, checksum, message);
+    }
+
+    /**
+     * HTTP status and body of an answer: Properties, plain text or nothing
+     */
+    private static final class Reply {
+        final int status;
+        final Object body;
+
+        Reply(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private interface Handler {
+        Reply apply(Properties request) throws IOException;
+    }
+
+    private static void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        try {
+            if (!method.equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Properties request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = decode(in.readAllBytes());
+            }
+            Reply reply;
+            try {
+                reply = handler.apply(request);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Coordinator: " + exchange.getRequestURI() + " failed: " + e.getMessage());
+                reply = new Reply(500, null);
+            }
+            if (reply.body == null) {
+                exchange.sendResponseHeaders(reply.status, -1);
+                return;
+            }
+            byte[] body = reply.body instanceof Properties ? encode((Properties) reply.body)
+                    : reply.body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(reply.status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Wire format of requests and replies
+     */
+    static byte[] encode(Properties properties) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, null);
+        return out.toByteArray();
+    }
+
+    static Properties decode(byte[] body) throws IOException {
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(body));
+        return properties;
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
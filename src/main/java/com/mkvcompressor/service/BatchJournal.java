@@ -0,0 +1,236 @@
+package com.mkvcompressor.service;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of batch job states, flushed to disk after every entry.
+ * After a crash or reboot, a new batch reads it back to skip files that were
+ * already finished and to clean up outputs that were left half-written.
+ * Files without an entry are still pending.
+ */
+public class BatchJournal implements AutoCloseable {
+
+    /**
+     * Name of the journal kept in each output directory
+     */
+    public static final String FILE_NAME = ".mkv-compressor-journal.log";
+
+    /**
+     * States recorded for each input file
+     */
+    public enum State {
+        ANALYZING,
+        ENCODING,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * Last known state of one input file
+     */
+    public static class Entry {
+        private final State state;
+        private final String inputPath;
+        private final String outputPath;
+        private final long outputSize; // -1 when no output was written (skipped file)
+        private final long checksum;
+
+        Entry(State state, String inputPath, String outputPath, long outputSize, long checksum) {
+            this.state = state;
+            this.inputPath = inputPath;
+            this.outputPath = outputPath;
+            this.outputSize = outputSize;
+            this.checksum = checksum;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getInputPath() {
+            return inputPath;
+        }
+
+        public String getOutputPath() {
+            return outputPath;
+        }
+
+        public long getOutputSize() {
+            return outputSize;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public BatchJournal(Path journalPath) throws IOException {
+        Path parent = journalPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (Files.exists(journalPath)) {
+            load(journalPath);
+        }
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Append after the existing entries, terminating a torn last line first
+        long size = channel.size();
+        channel.position(size);
+        if (size > 0) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            if (last.get(0) != '\n') {
+                channel.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            }
+        }
+    }
+
+    /**
+     * Checks if the file was finished by an earlier run and its output is still intact
+     */
+    public synchronized boolean isDone(String inputPath, String outputPath) {
+        Entry entry = entries.get(inputPath);
+        if (entry == null || entry.state != State.DONE || !outputPath.equals(entry.outputPath)) {
+            return false;
+        }
+        if (entry.outputSize < 0) {
+            return true; // Skipped on purpose, there is no output to check
+        }
+        File output = new File(outputPath);
+        return output.isFile() && output.length() == entry.outputSize;
+    }
+
+    /**
+     * Returns the files whose last state shows they were being processed when the run stopped
+     */
+    public synchronized List<Entry> getInterrupted() {
+        List<Entry> interrupted = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.ANALYZING || entry.state == State.ENCODING) {
+                interrupted.add(entry);
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * Deletes the temporary outputs that interrupted jobs left behind, including the
+     * lease-tagged ones (out.TAG.part) of distributed batches
+     */
+    public void removePartialOutputs() throws IOException {
+        for (Entry interrupted : getInterrupted()) {
+            Path output = Paths.get(interrupted.getOutputPath());
+            Path directory = output.toAbsolutePath().getParent();
+            if (directory == null || !Files.isDirectory(directory)) {
+                continue;
+            }
+            String prefix = output.getFileName() + "."; // out.part and out.TAG.part
+            List<Path> partials = new ArrayList<>();
+            try (DirectoryStream<Path> siblings = Files.newDirectoryStream(directory)) {
+                for (Path sibling : siblings) {
+                    String name = sibling.getFileName().toString();
+                    if (name.startsWith(prefix) && name.endsWith(".part")) {
+                        partials.add(sibling);
+                    }
+                }
+            }
+            for (Path partial : partials) {
+                if (Files.deleteIfExists(partial)) {
+                    System.out.println("Removed partial output of interrupted run: " + partial);
+                }
+            }
+        }
+    }
+
+    public synchronized Entry getEntry(String inputPath) {
+        return entries.get(inputPath);
+    }
+
+    public void record(State state, String inputPath, String outputPath) throws IOException {
+        record(state, inputPath, outputPath, -1, 0, null);
+    }
+
+    /**
+     * Appends a state change and forces it to disk before returning
+     */
+    public synchronized void record(State state, String inputPath, String outputPath, long outputSize,
+                                    long checksum, String message) throws IOException {
+        String line = System.currentTimeMillis() + "\t" + state + "\t" + clean(inputPath) + "\t"
+                + clean(outputPath) + "\t" + outputSize + "\t" + Long.toHexString(checksum) + "\t"
+                + (message == null ? "" : clean(message)) + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        entries.put(inputPath, new Entry(state, inputPath, outputPath, outputSize, checksum));
+    }
+
+    /**
+     * CRC32C of a whole file, recorded with finished outputs
+     */
+    public static long checksum(File file) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void load(Path journalPath) throws IOException {
+        // InputStreamReader replaces bad bytes instead of throwing: a crash can cut a character in half
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(journalPath), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 7 || line.indexOf('\uFFFD') >= 0) {
+                    continue; // Torn last line from a crash
+                }
+                try {
+                    State state = State.valueOf(fields[1]);
+                    long size = Long.parseLong(fields[4]);
+                    long checksum = Long.parseUnsignedLong(fields[5], 16);
+                    entries.put(fields[2], new Entry(state, fields[2], fields[3], size, checksum));
+                } catch (IllegalArgumentException e) {
+                    // Ignore damaged lines, the next run records the file again
+                }
+            }
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
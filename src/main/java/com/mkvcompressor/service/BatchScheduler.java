@@ -0,0 +1,250 @@
+package com.mkvcompressor.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mkvcompressor.model.CompressionJob;
+
+/**
+ * Runs compression jobs on a bounded pool of worker threads.
+ * Jobs wait in a queue until a worker is free, higher priorities first,
+ * and a failing job is recorded as FAILED without affecting the rest of the batch.
+ *
+ * An URGENT job that finds every worker busy does not wait: the least important
+ * running job is paused (its FFmpeg processes get SIGSTOP) and the urgent job
+ * runs on an extra thread in its place. The paused job continues where it
+ * stopped once the urgent one is finished.
+ */
+public class BatchScheduler {
+
+    private final JobRunner runner;
+    private final VideoCompressor compressor;
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final List<CompressionJob> jobs = new ArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong(); // Keeps submission order within a priority
+    private final Map<CompressionJob, CompressionScope> running = new ConcurrentHashMap<>();
+    private final List<Thread> urgentThreads = new ArrayList<>();
+    private ScratchStaging staging;
+
+    public BatchScheduler(VideoAnalyzer analyzer, VideoCompressor compressor, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.runner = new JobRunner(analyzer, compressor);
+        this.compressor = compressor;
+        this.concurrency = concurrency;
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency,
+                0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), workerThreadFactory());
+    }
+
+    /**
+     * A job waiting in the queue: higher priority first, then in submission order
+     */
+    private final class QueuedJob implements Runnable, Comparable<QueuedJob> {
+        final CompressionJob job;
+        final long sequence;
+
+        QueuedJob(CompressionJob job, long sequence) {
+            this.job = job;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            runJob(job);
+        }
+
+        @Override
+        public int compareTo(QueuedJob other) {
+            int byPriority = other.job.getPriority().compareTo(job.getPriority());
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Records job states in a journal and skips files it shows as already done
+     */
+    public void setJournal(BatchJournal journal) {
+        runner.setJournal(journal);
+    }
+
+    /**
+     * Stages inputs and outputs on scratch, prefetching inputs in submission order
+     */
+    public void setStaging(ScratchStaging staging) {
+        this.staging = staging;
+        runner.setStaging(staging);
+    }
+
+    /**
+     * Queues a file for compression and returns its job handle
+     */
+    public CompressionJob submit(String inputPath, String outputPath) {
+        return submit(inputPath, outputPath, CompressionJob.Priority.NORMAL);
+    }
+
+    /**
+     * Queues a file at the given priority; an URGENT one may start at once by pausing another job
+     */
+    public CompressionJob submit(String inputPath, String outputPath, CompressionJob.Priority priority) {
+        CompressionJob job = new CompressionJob(nextId.getAndIncrement(), inputPath, outputPath);
+        job.setPriority(priority);
+        synchronized (jobs) {
+            jobs.add(job);
+        }
+        EncodeMetrics.JOBS_QUEUED.inc();
+        if (staging != null) {
+            staging.schedule(inputPath);
+        }
+        if (priority == CompressionJob.Priority.URGENT && startPreempting(job)) {
+            return job;
+        }
+        executor.execute(new QueuedJob(job, sequence.getAndIncrement()));
+        return job;
+    }
+
+    /**
+     * Waits until every submitted job has finished and stops the workers
+     */
+    public List<CompressionJob> awaitCompletion() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Keep waiting, long encodes can take hours
+        }
+        // Paused workers only finish after their urgent job, but it may still be publishing
+        for (Thread thread : urgentThreads()) {
+            thread.join();
+        }
+        return getJobs();
+    }
+
+    /**
+     * Cancels queued jobs and interrupts the running ones
+     */
+    public void shutdownNow() {
+        executor.shutdownNow();
+        for (Thread thread : urgentThreads()) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns a snapshot of all jobs in submission order
+     */
+    public List<CompressionJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<>(jobs);
+        }
+    }
+
+    /**
+     * Counts the jobs currently in the given status
+     */
+    public int countByStatus(CompressionJob.Status status) {
+        int count = 0;
+        for (CompressionJob job : getJobs()) {
+            if (job.getStatus() == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts an urgent job on its own thread when every worker is busy, pausing the
+     * least important running job (the most recently started one among equals) until
+     * it is done. Returns false when a worker is free, no running job has a lower
+     * priority or pausing is not supported; the job then waits at the head of the queue.
+     */
+    private boolean startPreempting(CompressionJob job) {
+        if (running.size() < concurrency) {
+            return false;
+        }
+        CompressionJob victim = running.keySet().stream()
+                .filter(candidate -> !candidate.isPaused()
+                        && candidate.getPriority().compareTo(job.getPriority()) < 0)
+                .min(Comparator.comparing(CompressionJob::getPriority)
+                        .thenComparing(Comparator.comparingLong(CompressionJob::getStartTime).reversed()))
+                .orElse(null);
+        CompressionScope scope = victim == null ? null : running.get(victim);
+        if (scope == null || !scope.pause()) {
+            return false;
+        }
+
+        victim.setPaused(true);
+        EncodeMetrics.JOBS_PAUSED.inc();
+        ConcurrencyGovernor governor = compressor.getGovernor();
+        if (governor != null) {
+            governor.jobPaused();
+        }
+        System.out.println("[job " + victim.getId() + "] Paused for urgent job " + job.getId());
+
+        Thread thread = new Thread(() -> {
+            try {
+                runJob(job);
+            } finally {
+                scope.resume();
+                victim.setPaused(false);
+                EncodeMetrics.JOBS_PAUSED.dec();
+                if (governor != null) {
+                    governor.jobResumed();
+                }
+                System.out.println("[job " + victim.getId() + "] Resumed");
+            }
+        }, "urgent-worker-" + job.getId());
+        synchronized (urgentThreads) {
+            urgentThreads.add(thread);
+        }
+        thread.start();
+        return true;
+    }
+
+    private List<Thread> urgentThreads() {
+        synchronized (urgentThreads) {
+            return new ArrayList<>(urgentThreads);
+        }
+    }
+
+    private void runJob(CompressionJob job) {
+        // Collects the job's FFmpeg processes, so the job can be paused
+        CompressionScope scope = new CompressionScope(null);
+        scope.enter();
+        running.put(job, scope);
+        try {
+            runner.run(job);
+        } finally {
+            running.remove(job);
+            scope.exit();
+        }
+
+        int done = finished.incrementAndGet();
+        int total;
+        synchronized (jobs) {
+            total = jobs.size();
+        }
+        String status = job.isFinished() ? job.getStatus().toString() : "ENCODED, moving output from scratch";
+        System.out.println("[job " + job.getId() + "] " + status + " (" + done + "/" + total + " finished)");
+    }
+
+    private static ThreadFactory workerThreadFactory() {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "compression-worker-" + counter.getAndIncrement());
+            thread.setDaemon(false);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,321 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.ProgressEvent;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Runs jobs leased from a {@link BatchCoordinator}, up to the compressor's
+ * parallel job count at a time, until the coordinator says the batch is over.
+ *
+ * Each running job renews its lease in the background and reports its progress.
+ * When a lease is lost, or has gone half its length without a renewal, a watchdog
+ * cancels the job's {@link CompressionScope}, killing its FFmpeg processes well before
+ * the coordinator gives the job to another worker. Each lease writes its own partial
+ * file, so an encode that still overruns cannot mix its data into the next one's; the
+ * output only appears under its final name through an atomic rename. Input and output
+ * paths come from the coordinator and must resolve to the same shared storage on every host.
+ */
+public class BatchWorker {
+
+    static final long IDLE_POLL_MILLIS = 5000; // Wait before asking again when no job is free
+    private static final AtomicInteger INSTANCES = new AtomicInteger(); // Tells workers in one process apart
+
+    /**
+     * A lease this worker holds, as far as it knows
+     */
+    private static final class ActiveLease {
+        final String id;
+        final CompressionScope scope = new CompressionScope(null); // The job's processes
+        volatile long validUntil; // System.nanoTime() after which the coordinator may have moved on
+        volatile double percent = -1;
+
+        ActiveLease(String id, long validUntil) {
+            this.id = id;
+            this.validUntil = validUntil;
+        }
+
+        /**
+         * Kills the job's processes once the lease may belong to another worker
+         */
+        void stopIfExpired() {
+            if (!scope.isCancelled() && System.nanoTime() - validUntil > 0) {
+                System.err.println("Lease " + id + " expired, stopping the encode");
+                scope.cancel();
+            }
+        }
+    }
+
+    private final String coordinatorUrl;
+    private final VideoAnalyzer analyzer;
+    private final VideoCompressor compressor;
+    private final String name;
+    private final HttpClient client;
+    private final ScheduledExecutorService heartbeats;
+    private final ScheduledExecutorService watchdog; // Never blocked by a slow coordinator
+    private final Map<String, ActiveLease> active = new ConcurrentHashMap<>(); // By input path
+    private volatile boolean running;
+
+    /**
+     * @param coordinatorUrl e.g. http://encoder-1:8700
+     */
+    public BatchWorker(String coordinatorUrl, VideoAnalyzer analyzer, VideoCompressor compressor) {
+        this.coordinatorUrl = coordinatorUrl.endsWith("/")
+                ? coordinatorUrl.substring(0, coordinatorUrl.length() - 1) : coordinatorUrl;
+        this.analyzer = analyzer;
+        this.compressor = compressor;
+        int instance = INSTANCES.incrementAndGet();
+        this.name = hostName() + "-" + ProcessHandle.current().pid() + (instance > 1 ? "-" + instance : "");
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(daemonThreads("lease-heartbeat"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("lease-watchdog"));
+        compressor.addProgressListener(this::onProgress);
+    }
+
+    /**
+     * Takes jobs until the batch is over or {@link #stop()} is called
+     */
+    public void run() throws InterruptedException {
+        running = true;
+        int slots = compressor.batchWorkers();
+        System.out.println("Worker " + name + " taking up to " + slots + " jobs from " + coordinatorUrl);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i <= slots; i++) {
+            String slotName = name + "/" + i;
+            Thread thread = new Thread(() -> work(slotName), "batch-worker-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        heartbeats.shutdownNow();
+        watchdog.shutdownNow();
+        System.out.println("Worker " + name + " finished");
+    }
+
+    /**
+     * Takes no new jobs; running encodes finish and are reported
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void work(String slotName) {
+        while (running) {
+            Properties request = new Properties();
+            request.setProperty("worker", slotName);
+            Response response;
+            try {
+                response = post("/lease", request);
+            } catch (IOException e) {
+                System.err.println("Coordinator unreachable: " + e.getMessage());
+                if (!idle()) {
+                    return;
+                }
+                continue;
+            }
+
+            if (response.status == 410) {
+                return; // Batch over
+            }
+            if (response.status != 200) {
+                if (!idle()) {
+                    return;
+                }
+                continue;
+            }
+            process(response.body);
+        }
+    }
+
+    private void process(Properties lease) {
+        String leaseId = lease.getProperty("lease");
+        String input = lease.getProperty("input");
+        String output = lease.getProperty("output");
+        long leaseMillis = Long.parseLong(lease.getProperty("leaseMillis"));
+        String fileName = new File(input).getName();
+        System.out.println("\n[job " + lease.getProperty("job") + "] Processing: " + fileName);
+
+        // Stop on our own after half the lease without a renewal; the coordinator waits the whole lease
+        ActiveLease current = new ActiveLease(leaseId,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis / 2));
+        active.put(input, current);
+        long period = Math.max(250, leaseMillis / 4);
+        ScheduledFuture<?> renewal = heartbeats.scheduleWithFixedDelay(() -> renew(current, leaseMillis),
+                period, period, TimeUnit.MILLISECONDS);
+        long checkPeriod = Math.max(100, leaseMillis / 20);
+        ScheduledFuture<?> expiry = watchdog.scheduleAtFixedRate(current::stopIfExpired,
+                checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+        EncodeMetrics.JOBS_RUNNING.inc();
+
+        Properties result = new Properties();
+        result.setProperty("lease", leaseId);
+        current.scope.enter();
+        try {
+            VideoFile videoFile = analyzer.analyzeVideo(input);
+            current.scope.checkCancelled();
+            compressor.compressVideo(videoFile, output, leaseId);
+            result.setProperty("status", "COMPLETED");
+            result.setProperty("originalSize", String.valueOf(videoFile.getOriginalSize()));
+            result.setProperty("compressedSize", String.valueOf(videoFile.getCompressedSize()));
+            CompressionDecision decision = videoFile.getDecision();
+            if (decision != null) {
+                result.setProperty("decision", decision.getAction().name());
+                result.setProperty("reason", decision.getReason());
+            }
+        } catch (Exception e) {
+            if (e instanceof CancellationException || current.scope.isCancelled()) {
+                System.err.println("[job " + lease.getProperty("job") + "] Stopped: lease " + leaseId + " lost");
+                return; // The job belongs to another worker now, there is nothing to report
+            }
+            System.err.println("[job " + lease.getProperty("job") + "] Failed: " + fileName
+                    + " - " + e.getMessage());
+            result.setProperty("status", "FAILED");
+            result.setProperty("message", String.valueOf(e.getMessage()));
+        } finally {
+            current.scope.exit();
+            renewal.cancel(false);
+            expiry.cancel(false);
+            active.remove(input);
+            EncodeMetrics.JOBS_RUNNING.dec();
+        }
+
+        report(result);
+    }
+
+    /**
+     * Sends the result, retrying while the coordinator is unreachable and the lease may still be valid
+     */
+    private void report(Properties result) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (post("/result", result).status == 409) {
+                    System.err.println("Coordinator no longer expected this result, the job was requeued");
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt == 3) {
+                    System.err.println("Could not report result: " + e.getMessage());
+                    return;
+                }
+                try {
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void renew(ActiveLease lease, long leaseMillis) {
+        Properties request = new Properties();
+        request.setProperty("lease", lease.id);
+        request.setProperty("percent", String.valueOf(lease.percent));
+        try {
+            long sentAt = System.nanoTime();
+            int status = post("/heartbeat", request).status;
+            if (status == 200) {
+                lease.validUntil = sentAt + TimeUnit.MILLISECONDS.toNanos(leaseMillis / 2);
+            } else if (status == 409) {
+                lease.validUntil = sentAt; // Lost: another worker may have the job already
+                lease.stopIfExpired();
+            }
+        } catch (IOException e) {
+            System.err.println("Lease renewal failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tracks progress for the heartbeats
+     */
+    private void onProgress(ProgressEvent event) {
+        ActiveLease lease = active.get(event.getInputPath());
+        if (lease != null) {
+            lease.percent = event.getPercent();
+        }
+    }
+
+    /**
+     * Waits before the next lease request; false when the worker was stopped meanwhile
+     */
+    private boolean idle() {
+        try {
+            Thread.sleep(IDLE_POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return running;
+    }
+
+    /**
+     * Status and Properties body of a coordinator reply
+     */
+    private static final class Response {
+        final int status;
+        final Properties body;
+
+        Response(int status, Properties body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private Response post(String path, Properties request) throws IOException {
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(coordinatorUrl + path))
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(BatchCoordinator.encode(request)))
+                .build();
+        try {
+            HttpResponse<byte[]> response = client.send(httpRequest, HttpResponse.BodyHandlers.ofByteArray());
+            return new Response(response.statusCode(), BatchCoordinator.decode(response.body()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while talking to the coordinator", e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "worker";
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Divides a total size budget between the files of a library.
+ *
+ * Every file that will be re-encoded gets a first pass at the configured CRF
+ * (see {@link FirstPass}); the video bit rate that pass needed measures how hard
+ * the content is. All files are then scaled by the same factor, so the same
+ * budget buys every file about the same quality: an action film keeps more
+ * bits than a cartoon of the same length. Files stay between a tenth of their
+ * CRF rate and their source rate, and never get more than the CRF itself asks for.
+ */
+public class BudgetAllocator {
+
+    static final double MIN_FRACTION = 0.10; // Of the reference CRF rate, the floor for any file
+    static final int MIN_KBPS = 100;
+    static final double RESERVE = 0.02; // Container overhead and the bit rate error of the encoders
+    static final long AAC_BYTES_PER_SECOND = 128_000 / 8; // Per track, see VideoCompressor.addAudioSubtitleArgs
+
+    /**
+     * One file to encode, as seen by the allocation
+     */
+    static final class Demand {
+        final String path;
+        final double durationSeconds;
+        final double referenceKbps; // What the reference CRF needed
+        final double ceilingKbps; // Source video bit rate, more is never useful
+        final long otherBytes; // Audio and subtitles, fixed
+
+        Demand(String path, double durationSeconds, double referenceKbps, double ceilingKbps, long otherBytes) {
+            this.path = path;
+            this.durationSeconds = durationSeconds;
+            this.referenceKbps = referenceKbps;
+            this.ceilingKbps = ceilingKbps;
+            this.otherBytes = otherBytes;
+        }
+
+        double floorKbps() {
+            return Math.min(ceilingKbps, Math.max(MIN_KBPS, referenceKbps * MIN_FRACTION));
+        }
+
+        double kbpsAt(double scale) {
+            return Math.max(floorKbps(), Math.min(ceilingKbps, referenceKbps * scale));
+        }
+    }
+
+    private final FirstPass firstPass;
+    private final DecisionEngine decisionEngine = new DecisionEngine();
+
+    public BudgetAllocator(FirstPass firstPass) {
+        this.firstPass = firstPass;
+    }
+
+    /**
+     * Returns the video bit rate in kb/s for every file that will be re-encoded, by path.
+     * Files the decision engine skips or remuxes count with their current size.
+     * Runs the missing first passes, up to parallelism at a time.
+     */
+    public Map<String, Integer> allocate(List<VideoFile> videoFiles, long budgetBytes, CompressionSettings settings,
+                                         int parallelism) throws Exception {
+        long fixedBytes = 0;
+        List<VideoFile> encoded = new ArrayList<>();
+        for (VideoFile videoFile : videoFiles) {
+            CompressionDecision decision = decisionEngine.decide(videoFile, settings);
+            if (decision.getAction() == CompressionDecision.Action.ENCODE && videoFile.getDurationSeconds() > 0) {
+                encoded.add(videoFile);
+            } else {
+                fixedBytes += videoFile.getOriginalSize();
+            }
+        }
+
+        List<Demand> demands = measure(encoded, settings, parallelism);
+        long otherBytes = fixedBytes;
+        for (Demand demand : demands) {
+            otherBytes += demand.otherBytes;
+        }
+        long videoBudget = (long) ((budgetBytes - otherBytes) * (1 - RESERVE));
+        System.out.println("Budget " + VideoFile.formatFileSize(budgetBytes) + ": "
+                + VideoFile.formatFileSize(otherBytes) + " for kept files, audio and subtitles, "
+                + VideoFile.formatFileSize(Math.max(0, videoBudget)) + " for " + demands.size() + " video streams");
+
+        double scale = solveScale(demands, videoBudget);
+        Map<String, Integer> rates = new HashMap<>();
+        for (Demand demand : demands) {
+            int kbps = (int) Math.floor(demand.kbpsAt(scale));
+            rates.put(demand.path, kbps);
+            System.out.printf(Locale.ROOT, "  %6d kb/s  %s (CRF %d needs %.0f kb/s)%n", kbps,
+                    new File(demand.path).getName(), settings.getCrf(), demand.referenceKbps);
+        }
+        if (scale >= 1) {
+            System.out.println("The budget is not reached: every file gets the rate of CRF " + settings.getCrf());
+        } else {
+            System.out.printf(Locale.ROOT, "Every file gets %.0f%% of the rate CRF %d needs%n",
+                    scale * 100, settings.getCrf());
+        }
+        return rates;
+    }
+
+    /**
+     * Finds the common scale factor (at most 1) that fills the video budget
+     */
+    static double solveScale(List<Demand> demands, long videoBudget) throws Exception {
+        if (videoBytes(demands, 1) <= videoBudget) {
+            return 1;
+        }
+        long minimum = videoBytes(demands, 0);
+        if (minimum > videoBudget) {
+            throw new Exception("Budget too small: the video streams need at least "
+                    + VideoFile.formatFileSize(minimum) + ", " + VideoFile.formatFileSize(Math.max(0, videoBudget))
+                    + " is left for them");
+        }
+        double low = 0;
+        double high = 1;
+        for (int i = 0; i < 50; i++) {
+            double middle = (low + high) / 2;
+            if (videoBytes(demands, middle) <= videoBudget) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    static long videoBytes(List<Demand> demands, double scale) {
+        double bytes = 0;
+        for (Demand demand : demands) {
+            bytes += Math.floor(demand.kbpsAt(scale)) * 1000 / 8 * demand.durationSeconds;
+        }
+        return (long) bytes;
+    }
+
+    /**
+     * Runs (or loads) the first pass of every file in parallel
+     */
+    private List<Demand> measure(List<VideoFile> videoFiles, CompressionSettings settings, int parallelism)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<FirstPass.Result>> results = new ArrayList<>();
+            for (VideoFile videoFile : videoFiles) {
+                results.add(executor.submit(() -> firstPass.run(videoFile, 0)));
+            }
+            List<Demand> demands = new ArrayList<>();
+            for (int i = 0; i < videoFiles.size(); i++) {
+                VideoFile videoFile = videoFiles.get(i);
+                FirstPass.Result result;
+                try {
+                    result = results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new Exception("First pass of " + new File(videoFile.getFilePath()).getName()
+                            + " failed: " + e.getCause().getMessage(), e.getCause());
+                }
+                double duration = videoFile.getDurationSeconds();
+                double otherKbps = (result.getAudioBytes() + result.getOtherBytes()) * 8 / duration / 1000;
+                double ceiling = videoFile.getBitRate() > 0
+                        ? Math.max(MIN_KBPS, videoFile.getBitRate() / 1000.0 - otherKbps) : Double.MAX_VALUE;
+                demands.add(new Demand(videoFile.getFilePath(), duration, result.getVideoKbps(), ceiling,
+                        outputOtherBytes(videoFile, result, settings)));
+            }
+            return demands;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Bytes of everything but the video in the output: measured when copied, 128 kb/s per track as AAC
+     */
+    private static long outputOtherBytes(VideoFile videoFile, FirstPass.Result result,
+                                         CompressionSettings settings) {
+        if (settings.isKeepAllAudioTracks()) {
+            return result.getAudioBytes() + result.getOtherBytes();
+        }
+        long tracks = videoFile.getStreams().stream()
+                .filter(stream -> StreamInfo.TYPE_AUDIO.equals(stream.getType())).count();
+        return (long) (tracks * AAC_BYTES_PER_SECOND * videoFile.getDurationSeconds()) + result.getOtherBytes();
+    }
+}
@@ -0,0 +1,123 @@
+package com.mkvcompressor.service;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+
+import com.mkvcompressor.model.ProgressEvent;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * A compression started with {@link VideoCompressor#compressAsync}: its result,
+ * its progress and a way to stop it.
+ *
+ * Progress subscribers that fall behind miss events rather than slow down the
+ * encode. Cancelling kills the FFmpeg processes of the job and their children;
+ * the partial output is deleted as for any failed encode.
+ */
+public class CompressionHandle {
+
+    private final VideoFile videoFile;
+    private final String outputPath;
+    private final CompletableFuture<VideoFile> result = new CompletableFuture<>();
+    private final SubmissionPublisher<ProgressEvent> progress;
+    private final CompressionScope scope;
+    private Thread thread; // Guarded by this
+
+    CompressionHandle(VideoFile videoFile, String outputPath) {
+        this.videoFile = videoFile;
+        this.outputPath = outputPath;
+        this.progress = new SubmissionPublisher<>();
+        this.scope = new CompressionScope(event -> progress.offer(event, null));
+        // Cancelling the future itself (e.g. from a timeout) stops the job too
+        result.whenComplete((value, error) -> {
+            if (error instanceof CancellationException) {
+                stop();
+            }
+        });
+    }
+
+    /**
+     * Completes with the video file (sizes and decision filled in), or with the failure
+     */
+    public CompletableFuture<VideoFile> result() {
+        return result;
+    }
+
+    /**
+     * Progress of the encode; completes with the job, or with its failure
+     */
+    public Flow.Publisher<ProgressEvent> progress() {
+        return progress;
+    }
+
+    /**
+     * Stops the job: a queued job never starts, a running one has its processes killed.
+     * Returns false when it had already finished.
+     */
+    public boolean cancel() {
+        return result.cancel(false); // Stops it through the whenComplete hook
+    }
+
+    public boolean isCancelled() {
+        return result.isCancelled();
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    public VideoFile getVideoFile() {
+        return videoFile;
+    }
+
+    public String getOutputPath() {
+        return outputPath;
+    }
+
+    /**
+     * Runs the job on the current thread, in the scope of this handle, once one of slots is free
+     */
+    void run(VideoCompressor compressor, Semaphore slots) {
+        synchronized (this) {
+            if (result.isDone()) {
+                progress.close();
+                return; // Cancelled before it was picked up
+            }
+            thread = Thread.currentThread();
+        }
+        try {
+            slots.acquire();
+            scope.enter();
+            try {
+                scope.checkCancelled();
+                compressor.compressVideo(videoFile, outputPath);
+                progress.close();
+                result.complete(videoFile);
+            } finally {
+                scope.exit();
+                slots.release();
+            }
+        } catch (Exception e) {
+            Exception error = scope.isCancelled() ? new CancellationException("Compression cancelled") : e;
+            progress.closeExceptionally(error);
+            result.completeExceptionally(error);
+        } finally {
+            synchronized (this) {
+                thread = null;
+                Thread.interrupted(); // A cancel may have interrupted us as the job ended
+            }
+        }
+    }
+
+    private void stop() {
+        scope.cancel();
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt(); // Wakes it from the queue, governor or staging waits
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mkvcompressor.model.ProgressEvent;
+
+/**
+ * The FFmpeg/FFprobe processes and progress of one compression job.
+ *
+ * The scope is inherited by the threads the job creates (segment encoders,
+ * CRF samples, verification windows), so every process the job starts is
+ * registered here and {@link #cancel()} can kill all of them, children included.
+ * {@link #pause()} suspends them with SIGSTOP and {@link #resume()} continues them
+ * with SIGCONT, losing no work; no new process starts while the job is paused.
+ * Code running outside a scope starts its processes as before.
+ */
+final class CompressionScope {
+
+    private static final InheritableThreadLocal<CompressionScope> CURRENT = new InheritableThreadLocal<>();
+
+    private final Set<Process> processes = ConcurrentHashMap.newKeySet();
+    private final ProgressListener listener; // May be null
+    private volatile boolean cancelled;
+    private boolean paused; // Guarded by this
+    private long pausedSince;
+    private long pausedNanos; // Total of the finished pauses
+
+    CompressionScope(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes this the scope of the current thread and the threads it creates from now on
+     */
+    void enter() {
+        CURRENT.set(this);
+    }
+
+    void exit() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Returns the scope of the current thread, or null outside a job
+     */
+    static CompressionScope current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Starts a process in the current scope: waits while it is paused, fails once it was cancelled
+     */
+    static Process start(ProcessBuilder builder) throws IOException {
+        CompressionScope scope = CURRENT.get();
+        if (scope == null) {
+            return builder.start();
+        }
+        Process process;
+        synchronized (scope) { // A pause can't slip in between the check and the start
+            scope.awaitRunnable();
+            process = builder.start();
+            scope.processes.add(process);
+        }
+        process.onExit().thenRun(() -> scope.processes.remove(process));
+        if (scope.cancelled) {
+            destroyTree(process); // Cancelled while starting
+        }
+        return process;
+    }
+
+    /**
+     * Passes a progress event to the listener of the current scope, if there is one
+     */
+    static void progress(ProgressEvent event) {
+        CompressionScope scope = CURRENT.get();
+        if (scope != null && scope.listener != null) {
+            scope.listener.onProgress(event);
+        }
+    }
+
+    /**
+     * Time the current thread's job spent paused so far, 0 outside a scope
+     */
+    static long currentPausedNanos() {
+        CompressionScope scope = CURRENT.get();
+        return scope == null ? 0 : scope.getPausedNanos();
+    }
+
+    /**
+     * Suspends every running process of the scope. Returns false when the
+     * processes could not be stopped (no kill command, e.g. on Windows).
+     */
+    synchronized boolean pause() {
+        if (paused || cancelled) {
+            return paused;
+        }
+        if (!signal("STOP")) {
+            return false;
+        }
+        paused = true;
+        pausedSince = System.nanoTime();
+        return true;
+    }
+
+    synchronized void resume() {
+        if (!paused) {
+            return;
+        }
+        signal("CONT");
+        paused = false;
+        pausedNanos += System.nanoTime() - pausedSince;
+        notifyAll();
+    }
+
+    synchronized boolean isPaused() {
+        return paused;
+    }
+
+    synchronized long getPausedNanos() {
+        return pausedNanos + (paused ? System.nanoTime() - pausedSince : 0);
+    }
+
+    /**
+     * Kills every running process of the scope and makes new ones fail
+     */
+    void cancel() {
+        cancelled = true;
+        for (Process process : processes) {
+            destroyTree(process); // SIGKILL ends stopped processes too
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("Compression cancelled");
+        }
+    }
+
+    /**
+     * Blocks while the scope is paused, and fails once it was cancelled
+     */
+    private synchronized void awaitRunnable() throws IOException {
+        while (paused && !cancelled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while the job was paused", e);
+            }
+        }
+        checkCancelled();
+    }
+
+    /**
+     * Sends a signal to the processes of the scope and their children
+     */
+    private boolean signal(String name) {
+        List<String> command = new ArrayList<>();
+        command.add("kill");
+        command.add("-" + name);
+        for (Process process : processes) {
+            process.descendants().forEach(child -> command.add(String.valueOf(child.pid())));
+            command.add(String.valueOf(process.pid()));
+        }
+        if (command.size() == 2) {
+            return true; // Nothing running right now
+        }
+        try {
+            // Exits with an error when a process ended meanwhile; the others still got the signal
+            new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Warning: could not send SIG" + name + ": " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void destroyTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+}
@@ -0,0 +1,281 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Decides how many encodes run at once and how many threads each one gets,
+ * from the machine's load average, available memory and the resident memory
+ * of our own FFmpeg processes (all read from /proc).
+ *
+ * An encode is admitted only when its estimated footprint, derived from the
+ * resolution, fits in the available memory. The target number of encodes
+ * goes up while the CPU has headroom and down when the load exceeds the
+ * core count. Without /proc (not Linux) only the job limit applies.
+ */
+public class ConcurrencyGovernor {
+
+    private static final long MEMORY_RESERVE = 1024L * 1024 * 1024; // Left for the OS and page cache
+    private static final long BASE_FOOTPRINT = 256L * 1024 * 1024; // FFmpeg, demuxer and decoder buffers
+    private static final double DEFAULT_BYTES_PER_PIXEL = 300; // x265 at 4K: ~2.7 GB
+    private static final double LOAD_HIGH = 1.05; // Load per core above which encodes are reduced
+    private static final double LOAD_LOW = 0.75; // Load per core below which another encode is allowed
+    private static final int SAMPLE_SECONDS = 5;
+
+    /**
+     * Admission granted to one encode; hand it back with {@link #release(Ticket)}
+     */
+    public static final class Ticket {
+        private final long memoryBytes;
+        private final long pixels;
+        private final int threads;
+
+        Ticket(long memoryBytes, long pixels, int threads) {
+            this.memoryBytes = memoryBytes;
+            this.pixels = pixels;
+            this.threads = threads;
+        }
+
+        /**
+         * Encoder threads for this encode, split over all of its processes
+         */
+        public int getThreads() {
+            return threads;
+        }
+
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
+    }
+
+    /**
+     * One reading of /proc
+     */
+    static final class SystemSample {
+        final double load;
+        final long memAvailable;
+        final long encoderRss;
+
+        SystemSample(double load, long memAvailable, long encoderRss) {
+            this.load = load;
+            this.memAvailable = memAvailable;
+            this.encoderRss = encoderRss;
+        }
+    }
+
+    private final int cores;
+    private final int maxJobs;
+    private final boolean procAvailable;
+    private final ScheduledExecutorService sampler;
+
+    private int targetJobs;
+    private int activeJobs;
+    private int pausedJobs; // Suspended for an urgent job: they hold memory but no CPU
+    private long reservedBytes; // Sum of the estimates of admitted encodes
+    private long activePixels;
+    private double bytesPerPixel = DEFAULT_BYTES_PER_PIXEL;
+
+    public ConcurrencyGovernor(int maxJobs) {
+        if (maxJobs < 1) {
+            throw new IllegalArgumentException("Max jobs must be at least 1");
+        }
+        this.cores = Runtime.getRuntime().availableProcessors();
+        this.maxJobs = maxJobs;
+        this.procAvailable = Files.isReadable(Paths.get("/proc/loadavg"))
+                && Files.isReadable(Paths.get("/proc/meminfo"));
+        this.targetJobs = 1;
+
+        this.sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "concurrency-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (procAvailable) {
+            sampler.scheduleWithFixedDelay(this::adjust, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+        } else {
+            System.out.println("Warning: /proc not available, running up to " + maxJobs + " encodes");
+            this.targetJobs = maxJobs;
+        }
+        EncodeMetrics.REGISTRY.gauge("mkvc_governor_target_jobs", "Encodes the governor currently allows",
+                () -> getTargetJobs());
+    }
+
+    /**
+     * Upper bound that fits the core count: x265 stops scaling below about 2 threads per encode
+     */
+    public static int defaultMaxJobs() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Blocks until an encode of this file, split over the given number of
+     * FFmpeg processes, fits in the CPU and memory budget
+     */
+    public synchronized Ticket acquire(VideoFile videoFile, int processes) throws InterruptedException {
+        long pixels = DecisionEngine.pixelCount(videoFile.getResolution()) * processes;
+        long estimate = estimateMemory(pixels, processes);
+        boolean announced = false;
+        while (!canAdmit(estimate)) {
+            if (!announced) {
+                System.out.println("Waiting for CPU/memory headroom (" + activeJobs + " encodes running, needs ~"
+                        + VideoFile.formatFileSize(estimate) + ")");
+                announced = true;
+            }
+            wait(1000); // Memory frees up without a release, so look again regularly
+        }
+        activeJobs++;
+        reservedBytes += estimate;
+        activePixels += pixels;
+        int threads = Math.max(1, cores / Math.max(targetJobs, activeJobs - pausedJobs));
+        return new Ticket(estimate, pixels, threads);
+    }
+
+    public synchronized void release(Ticket ticket) {
+        activeJobs--;
+        reservedBytes -= ticket.memoryBytes;
+        activePixels -= ticket.pixels;
+        notifyAll();
+    }
+
+    /**
+     * Notes that a running encode was suspended; it stops counting against the CPU target
+     */
+    public synchronized void jobPaused() {
+        pausedJobs++;
+        notifyAll();
+    }
+
+    public synchronized void jobResumed() {
+        pausedJobs--;
+    }
+
+    public synchronized int getTargetJobs() {
+        return targetJobs;
+    }
+
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    /**
+     * Expected peak memory of an encode, learned from the RSS of earlier ones
+     */
+    synchronized long estimateMemory(long pixels, int processes) {
+        return BASE_FOOTPRINT * processes + (long) (pixels * bytesPerPixel);
+    }
+
+    private boolean canAdmit(long estimate) {
+        int runningJobs = activeJobs - pausedJobs;
+        if (runningJobs <= 0) {
+            return true; // Always let one encode run, however large
+        }
+        if (runningJobs >= targetJobs) {
+            return false;
+        }
+        SystemSample sample = procAvailable ? readSample() : null;
+        if (sample == null) {
+            return true;
+        }
+        // Encodes that just started have not allocated their memory yet
+        long notYetAllocated = Math.max(0, reservedBytes - sample.encoderRss);
+        return estimate <= sample.memAvailable - notYetAllocated - MEMORY_RESERVE;
+    }
+
+    /**
+     * Periodic step: follow the load average and learn the real memory use per pixel
+     */
+    private synchronized void adjust() {
+        SystemSample sample = readSample();
+        if (sample == null) {
+            return;
+        }
+
+        if (activeJobs > 0 && activePixels > 0 && sample.encoderRss > BASE_FOOTPRINT * activeJobs) {
+            double observed = (sample.encoderRss - BASE_FOOTPRINT * activeJobs) / (double) activePixels;
+            // Lean towards the larger value: underestimating leads to swapping
+            bytesPerPixel = Math.max(observed, 0.8 * bytesPerPixel + 0.2 * observed);
+        }
+
+        int previous = targetJobs;
+        double loadPerCore = sample.load / cores;
+        if (sample.memAvailable < MEMORY_RESERVE || loadPerCore > LOAD_HIGH) {
+            targetJobs = Math.max(1, Math.min(targetJobs, activeJobs) - 1);
+        } else if (loadPerCore < LOAD_LOW && activeJobs >= targetJobs && targetJobs < maxJobs) {
+            targetJobs++;
+        }
+        if (targetJobs != previous) {
+            System.out.printf("Governor: load %.1f on %d cores, %s available -> %d parallel encodes%n",
+                    sample.load, cores, VideoFile.formatFileSize(sample.memAvailable), targetJobs);
+            notifyAll();
+        }
+    }
+
+    static SystemSample readSample() {
+        try {
+            double load = parseLoadAverage(Files.readString(Paths.get("/proc/loadavg")));
+            long memAvailable = parseMemAvailable(Files.readAllLines(Paths.get("/proc/meminfo")));
+            return new SystemSample(load, memAvailable, encoderRss());
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Resident memory of every FFmpeg process started by this JVM
+     */
+    private static long encoderRss() {
+        return ProcessHandle.current().descendants()
+                .filter(process -> process.info().command().map(c -> c.endsWith("ffmpeg")).orElse(false))
+                .mapToLong(process -> readRss(process.pid()))
+                .sum();
+    }
+
+    /**
+     * 1-minute load average from the first field of /proc/loadavg
+     */
+    static double parseLoadAverage(String loadavg) {
+        return Double.parseDouble(loadavg.trim().split("\\s+")[0]);
+    }
+
+    /**
+     * MemAvailable from /proc/meminfo, in bytes
+     */
+    static long parseMemAvailable(List<String> meminfo) {
+        for (String line : meminfo) {
+            if (line.startsWith("MemAvailable:")) {
+                return parseKilobytes(line);
+            }
+        }
+        throw new IllegalStateException("MemAvailable missing from /proc/meminfo");
+    }
+
+    /**
+     * VmRSS of a process in bytes, 0 when it already exited
+     */
+    static long readRss(long pid) {
+        Path status = Paths.get("/proc", String.valueOf(pid), "status");
+        try {
+            Optional<String> line = Files.readAllLines(status, StandardCharsets.UTF_8).stream()
+                    .filter(l -> l.startsWith("VmRSS:"))
+                    .findFirst();
+            return line.map(ConcurrencyGovernor::parseKilobytes).orElse(0L);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long parseKilobytes(String line) {
+        String[] parts = line.trim().split("\\s+");
+        return Long.parseLong(parts[1]) * 1024;
+    }
+}
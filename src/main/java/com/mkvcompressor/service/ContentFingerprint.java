@@ -0,0 +1,67 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Sampled fingerprint of a file's content, cheap enough to take during analysis.
+ *
+ * Hashes the size, the Matroska SegmentUID and a few chunks memory-mapped from
+ * evenly spaced offsets, so the cost is the same for a 200 MB and a 60 GB file.
+ * Two copies of an episode under different names get the same fingerprint; two
+ * different encodes practically never do, since their sizes and sampled bytes differ.
+ */
+public final class ContentFingerprint {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int CHUNKS = 8; // First and last chunk included
+
+    private ContentFingerprint() {
+    }
+
+    /**
+     * Returns the fingerprint as 32 hex digits; segmentUid may be null
+     */
+    public static String compute(File file, String segmentUid) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+            if (segmentUid != null) {
+                digest.update(segmentUid.getBytes(StandardCharsets.US_ASCII));
+            }
+
+            if (size <= (long) CHUNK_SIZE * CHUNKS) {
+                if (size > 0) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                }
+            } else {
+                long step = (size - CHUNK_SIZE) / (CHUNKS - 1);
+                for (int i = 0; i < CHUNKS; i++) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, i * step, CHUNK_SIZE));
+                }
+            }
+        }
+
+        byte[] hash = digest.digest();
+        StringBuilder hex = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Every JRE has it
+        }
+    }
+}
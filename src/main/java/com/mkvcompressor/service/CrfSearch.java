@@ -0,0 +1,271 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Finds the highest CRF that still reaches a target quality score for one file.
+ * Short samples are cut from the source, encoded at several candidate CRFs in
+ * parallel and compared against the original with SSIM or PSNR.
+ * Scores are stored per file, so searching again costs nothing.
+ */
+public class CrfSearch {
+
+    private final Path cacheDir;
+    private final QualityMeter qualityMeter = new QualityMeter();
+
+    public CrfSearch(Path cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Uses ~/.mkv-compressor/crf-cache for samples and scores
+     */
+    public static CrfSearch withDefaultCache() {
+        return new CrfSearch(Paths.get(System.getProperty("user.home"), ".mkv-compressor", "crf-cache"));
+    }
+
+    /**
+     * Returns the CRF to use for the file
+     */
+    public int findCrf(VideoFile videoFile, CompressionSettings settings) throws Exception {
+        if (videoFile.getDurationSeconds() <= 0) {
+            System.out.println("Auto CRF: duration unknown, using CRF " + settings.getCrf());
+            return settings.getCrf();
+        }
+
+        File source = new File(videoFile.getFilePath());
+        Path fileDir = cacheDir.resolve(cacheKey(source));
+        Files.createDirectories(fileDir);
+        Path scoresFile = fileDir.resolve("scores.properties");
+        Properties scores = loadScores(scoresFile);
+
+        List<Integer> candidates = new ArrayList<>();
+        for (int crf = settings.getAutoCrfMin(); crf <= settings.getAutoCrfMax(); crf += 2) {
+            candidates.add(crf);
+        }
+        List<Double> sampleStarts = sampleStarts(videoFile.getDurationSeconds(),
+                settings.getAutoCrfSamples(), settings.getAutoCrfSampleSeconds());
+
+        ExecutorService executor = Executors.newFixedThreadPool(settings.getSegmentParallelism());
+        try {
+            List<Path> samples = cutSamples(executor, videoFile, sampleStarts, settings, fileDir, scores, candidates);
+            Map<Integer, Double> averages = scoreCandidates(executor, samples, candidates, settings, fileDir, scores);
+            saveScores(scoresFile, scores);
+
+            int chosen = candidates.get(0);
+            for (int crf : candidates) {
+                double score = averages.get(crf);
+                System.out.printf(Locale.ROOT, "Auto CRF: CRF %d -> %s %.4f%n",
+                        crf, settings.getAutoCrfMetric().toUpperCase(Locale.ROOT), score);
+                if (score >= settings.getAutoCrfTarget()) {
+                    chosen = crf;
+                }
+            }
+            System.out.println("Auto CRF: using CRF " + chosen + " (target "
+                    + settings.getAutoCrfTarget() + ")");
+            return chosen;
+        } finally {
+            executor.shutdownNow();
+            // Encoded samples are large; only the scores are worth keeping
+            deleteSamples(fileDir);
+        }
+    }
+
+    /**
+     * Cuts the reference samples with stream copy. They start on keyframes,
+     * so the encodes and the comparison see exactly the same frames.
+     * Skipped entirely when every score is already cached.
+     */
+    private List<Path> cutSamples(ExecutorService executor, VideoFile videoFile, List<Double> sampleStarts,
+                                  CompressionSettings settings, Path fileDir, Properties scores,
+                                  List<Integer> candidates) throws Exception {
+        List<Path> samples = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < sampleStarts.size(); i++) {
+            Path sample = fileDir.resolve("sample_" + i + ".mkv");
+            samples.add(sample);
+            if (allScored(scores, i, candidates, settings)) {
+                continue;
+            }
+
+            List<String> cmd = new ArrayList<>();
+            cmd.add("ffmpeg");
+            cmd.add("-v");
+            cmd.add("error");
+            cmd.add("-nostdin");
+            cmd.add("-ss");
+            cmd.add(String.format(Locale.ROOT, "%.3f", sampleStarts.get(i)));
+            cmd.add("-i");
+            cmd.add(videoFile.getFilePath());
+            cmd.add("-t");
+            cmd.add(String.valueOf(settings.getAutoCrfSampleSeconds()));
+            cmd.add("-map");
+            cmd.add("0:v:0");
+            cmd.add("-c");
+            cmd.add("copy");
+            cmd.add(sample.toString());
+            cmd.add("-y");
+            futures.add(executor.submit(() -> {
+                ProcessRunner.run(cmd, "Sample extraction");
+                return null;
+            }));
+        }
+        waitFor(futures);
+        return samples;
+    }
+
+    private Map<Integer, Double> scoreCandidates(ExecutorService executor, List<Path> samples,
+                                                 List<Integer> candidates, CompressionSettings settings,
+                                                 Path fileDir, Properties scores) throws Exception {
+        Map<String, Future<Double>> futures = new HashMap<>();
+        for (int i = 0; i < samples.size(); i++) {
+            for (int crf : candidates) {
+                String key = scoreKey(settings, i, crf);
+                if (scores.containsKey(key)) {
+                    continue;
+                }
+                Path sample = samples.get(i);
+                Path encoded = fileDir.resolve("encoded_" + i + "_" + crf + ".mkv");
+                futures.put(key, executor.submit(() -> encodeAndScore(sample, encoded, crf, settings)));
+            }
+        }
+
+        for (Map.Entry<String, Future<Double>> entry : futures.entrySet()) {
+            try {
+                scores.setProperty(entry.getKey(), String.valueOf(entry.getValue().get()));
+            } catch (ExecutionException e) {
+                throw new Exception("Auto CRF sample failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        Map<Integer, Double> averages = new HashMap<>();
+        for (int crf : candidates) {
+            double sum = 0;
+            for (int i = 0; i < samples.size(); i++) {
+                sum += Double.parseDouble(scores.getProperty(scoreKey(settings, i, crf)));
+            }
+            averages.put(crf, sum / samples.size());
+        }
+        return averages;
+    }
+
+    private double encodeAndScore(Path sample, Path encoded, int crf, CompressionSettings settings) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error");
+        cmd.add("-nostdin");
+        cmd.add("-i");
+        cmd.add(sample.toString());
+        cmd.add("-c:v");
+        cmd.add(settings.getOutputCodec());
+        cmd.add("-crf");
+        cmd.add(String.valueOf(crf));
+        cmd.add("-preset");
+        cmd.add(settings.getPreset());
+        cmd.add(encoded.toString());
+        cmd.add("-y");
+        ProcessRunner.run(cmd, "Sample encode at CRF " + crf);
+
+        try {
+            return qualityMeter.measure(encoded.toString(), sample.toString(), settings.getAutoCrfMetric());
+        } finally {
+            Files.deleteIfExists(encoded);
+        }
+    }
+
+    /**
+     * Spreads the samples evenly, away from the very start and end of the file
+     */
+    static List<Double> sampleStarts(double duration, int samples, int sampleSeconds) {
+        List<Double> starts = new ArrayList<>();
+        for (int i = 0; i < samples; i++) {
+            double center = duration * (i + 1) / (samples + 1);
+            starts.add(Math.max(0, Math.min(duration - sampleSeconds, center - sampleSeconds / 2.0)));
+        }
+        return starts;
+    }
+
+    private static boolean allScored(Properties scores, int sample, List<Integer> candidates,
+                                     CompressionSettings settings) {
+        for (int crf : candidates) {
+            if (!scores.containsKey(scoreKey(settings, sample, crf))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scores depend on the encoder, preset, metric and sample layout, not only on the CRF
+     */
+    private static String scoreKey(CompressionSettings settings, int sample, int crf) {
+        return settings.getOutputCodec() + "." + settings.getPreset() + "." + settings.getAutoCrfMetric()
+                + "." + settings.getAutoCrfSamples() + "x" + settings.getAutoCrfSampleSeconds()
+                + "." + sample + ".crf" + crf;
+    }
+
+    /**
+     * Identifies the source file by path, size and modification time
+     */
+    private static String cacheKey(File source) throws IOException {
+        String identity = source.getCanonicalPath() + "|" + source.length() + "|" + source.lastModified();
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static Properties loadScores(Path file) throws IOException {
+        Properties scores = new Properties();
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                scores.load(reader);
+            }
+        }
+        return scores;
+    }
+
+    private static void saveScores(Path file, Properties scores) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            scores.store(writer, "Auto CRF sample scores");
+        }
+    }
+
+    private static void deleteSamples(Path fileDir) {
+        File[] files = fileDir.toFile().listFiles((dir, name) -> name.endsWith(".mkv"));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void waitFor(List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new Exception("Auto CRF sample failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.mkvcompressor.service;
+
+import java.util.Locale;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Decides whether a file is worth re-encoding, based on its analyzed
+ * codec, bit rate and bits per pixel, and the thresholds in the settings
+ */
+public class DecisionEngine {
+
+    private static final double DEFAULT_FRAME_RATE = 24.0;
+
+    /**
+     * Chooses between skipping, remuxing and re-encoding the file
+     */
+    public CompressionDecision decide(VideoFile videoFile, CompressionSettings settings) {
+        if (!settings.isSmartSkip()) {
+            return encode("pre-flight check disabled");
+        }
+
+        long bitRate = videoBitRate(videoFile);
+        long pixels = pixelCount(videoFile.getResolution());
+        if (bitRate <= 0 || pixels <= 0 || videoFile.getVideoCodec() == null) {
+            return encode("not enough metadata to predict savings");
+        }
+
+        double frameRate = videoFile.getFrameRate() > 0 ? videoFile.getFrameRate() : DEFAULT_FRAME_RATE;
+        double bitsPerPixel = bitRate / (pixels * frameRate);
+        String sourceCodec = videoFile.getVideoCodec();
+        String targetCodec = targetCodecName(settings.getOutputCodec());
+
+        if (bitRate < settings.getMinBitrateKbps() * 1000L) {
+            return keepVideo(settings, String.format(Locale.ROOT, "video bit rate %d kb/s is below %d kb/s",
+                    bitRate / 1000, settings.getMinBitrateKbps()));
+        }
+
+        if (codecRank(sourceCodec) >= codecRank(targetCodec) && codecRank(targetCodec) > 0
+                && bitsPerPixel < settings.getReencodeMinBitsPerPixel()) {
+            return keepVideo(settings, String.format(Locale.ROOT,
+                    "already %s at %.3f bits/pixel (re-encode threshold %.3f)",
+                    sourceCodec, bitsPerPixel, settings.getReencodeMinBitsPerPixel()));
+        }
+
+        return encode(String.format(Locale.ROOT, "%s at %.3f bits/pixel, %d kb/s",
+                sourceCodec, bitsPerPixel, bitRate / 1000));
+    }
+
+    /**
+     * Rough guess of the bytes a re-encode would save, used to order batch jobs.
+     * Assumes the target codec lands near the re-encode bits-per-pixel threshold.
+     */
+    public long estimateSavings(VideoFile videoFile, CompressionDecision decision, CompressionSettings settings) {
+        if (decision.getAction() != CompressionDecision.Action.ENCODE) {
+            return 0; // Remuxing only changes the audio, which is small next to the video
+        }
+        long bitRate = videoBitRate(videoFile);
+        long pixels = pixelCount(videoFile.getResolution());
+        if (bitRate <= 0 || pixels <= 0) {
+            return videoFile.getOriginalSize() / 2;
+        }
+        double frameRate = videoFile.getFrameRate() > 0 ? videoFile.getFrameRate() : DEFAULT_FRAME_RATE;
+        double bitsPerPixel = bitRate / (pixels * frameRate);
+        double keptFraction = Math.min(1.0, settings.getReencodeMinBitsPerPixel() / bitsPerPixel);
+        // Only the video shrinks; the audio share of the file stays
+        double videoShare = videoFile.getBitRate() > 0
+                ? Math.min(1.0, (double) bitRate / videoFile.getBitRate()) : 1.0;
+        return (long) (videoFile.getOriginalSize() * videoShare * (1.0 - keptFraction));
+    }
+
+    /**
+     * Bit rate of the video alone. The container rate also counts the audio, and a
+     * lossless TrueHD or DTS-HD track can double it, so the video stream's own rate is
+     * used when the file states it; otherwise the audio tracks are subtracted, with a
+     * typical rate per channel for tracks whose rate is not stated.
+     */
+    static long videoBitRate(VideoFile videoFile) {
+        long total = videoFile.getBitRate();
+        long audio = 0;
+        boolean video = false;
+        for (StreamInfo stream : videoFile.getStreams()) {
+            if (StreamInfo.TYPE_VIDEO.equals(stream.getType()) && !video) {
+                video = true;
+                if (stream.getBitRate() > 0) {
+                    return stream.getBitRate();
+                }
+            } else if (StreamInfo.TYPE_AUDIO.equals(stream.getType())) {
+                audio += stream.getBitRate() > 0 ? stream.getBitRate() : estimatedAudioBitRate(stream);
+            }
+        }
+        if (total <= 0) {
+            return total;
+        }
+        // Estimates can be far off for unusual tracks; keep a sane share for the video
+        return Math.max(total / 10, total - audio);
+    }
+
+    /**
+     * Typical bit rate of an audio track from its codec and channel count
+     */
+    static long estimatedAudioBitRate(StreamInfo stream) {
+        int channels = stream.getChannels() > 0 ? stream.getChannels() : 2;
+        String codec = stream.getCodec() == null ? "" : stream.getCodec().toUpperCase(Locale.ROOT);
+        int kbpsPerChannel;
+        if (codec.startsWith("PCM")) {
+            kbpsPerChannel = 1152; // 24 bit, 48 kHz
+        } else if (codec.equals("TRUEHD") || codec.equals("MLP")) {
+            kbpsPerChannel = 550;
+        } else if (codec.equals("FLAC") || codec.equals("ALAC")) {
+            kbpsPerChannel = 450;
+        } else if (codec.startsWith("DTS")) {
+            kbpsPerChannel = 250; // The core alone; DTS-HD MA is not told apart here
+        } else if (codec.equals("E-AC3") || codec.equals("AC3")) {
+            kbpsPerChannel = 110;
+        } else {
+            kbpsPerChannel = 64; // AAC, Opus, Vorbis, MP3...
+        }
+        return kbpsPerChannel * 1000L * channels;
+    }
+
+    /**
+     * Video stays as is: remux only when the audio has to change
+     */
+    CompressionDecision keepVideo(CompressionSettings settings, String reason) {
+        if (!settings.isKeepAllAudioTracks()) {
+            return new CompressionDecision(CompressionDecision.Action.REMUX, reason + "; audio still converted");
+        }
+        return new CompressionDecision(CompressionDecision.Action.SKIP, reason);
+    }
+
+    private CompressionDecision encode(String reason) {
+        return new CompressionDecision(CompressionDecision.Action.ENCODE, reason);
+    }
+
+    /**
+     * Maps an FFmpeg encoder name (e.g. "libx265") to the codec name used in VideoFile
+     */
+    static String targetCodecName(String encoder) {
+        String name = encoder.toLowerCase(Locale.ROOT);
+        if (name.contains("265") || name.contains("hevc")) return "H.265";
+        if (name.contains("264") || name.contains("avc")) return "H.264";
+        if (name.contains("av1")) return "AV1";
+        if (name.contains("vp9")) return "VP9";
+        return encoder;
+    }
+
+    /**
+     * Rough compression efficiency order; 0 for codecs we don't rank
+     */
+    static int codecRank(String codec) {
+        switch (codec) {
+            case "MPEG-2":
+                return 1;
+            case "MPEG-4":
+                return 2;
+            case "H.264":
+            case "VP8":
+                return 3;
+            case "H.265":
+            case "VP9":
+                return 4;
+            case "AV1":
+                return 5;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Parses "1920x1080" into a pixel count, or 0 when unknown
+     */
+    static long pixelCount(String resolution) {
+        if (resolution == null) return 0;
+        int x = resolution.indexOf('x');
+        if (x <= 0) return 0;
+        try {
+            return Long.parseLong(resolution.substring(0, x)) * Long.parseLong(resolution.substring(x + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.mkvcompressor.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mkvcompressor.model.ProgressEvent;
+
+/**
+ * Metric names used across the application, and a progress listener that
+ * turns FFmpeg progress into live fps, speed and output size gauges
+ */
+final class EncodeMetrics implements ProgressListener {
+
+    static final MetricsRegistry REGISTRY = MetricsRegistry.getDefault();
+
+    static final MetricsRegistry.Gauge JOBS_QUEUED =
+            REGISTRY.gauge("mkvc_jobs_queued", "Jobs waiting for a worker");
+    static final MetricsRegistry.Gauge JOBS_RUNNING =
+            REGISTRY.gauge("mkvc_jobs_running", "Jobs being analyzed or encoded");
+    static final MetricsRegistry.Gauge JOBS_PAUSED =
+            REGISTRY.gauge("mkvc_jobs_paused", "Running jobs suspended to make room for urgent ones");
+    static final MetricsRegistry.Counter JOBS_COMPLETED =
+            REGISTRY.counter("mkvc_jobs_completed_total", "Jobs finished successfully");
+    static final MetricsRegistry.Counter JOBS_FAILED =
+            REGISTRY.counter("mkvc_jobs_failed_total", "Jobs that failed");
+    static final MetricsRegistry.Counter INPUT_BYTES =
+            REGISTRY.counter("mkvc_input_bytes_total", "Bytes of source files processed; rate() gives bytes/s");
+    static final MetricsRegistry.Counter OUTPUT_BYTES =
+            REGISTRY.counter("mkvc_output_bytes_total", "Bytes of output files written; rate() gives bytes/s");
+    static final MetricsRegistry.Counter BYTES_SAVED =
+            REGISTRY.counter("mkvc_bytes_saved_total", "Source bytes minus output bytes of finished files");
+    static final MetricsRegistry.Counter EARLY_ABORTS =
+            REGISTRY.counter("mkvc_early_aborts_total", "Encodes stopped because the output would not be smaller");
+    static final MetricsRegistry.Histogram ENCODE_SECONDS =
+            REGISTRY.histogram("mkvc_encode_seconds", "Wall time of a whole file compression",
+                    new double[] {10, 60, 300, 900, 1800, 3600, 7200, 14400, 28800});
+
+    private static final EncodeMetrics LISTENER = new EncodeMetrics();
+
+    private final Map<String, ProgressEvent> active = new ConcurrentHashMap<>();
+
+    private EncodeMetrics() {
+        REGISTRY.gauge("mkvc_encode_fps", "Frames per second summed over running encodes",
+                () -> active.values().stream().mapToDouble(ProgressEvent::getFps).sum());
+        REGISTRY.gauge("mkvc_encode_speed", "Speed multiplier (x realtime) summed over running encodes",
+                () -> active.values().stream().mapToDouble(ProgressEvent::getSpeed).sum());
+        REGISTRY.gauge("mkvc_encodes_active", "FFmpeg encodes currently reporting progress",
+                () -> active.size());
+    }
+
+    /**
+     * Listener shared by every compressor
+     */
+    static EncodeMetrics listener() {
+        return LISTENER;
+    }
+
+    @Override
+    public void onProgress(ProgressEvent event) {
+        if (event.isFinished()) {
+            active.remove(event.getInputPath());
+        } else {
+            active.put(event.getInputPath(), event);
+        }
+    }
+
+    /**
+     * Drops the live values of an encode that ended without a final progress block
+     */
+    void encodeEnded(String inputPath) {
+        active.remove(inputPath);
+    }
+
+    /**
+     * Counts how FFmpeg/FFprobe processes exited
+     */
+    static void recordExit(String tool, int exitCode) {
+        REGISTRY.counter("mkvc_process_exits_total", "FFmpeg/FFprobe exits by tool and exit code",
+                "tool", tool, "code", String.valueOf(exitCode)).inc();
+    }
+
+    /**
+     * Output verifications by result: ok or failed
+     */
+    static MetricsRegistry.Counter verifications(boolean passed) {
+        return REGISTRY.counter("mkvc_verifications_total", "Output verifications by result",
+                "result", passed ? "ok" : "failed");
+    }
+
+    /**
+     * Probe latency by analysis source: native, ffprobe or cache
+     */
+    static MetricsRegistry.Histogram probeSeconds(String source) {
+        return REGISTRY.histogram("mkvc_probe_seconds", "Time to analyze one file",
+                MetricsRegistry.LATENCY_BUCKETS, "source", source);
+    }
+}
@@ -0,0 +1,246 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.mkvcompressor.model.CompressionSettings;
+
+/**
+ * What the installed FFmpeg can do: its path, version, encoders and filters.
+ *
+ * Probing spawns three FFmpeg processes, so the result is stored in
+ * ~/.mkv-compressor/ffmpeg-capabilities.properties and reused for as long as
+ * the binary keeps the same size and modification time. Settings are checked
+ * against it before any encode starts.
+ */
+public class FFmpegCapabilities {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final List<String> X26X_PRESETS = Arrays.asList("ultrafast", "superfast", "veryfast",
+            "faster", "fast", "medium", "slow", "slower", "veryslow", "placebo");
+
+    private static FFmpegCapabilities detected;
+
+    private final String binaryPath;
+    private final long binarySize;
+    private final long binaryModified;
+    private final String version;
+    private final Set<String> encoders;
+    private final Set<String> filters;
+
+    FFmpegCapabilities(String binaryPath, long binarySize, long binaryModified, String version,
+                       Set<String> encoders, Set<String> filters) {
+        this.binaryPath = binaryPath;
+        this.binarySize = binarySize;
+        this.binaryModified = binaryModified;
+        this.version = version;
+        this.encoders = Collections.unmodifiableSet(encoders);
+        this.filters = Collections.unmodifiableSet(filters);
+    }
+
+    /**
+     * Capabilities of the ffmpeg found on the PATH, from the cache file when the binary did not change.
+     * Fails when FFmpeg is not installed.
+     */
+    public static synchronized FFmpegCapabilities detect() throws IOException {
+        if (detected == null) {
+            detected = detect(Paths.get(System.getProperty("user.home"), ".mkv-compressor",
+                    "ffmpeg-capabilities.properties"));
+        }
+        return detected;
+    }
+
+    static FFmpegCapabilities detect(Path cacheFile) throws IOException {
+        Path binary = findBinary("ffmpeg");
+        if (binary == null) {
+            throw new IOException("FFmpeg is not installed (no ffmpeg on the PATH)");
+        }
+        long size = Files.size(binary);
+        long modified = Files.getLastModifiedTime(binary).toMillis();
+
+        FFmpegCapabilities cached = load(cacheFile);
+        if (cached != null && cached.binaryPath.equals(binary.toString())
+                && cached.binarySize == size && cached.binaryModified == modified) {
+            return cached;
+        }
+
+        FFmpegCapabilities probed = probe(binary, size, modified);
+        try {
+            probed.save(cacheFile);
+        } catch (IOException e) {
+            System.err.println("Warning: could not cache FFmpeg capabilities: " + e.getMessage());
+        }
+        return probed;
+    }
+
+    /**
+     * Checks the settings against this FFmpeg build, throwing IllegalArgumentException
+     * with the first problem found
+     */
+    public void validate(CompressionSettings settings) {
+        String encoder = settings.getOutputCodec();
+        if (!encoders.contains(encoder)) {
+            throw new IllegalArgumentException("Unknown video encoder '" + encoder + "' for FFmpeg " + version
+                    + " (see ffmpeg -encoders)");
+        }
+        if ((encoder.equals("libx264") || encoder.equals("libx265"))
+                && !X26X_PRESETS.contains(settings.getPreset().toLowerCase(Locale.ROOT))) {
+            throw new IllegalArgumentException("Unknown preset '" + settings.getPreset() + "' for " + encoder
+                    + ", expected one of " + X26X_PRESETS);
+        }
+        if (!settings.isKeepAllAudioTracks() && !encoders.contains("aac")) {
+            throw new IllegalArgumentException("Audio conversion needs the aac encoder, which this FFmpeg lacks");
+        }
+        if (settings.isAutoCrf() && !filters.contains(settings.getAutoCrfMetric())) {
+            throw new IllegalArgumentException("Auto CRF needs the " + settings.getAutoCrfMetric()
+                    + " filter, which this FFmpeg lacks");
+        }
+        if (settings.isVerifyOutput() && settings.getVerifySamples() > 0
+                && !filters.contains(settings.getVerifyMetric())) {
+            throw new IllegalArgumentException("Output verification needs the " + settings.getVerifyMetric()
+                    + " filter, which this FFmpeg lacks");
+        }
+    }
+
+    public boolean hasEncoder(String name) {
+        return encoders.contains(name);
+    }
+
+    public boolean hasFilter(String name) {
+        return filters.contains(name);
+    }
+
+    public String getBinaryPath() {
+        return binaryPath;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public Set<String> getEncoders() {
+        return encoders;
+    }
+
+    public Set<String> getFilters() {
+        return filters;
+    }
+
+    private static FFmpegCapabilities probe(Path binary, long size, long modified) throws IOException {
+        System.out.println("Probing " + binary + "...");
+        String[] version = new String[1];
+        Set<String> encoders = new TreeSet<>();
+        Set<String> filters = new TreeSet<>();
+        try {
+            ProcessRunner.run(Arrays.asList("ffmpeg", "-hide_banner", "-version"), "FFmpeg version check",
+                    line -> {
+                        if (version[0] == null && line.startsWith("ffmpeg version ")) {
+                            version[0] = line.split("\\s+")[2];
+                        }
+                    });
+            ProcessRunner.run(Arrays.asList("ffmpeg", "-hide_banner", "-encoders"), "FFmpeg encoder list",
+                    line -> addListedName(line, encoders));
+            ProcessRunner.run(Arrays.asList("ffmpeg", "-hide_banner", "-filters"), "FFmpeg filter list",
+                    line -> addListedName(line, filters));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        return new FFmpegCapabilities(binary.toString(), size, modified,
+                version[0] != null ? version[0] : "unknown", encoders, filters);
+    }
+
+    /**
+     * Takes the name from a line of -encoders/-filters output (" V....D libx265  ...",
+     * " TSC ssim  VV->V ..."), skipping the legend (" V..... = Video") and separators
+     */
+    static void addListedName(String line, Set<String> names) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length >= 2 && parts[0].matches("[A-Z.|]{3,6}") && !parts[1].equals("=")) {
+            names.add(parts[1]);
+        }
+    }
+
+    private static FFmpegCapabilities load(Path cacheFile) {
+        if (!Files.isRegularFile(cacheFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(cacheFile)) {
+            properties.load(in);
+            if (!String.valueOf(FORMAT_VERSION).equals(properties.getProperty("format"))) {
+                return null;
+            }
+            return new FFmpegCapabilities(properties.getProperty("path"),
+                    Long.parseLong(properties.getProperty("size")),
+                    Long.parseLong(properties.getProperty("modified")),
+                    properties.getProperty("version"),
+                    splitList(properties.getProperty("encoders")),
+                    splitList(properties.getProperty("filters")));
+        } catch (IOException | RuntimeException e) {
+            return null; // Damaged cache, probe again
+        }
+    }
+
+    private void save(Path cacheFile) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("format", String.valueOf(FORMAT_VERSION));
+        properties.setProperty("path", binaryPath);
+        properties.setProperty("size", String.valueOf(binarySize));
+        properties.setProperty("modified", String.valueOf(binaryModified));
+        properties.setProperty("version", version);
+        properties.setProperty("encoders", String.join(",", encoders));
+        properties.setProperty("filters", String.join(",", filters));
+
+        Files.createDirectories(cacheFile.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(cacheFile.toAbsolutePath().getParent(), "ffmpeg-capabilities", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "FFmpeg capabilities, probed again when the binary changes");
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Set<String> splitList(String list) {
+        Set<String> names = new TreeSet<>();
+        if (list != null && !list.isEmpty()) {
+            names.addAll(Arrays.asList(list.split(",")));
+        }
+        return names;
+    }
+
+    /**
+     * Resolves a program name against the PATH, following symlinks
+     */
+    private static Path findBinary(String name) throws IOException {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            if (dir.isEmpty()) {
+                continue;
+            }
+            for (String candidate : new String[] {name, name + ".exe"}) {
+                Path file = Paths.get(dir, candidate);
+                if (Files.isRegularFile(file) && Files.isExecutable(file)) {
+                    return file.toRealPath();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Parses the output of "ffprobe -print_format json -show_format -show_streams"
+ * into a VideoFile while it is being read from the process
+ */
+public class FFprobeJsonParser {
+
+    private static final Map<String, String> CODEC_NAMES = new HashMap<>();
+
+    static {
+        CODEC_NAMES.put("h264", "H.264");
+        CODEC_NAMES.put("hevc", "H.265");
+        CODEC_NAMES.put("av1", "AV1");
+        CODEC_NAMES.put("vp8", "VP8");
+        CODEC_NAMES.put("vp9", "VP9");
+        CODEC_NAMES.put("mpeg2video", "MPEG-2");
+        CODEC_NAMES.put("mpeg4", "MPEG-4");
+        CODEC_NAMES.put("aac", "AAC");
+        CODEC_NAMES.put("ac3", "AC3");
+        CODEC_NAMES.put("eac3", "E-AC3");
+        CODEC_NAMES.put("dts", "DTS");
+        CODEC_NAMES.put("truehd", "TrueHD");
+        CODEC_NAMES.put("flac", "FLAC");
+        CODEC_NAMES.put("opus", "Opus");
+        CODEC_NAMES.put("vorbis", "Vorbis");
+        CODEC_NAMES.put("mp3", "MP3");
+        CODEC_NAMES.put("subrip", "SRT");
+        CODEC_NAMES.put("ass", "ASS");
+        CODEC_NAMES.put("ssa", "SSA");
+        CODEC_NAMES.put("webvtt", "WebVTT");
+        CODEC_NAMES.put("hdmv_pgs_subtitle", "PGS");
+        CODEC_NAMES.put("dvd_subtitle", "VobSub");
+    }
+
+    /**
+     * Reads the FFprobe JSON document and fills the video file
+     */
+    public void parse(Reader input, VideoFile videoFile) throws IOException {
+        JsonStreamReader json = new JsonStreamReader(input);
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("streams".equals(name)) {
+                json.beginArray();
+                while (json.hasNext()) {
+                    readStream(json, videoFile);
+                }
+                json.endArray();
+            } else if ("format".equals(name)) {
+                readFormat(json, videoFile);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    private void readStream(JsonStreamReader json, VideoFile videoFile) throws IOException {
+        int index = 0;
+        String type = null;
+        String codecName = null;
+        String width = null;
+        String height = null;
+        String frameRate = null;
+        String pixelFormat = null;
+        String channels = null;
+        String bitRate = null;
+        String language = null;
+        String title = null;
+        boolean defaultTrack = false;
+        boolean forced = false;
+
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            switch (name) {
+                case "index":
+                    index = Integer.parseInt(json.nextValue());
+                    break;
+                case "codec_type":
+                    type = json.nextValue();
+                    break;
+                case "codec_name":
+                    codecName = json.nextValue();
+                    break;
+                case "width":
+                    width = json.nextValue();
+                    break;
+                case "height":
+                    height = json.nextValue();
+                    break;
+                case "avg_frame_rate":
+                case "r_frame_rate":
+                    // Prefer the average rate; r_frame_rate is only a fallback
+                    String rate = json.nextValue();
+                    if (frameRate == null || "avg_frame_rate".equals(name)) {
+                        frameRate = rate;
+                    }
+                    break;
+                case "pix_fmt":
+                    pixelFormat = json.nextValue();
+                    break;
+                case "channels":
+                    channels = json.nextValue();
+                    break;
+                case "bit_rate":
+                    bitRate = json.nextValue();
+                    break;
+                case "disposition":
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String flag = json.nextName();
+                        String value = json.nextValue();
+                        if ("default".equals(flag)) {
+                            defaultTrack = "1".equals(value);
+                        } else if ("forced".equals(flag)) {
+                            forced = "1".equals(value);
+                        }
+                    }
+                    json.endObject();
+                    break;
+                case "tags":
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String tag = json.nextName();
+                        String value = json.nextValue();
+                        if ("language".equalsIgnoreCase(tag)) {
+                            language = value;
+                        } else if ("title".equalsIgnoreCase(tag)) {
+                            title = value;
+                        } else if (parseBitRate(bitRate) == 0 && ("BPS".equals(tag) || "BPS-eng".equals(tag))) {
+                            bitRate = value; // mkvmerge track statistics
+                        }
+                    }
+                    json.endObject();
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+
+        if (type == null) {
+            return;
+        }
+
+        String codec = codecName(codecName);
+        StreamInfo stream = new StreamInfo(index, type, codec);
+        stream.setLanguage(language);
+        stream.setTitle(title);
+        stream.setDefaultTrack(defaultTrack);
+        stream.setForced(forced);
+        if (channels != null) {
+            stream.setChannels(Integer.parseInt(channels));
+        }
+        stream.setBitRate(parseBitRate(bitRate));
+        videoFile.addStream(stream);
+
+        String languageName = MatroskaParser.languageName(language);
+        switch (type) {
+            case StreamInfo.TYPE_VIDEO:
+                // Cover art is stored as a video stream too; the first one is the main video
+                if (videoFile.getVideoCodec() == null) {
+                    videoFile.setVideoCodec(codec);
+                    if (width != null && height != null) {
+                        videoFile.setResolution(width + "x" + height);
+                    }
+                    videoFile.setFrameRate(parseFrameRate(frameRate));
+                    videoFile.setPixelFormat(pixelFormat);
+                }
+                break;
+            case StreamInfo.TYPE_AUDIO:
+                videoFile.addAudioTrack(codec + " - " + languageName);
+                break;
+            case StreamInfo.TYPE_SUBTITLE:
+                videoFile.addSubtitleTrack(codec + " - " + languageName);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void readFormat(JsonStreamReader json, VideoFile videoFile) throws IOException {
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("duration".equals(name)) {
+                String duration = json.nextValue();
+                if (duration != null) {
+                    videoFile.setDurationSeconds(Double.parseDouble(duration));
+                }
+            } else if ("bit_rate".equals(name)) {
+                String bitRate = json.nextValue();
+                if (bitRate != null) {
+                    videoFile.setBitRate(Long.parseLong(bitRate));
+                }
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+    }
+
+    /**
+     * Converts an FFmpeg codec name (e.g. "hevc") to a readable name
+     */
+    static String codecName(String codecName) {
+        if (codecName == null) return "Unknown";
+        return CODEC_NAMES.getOrDefault(codecName, codecName.toUpperCase());
+    }
+
+    /**
+     * Parses a stream bit rate in bits per second, 0 when missing or "N/A"
+     */
+    static long parseBitRate(String bitRate) {
+        if (bitRate == null) return 0;
+        try {
+            return Math.max(0, Long.parseLong(bitRate.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parses a rational frame rate such as "24000/1001"
+     */
+    static double parseFrameRate(String rate) {
+        if (rate == null) return 0;
+        int slash = rate.indexOf('/');
+        try {
+            if (slash < 0) {
+                return Double.parseDouble(rate);
+            }
+            double denominator = Double.parseDouble(rate.substring(slash + 1));
+            return denominator == 0 ? 0 : Double.parseDouble(rate.substring(0, slash)) / denominator;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
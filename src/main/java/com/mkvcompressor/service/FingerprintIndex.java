@@ -0,0 +1,212 @@
+package com.mkvcompressor.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mkvcompressor.model.CompressionSettings;
+
+/**
+ * Remembers which output every compressed content went to, by {@link ContentFingerprint}
+ * and the settings it was compressed with (see {@link #key}).
+ *
+ * A batch asks it before encoding: content compressed in an earlier run, or by
+ * another job of the same batch, with equivalent settings is linked or skipped
+ * instead of encoded again. Entries are appended to a tab-separated file (key,
+ * output, output size), the last line for a key wins, and an entry whose output
+ * was deleted or changed since is ignored.
+ */
+public class FingerprintIndex {
+
+    private static final long PAUSE_CHECK_MILLIS = 1000;
+
+    private final Path indexPath;
+    private final Map<String, Entry> outputs = new HashMap<>();
+    private final Map<String, Claim> inFlight = new HashMap<>(); // Key -> output being written
+
+    public FingerprintIndex(Path indexPath) throws IOException {
+        this.indexPath = indexPath;
+        load();
+    }
+
+    /**
+     * Opens the index in the user's home directory (~/.mkv-compressor/fingerprints.tsv)
+     */
+    public static FingerprintIndex openDefault() throws IOException {
+        return new FingerprintIndex(Paths.get(System.getProperty("user.home"), ".mkv-compressor",
+                "fingerprints.tsv"));
+    }
+
+    /**
+     * Lookup key of a content compressed with the given settings. Outputs are only
+     * shared between encodes with the same codec, rate control, preset and audio
+     * and subtitle handling.
+     *
+     * @param bitrateKbps bit rate the file is encoded at, 0 for the CRF
+     */
+    public static String key(String fingerprint, CompressionSettings settings, int bitrateKbps) {
+        String rate = bitrateKbps > 0 ? "b" + bitrateKbps + (settings.isTwoPass() ? "x2" : "")
+                : settings.isAutoCrf() ? "auto-" + settings.getAutoCrfMetric() + settings.getAutoCrfTarget()
+                : "crf" + settings.getCrf();
+        return fingerprint + "|" + settings.getOutputCodec() + "," + rate + "," + settings.getPreset()
+                + ",audio-" + (settings.isKeepAllAudioTracks() ? "copy" : "aac")
+                + ",subs-" + (settings.isKeepAllSubtitles() ? "copy" : "none");
+    }
+
+    /**
+     * Returns the output the content was compressed to, or null when there is none (anymore)
+     */
+    public synchronized String findOutput(String key) {
+        Entry entry = outputs.get(key);
+        if (entry == null) {
+            return null;
+        }
+        File output = new File(entry.outputPath);
+        if (!output.isFile() || output.length() != entry.size) {
+            outputs.remove(key); // Deleted or replaced since
+            return null;
+        }
+        return entry.outputPath;
+    }
+
+    /**
+     * Returns the output of an earlier compression of the content, waiting while another
+     * job is compressing it. Returns null when the caller should compress it to outputPath;
+     * the caller then owns the key until it calls {@link #record} or {@link #release}.
+     *
+     * A job that is paused, e.g. for an urgent job, is not waited for: the urgent job may
+     * have the same content, and the paused one only continues once it is done. The caller
+     * then compresses the content too, without owning the key.
+     */
+    public synchronized String claim(String key, String outputPath) throws InterruptedException {
+        while (true) {
+            String output = findOutput(key);
+            if (output != null) {
+                return output;
+            }
+            Claim owner = inFlight.get(key);
+            if (owner == null) {
+                inFlight.put(key, new Claim(normalize(outputPath), CompressionScope.current()));
+                return null;
+            }
+            if (owner.scope != null && owner.scope.isPaused()) {
+                System.out.println("Same content is being compressed to " + owner.outputPath
+                        + " by a paused job, not waiting for it");
+                return null;
+            }
+            wait(PAUSE_CHECK_MILLIS); // The owner may be paused meanwhile
+        }
+    }
+
+    /**
+     * Stores where the content was compressed to and wakes jobs waiting for it
+     */
+    public synchronized void record(String key, String outputPath) throws IOException {
+        release(key, outputPath);
+        String path = normalize(outputPath);
+        long size = new File(path).length();
+        Path parent = indexPath.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(key + "\t" + path + "\t" + size);
+            writer.newLine();
+        }
+        outputs.put(key, new Entry(path, size));
+    }
+
+    /**
+     * Gives up a claim without an output (skipped or failed), so a waiting job takes over
+     */
+    public synchronized void release(String key, String outputPath) {
+        Claim owner = inFlight.get(key);
+        if (owner != null && normalize(outputPath).equals(owner.outputPath)) {
+            inFlight.remove(key);
+            notifyAll();
+        }
+    }
+
+    public synchronized int size() {
+        return outputs.size();
+    }
+
+    private void load() throws IOException {
+        if (!Files.isRegularFile(indexPath)) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    continue; // Torn last line of an interrupted run
+                }
+                try {
+                    outputs.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2])));
+                    lines++;
+                } catch (NumberFormatException e) {
+                    // Damaged line, ignore it
+                }
+            }
+        }
+        if (lines > 2 * outputs.size() + 100) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with one line per fingerprint
+     */
+    private void compact() throws IOException {
+        Path temp = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : outputs.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue().outputPath + "\t" + entry.getValue().size);
+                writer.newLine();
+            }
+        }
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String normalize(String path) {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * The job compressing a content right now
+     */
+    private static final class Claim {
+        final String outputPath;
+        final CompressionScope scope; // Null outside a scope, never paused then
+
+        Claim(String outputPath, CompressionScope scope) {
+            this.outputPath = outputPath;
+            this.scope = scope;
+        }
+    }
+
+    /**
+     * Where one content was compressed to
+     */
+    private static final class Entry {
+        final String outputPath;
+        final long size;
+
+        Entry(String outputPath, long size) {
+            this.outputPath = outputPath;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Runs and caches the first pass of two-pass encodes.
+ *
+ * The pass encodes the video at the configured CRF into nothing, keeping the
+ * encoder's stats file and the byte counts FFmpeg reports per stream type.
+ * It runs in the encoder's fast first-pass mode: cheaper motion search and
+ * analysis, with the frame types and GOP layout the second pass expects. The
+ * second pass needs stats for every frame, so the whole file is encoded.
+ * The video bytes say how hard the content is to compress, which is what a
+ * library budget is divided by; the stats file drives any second pass,
+ * whatever bit rate it asks for. Both are stored under
+ * ~/.mkv-compressor/pass1-cache, so a new budget never runs the pass again.
+ */
+public class FirstPass {
+
+    private static final String RESULT_FILE = "pass1.properties";
+    private static final String STATS_NAME = "stats";
+    private static final List<String> TWO_PASS_ENCODERS = Arrays.asList("libx264", "libx265", "libvpx-vp9",
+            "libaom-av1");
+    // Final FFmpeg report, e.g. "video:812345KiB audio:98765KiB subtitle:120KiB other streams:0KiB ..."
+    private static final Pattern STREAM_BYTES = Pattern.compile(
+            "(video|audio|subtitle|other streams):\\s*(\\d+)\\s*(?:KiB|kB)");
+
+    /**
+     * What the first pass found out about one file
+     */
+    public static final class Result {
+        private final long videoBytes;
+        private final long audioBytes;
+        private final long otherBytes;
+        private final double durationSeconds;
+        private final Path statsFile;
+
+        Result(long videoBytes, long audioBytes, long otherBytes, double durationSeconds, Path statsFile) {
+            this.videoBytes = videoBytes;
+            this.audioBytes = audioBytes;
+            this.otherBytes = otherBytes;
+            this.durationSeconds = durationSeconds;
+            this.statsFile = statsFile;
+        }
+
+        /**
+         * Size of the video stream at the reference CRF
+         */
+        public long getVideoBytes() {
+            return videoBytes;
+        }
+
+        /**
+         * Size of the audio streams as they are in the source
+         */
+        public long getAudioBytes() {
+            return audioBytes;
+        }
+
+        /**
+         * Size of the subtitle and other streams
+         */
+        public long getOtherBytes() {
+            return otherBytes;
+        }
+
+        public double getDurationSeconds() {
+            return durationSeconds;
+        }
+
+        /**
+         * Video bit rate the reference CRF needed, the file's complexity
+         */
+        public double getVideoKbps() {
+            return durationSeconds > 0 ? videoBytes * 8 / durationSeconds / 1000 : 0;
+        }
+
+        /**
+         * Stats file (x265) or prefix (other encoders) for the second pass
+         */
+        public Path getStatsFile() {
+            return statsFile;
+        }
+    }
+
+    private final VideoCompressor compressor;
+    private final Path cacheDir;
+
+    public FirstPass(VideoCompressor compressor, Path cacheDir) {
+        this.compressor = compressor;
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Uses ~/.mkv-compressor/pass1-cache for stats and results
+     */
+    public static FirstPass withDefaultCache(VideoCompressor compressor) {
+        return new FirstPass(compressor, Paths.get(System.getProperty("user.home"), ".mkv-compressor",
+                "pass1-cache"));
+    }
+
+    /**
+     * Whether FFmpeg can run this encoder in two passes with a stats file
+     */
+    public static boolean supports(String encoder) {
+        return TWO_PASS_ENCODERS.contains(encoder);
+    }
+
+    /**
+     * Returns the cached result for the file, running the pass first when there is none
+     */
+    public Result run(VideoFile videoFile, int threads) throws Exception {
+        CompressionSettings settings = compressor.getSettings();
+        Path fileDir = cacheDir.resolve(cacheKey(videoFile, settings));
+        Result cached = load(fileDir);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Work in a private directory and rename it when complete, so an interrupted
+        // pass or another process running the same file never leaves half a stats file
+        Files.createDirectories(cacheDir);
+        Path workDir = Files.createTempDirectory(cacheDir, ".pass1-");
+        try {
+            Path statsFile = workDir.resolve(STATS_NAME);
+            long[] bytes = new long[3]; // video, audio, everything else
+            long startNanos = System.nanoTime();
+            System.out.println("First pass (fast): " + new File(videoFile.getFilePath()).getName() + "...");
+            ProcessRunner.run(buildCommand(videoFile, statsFile, settings.getCrf(), threads),
+                    "First pass", line -> addStreamBytes(line, bytes));
+            if (bytes[0] <= 0) {
+                throw new Exception("First pass reported no video output");
+            }
+            System.out.printf(Locale.ROOT, "First pass: %s done in %.0f s, %.0f kb/s at CRF %d%n",
+                    new File(videoFile.getFilePath()).getName(), (System.nanoTime() - startNanos) / 1e9,
+                    bytes[0] * 8 / Math.max(1, videoFile.getDurationSeconds()) / 1000, settings.getCrf());
+
+            save(workDir, bytes, videoFile.getDurationSeconds());
+            try {
+                Files.move(workDir, fileDir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Result other = load(fileDir);
+                if (other == null) {
+                    throw e;
+                }
+                return other; // Another process finished the same pass first
+            }
+            return load(fileDir);
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * Encodes the first video stream at the CRF into the null muxer and copies the rest,
+     * so the final report gives the size of every stream type
+     */
+    private List<String> buildCommand(VideoFile videoFile, Path statsFile, int crf, int threads) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-hide_banner");
+        cmd.add("-nostats");
+        cmd.add("-nostdin");
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        cmd.add("-map");
+        cmd.add("0:v:0");
+        cmd.add("-map");
+        cmd.add("0:a?");
+        cmd.add("-map");
+        cmd.add("0:s?");
+        compressor.addVideoEncodingArgs(cmd, RateControl.firstPass(crf, statsFile), threads);
+        cmd.add("-c:a");
+        cmd.add("copy");
+        cmd.add("-c:s");
+        cmd.add("copy");
+        cmd.add("-f");
+        cmd.add("null");
+        cmd.add("-");
+        return cmd;
+    }
+
+    /**
+     * Adds the byte counts of FFmpeg's final report line to video (0), audio (1) and the rest (2)
+     */
+    static void addStreamBytes(String line, long[] bytes) {
+        Matcher matcher = STREAM_BYTES.matcher(line);
+        while (matcher.find()) {
+            long value = Long.parseLong(matcher.group(2)) * 1024;
+            String type = matcher.group(1);
+            bytes[type.equals("video") ? 0 : type.equals("audio") ? 1 : 2] += value;
+        }
+    }
+
+    /**
+     * The stats depend on the content, encoder, preset and CRF of the pass. The content is
+     * known by its sampled fingerprint or Matroska SegmentUID, so a copy staged on scratch
+     * or a moved file finds the same entry; without either, by name and mtime.
+     */
+    static String cacheKey(VideoFile videoFile, CompressionSettings settings) {
+        File source = new File(videoFile.getFilePath());
+        String content = videoFile.getFingerprint() != null ? "fp" + videoFile.getFingerprint()
+                : videoFile.getSegmentUid() != null ? "uid" + videoFile.getSegmentUid()
+                : source.getName() + "|mtime" + source.lastModified();
+        String identity = content + "|" + source.length() + "|" + settings.getOutputCodec()
+                + "|" + settings.getPreset() + "|crf" + settings.getCrf();
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static Result load(Path fileDir) throws IOException {
+        Path resultFile = fileDir.resolve(RESULT_FILE);
+        if (!Files.isRegularFile(resultFile)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(resultFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            return new Result(Long.parseLong(properties.getProperty("videoBytes")),
+                    Long.parseLong(properties.getProperty("audioBytes")),
+                    Long.parseLong(properties.getProperty("otherBytes")),
+                    Double.parseDouble(properties.getProperty("durationSeconds")),
+                    fileDir.resolve(STATS_NAME));
+        } catch (RuntimeException e) {
+            return null; // Damaged entry, run the pass again
+        }
+    }
+
+    private static void save(Path fileDir, long[] bytes, double durationSeconds) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("videoBytes", String.valueOf(bytes[0]));
+        properties.setProperty("audioBytes", String.valueOf(bytes[1]));
+        properties.setProperty("otherBytes", String.valueOf(bytes[2]));
+        properties.setProperty("durationSeconds", String.valueOf(durationSeconds));
+        try (Writer writer = Files.newBufferedWriter(fileDir.resolve(RESULT_FILE), StandardCharsets.UTF_8)) {
+            properties.store(writer, "First pass result");
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
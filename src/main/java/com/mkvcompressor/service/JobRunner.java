@@ -0,0 +1,288 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionJob;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.DuplicateHandling;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Analyzes and compresses one job, recording each step in the journal when there is one.
+ * Shared by the batch scheduler and the watch-folder daemon.
+ */
+class JobRunner {
+
+    private static final long OUTPUT_MARGIN = 64L * 1024 * 1024; // Container overhead on a scratch reservation
+
+    private final VideoAnalyzer analyzer;
+    private final VideoCompressor compressor;
+    private volatile BatchJournal journal;
+    private volatile ScratchStaging staging;
+
+    JobRunner(VideoAnalyzer analyzer, VideoCompressor compressor) {
+        this.analyzer = analyzer;
+        this.compressor = compressor;
+    }
+
+    void setJournal(BatchJournal journal) {
+        this.journal = journal;
+    }
+
+    void setStaging(ScratchStaging staging) {
+        this.staging = staging;
+    }
+
+    void run(CompressionJob job) {
+        run(job, true);
+    }
+
+    /**
+     * Runs the job to completion; failures are stored on the job instead of thrown.
+     * With resume set, a file the journal shows as done is not processed again.
+     * With scratch staging, the job completes once its output reached the destination,
+     * which may be after this method returned.
+     */
+    void run(CompressionJob job, boolean resume) {
+        EncodeMetrics.JOBS_QUEUED.dec();
+        EncodeMetrics.JOBS_RUNNING.inc();
+        job.setStatus(CompressionJob.Status.RUNNING);
+        job.setStartTime(System.currentTimeMillis());
+        String name = new File(job.getInputPath()).getName();
+        boolean publishing = false;
+
+        try {
+            if (resume && journal != null && journal.isDone(job.getInputPath(), job.getOutputPath())) {
+                System.out.println("\n[job " + job.getId() + "] Already done in a previous run: " + name);
+                job.setResumed(true);
+                complete(job);
+            } else {
+                System.out.println("\n[job " + job.getId() + "] Processing: " + name);
+
+                record(BatchJournal.State.ANALYZING, job, null);
+                VideoFile videoFile = analyzer.analyzeVideo(job.getInputPath());
+                videoFile.setTargetBitrateKbps(compressor.getAllocatedBitrate(job.getInputPath()));
+                job.setVideoFile(videoFile);
+
+                if (!reuseEarlierOutput(job, videoFile)) {
+                    record(BatchJournal.State.ENCODING, job, null);
+                    if (staging != null) {
+                        publishing = compressStaged(job, videoFile);
+                    } else {
+                        compressor.compressVideo(videoFile, job.getOutputPath());
+                    }
+                }
+                if (!publishing) {
+                    complete(job);
+                }
+            }
+        } catch (Exception e) {
+            fail(job, e);
+        } finally {
+            if (!publishing) {
+                end(job);
+            }
+        }
+    }
+
+    /**
+     * Handles a file whose content was compressed before, by an earlier run or another
+     * job of this batch: links its output or skips the file, and returns true.
+     * Otherwise claims the content for this job, so its duplicates wait for the output.
+     */
+    private boolean reuseEarlierOutput(CompressionJob job, VideoFile videoFile) throws Exception {
+        FingerprintIndex fingerprints = compressor.getFingerprintIndex();
+        if (fingerprints == null || videoFile.getFingerprint() == null) {
+            return false;
+        }
+        String earlier = fingerprints.claim(fingerprintKey(videoFile), job.getOutputPath());
+        if (earlier == null) {
+            return false;
+        }
+
+        Path source = Paths.get(earlier);
+        Path target = Paths.get(job.getOutputPath());
+        CompressionDecision decision;
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            decision = new CompressionDecision(CompressionDecision.Action.DUPLICATE, "already compressed");
+        } else if (compressor.getSettings().getDuplicateHandling() == DuplicateHandling.SKIP) {
+            decision = new CompressionDecision(CompressionDecision.Action.SKIP, "same content as " + earlier);
+        } else {
+            linkOrCopy(source, target);
+            decision = new CompressionDecision(CompressionDecision.Action.DUPLICATE, "same content as " + earlier);
+        }
+        videoFile.setDecision(decision);
+        videoFile.setCompressedSize(decision.getAction() == CompressionDecision.Action.SKIP
+                ? videoFile.getOriginalSize() : Files.size(target));
+        System.out.println("[job " + job.getId() + "] Decision: " + decision);
+        return true;
+    }
+
+    /**
+     * Hard-links source to target, or copies it when the two are on different file systems
+     */
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Files.deleteIfExists(part);
+        try {
+            Files.createLink(part, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, part);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stores the output of a claimed content, or gives the claim up when there is none
+     */
+    private void recordFingerprint(CompressionJob job) {
+        VideoFile videoFile = job.getVideoFile();
+        String fingerprint = videoFile == null ? null : videoFile.getFingerprint();
+        if (fingerprint == null) {
+            return;
+        }
+        try {
+            FingerprintIndex fingerprints = compressor.getFingerprintIndex();
+            if (fingerprints == null) {
+                return;
+            }
+            CompressionDecision decision = videoFile.getDecision();
+            boolean encoded = job.getStatus() != CompressionJob.Status.FAILED && decision != null
+                    && (decision.getAction() == CompressionDecision.Action.ENCODE
+                    || decision.getAction() == CompressionDecision.Action.REMUX);
+            if (encoded && new File(job.getOutputPath()).isFile()) {
+                fingerprints.record(fingerprintKey(videoFile), job.getOutputPath());
+            } else {
+                fingerprints.release(fingerprintKey(videoFile), job.getOutputPath());
+            }
+        } catch (IOException e) {
+            System.err.println("[job " + job.getId() + "] Could not record the fingerprint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Content and settings the output is made of: other settings make another output
+     */
+    private String fingerprintKey(VideoFile videoFile) {
+        CompressionSettings settings = compressor.getSettings();
+        int bitrateKbps = videoFile.getTargetBitrateKbps() > 0
+                ? videoFile.getTargetBitrateKbps() : settings.getTargetBitrateKbps();
+        return FingerprintIndex.key(videoFile.getFingerprint(), settings, bitrateKbps);
+    }
+
+    /**
+     * Encodes from and to scratch. Returns true when the output is being moved to
+     * its destination in the background, which then completes the job.
+     */
+    private boolean compressStaged(CompressionJob job, VideoFile videoFile) throws Exception {
+        String source = videoFile.getFilePath();
+        Path localInput = staging.acquireInput(source);
+        // Room for an output up to the early abort limit; a projection is no bound, so the
+        // actual size is accounted again before the output is published
+        double ratio = Math.max(1, compressor.getSettings().getEarlyAbortRatio());
+        long reserved = (long) (videoFile.getOriginalSize() * ratio) + OUTPUT_MARGIN;
+        Path scratchOutput = staging.reserveOutput(reserved);
+
+        try {
+            videoFile.setFilePath(localInput.toString());
+            compressor.compressVideo(videoFile, scratchOutput != null ? scratchOutput.toString() : job.getOutputPath());
+        } catch (Exception e) {
+            if (scratchOutput != null) {
+                staging.cancelOutput(scratchOutput, reserved);
+            }
+            throw e;
+        } finally {
+            videoFile.setFilePath(source);
+            staging.releaseInput(source);
+        }
+
+        if (scratchOutput == null) {
+            return false; // Did not fit on scratch, written to the destination directly
+        }
+        if (!Files.exists(scratchOutput)) {
+            staging.cancelOutput(scratchOutput, reserved); // Skipped, nothing to move
+            return false;
+        }
+
+        long outputSize = staging.accountOutput(scratchOutput, reserved);
+        staging.publish(scratchOutput, outputSize, Paths.get(job.getOutputPath()), error -> {
+            if (error == null) {
+                complete(job);
+            } else {
+                fail(job, error);
+            }
+            end(job);
+        });
+        return true;
+    }
+
+    private void complete(CompressionJob job) {
+        try {
+            if (!job.isResumed()) {
+                CompressionDecision decision = job.getVideoFile().getDecision();
+                record(BatchJournal.State.DONE, job, decision == null ? null : decision.toString());
+                recordSizes(job.getVideoFile());
+            }
+            job.setStatus(CompressionJob.Status.COMPLETED);
+            recordFingerprint(job);
+            EncodeMetrics.JOBS_COMPLETED.inc();
+        } catch (Exception e) {
+            fail(job, e);
+        }
+    }
+
+    private void fail(CompressionJob job, Exception e) {
+        EncodeMetrics.JOBS_FAILED.inc();
+        job.setErrorMessage(e.getMessage());
+        job.setStatus(CompressionJob.Status.FAILED);
+        recordFingerprint(job);
+        System.err.println("[job " + job.getId() + "] Failed: " + new File(job.getInputPath()).getName()
+                + " - " + e.getMessage());
+        try {
+            record(BatchJournal.State.FAILED, job, e.getMessage());
+        } catch (Exception journalError) {
+            System.err.println("[job " + job.getId() + "] Could not write journal: " + journalError.getMessage());
+        }
+    }
+
+    private static void end(CompressionJob job) {
+        job.setEndTime(System.currentTimeMillis());
+        EncodeMetrics.JOBS_RUNNING.dec();
+    }
+
+    private static void recordSizes(VideoFile videoFile) {
+        CompressionDecision decision = videoFile.getDecision();
+        if (decision != null && (decision.getAction() == CompressionDecision.Action.SKIP
+                || decision.getAction() == CompressionDecision.Action.DUPLICATE)) {
+            return; // Nothing was read or written
+        }
+        EncodeMetrics.INPUT_BYTES.add(videoFile.getOriginalSize());
+        EncodeMetrics.OUTPUT_BYTES.add(videoFile.getCompressedSize());
+        EncodeMetrics.BYTES_SAVED.add(Math.max(0, videoFile.getOriginalSize() - videoFile.getCompressedSize()));
+    }
+
+    private void record(BatchJournal.State state, CompressionJob job, String message) throws Exception {
+        BatchJournal journal = this.journal;
+        if (journal == null) {
+            return;
+        }
+        long size = -1;
+        long checksum = 0;
+        File output = new File(job.getOutputPath());
+        if (state == BatchJournal.State.DONE && output.isFile()) {
+            size = output.length();
+            checksum = BatchJournal.checksum(output);
+        }
+        journal.record(state, job.getInputPath(), job.getOutputPath(), size, checksum, message);
+    }
+}
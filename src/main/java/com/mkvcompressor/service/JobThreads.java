@@ -0,0 +1,32 @@
+package com.mkvcompressor.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads for asynchronous jobs: one virtual thread per job on Java 21 and later,
+ * where a waiting job costs next to nothing, otherwise a fixed pool of platform threads
+ */
+final class JobThreads {
+
+    private JobThreads() {
+    }
+
+    /**
+     * @param platformThreads pool size when virtual threads are not available
+     */
+    static ExecutorService newExecutor(String name, int platformThreads) {
+        try {
+            // Looked up at runtime so the build keeps working on Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(platformThreads, runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
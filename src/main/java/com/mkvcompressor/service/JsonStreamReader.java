@@ -0,0 +1,183 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Minimal pull-style JSON reader used to parse FFprobe output as it streams
+ * from the process, without building a document tree in memory.
+ * Numbers and booleans are returned as their text, like strings.
+ */
+class JsonStreamReader {
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder text = new StringBuilder();
+    private int position;
+    private int limit;
+
+    JsonStreamReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    void beginObject() throws IOException {
+        expect('{');
+    }
+
+    void endObject() throws IOException {
+        expect('}');
+    }
+
+    void beginArray() throws IOException {
+        expect('[');
+    }
+
+    void endArray() throws IOException {
+        expect(']');
+    }
+
+    /**
+     * Checks if the current object or array has another element, consuming the separator
+     */
+    boolean hasNext() throws IOException {
+        int c = peekToken();
+        if (c == ',') {
+            position++;
+            c = peekToken();
+        }
+        return c != '}' && c != ']' && c != -1;
+    }
+
+    /**
+     * Reads an object member name and the colon after it
+     */
+    String nextName() throws IOException {
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Reads a string, number, boolean or null value as text (null for JSON null)
+     */
+    String nextValue() throws IOException {
+        int c = peekToken();
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            throw new IOException("Expected a scalar value but found '" + (char) c + "'");
+        }
+        text.setLength(0);
+        while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            text.append((char) c);
+            position++;
+        }
+        if (text.length() == 0) {
+            throw new IOException("Expected a value but found "
+                    + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+        }
+        String literal = text.toString();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays
+     */
+    void skipValue() throws IOException {
+        int c = peekToken();
+        if (c == '{') {
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+        } else if (c == '[') {
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+        } else {
+            nextValue();
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                throw new IOException("Unterminated JSON string");
+            }
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c == '\\') {
+                int escaped = read();
+                switch (escaped) {
+                    case -1: throw new IOException("Unterminated JSON string");
+                    case 'n': text.append('\n'); break;
+                    case 't': text.append('\t'); break;
+                    case 'r': text.append('\r'); break;
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(read(), 16);
+                            if (digit < 0) {
+                                throw new IOException("Invalid \\u escape in JSON string");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        text.append((char) code);
+                        break;
+                    default:
+                        text.append((char) escaped);
+                }
+            } else {
+                text.append((char) c);
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = peekToken();
+        if (c != expected) {
+            throw new IOException("Expected '" + expected + "' but found "
+                    + (c == -1 ? "end of input" : "'" + (char) c + "'"));
+        }
+        position++;
+    }
+
+    private int peekToken() throws IOException {
+        int c;
+        while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+            position++;
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (position >= limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        if (c != -1) {
+            position++;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,773 @@
+package com.mkvcompressor.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Catalog of every file the library scans have seen, kept compact enough for
+ * hundreds of thousands of entries.
+ *
+ * The file is stored by column: one primitive array per property (sizes, packed
+ * resolutions, bit rates...), codecs and languages as numbers into small
+ * dictionaries, and all paths in one UTF-8 block. Opening it maps the file into
+ * memory and reads only the header, and a {@link Query} filters and sorts on the
+ * columns directly, so no {@link VideoFile} is built unless asked for with
+ * {@link #toVideoFile}. Rows are sorted by path. Each scan is merged into the
+ * index by {@link #update}: rows of unchanged files are copied column by column,
+ * files that disappeared from the scanned directory are dropped.
+ */
+public class LibraryIndex {
+
+    private static final int MAGIC = 0x4D4B564C; // "MKVL"
+    private static final int VERSION = 1;
+
+    // Track column: type in the top 2 bits, then 15 bits of codec and 15 of language
+    private static final int TYPE_VIDEO = 0;
+    private static final int TYPE_AUDIO = 1;
+    private static final int TYPE_SUBTITLE = 2;
+    private static final int TYPE_OTHER = 3;
+    private static final int MAX_DICTIONARY_SIZE = 0x7FFF; // The last id means unknown
+    private static final int UNKNOWN = 0x7FFF;
+
+    // File locks are held per JVM, so threads updating the same index queue here first
+    private static final Map<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * The numeric columns a query can filter and sort on
+     */
+    public enum Column {
+        SIZE,             // Bytes
+        LAST_MODIFIED,    // Epoch milliseconds
+        EXPECTED_SAVINGS, // Bytes, as estimated by the scan
+        WIDTH,
+        HEIGHT,
+        BITRATE_KBPS,     // Overall bit rate
+        DURATION_SECONDS
+    }
+
+    private final Path file;
+    private final int rows;
+    private final List<String> codecs;
+    private final List<String> languages;
+    private final LongBuffer sizes;
+    private final LongBuffer lastModified;
+    private final LongBuffer savings;
+    private final IntBuffer resolutions; // width << 16 | height
+    private final IntBuffer bitrates; // kb/s
+    private final IntBuffer durations; // Milliseconds
+    private final IntBuffer pathOffsets; // rows + 1 entries into paths
+    private final IntBuffer trackOffsets; // rows + 1 entries into tracks
+    private final IntBuffer tracks;
+    private final ShortBuffer videoCodecs;
+    private final ByteBuffer paths;
+
+    private LibraryIndex(Path file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        if (buffer.capacity() < 28 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a library index of this version: " + file);
+        }
+        rows = buffer.getInt(8);
+        int trackCount = buffer.getInt(12);
+        int pathBytes = buffer.getInt(16);
+        int codecCount = buffer.getInt(20);
+        int languageCount = buffer.getInt(24);
+
+        int[] position = {28};
+        codecs = readDictionary(buffer, position, codecCount);
+        languages = readDictionary(buffer, position, languageCount);
+        sizes = slice(buffer, position, rows * 8L).asLongBuffer();
+        lastModified = slice(buffer, position, rows * 8L).asLongBuffer();
+        savings = slice(buffer, position, rows * 8L).asLongBuffer();
+        resolutions = slice(buffer, position, rows * 4L).asIntBuffer();
+        bitrates = slice(buffer, position, rows * 4L).asIntBuffer();
+        durations = slice(buffer, position, rows * 4L).asIntBuffer();
+        pathOffsets = slice(buffer, position, (rows + 1) * 4L).asIntBuffer();
+        trackOffsets = slice(buffer, position, (rows + 1) * 4L).asIntBuffer();
+        tracks = slice(buffer, position, trackCount * 4L).asIntBuffer();
+        videoCodecs = slice(buffer, position, rows * 2L).asShortBuffer();
+        paths = slice(buffer, position, pathBytes);
+    }
+
+    /**
+     * Maps the index file; a missing or unreadable one gives an empty index
+     */
+    public static LibraryIndex open(Path file) throws IOException {
+        if (Files.isRegularFile(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Library index larger than 2 GB: " + file);
+                }
+                // The mapping stays valid after the channel is closed
+                return new LibraryIndex(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Warning: library index unreadable, starting over: " + e.getMessage());
+            }
+        }
+        return new LibraryIndex(file, new Builder(0, new ArrayList<>(), new ArrayList<>()).toBuffer());
+    }
+
+    /**
+     * Location used by batches unless another one is set (~/.mkv-compressor/library-index.bin)
+     */
+    public static Path defaultPath() {
+        return Paths.get(System.getProperty("user.home"), ".mkv-compressor", "library-index.bin");
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the row of a file, or -1 when it is not in the index
+     */
+    public int find(Path path) {
+        byte[] key = path.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = rows - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = comparePath(middle, key);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    public String getPath(int row) {
+        int start = pathOffsets.get(row);
+        byte[] bytes = new byte[pathOffsets.get(row + 1) - start];
+        paths.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getSize(int row) {
+        return sizes.get(row);
+    }
+
+    public long getLastModified(int row) {
+        return lastModified.get(row);
+    }
+
+    public long getExpectedSavings(int row) {
+        return savings.get(row);
+    }
+
+    /**
+     * Video codec name, or null when unknown
+     */
+    public String getVideoCodec(int row) {
+        return name(codecs, videoCodecs.get(row));
+    }
+
+    public int getWidth(int row) {
+        return resolutions.get(row) >>> 16;
+    }
+
+    public int getHeight(int row) {
+        return resolutions.get(row) & 0xFFFF;
+    }
+
+    public int getBitrateKbps(int row) {
+        return bitrates.get(row);
+    }
+
+    public double getDurationSeconds(int row) {
+        return durations.get(row) / 1000.0;
+    }
+
+    /**
+     * Language codes of the audio tracks, in track order
+     */
+    public List<String> getAudioLanguages(int row) {
+        List<String> result = new ArrayList<>();
+        for (int i = trackOffsets.get(row); i < trackOffsets.get(row + 1); i++) {
+            int track = tracks.get(i);
+            if (track >>> 30 == TYPE_AUDIO) {
+                String language = name(languages, track & 0x7FFF);
+                result.add(language != null ? language : "und");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Value of a numeric column, as used by queries
+     */
+    public long value(Column column, int row) {
+        switch (column) {
+            case SIZE:
+                return sizes.get(row);
+            case LAST_MODIFIED:
+                return lastModified.get(row);
+            case EXPECTED_SAVINGS:
+                return savings.get(row);
+            case WIDTH:
+                return getWidth(row);
+            case HEIGHT:
+                return getHeight(row);
+            case BITRATE_KBPS:
+                return bitrates.get(row);
+            default:
+                return durations.get(row) / 1000;
+        }
+    }
+
+    /**
+     * Builds the full VideoFile of a row: codecs, resolution, duration, bit rate and tracks
+     */
+    public VideoFile toVideoFile(int row) {
+        VideoFile videoFile = new VideoFile(getPath(row));
+        videoFile.setOriginalSize(getSize(row));
+        videoFile.setVideoCodec(getVideoCodec(row));
+        if (resolutions.get(row) != 0) {
+            videoFile.setResolution(getWidth(row) + "x" + getHeight(row));
+        }
+        videoFile.setBitRate(getBitrateKbps(row) * 1000L);
+        videoFile.setDurationSeconds(getDurationSeconds(row));
+        int index = 0;
+        for (int i = trackOffsets.get(row); i < trackOffsets.get(row + 1); i++) {
+            int track = tracks.get(i);
+            StreamInfo stream = new StreamInfo(index++, typeName(track >>> 30), name(codecs, (track >>> 15) & 0x7FFF));
+            stream.setLanguage(name(languages, track & 0x7FFF));
+            videoFile.addStream(stream);
+        }
+        return videoFile;
+    }
+
+    public Query query() {
+        return new Query();
+    }
+
+    /**
+     * Merges a scan of root into the index and returns the updated index. Rows below root
+     * that the scan did not find are removed, rows elsewhere are kept. The merge is made on
+     * the file as it is now, under a lock, so concurrent updates of other libraries are not
+     * lost; the file is replaced atomically and this instance keeps showing the old content.
+     */
+    public LibraryIndex update(Path root, List<LibraryScanner.Entry> entries) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path lockPath = file.resolveSibling(file.getFileName() + ".lock");
+        synchronized (JVM_LOCKS.computeIfAbsent(lockPath.toAbsolutePath().normalize(), key -> new Object())) {
+            try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                FileLock lock = lockChannel.lock();
+                try {
+                    Builder builder = open(file).merge(root, entries);
+                    Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+                    try {
+                        try (DataOutputStream out = new DataOutputStream(
+                                new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                            builder.write(out);
+                        }
+                        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(temp);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        return open(file);
+    }
+
+    private Builder merge(Path root, List<LibraryScanner.Entry> entries) {
+        byte[] rootBytes = root.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8);
+        Map<byte[], LibraryScanner.Entry> byKey = new HashMap<>(); // Identity keys, each array is unique
+        List<byte[]> keys = new ArrayList<>();
+        for (LibraryScanner.Entry entry : entries) {
+            if (entry.getVideoFile() != null) { // Failed analyses are left out
+                byte[] key = entry.getFile().toAbsolutePath().normalize().toString()
+                        .getBytes(StandardCharsets.UTF_8);
+                byKey.put(key, entry);
+                keys.add(key);
+            }
+        }
+        keys.sort(Arrays::compareUnsigned); // Same order as comparePath
+        List<LibraryScanner.Entry> scanned = new ArrayList<>();
+        for (byte[] key : keys) {
+            scanned.add(byKey.get(key));
+        }
+
+        Builder builder = new Builder(rows + scanned.size(), new ArrayList<>(codecs), new ArrayList<>(languages));
+        int row = 0;
+        int next = 0;
+        while (row < rows || next < scanned.size()) {
+            int order = row >= rows ? 1 : next >= scanned.size() ? -1 : comparePath(row, keys.get(next));
+            if (order < 0) {
+                if (!isBelow(row, rootBytes)) {
+                    builder.copyRow(this, row); // Another library, or outside the scanned directory
+                }
+                row++;
+            } else {
+                builder.addEntry(scanned.get(next), keys.get(next));
+                next++;
+                if (order == 0) {
+                    row++; // Replaced by the new scan
+                }
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Filters and sorts the rows on the columns, without materializing them
+     */
+    public final class Query {
+        private final List<IntPredicate> filters = new ArrayList<>();
+        private Column sortColumn; // null = path order
+        private boolean descending;
+        private int limit = Integer.MAX_VALUE;
+
+        private Query() {
+        }
+
+        public Query atLeast(Column column, long minimum) {
+            filters.add(row -> value(column, row) >= minimum);
+            return this;
+        }
+
+        public Query atMost(Column column, long maximum) {
+            filters.add(row -> value(column, row) <= maximum);
+            return this;
+        }
+
+        /**
+         * Only files with this video codec (e.g. "H.264", case ignored)
+         */
+        public Query videoCodec(String codec) {
+            int id = indexOf(codecs, codec);
+            filters.add(row -> videoCodecs.get(row) == id);
+            return this;
+        }
+
+        /**
+         * Only files with an audio track in this language (e.g. "eng")
+         */
+        public Query audioLanguage(String language) {
+            int id = indexOf(languages, language);
+            filters.add(row -> {
+                for (int i = trackOffsets.get(row); i < trackOffsets.get(row + 1); i++) {
+                    int track = tracks.get(i);
+                    if (track >>> 30 == TYPE_AUDIO && (track & 0x7FFF) == id) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+            return this;
+        }
+
+        public Query sortBy(Column column, boolean descending) {
+            this.sortColumn = column;
+            this.descending = descending;
+            return this;
+        }
+
+        public Query limit(int limit) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("Limit must not be negative");
+            }
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * The matching rows, sorted, at most limit of them
+         */
+        public int[] rows() {
+            int[] matches = new int[rows];
+            int count = 0;
+            for (int row = 0; row < rows; row++) {
+                if (matches(row)) {
+                    matches[count++] = row;
+                }
+            }
+            matches = Arrays.copyOf(matches, count);
+            if (sortColumn != null) {
+                long[] keys = new long[count];
+                for (int i = 0; i < count; i++) {
+                    long key = value(sortColumn, matches[i]);
+                    keys[i] = descending ? -key : key;
+                }
+                sort(matches, keys);
+            }
+            return count > limit ? Arrays.copyOf(matches, limit) : matches;
+        }
+
+        public int count() {
+            int count = 0;
+            for (int row = 0; row < rows; row++) {
+                if (matches(row)) {
+                    count++;
+                }
+            }
+            return Math.min(count, limit);
+        }
+
+        private boolean matches(int row) {
+            for (IntPredicate filter : filters) {
+                if (!filter.test(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stable sort of rows by key (bottom-up merge sort), ties stay in path order
+     */
+    static void sort(int[] rows, long[] keys) {
+        int n = rows.length;
+        int[] rowBuffer = new int[n];
+        long[] keyBuffer = new long[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int start = 0; start < n; start += 2 * width) {
+                int middle = Math.min(start + width, n);
+                int end = Math.min(start + 2 * width, n);
+                int left = start;
+                int right = middle;
+                for (int i = start; i < end; i++) {
+                    if (left < middle && (right >= end || keys[left] <= keys[right])) {
+                        rowBuffer[i] = rows[left];
+                        keyBuffer[i] = keys[left++];
+                    } else {
+                        rowBuffer[i] = rows[right];
+                        keyBuffer[i] = keys[right++];
+                    }
+                }
+            }
+            System.arraycopy(rowBuffer, 0, rows, 0, n);
+            System.arraycopy(keyBuffer, 0, keys, 0, n);
+        }
+    }
+
+    private int comparePath(int row, byte[] key) {
+        int start = pathOffsets.get(row);
+        int length = pathOffsets.get(row + 1) - start;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int order = Integer.compare(paths.get(start + i) & 0xFF, key[i] & 0xFF);
+            if (order != 0) {
+                return order;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /**
+     * Whether the row's path is root or lies below it
+     */
+    private boolean isBelow(int row, byte[] root) {
+        int start = pathOffsets.get(row);
+        int length = pathOffsets.get(row + 1) - start;
+        if (length < root.length) {
+            return false;
+        }
+        for (int i = 0; i < root.length; i++) {
+            if (paths.get(start + i) != root[i]) {
+                return false;
+            }
+        }
+        return length == root.length || paths.get(start + root.length) == '/'
+                || paths.get(start + root.length) == '\\' || root[root.length - 1] == '/';
+    }
+
+    private static int indexOf(List<String> dictionary, String value) {
+        for (int i = 0; i < dictionary.size(); i++) {
+            if (dictionary.get(i).equalsIgnoreCase(value)) {
+                return i;
+            }
+        }
+        return -1; // Matches no row
+    }
+
+    private static String name(List<String> dictionary, int id) {
+        return id >= 0 && id < dictionary.size() ? dictionary.get(id) : null;
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case TYPE_VIDEO:
+                return StreamInfo.TYPE_VIDEO;
+            case TYPE_AUDIO:
+                return StreamInfo.TYPE_AUDIO;
+            case TYPE_SUBTITLE:
+                return StreamInfo.TYPE_SUBTITLE;
+            default:
+                return "other";
+        }
+    }
+
+    private static List<String> readDictionary(ByteBuffer buffer, int[] position, int count) {
+        List<String> dictionary = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort(position[0]) & 0xFFFF;
+            byte[] bytes = new byte[length];
+            buffer.get(position[0] + 2, bytes);
+            dictionary.add(new String(bytes, StandardCharsets.UTF_8));
+            position[0] += 2 + length;
+        }
+        return dictionary;
+    }
+
+    /**
+     * Returns the next column, which starts at the next multiple of 8
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, int[] position, long length) throws IOException {
+        int start = align(position[0]);
+        if (start + length > buffer.capacity()) {
+            throw new IOException("Library index is truncated");
+        }
+        position[0] = start + (int) length;
+        return buffer.slice(start, (int) length);
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    /**
+     * Collects the columns of a new index file
+     */
+    private static final class Builder {
+        private final List<String> codecs;
+        private final List<String> languages;
+        private final Map<String, Integer> codecIds = new HashMap<>();
+        private final Map<String, Integer> languageIds = new HashMap<>();
+        private int rows;
+        private long[] sizes;
+        private long[] lastModified;
+        private long[] savings;
+        private int[] resolutions;
+        private int[] bitrates;
+        private int[] durations;
+        private short[] videoCodecs;
+        private int[] pathOffsets;
+        private int[] trackOffsets;
+        private int[] tracks = new int[64];
+        private int trackCount;
+        private byte[] paths = new byte[1024];
+        private int pathBytes;
+
+        Builder(int capacity, List<String> codecs, List<String> languages) {
+            this.codecs = codecs;
+            this.languages = languages;
+            for (int i = 0; i < codecs.size(); i++) {
+                codecIds.putIfAbsent(codecs.get(i), i);
+            }
+            for (int i = 0; i < languages.size(); i++) {
+                languageIds.putIfAbsent(languages.get(i), i);
+            }
+            sizes = new long[capacity];
+            lastModified = new long[capacity];
+            savings = new long[capacity];
+            resolutions = new int[capacity];
+            bitrates = new int[capacity];
+            durations = new int[capacity];
+            videoCodecs = new short[capacity];
+            pathOffsets = new int[capacity + 1];
+            trackOffsets = new int[capacity + 1];
+        }
+
+        /**
+         * Copies a row of an existing index; the dictionaries were carried over, so ids stay valid
+         */
+        void copyRow(LibraryIndex index, int row) {
+            sizes[rows] = index.sizes.get(row);
+            lastModified[rows] = index.lastModified.get(row);
+            savings[rows] = index.savings.get(row);
+            resolutions[rows] = index.resolutions.get(row);
+            bitrates[rows] = index.bitrates.get(row);
+            durations[rows] = index.durations.get(row);
+            videoCodecs[rows] = index.videoCodecs.get(row);
+            for (int i = index.trackOffsets.get(row); i < index.trackOffsets.get(row + 1); i++) {
+                addTrack(index.tracks.get(i));
+            }
+            int start = index.pathOffsets.get(row);
+            int length = index.pathOffsets.get(row + 1) - start;
+            ensurePathCapacity(length);
+            index.paths.get(start, paths, pathBytes, length);
+            endRow(length);
+        }
+
+        void addEntry(LibraryScanner.Entry entry, byte[] path) {
+            VideoFile videoFile = entry.getVideoFile();
+            sizes[rows] = videoFile.getOriginalSize();
+            lastModified[rows] = entry.getLastModified();
+            savings[rows] = entry.getExpectedSavings();
+            resolutions[rows] = packResolution(videoFile.getResolution());
+            bitrates[rows] = (int) Math.min(Integer.MAX_VALUE, videoFile.getBitRate() / 1000);
+            durations[rows] = (int) Math.min(Integer.MAX_VALUE, Math.round(videoFile.getDurationSeconds() * 1000));
+            videoCodecs[rows] = (short) id(codecs, codecIds, videoFile.getVideoCodec());
+            for (StreamInfo stream : videoFile.getStreams()) {
+                addTrack(type(stream.getType()) << 30 | id(codecs, codecIds, stream.getCodec()) << 15
+                        | id(languages, languageIds, stream.getLanguage()));
+            }
+            ensurePathCapacity(path.length);
+            System.arraycopy(path, 0, paths, pathBytes, path.length);
+            endRow(path.length);
+        }
+
+        /**
+         * Writes the header, the dictionaries and then each column at a multiple of 8
+         */
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows);
+            out.writeInt(trackCount);
+            out.writeInt(pathBytes);
+            out.writeInt(codecs.size());
+            out.writeInt(languages.size());
+            for (String value : codecs) {
+                writeString(out, value);
+            }
+            for (String value : languages) {
+                writeString(out, value);
+            }
+            writeLongs(out, sizes, rows);
+            writeLongs(out, lastModified, rows);
+            writeLongs(out, savings, rows);
+            writeInts(out, resolutions, rows);
+            writeInts(out, bitrates, rows);
+            writeInts(out, durations, rows);
+            writeInts(out, pathOffsets, rows + 1);
+            writeInts(out, trackOffsets, rows + 1);
+            writeInts(out, tracks, trackCount);
+            pad(out);
+            for (int i = 0; i < rows; i++) {
+                out.writeShort(videoCodecs[i]);
+            }
+            pad(out);
+            out.write(paths, 0, pathBytes);
+        }
+
+        ByteBuffer toBuffer() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                write(out);
+            }
+            return ByteBuffer.wrap(bytes.toByteArray());
+        }
+
+        private void endRow(int pathLength) {
+            pathBytes += pathLength;
+            rows++;
+            pathOffsets[rows] = pathBytes;
+            trackOffsets[rows] = trackCount;
+        }
+
+        private void addTrack(int track) {
+            if (trackCount == tracks.length) {
+                tracks = Arrays.copyOf(tracks, tracks.length * 2);
+            }
+            tracks[trackCount++] = track;
+        }
+
+        private void ensurePathCapacity(int length) {
+            if (pathBytes + length > paths.length) {
+                paths = Arrays.copyOf(paths, Math.max(paths.length * 2, pathBytes + length));
+            }
+        }
+
+        private static int id(List<String> dictionary, Map<String, Integer> ids, String value) {
+            if (value == null) {
+                return UNKNOWN;
+            }
+            Integer id = ids.get(value);
+            if (id == null) {
+                if (dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                    return UNKNOWN;
+                }
+                id = dictionary.size();
+                dictionary.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        private static int type(String type) {
+            if (StreamInfo.TYPE_VIDEO.equals(type)) return TYPE_VIDEO;
+            if (StreamInfo.TYPE_AUDIO.equals(type)) return TYPE_AUDIO;
+            if (StreamInfo.TYPE_SUBTITLE.equals(type)) return TYPE_SUBTITLE;
+            return TYPE_OTHER;
+        }
+
+        private static int packResolution(String resolution) {
+            if (resolution == null) {
+                return 0;
+            }
+            int x = resolution.toLowerCase(Locale.ROOT).indexOf('x');
+            try {
+                int width = Integer.parseInt(resolution.substring(0, x).trim());
+                int height = Integer.parseInt(resolution.substring(x + 1).trim());
+                return Math.min(width, 0xFFFF) << 16 | Math.min(height, 0xFFFF);
+            } catch (RuntimeException e) {
+                return 0;
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, 0xFFFF);
+            out.writeShort(length);
+            out.write(bytes, 0, length);
+        }
+
+        private static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException {
+            pad(out);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(values[i]);
+            }
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+            pad(out);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(values[i]);
+            }
+        }
+
+        private static void pad(DataOutputStream out) throws IOException {
+            while (out.size() % 8 != 0) {
+                out.writeByte(0);
+            }
+        }
+    }
+}
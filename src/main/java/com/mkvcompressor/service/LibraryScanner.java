@@ -0,0 +1,212 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.JobOrder;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Finds every MKV file below a library root, analyzes it and orders the
+ * resulting jobs by a {@link JobOrder} policy. Each directory is listed by
+ * its own task, so deep Show/Season/Episode trees are scanned in parallel.
+ */
+public class LibraryScanner {
+
+    /**
+     * A file found by the scan, with what is known about it
+     */
+    public static class Entry {
+        private final Path file;
+        private final long lastModified;
+        private final VideoFile videoFile; // null when analysis failed
+        private final long expectedSavings;
+
+        Entry(Path file, long lastModified, VideoFile videoFile, long expectedSavings) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.videoFile = videoFile;
+            this.expectedSavings = expectedSavings;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public VideoFile getVideoFile() {
+            return videoFile;
+        }
+
+        public long getExpectedSavings() {
+            return expectedSavings;
+        }
+
+        /**
+         * Encoding work in pixel-seconds, falling back to the file size when unknown
+         */
+        long getWork() {
+            if (videoFile == null) {
+                return Long.MAX_VALUE;
+            }
+            long pixels = DecisionEngine.pixelCount(videoFile.getResolution());
+            if (pixels <= 0 || videoFile.getDurationSeconds() <= 0) {
+                return videoFile.getOriginalSize();
+            }
+            return (long) (pixels * videoFile.getDurationSeconds());
+        }
+    }
+
+    private final VideoAnalyzer analyzer;
+    private final DecisionEngine decisionEngine = new DecisionEngine();
+    private final int parallelism;
+
+    public LibraryScanner(VideoAnalyzer analyzer) {
+        this(analyzer, Math.max(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param parallelism directories listed and files analyzed at the same time
+     */
+    public LibraryScanner(VideoAnalyzer analyzer, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.analyzer = analyzer;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Scans the tree below root and returns its MKV files in the order of the settings.
+     * Hidden directories and anything below exclude (e.g. the output folder) are skipped.
+     */
+    public List<Entry> scan(Path root, Path exclude, CompressionSettings settings) throws IOException {
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Not a directory: " + root);
+        }
+        Path normalizedExclude = exclude == null ? null : exclude.toAbsolutePath().normalize();
+        Queue<Entry> found = new ConcurrentLinkedQueue<>();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root.toAbsolutePath().normalize(), normalizedExclude, settings, found));
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Entry> entries = new ArrayList<>(found);
+        Collections.sort(entries, comparator(settings.getJobOrder()));
+        return entries;
+    }
+
+    /**
+     * Ties always fall back to the path, so the order is the same on every run
+     */
+    static Comparator<Entry> comparator(JobOrder order) {
+        Comparator<Entry> byPath = Comparator.comparing(Entry::getFile);
+        switch (order) {
+            case LARGEST_SAVINGS_FIRST:
+                return Comparator.comparingLong(Entry::getExpectedSavings).reversed().thenComparing(byPath);
+            case SHORTEST_FIRST:
+                return Comparator.comparingLong(Entry::getWork).thenComparing(byPath);
+            case OLDEST_FIRST:
+                return Comparator.comparingLong(Entry::getLastModified).thenComparing(byPath);
+            default:
+                return byPath;
+        }
+    }
+
+    /**
+     * Lists one directory; each file and subdirectory becomes a task of its own
+     */
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Path exclude;
+        private final CompressionSettings settings;
+        private final Queue<Entry> found;
+
+        DirectoryTask(Path dir, Path exclude, CompressionSettings settings, Queue<Entry> found) {
+            this.dir = dir;
+            this.exclude = exclude;
+            this.settings = settings;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            List<Long> modified = new ArrayList<>();
+
+            try {
+                // Depth 1: the directory's children are reported to visitFile, files and folders alike
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                        String name = path.getFileName().toString();
+                        if (attrs.isDirectory()) {
+                            if (!name.startsWith(".") && (exclude == null || !path.startsWith(exclude))) {
+                                subtasks.add(new DirectoryTask(path, exclude, settings, found));
+                            }
+                        } else if (attrs.isRegularFile() && name.toLowerCase().endsWith(".mkv")) {
+                            files.add(path);
+                            modified.add(attrs.lastModifiedTime().toMillis());
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path path, IOException e) {
+                        System.err.println("Warning: cannot read " + path + ": " + e.getMessage());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Warning: cannot scan " + dir + ": " + e.getMessage());
+                return;
+            }
+
+            // Analysis reads only the file headers, so files of one folder run in parallel too
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(subtasks);
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                long lastModified = modified.get(i);
+                tasks.add(ForkJoinTask.adapt(() -> found.add(analyze(file, lastModified, settings))));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private Entry analyze(Path file, long lastModified, CompressionSettings settings) {
+        try {
+            VideoFile videoFile = analyzer.analyzeVideo(file.toString(), false);
+            CompressionDecision decision = decisionEngine.decide(videoFile, settings);
+            return new Entry(file, lastModified, videoFile, decisionEngine.estimateSavings(videoFile, decision, settings));
+        } catch (Exception e) {
+            // Still scheduled, so the batch reports the failure for this file
+            return new Entry(file, lastModified, null, 0);
+        }
+    }
+}
@@ -0,0 +1,724 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Reads the Matroska (EBML) headers of an MKV file directly, without FFprobe.
+ * Only the start of the file and the elements referenced by the SeekHead
+ * are memory-mapped, so the cost does not grow with the file size.
+ */
+public class MatroskaParser {
+
+    // EBML / Matroska element IDs (with their length marker, as in the spec)
+    static final int EBML_HEADER = 0x1A45DFA3;
+    static final int DOC_TYPE = 0x4282;
+    static final int SEGMENT = 0x18538067;
+    static final int SEEK_HEAD = 0x114D9B74;
+    static final int SEEK = 0x4DBB;
+    static final int SEEK_ID = 0x53AB;
+    static final int SEEK_POSITION = 0x53AC;
+    static final int INFO = 0x1549A966;
+    static final int SEGMENT_UID = 0x73A4;
+    static final int TIMECODE_SCALE = 0x2AD7B1;
+    static final int DURATION = 0x4489;
+    static final int TRACKS = 0x1654AE6B;
+    static final int TRACK_ENTRY = 0xAE;
+    static final int TRACK_NUMBER = 0xD7;
+    static final int TRACK_TYPE = 0x83;
+    static final int TRACK_UID = 0x73C5;
+    static final int CODEC_ID = 0x86;
+    static final int LANGUAGE = 0x22B59C;
+    static final int LANGUAGE_BCP47 = 0x22B59D;
+    static final int NAME = 0x536E;
+    static final int FLAG_DEFAULT = 0x88;
+    static final int FLAG_FORCED = 0x55AA;
+    static final int DEFAULT_DURATION = 0x23E383;
+    static final int AUDIO = 0xE1;
+    static final int CHANNELS = 0x9F;
+    static final int VIDEO = 0xE0;
+    static final int PIXEL_WIDTH = 0xB0;
+    static final int PIXEL_HEIGHT = 0xBA;
+    static final int CUES = 0x1C53BB6B;
+    static final int CUE_POINT = 0xBB;
+    static final int CUE_TIME = 0xB3;
+    static final int CUE_TRACK_POSITIONS = 0xB7;
+    static final int CUE_TRACK = 0xF7;
+    static final int CLUSTER = 0x1F43B675;
+    static final int TAGS = 0x1254C367;
+    static final int TAG = 0x7373;
+    static final int TARGETS = 0x63C0;
+    static final int TAG_TRACK_UID = 0x63C5;
+    static final int SIMPLE_TAG = 0x67C8;
+    static final int TAG_NAME = 0x45A3;
+    static final int TAG_STRING = 0x4487;
+
+    private static final int TRACK_TYPE_VIDEO = 1;
+    private static final int TRACK_TYPE_AUDIO = 2;
+    private static final int TRACK_TYPE_SUBTITLE = 17;
+
+    private static final int HEAD_WINDOW_SIZE = 1024 * 1024; // Headers normally fit in the first MB
+    private static final int MAX_HEADER_LENGTH = 12; // 4-byte ID + 8-byte size
+    private static final long MAX_ELEMENT_SIZE = 16 * 1024 * 1024; // Guard against corrupt sizes
+
+    private static final Map<String, String> CODEC_NAMES = new HashMap<>();
+
+    static {
+        CODEC_NAMES.put("V_MPEG4/ISO/AVC", "H.264");
+        CODEC_NAMES.put("V_MPEGH/ISO/HEVC", "H.265");
+        CODEC_NAMES.put("V_AV1", "AV1");
+        CODEC_NAMES.put("V_VP8", "VP8");
+        CODEC_NAMES.put("V_VP9", "VP9");
+        CODEC_NAMES.put("V_MPEG2", "MPEG-2");
+        CODEC_NAMES.put("V_MPEG4/ISO/ASP", "MPEG-4");
+        CODEC_NAMES.put("A_AAC", "AAC");
+        CODEC_NAMES.put("A_AC3", "AC3");
+        CODEC_NAMES.put("A_EAC3", "E-AC3");
+        CODEC_NAMES.put("A_DTS", "DTS");
+        CODEC_NAMES.put("A_TRUEHD", "TrueHD");
+        CODEC_NAMES.put("A_FLAC", "FLAC");
+        CODEC_NAMES.put("A_OPUS", "Opus");
+        CODEC_NAMES.put("A_VORBIS", "Vorbis");
+        CODEC_NAMES.put("A_MPEG/L3", "MP3");
+        CODEC_NAMES.put("S_TEXT/UTF8", "SRT");
+        CODEC_NAMES.put("S_TEXT/ASS", "ASS");
+        CODEC_NAMES.put("S_TEXT/SSA", "SSA");
+        CODEC_NAMES.put("S_TEXT/WEBVTT", "WebVTT");
+        CODEC_NAMES.put("S_HDMV/PGS", "PGS");
+        CODEC_NAMES.put("S_VOBSUB", "VobSub");
+    }
+
+    /**
+     * Fills the video file with codec, resolution, duration and track information.
+     * Throws IOException when the file is not a Matroska file this parser understands.
+     */
+    public void parse(VideoFile videoFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(videoFile.getFilePath()), StandardOpenOption.READ)) {
+            Map<Integer, Long> positions = readLayout(channel);
+
+            Long infoPosition = positions.get(INFO);
+            Long tracksPosition = positions.get(TRACKS);
+            if (tracksPosition == null) {
+                throw new IOException("Tracks element not found");
+            }
+
+            if (infoPosition != null) {
+                MappedElement info = mapElement(channel, infoPosition);
+                readInfo(info, videoFile);
+            }
+            MappedElement tracks = mapElement(channel, tracksPosition);
+            Map<Long, StreamInfo> streamsByUid = readTracks(tracks, videoFile);
+
+            if (videoFile.getVideoCodec() == null) {
+                throw new IOException("No video track found");
+            }
+            Long tagsPosition = positions.get(TAGS);
+            if (tagsPosition != null) {
+                try {
+                    readTrackStatistics(mapElement(channel, tagsPosition), streamsByUid);
+                } catch (IOException e) {
+                    // The statistics only refine the bit rates; the file is still usable without them
+                }
+            }
+            // Matroska has no overall bit rate field, so derive it from size and duration
+            if (videoFile.getDurationSeconds() > 0) {
+                videoFile.setBitRate((long) (channel.size() * 8 / videoFile.getDurationSeconds()));
+            }
+        }
+    }
+
+    /**
+     * Reads the keyframe timestamps (in seconds) of the main video track from the Cues index.
+     * Throws IOException when the file has no usable Cues.
+     */
+    public List<Double> readKeyframeTimes(String filePath) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            Map<Integer, Long> positions = readLayout(channel);
+            Long cuesPosition = positions.get(CUES);
+            Long tracksPosition = positions.get(TRACKS);
+            if (cuesPosition == null || tracksPosition == null) {
+                throw new IOException("Cues element not found");
+            }
+
+            long timecodeScale = 1_000_000;
+            if (positions.get(INFO) != null) {
+                timecodeScale = readInfo(mapElement(channel, positions.get(INFO)), new VideoFile(filePath));
+            }
+            long videoTrack = findVideoTrackNumber(mapElement(channel, tracksPosition));
+
+            MappedElement cues = mapElement(channel, cuesPosition);
+            ByteBuffer buf = cues.buffer;
+            List<Double> times = new ArrayList<>();
+            int pos = cues.relative(cues.element.dataOffset);
+            int end = cues.relative(cues.element.end());
+            while (pos < end) {
+                Element cuePoint = readElement(buf, cues.bufferOffset, pos);
+                if (cuePoint == null || cuePoint.size < 0) break;
+                if (cuePoint.id == CUE_POINT) {
+                    long time = -1;
+                    boolean videoCue = false;
+                    int childPos = cues.relative(cuePoint.dataOffset);
+                    int childEnd = cues.relative(cuePoint.end());
+                    while (childPos < childEnd) {
+                        Element child = readElement(buf, cues.bufferOffset, childPos);
+                        if (child == null || child.size < 0) break;
+                        if (child.id == CUE_TIME) {
+                            time = readUnsigned(buf, cues.relative(child.dataOffset), (int) child.size);
+                        } else if (child.id == CUE_TRACK_POSITIONS) {
+                            videoCue |= readCueTrack(cues, child) == videoTrack;
+                        }
+                        childPos = cues.relative(child.end());
+                    }
+                    if (time >= 0 && videoCue) {
+                        times.add(time * timecodeScale / 1_000_000_000.0);
+                    }
+                }
+                pos = cues.relative(cuePoint.end());
+            }
+
+            if (times.isEmpty()) {
+                throw new IOException("No video cue points found");
+            }
+            times.sort(null);
+            return times;
+        }
+    }
+
+    /**
+     * Validates the EBML header and returns the offsets of the Segment's level-1 elements
+     */
+    private Map<Integer, Long> readLayout(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, HEAD_WINDOW_SIZE));
+
+        Element ebml = readElement(head, 0, 0);
+        if (ebml == null || ebml.id != EBML_HEADER) {
+            throw new IOException("Missing EBML header");
+        }
+        String docType = findString(head, ebml, DOC_TYPE);
+        if (!"matroska".equals(docType) && !"webm".equals(docType)) {
+            throw new IOException("Unsupported EBML document type: " + docType);
+        }
+
+        Element segment = readElement(head, 0, (int) ebml.end());
+        if (segment == null || segment.id != SEGMENT) {
+            throw new IOException("Missing Matroska segment");
+        }
+        return locateTopLevelElements(channel, head, segment);
+    }
+
+    /**
+     * Finds the absolute offsets of the level-1 elements, from the SeekHead
+     * when present and from a scan of the elements that precede the first Cluster
+     */
+    private Map<Integer, Long> locateTopLevelElements(FileChannel channel, ByteBuffer head, Element segment)
+            throws IOException {
+        Map<Integer, Long> positions = new HashMap<>();
+        long segmentStart = segment.dataOffset;
+        long segmentEnd = segment.size < 0 ? channel.size() : Math.min(segment.end(), channel.size());
+
+        long position = segmentStart;
+        while (position + MAX_HEADER_LENGTH <= head.limit() && position < segmentEnd) {
+            Element child = readElement(head, 0, (int) position);
+            if (child == null || child.id == CLUSTER || child.size < 0) {
+                break;
+            }
+            positions.putIfAbsent(child.id, position);
+
+            if (child.id == SEEK_HEAD) {
+                MappedElement seekHead = child.end() <= head.limit()
+                        ? new MappedElement(child, head, 0)
+                        : mapElement(channel, position);
+                readSeekHead(seekHead, segmentStart, positions);
+            }
+            position = child.end();
+        }
+        return positions;
+    }
+
+    private void readSeekHead(MappedElement seekHead, long segmentStart, Map<Integer, Long> positions) {
+        ByteBuffer buf = seekHead.buffer;
+        int pos = seekHead.relative(seekHead.element.dataOffset);
+        int end = seekHead.relative(seekHead.element.end());
+        while (pos < end) {
+            Element seek = readElement(buf, seekHead.bufferOffset, pos);
+            if (seek == null || seek.size < 0) break;
+            if (seek.id == SEEK) {
+                Integer seekId = null;
+                Long seekPosition = null;
+                int childPos = seekHead.relative(seek.dataOffset);
+                int childEnd = seekHead.relative(seek.end());
+                while (childPos < childEnd) {
+                    Element child = readElement(buf, seekHead.bufferOffset, childPos);
+                    if (child == null || child.size < 0) break;
+                    int dataPos = seekHead.relative(child.dataOffset);
+                    if (child.id == SEEK_ID) {
+                        seekId = (int) readUnsigned(buf, dataPos, (int) child.size);
+                    } else if (child.id == SEEK_POSITION) {
+                        seekPosition = readUnsigned(buf, dataPos, (int) child.size);
+                    }
+                    childPos = seekHead.relative(child.end());
+                }
+                if (seekId != null && seekPosition != null) {
+                    positions.putIfAbsent(seekId, segmentStart + seekPosition);
+                }
+            }
+            pos = seekHead.relative(seek.end());
+        }
+    }
+
+    /**
+     * Reads the segment duration and UID into the video file and returns the timecode scale
+     */
+    private long readInfo(MappedElement info, VideoFile videoFile) {
+        ByteBuffer buf = info.buffer;
+        long timecodeScale = 1_000_000; // Default: 1 ms per tick
+        double duration = 0;
+
+        int pos = info.relative(info.element.dataOffset);
+        int end = info.relative(info.element.end());
+        while (pos < end) {
+            Element child = readElement(buf, info.bufferOffset, pos);
+            if (child == null || child.size < 0) break;
+            int dataPos = info.relative(child.dataOffset);
+            if (child.id == TIMECODE_SCALE) {
+                timecodeScale = readUnsigned(buf, dataPos, (int) child.size);
+            } else if (child.id == DURATION) {
+                duration = readFloat(buf, dataPos, (int) child.size);
+            } else if (child.id == SEGMENT_UID && child.size == 16 && dataPos + 16 <= buf.limit()) {
+                StringBuilder uid = new StringBuilder(32);
+                for (int i = 0; i < 16; i++) {
+                    uid.append(String.format("%02x", buf.get(dataPos + i) & 0xFF));
+                }
+                videoFile.setSegmentUid(uid.toString());
+            }
+            pos = info.relative(child.end());
+        }
+
+        if (duration > 0) {
+            videoFile.setDurationSeconds(duration * timecodeScale / 1_000_000_000.0);
+        }
+        return timecodeScale;
+    }
+
+    /**
+     * Reads every track entry and returns the streams by TrackUID
+     */
+    private Map<Long, StreamInfo> readTracks(MappedElement tracks, VideoFile videoFile) {
+        Map<Long, StreamInfo> streamsByUid = new HashMap<>();
+        ByteBuffer buf = tracks.buffer;
+        int pos = tracks.relative(tracks.element.dataOffset);
+        int end = tracks.relative(tracks.element.end());
+        while (pos < end) {
+            Element entry = readElement(buf, tracks.bufferOffset, pos);
+            if (entry == null || entry.size < 0) break;
+            if (entry.id == TRACK_ENTRY) {
+                readTrackEntry(tracks, entry, videoFile, streamsByUid);
+            }
+            pos = tracks.relative(entry.end());
+        }
+        return streamsByUid;
+    }
+
+    /**
+     * Applies the "BPS" statistics tags (written by mkvmerge) to the streams they target
+     */
+    private void readTrackStatistics(MappedElement tags, Map<Long, StreamInfo> streamsByUid) {
+        ByteBuffer buf = tags.buffer;
+        int pos = tags.relative(tags.element.dataOffset);
+        int end = tags.relative(tags.element.end());
+        while (pos < end) {
+            Element tag = readElement(buf, tags.bufferOffset, pos);
+            if (tag == null || tag.size < 0) break;
+            if (tag.id == TAG) {
+                List<Long> trackUids = new ArrayList<>();
+                long bitRate = 0;
+                int childPos = tags.relative(tag.dataOffset);
+                int childEnd = tags.relative(tag.end());
+                while (childPos < childEnd) {
+                    Element child = readElement(buf, tags.bufferOffset, childPos);
+                    if (child == null || child.size < 0) break;
+                    if (child.id == TARGETS) {
+                        forEachChild(tags, child, TAG_TRACK_UID, uid ->
+                                trackUids.add(readUnsigned(buf, tags.relative(uid.dataOffset), (int) uid.size)));
+                    } else if (child.id == SIMPLE_TAG) {
+                        int dataPos = tags.relative(child.dataOffset);
+                        int dataEnd = tags.relative(child.end());
+                        if ("BPS".equals(findString(buf, tags.bufferOffset, dataPos, dataEnd, TAG_NAME))) {
+                            String value = findString(buf, tags.bufferOffset, dataPos, dataEnd, TAG_STRING);
+                            bitRate = FFprobeJsonParser.parseBitRate(value);
+                        }
+                    }
+                    childPos = tags.relative(child.end());
+                }
+                for (Long uid : trackUids) {
+                    StreamInfo stream = streamsByUid.get(uid);
+                    if (stream != null && bitRate > 0) {
+                        stream.setBitRate(bitRate);
+                    }
+                }
+            }
+            pos = tags.relative(tag.end());
+        }
+    }
+
+    private void forEachChild(MappedElement mapped, Element parent, int id, Consumer<Element> action) {
+        int pos = mapped.relative(parent.dataOffset);
+        int end = mapped.relative(parent.end());
+        while (pos < end) {
+            Element child = readElement(mapped.buffer, mapped.bufferOffset, pos);
+            if (child == null || child.size < 0) break;
+            if (child.id == id) {
+                action.accept(child);
+            }
+            pos = mapped.relative(child.end());
+        }
+    }
+
+    private long findVideoTrackNumber(MappedElement tracks) throws IOException {
+        ByteBuffer buf = tracks.buffer;
+        int pos = tracks.relative(tracks.element.dataOffset);
+        int end = tracks.relative(tracks.element.end());
+        while (pos < end) {
+            Element entry = readElement(buf, tracks.bufferOffset, pos);
+            if (entry == null || entry.size < 0) break;
+            if (entry.id == TRACK_ENTRY) {
+                long number = -1;
+                long type = 0;
+                int childPos = tracks.relative(entry.dataOffset);
+                int childEnd = tracks.relative(entry.end());
+                while (childPos < childEnd) {
+                    Element child = readElement(buf, tracks.bufferOffset, childPos);
+                    if (child == null || child.size < 0) break;
+                    if (child.id == TRACK_NUMBER) {
+                        number = readUnsigned(buf, tracks.relative(child.dataOffset), (int) child.size);
+                    } else if (child.id == TRACK_TYPE) {
+                        type = readUnsigned(buf, tracks.relative(child.dataOffset), (int) child.size);
+                    }
+                    childPos = tracks.relative(child.end());
+                }
+                if (type == TRACK_TYPE_VIDEO && number >= 0) {
+                    return number;
+                }
+            }
+            pos = tracks.relative(entry.end());
+        }
+        throw new IOException("No video track found");
+    }
+
+    private long readCueTrack(MappedElement cues, Element trackPositions) {
+        ByteBuffer buf = cues.buffer;
+        int pos = cues.relative(trackPositions.dataOffset);
+        int end = cues.relative(trackPositions.end());
+        while (pos < end) {
+            Element child = readElement(buf, cues.bufferOffset, pos);
+            if (child == null || child.size < 0) break;
+            if (child.id == CUE_TRACK) {
+                return readUnsigned(buf, cues.relative(child.dataOffset), (int) child.size);
+            }
+            pos = cues.relative(child.end());
+        }
+        return -1;
+    }
+
+    private void readTrackEntry(MappedElement tracks, Element entry, VideoFile videoFile,
+                                Map<Long, StreamInfo> streamsByUid) {
+        ByteBuffer buf = tracks.buffer;
+        int type = 0;
+        long uid = 0;
+        String codecId = null;
+        String language = "eng"; // Matroska default when the element is absent
+        String languageBcp47 = null;
+        String title = null;
+        boolean defaultTrack = true; // FlagDefault defaults to 1
+        boolean forced = false;
+        long defaultDuration = 0;
+        long width = 0;
+        long height = 0;
+        int channels = 0;
+
+        int pos = tracks.relative(entry.dataOffset);
+        int end = tracks.relative(entry.end());
+        while (pos < end) {
+            Element child = readElement(buf, tracks.bufferOffset, pos);
+            if (child == null || child.size < 0) break;
+            int dataPos = tracks.relative(child.dataOffset);
+            switch (child.id) {
+                case TRACK_TYPE:
+                    type = (int) readUnsigned(buf, dataPos, (int) child.size);
+                    break;
+                case TRACK_UID:
+                    uid = readUnsigned(buf, dataPos, (int) child.size);
+                    break;
+                case CODEC_ID:
+                    codecId = readString(buf, dataPos, (int) child.size);
+                    break;
+                case LANGUAGE:
+                    language = readString(buf, dataPos, (int) child.size);
+                    break;
+                case LANGUAGE_BCP47:
+                    languageBcp47 = readString(buf, dataPos, (int) child.size);
+                    break;
+                case NAME:
+                    title = readString(buf, dataPos, (int) child.size);
+                    break;
+                case FLAG_DEFAULT:
+                    defaultTrack = readUnsigned(buf, dataPos, (int) child.size) != 0;
+                    break;
+                case FLAG_FORCED:
+                    forced = readUnsigned(buf, dataPos, (int) child.size) != 0;
+                    break;
+                case DEFAULT_DURATION:
+                    defaultDuration = readUnsigned(buf, dataPos, (int) child.size);
+                    break;
+                case VIDEO:
+                    int videoPos = dataPos;
+                    int videoEnd = tracks.relative(child.end());
+                    while (videoPos < videoEnd) {
+                        Element videoChild = readElement(buf, tracks.bufferOffset, videoPos);
+                        if (videoChild == null || videoChild.size < 0) break;
+                        int videoDataPos = tracks.relative(videoChild.dataOffset);
+                        if (videoChild.id == PIXEL_WIDTH) {
+                            width = readUnsigned(buf, videoDataPos, (int) videoChild.size);
+                        } else if (videoChild.id == PIXEL_HEIGHT) {
+                            height = readUnsigned(buf, videoDataPos, (int) videoChild.size);
+                        }
+                        videoPos = tracks.relative(videoChild.end());
+                    }
+                    break;
+                case AUDIO:
+                    int audioPos = dataPos;
+                    int audioEnd = tracks.relative(child.end());
+                    while (audioPos < audioEnd) {
+                        Element audioChild = readElement(buf, tracks.bufferOffset, audioPos);
+                        if (audioChild == null || audioChild.size < 0) break;
+                        if (audioChild.id == CHANNELS) {
+                            channels = (int) readUnsigned(buf, tracks.relative(audioChild.dataOffset),
+                                    (int) audioChild.size);
+                        }
+                        audioPos = tracks.relative(audioChild.end());
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos = tracks.relative(child.end());
+        }
+
+        String codec = codecName(codecId);
+        String languageCode = languageBcp47 != null ? languageBcp47 : language;
+        String languageName = languageName(languageCode);
+        String streamType;
+        switch (type) {
+            case TRACK_TYPE_VIDEO:
+                streamType = StreamInfo.TYPE_VIDEO;
+                // Only the first video track describes the main video
+                if (videoFile.getVideoCodec() == null) {
+                    videoFile.setVideoCodec(codec);
+                    if (width > 0 && height > 0) {
+                        videoFile.setResolution(width + "x" + height);
+                    }
+                    if (defaultDuration > 0) {
+                        videoFile.setFrameRate(1_000_000_000.0 / defaultDuration);
+                    }
+                }
+                break;
+            case TRACK_TYPE_AUDIO:
+                streamType = StreamInfo.TYPE_AUDIO;
+                videoFile.addAudioTrack(codec + " - " + languageName);
+                break;
+            case TRACK_TYPE_SUBTITLE:
+                streamType = StreamInfo.TYPE_SUBTITLE;
+                videoFile.addSubtitleTrack(codec + " - " + languageName);
+                break;
+            default:
+                streamType = "data";
+        }
+
+        // Matroska tracks map to FFmpeg streams in file order
+        StreamInfo stream = new StreamInfo(videoFile.getStreams().size(), streamType, codec);
+        stream.setLanguage(languageCode);
+        stream.setTitle(title);
+        stream.setDefaultTrack(defaultTrack);
+        stream.setForced(forced);
+        stream.setChannels(channels);
+        videoFile.addStream(stream);
+        if (uid != 0) {
+            streamsByUid.put(uid, stream);
+        }
+    }
+
+    /**
+     * Maps a single element (header and data) starting at an absolute file offset
+     */
+    private MappedElement mapElement(FileChannel channel, long position) throws IOException {
+        long fileSize = channel.size();
+        if (position >= fileSize) {
+            throw new IOException("Element offset beyond end of file: " + position);
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(MAX_HEADER_LENGTH, fileSize - position));
+        Element element = readElement(header, position, 0);
+        if (element == null || element.size < 0 || element.size > MAX_ELEMENT_SIZE) {
+            throw new IOException("Invalid element at offset " + position);
+        }
+        if (element.end() > fileSize) {
+            // A partial header element would silently lose tracks or cue points
+            throw new IOException("Truncated element at offset " + position);
+        }
+        long length = element.end() - position;
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        return new MappedElement(element, buffer, position);
+    }
+
+    /**
+     * Reads an element header at a buffer position. Returns null when the header is truncated.
+     */
+    static Element readElement(ByteBuffer buf, long bufferOffset, int pos) {
+        if (pos >= buf.limit()) return null;
+        int idLength = vintLength(buf.get(pos));
+        if (idLength == 0 || idLength > 4 || pos + idLength > buf.limit()) return null;
+        int id = (int) readUnsigned(buf, pos, idLength);
+
+        int sizePos = pos + idLength;
+        if (sizePos >= buf.limit()) return null;
+        int sizeLength = vintLength(buf.get(sizePos));
+        if (sizeLength == 0 || sizePos + sizeLength > buf.limit()) return null;
+
+        // Drop the length marker bit; all data bits set means "unknown size"
+        long size = readUnsigned(buf, sizePos, sizeLength) & ~(1L << (7 * sizeLength));
+        if (size == (1L << (7 * sizeLength)) - 1) {
+            size = -1;
+        }
+        return new Element(id, bufferOffset + sizePos + sizeLength, size);
+    }
+
+    private static int vintLength(byte first) {
+        int value = first & 0xFF;
+        if (value == 0) return 0;
+        return Integer.numberOfLeadingZeros(value) - 23;
+    }
+
+    static long readUnsigned(ByteBuffer buf, int pos, int length) {
+        long value = 0;
+        for (int i = 0; i < length && pos + i < buf.limit(); i++) {
+            value = (value << 8) | (buf.get(pos + i) & 0xFF);
+        }
+        return value;
+    }
+
+    private static double readFloat(ByteBuffer buf, int pos, int length) {
+        if (pos + length > buf.limit()) return 0;
+        if (length == 4) return buf.getFloat(pos);
+        if (length == 8) return buf.getDouble(pos);
+        return 0;
+    }
+
+    static String readString(ByteBuffer buf, int pos, int length) {
+        int available = Math.max(0, Math.min(length, buf.limit() - pos));
+        byte[] bytes = new byte[available];
+        for (int i = 0; i < available; i++) {
+            bytes[i] = buf.get(pos + i);
+        }
+        // Strings may be padded with trailing zero bytes
+        int end = available;
+        while (end > 0 && bytes[end - 1] == 0) end--;
+        return new String(bytes, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private static String findString(ByteBuffer buf, Element parent, int id) {
+        return findString(buf, 0, (int) parent.dataOffset, (int) Math.min(parent.end(), buf.limit()), id);
+    }
+
+    /**
+     * Finds the first string child with the given ID between two buffer positions
+     */
+    private static String findString(ByteBuffer buf, long bufferOffset, int pos, int end, int id) {
+        while (pos < end) {
+            Element child = readElement(buf, bufferOffset, pos);
+            if (child == null || child.size < 0) break;
+            int dataPos = (int) (child.dataOffset - bufferOffset);
+            if (child.id == id) {
+                return readString(buf, dataPos, (int) child.size);
+            }
+            pos = (int) Math.min(child.end() - bufferOffset, buf.limit());
+        }
+        return null;
+    }
+
+    /**
+     * Converts a Matroska codec ID (e.g. "V_MPEGH/ISO/HEVC") to a readable name
+     */
+    static String codecName(String codecId) {
+        if (codecId == null) return "Unknown";
+        String name = CODEC_NAMES.get(codecId);
+        if (name != null) return name;
+        // Some codec IDs carry a profile suffix, e.g. "A_AAC/MPEG4/LC"
+        int slash = codecId.indexOf('/');
+        if (slash > 0 && CODEC_NAMES.containsKey(codecId.substring(0, slash))) {
+            return CODEC_NAMES.get(codecId.substring(0, slash));
+        }
+        return codecId.length() > 2 && codecId.charAt(1) == '_' ? codecId.substring(2) : codecId;
+    }
+
+    /**
+     * Converts an ISO 639-2 or BCP 47 language code to its English name
+     */
+    static String languageName(String code) {
+        if (code == null || code.isEmpty() || "und".equals(code)) return "Unknown";
+        Locale locale = Locale.forLanguageTag(code);
+        String name = locale.getDisplayLanguage(Locale.ENGLISH);
+        return name.isEmpty() ? code : name;
+    }
+
+    /**
+     * Header of an EBML element: its ID and where its data lives in the file
+     */
+    static final class Element {
+        final int id;
+        final long dataOffset;
+        final long size; // -1 when unknown
+
+        Element(int id, long dataOffset, long size) {
+            this.id = id;
+            this.dataOffset = dataOffset;
+            this.size = size;
+        }
+
+        long end() {
+            return dataOffset + size;
+        }
+    }
+
+    /**
+     * An element together with the mapped buffer that contains it
+     */
+    private static final class MappedElement {
+        final Element element;
+        final ByteBuffer buffer;
+        final long bufferOffset; // File offset of buffer position 0
+
+        MappedElement(Element element, ByteBuffer buffer, long bufferOffset) {
+            this.element = element;
+            this.buffer = buffer;
+            this.bufferOffset = bufferOffset;
+        }
+
+        int relative(long absolute) {
+            return (int) Math.min(absolute - bufferOffset, buffer.limit());
+        }
+    }
+}
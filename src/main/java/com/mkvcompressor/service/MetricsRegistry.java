@@ -0,0 +1,255 @@
+package com.mkvcompressor.service;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide counters, gauges and histograms, written out in the
+ * Prometheus text exposition format. Recording a value is lock-free,
+ * so the encode and progress paths can update metrics freely.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    /**
+     * Default buckets for latencies, in seconds
+     */
+    public static final double[] LATENCY_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30};
+
+    /**
+     * Counter that only goes up
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Value that can go up and down
+     */
+    public static final class Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void dec() {
+            value.decrementAndGet();
+        }
+
+        public void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Distribution of observed values over fixed buckets
+     */
+    public static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Records the seconds elapsed since a System.nanoTime() start
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * All series sharing one metric name; series are keyed by their label text
+     */
+    private static final class Family {
+        final String type;
+        final String help;
+        final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Registry shared by the whole application
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the counter for the name and label pairs, creating it on first use
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) series(name, "counter", help, labels, () -> new Counter());
+    }
+
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) series(name, "gauge", help, labels, () -> new Gauge());
+    }
+
+    /**
+     * Registers a gauge whose value is read only when metrics are scraped.
+     * A later registration under the same name replaces the supplier, so the
+     * gauge follows the newest owner (e.g. the governor of the latest compressor).
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        Object previous = family(name, "gauge", help).series.put(labelText(new String[0]), supplier);
+        if (previous != null && !(previous instanceof DoubleSupplier)) {
+            throw new IllegalArgumentException(name + " is already registered as a settable gauge");
+        }
+    }
+
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) series(name, "histogram", help, labels, () -> new Histogram(buckets));
+    }
+
+    private Object series(String name, String type, String help, String[] labels,
+                          Supplier<Object> factory) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        return family(name, type, help).series.computeIfAbsent(labelText(labels), key -> factory.get());
+    }
+
+    private Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format (version 0.0.4)
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, Family> sorted = new ConcurrentSkipListMap<>(families);
+        for (Map.Entry<String, Family> entry : sorted.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    sample(out, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof Gauge) {
+                    sample(out, name, labels, ((Gauge) metric).get());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(out, name, labels, ((DoubleSupplier) metric).getAsDouble());
+                } else if (metric instanceof Histogram) {
+                    formatHistogram(out, name, labels, (Histogram) metric);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static void formatHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bounds.length; i++) {
+            cumulative += histogram.buckets[i].sum();
+            sample(out, name + "_bucket", withLabel(labels, "le", number(histogram.bounds[i])), cumulative);
+        }
+        long count = histogram.count.sum();
+        sample(out, name + "_bucket", withLabel(labels, "le", "+Inf"), count);
+        sample(out, name + "_sum", labels, histogram.sum.sum());
+        sample(out, name + "_count", labels, count);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ').append(number(value)).append('\n');
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.ROOT, "%s", value);
+    }
+
+    private static String labelText(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        if (labels.isEmpty()) {
+            return "{" + label + "}";
+        }
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
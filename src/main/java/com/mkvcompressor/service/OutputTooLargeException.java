@@ -0,0 +1,34 @@
+package com.mkvcompressor.service;
+
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Thrown when an encode is stopped early because its output is on course
+ * to end up about as large as the source, or larger
+ */
+public class OutputTooLargeException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long projectedBytes;
+    private final double percent;
+
+    public OutputTooLargeException(long projectedBytes, long originalBytes, double percent, double ratio) {
+        super(String.format("output projected at %s after %.0f%%, above %.0f%% of the %s source",
+                VideoFile.formatFileSize(projectedBytes), percent, ratio * 100,
+                VideoFile.formatFileSize(originalBytes)));
+        this.projectedBytes = projectedBytes;
+        this.percent = percent;
+    }
+
+    public long getProjectedBytes() {
+        return projectedBytes;
+    }
+
+    /**
+     * How far the encode got before it was stopped
+     */
+    public double getPercent() {
+        return percent;
+    }
+}
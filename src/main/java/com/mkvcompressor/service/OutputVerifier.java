@@ -0,0 +1,136 @@
+package com.mkvcompressor.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Checks a finished output without decoding all of it: the stream layout and
+ * duration must match the source, and a few short windows spread over the file
+ * are decoded and scored against the source (SSIM or PSNR) in parallel.
+ * The windows catch corrupt or badly broken encodes at a small fraction of
+ * the cost of a full comparison.
+ */
+public class OutputVerifier {
+
+    private static final double DURATION_TOLERANCE_SECONDS = 1.0;
+    private static final double DURATION_TOLERANCE_FRACTION = 0.01;
+
+    private final VideoAnalyzer analyzer;
+    private final QualityMeter qualityMeter = new QualityMeter();
+
+    public OutputVerifier(VideoAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Verifies outputPath against the source; throws with every problem found.
+     * With copiedVideo the video stream was not re-encoded, so only the layout is checked.
+     */
+    public void verify(VideoFile source, String outputPath, boolean copiedVideo,
+                       CompressionSettings settings) throws Exception {
+        long startNanos = System.nanoTime();
+        VideoFile output = analyzer.analyzeContainer(outputPath);
+        List<String> problems = checkLayout(source, output, settings);
+
+        if (problems.isEmpty() && !copiedVideo && settings.getVerifySamples() > 0
+                && source.getDurationSeconds() > settings.getVerifySampleSeconds()) {
+            problems.addAll(checkSamples(source, outputPath, settings));
+        }
+
+        EncodeMetrics.verifications(problems.isEmpty()).inc();
+        if (!problems.isEmpty()) {
+            throw new Exception("Output verification failed: " + String.join("; ", problems));
+        }
+        System.out.printf(Locale.ROOT, "Output verified in %.1f s%n", (System.nanoTime() - startNanos) / 1e9);
+    }
+
+    /**
+     * Stream counts and duration, as far as the settings promise to keep them
+     */
+    static List<String> checkLayout(VideoFile source, VideoFile output, CompressionSettings settings) {
+        List<String> problems = new ArrayList<>();
+        compareCount(problems, "video", count(source, StreamInfo.TYPE_VIDEO), count(output, StreamInfo.TYPE_VIDEO));
+        // Every audio track is kept, copied or converted to AAC one by one
+        compareCount(problems, "audio", count(source, StreamInfo.TYPE_AUDIO), count(output, StreamInfo.TYPE_AUDIO));
+        if (settings.isKeepAllSubtitles()) {
+            compareCount(problems, "subtitle", count(source, StreamInfo.TYPE_SUBTITLE),
+                    count(output, StreamInfo.TYPE_SUBTITLE));
+        }
+
+        double expected = source.getDurationSeconds();
+        double actual = output.getDurationSeconds();
+        if (expected > 0) {
+            double tolerance = Math.max(DURATION_TOLERANCE_SECONDS, expected * DURATION_TOLERANCE_FRACTION);
+            if (actual <= 0 || Math.abs(actual - expected) > tolerance) {
+                problems.add(String.format(Locale.ROOT, "duration %.1f s, source %.1f s", actual, expected));
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Scores the sampled windows in parallel and reports the ones below the minimum
+     */
+    private List<String> checkSamples(VideoFile source, String outputPath, CompressionSettings settings)
+            throws Exception {
+        String metric = settings.getVerifyMetric();
+        int length = settings.getVerifySampleSeconds();
+        List<Double> starts = CrfSearch.sampleStarts(source.getDurationSeconds(), settings.getVerifySamples(), length);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(starts.size(),
+                settings.getSegmentParallelism()));
+        List<String> problems = new ArrayList<>();
+        try {
+            List<Future<Double>> scores = new ArrayList<>();
+            for (double start : starts) {
+                scores.add(executor.submit(() ->
+                        qualityMeter.measure(outputPath, start, source.getFilePath(), start, length, metric)));
+            }
+            StringBuilder summary = new StringBuilder();
+            for (int i = 0; i < starts.size(); i++) {
+                double score;
+                try {
+                    score = scores.get(i).get();
+                } catch (ExecutionException e) {
+                    problems.add(String.format(Locale.ROOT, "window at %.0f s not decodable (%s)",
+                            starts.get(i), e.getCause().getMessage()));
+                    continue;
+                }
+                summary.append(String.format(Locale.ROOT, " %.4f", score));
+                if (score < settings.getVerifyMinScore()) {
+                    problems.add(String.format(Locale.ROOT, "%s %.4f at %.0f s is below %s",
+                            metric.toUpperCase(Locale.ROOT), score, starts.get(i), settings.getVerifyMinScore()));
+                }
+            }
+            System.out.println("Verify " + metric.toUpperCase(Locale.ROOT) + ":" + summary);
+        } finally {
+            executor.shutdownNow();
+        }
+        return problems;
+    }
+
+    private static void compareCount(List<String> problems, String type, int expected, int actual) {
+        if (expected != actual) {
+            problems.add(actual + " " + type + " streams, source has " + expected);
+        }
+    }
+
+    private static int count(VideoFile videoFile, String type) {
+        int count = 0;
+        for (StreamInfo stream : videoFile.getStreams()) {
+            if (type.equals(stream.getType())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,65 @@
+package com.mkvcompressor.service;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Runs helper FFmpeg/FFprobe processes that don't need progress tracking
+ */
+final class ProcessRunner {
+
+    private static final int ERROR_LINES_KEPT = 5;
+
+    private ProcessRunner() {
+    }
+
+    /**
+     * Runs a command and fails with its last output lines if it exits with an error
+     */
+    static void run(List<String> command, String description) throws Exception {
+        run(command, description, line -> { });
+    }
+
+    /**
+     * Runs a command, passing each output line (stdout and stderr) to the consumer
+     */
+    static void run(List<String> command, String description, Consumer<String> lineConsumer) throws Exception {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        Process process = CompressionScope.start(processBuilder);
+
+        Deque<String> lastLines = new ArrayDeque<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineConsumer.accept(line);
+                if (lastLines.size() == ERROR_LINES_KEPT) {
+                    lastLines.removeFirst();
+                }
+                lastLines.addLast(line);
+            }
+        } catch (Exception e) {
+            process.destroyForcibly();
+            throw e;
+        }
+
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+        EncodeMetrics.recordExit(command.get(0), exitCode);
+        if (exitCode != 0) {
+            throw new Exception(description + " failed. Exit code: " + exitCode
+                    + (lastLines.isEmpty() ? "" : " - " + String.join(" | ", lastLines)));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.mkvcompressor.service;
+
+import com.mkvcompressor.model.ProgressEvent;
+
+/**
+ * Receives progress updates from a running compression.
+ * Called on the thread that reads the FFmpeg output, so implementations should return quickly.
+ */
+public interface ProgressListener {
+
+    void onProgress(ProgressEvent event);
+}
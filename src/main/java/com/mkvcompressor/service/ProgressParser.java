@@ -0,0 +1,173 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.mkvcompressor.model.ProgressEvent;
+
+/**
+ * Parses the key=value blocks FFmpeg writes with "-progress pipe:1".
+ * Works directly on a reused byte buffer: no regex, and no String per line.
+ * One ProgressEvent is produced for each block, which ends with a "progress=" line.
+ */
+public class ProgressParser {
+
+    private static final byte[] FRAME = key("frame");
+    private static final byte[] FPS = key("fps");
+    private static final byte[] BITRATE = key("bitrate");
+    private static final byte[] TOTAL_SIZE = key("total_size");
+    private static final byte[] OUT_TIME_US = key("out_time_us");
+    private static final byte[] SPEED = key("speed");
+    private static final byte[] PROGRESS = key("progress");
+    private static final byte[] END = key("end");
+
+    private final String inputPath;
+    private final double durationSeconds; // <= 0 when unknown
+    private final ProgressListener listener;
+    private final byte[] buffer = new byte[8192];
+    private final byte[] line = new byte[512];
+    private int lineLength;
+
+    private long frame;
+    private double fps;
+    private double bitrateKbps;
+    private long totalSize;
+    private long outTimeMicros;
+    private double speed;
+
+    public ProgressParser(String inputPath, double durationSeconds, ProgressListener listener) {
+        this.inputPath = inputPath;
+        this.durationSeconds = durationSeconds;
+        this.listener = listener;
+    }
+
+    /**
+     * Reads the stream until it ends, delivering one event per progress block
+     */
+    public void parse(InputStream input) throws IOException {
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            feed(buffer, 0, read);
+        }
+        if (lineLength > 0) {
+            parseLine(); // Last line without a newline
+            lineLength = 0;
+        }
+    }
+
+    /**
+     * Processes a chunk of output; lines may span chunks
+     */
+    public void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                parseLine();
+                lineLength = 0;
+            } else if (b != '\r' && lineLength < line.length) {
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private void parseLine() {
+        int equals = -1;
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == '=') {
+                equals = i;
+                break;
+            }
+        }
+        if (equals <= 0) {
+            return;
+        }
+
+        int valueStart = equals + 1;
+        if (keyEquals(FRAME, equals)) {
+            frame = parseLong(valueStart, frame);
+        } else if (keyEquals(FPS, equals)) {
+            fps = parseDouble(valueStart, fps);
+        } else if (keyEquals(BITRATE, equals)) {
+            bitrateKbps = parseDouble(valueStart, bitrateKbps); // "1234.5kbits/s", unit ignored
+        } else if (keyEquals(TOTAL_SIZE, equals)) {
+            totalSize = parseLong(valueStart, totalSize);
+        } else if (keyEquals(OUT_TIME_US, equals)) {
+            outTimeMicros = Math.max(0, parseLong(valueStart, outTimeMicros));
+        } else if (keyEquals(SPEED, equals)) {
+            speed = parseDouble(valueStart, speed); // "1.23x", suffix ignored
+        } else if (keyEquals(PROGRESS, equals)) {
+            boolean finished = valueEquals(END, valueStart);
+            double percent = -1;
+            if (durationSeconds > 0) {
+                percent = Math.min(100, Math.max(0, outTimeMicros / 10_000.0 / durationSeconds));
+                if (finished) {
+                    percent = 100;
+                }
+            }
+            listener.onProgress(new ProgressEvent(inputPath, frame, fps, outTimeMicros, bitrateKbps,
+                    speed, totalSize, percent, finished));
+        }
+    }
+
+    private boolean keyEquals(byte[] key, int keyLength) {
+        if (key.length != keyLength) return false;
+        for (int i = 0; i < keyLength; i++) {
+            if (line[i] != key[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean valueEquals(byte[] value, int start) {
+        if (lineLength - start != value.length) return false;
+        for (int i = 0; i < value.length; i++) {
+            if (line[start + i] != value[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses a leading integer; returns the previous value for "N/A"
+     */
+    private long parseLong(int start, long previous) {
+        int i = start;
+        boolean negative = i < lineLength && line[i] == '-';
+        if (negative) i++;
+        if (i >= lineLength || line[i] < '0' || line[i] > '9') return previous;
+        long value = 0;
+        while (i < lineLength && line[i] >= '0' && line[i] <= '9') {
+            value = value * 10 + (line[i] - '0');
+            i++;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a leading decimal number; returns the previous value for "N/A"
+     */
+    private double parseDouble(int start, double previous) {
+        int i = start;
+        while (i < lineLength && line[i] == ' ') i++; // speed is right-aligned, e.g. " 1.5x"
+        if (i >= lineLength || line[i] < '0' || line[i] > '9') return previous;
+        long integerPart = 0;
+        while (i < lineLength && line[i] >= '0' && line[i] <= '9') {
+            integerPart = integerPart * 10 + (line[i] - '0');
+            i++;
+        }
+        double fraction = 0;
+        if (i < lineLength && line[i] == '.') {
+            double scale = 0.1;
+            i++;
+            while (i < lineLength && line[i] >= '0' && line[i] <= '9') {
+                fraction += (line[i] - '0') * scale;
+                scale /= 10;
+                i++;
+            }
+        }
+        return integerPart + fraction;
+    }
+
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,79 @@
+package com.mkvcompressor.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Scores an encoded video against its reference with FFmpeg's ssim or psnr filter
+ */
+public class QualityMeter {
+
+    public static final String SSIM = "ssim";
+    public static final String PSNR = "psnr";
+
+    /**
+     * Compares the whole distorted file against the whole reference file
+     */
+    public double measure(String distortedPath, String referencePath, String metric) throws Exception {
+        return measure(distortedPath, 0, referencePath, 0, -1, metric);
+    }
+
+    /**
+     * Compares a window of the distorted file against a window of the reference.
+     * Returns SSIM (0-1) or PSNR in dB. A negative length compares until the end.
+     */
+    public double measure(String distortedPath, double distortedStart, String referencePath, double referenceStart,
+                          double length, String metric) throws Exception {
+        if (!SSIM.equals(metric) && !PSNR.equals(metric)) {
+            throw new IllegalArgumentException("Unknown quality metric: " + metric);
+        }
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-nostdin");
+        cmd.add("-hide_banner");
+        addInput(cmd, distortedPath, distortedStart, length);
+        addInput(cmd, referencePath, referenceStart, length);
+        cmd.add("-lavfi");
+        // Scale the distorted video to the reference size, the filters need equal dimensions
+        cmd.add("[0:v:0][1:v:0]scale2ref[distorted][reference];[distorted][reference]" + metric);
+        cmd.add("-f");
+        cmd.add("null");
+        cmd.add("-");
+
+        // e.g. "SSIM Y:0.98 U:0.99 V:0.99 All:0.985 (18.2)" or "PSNR y:41.2 ... average:42.1 min:..."
+        String marker = SSIM.equals(metric) ? "All:" : "average:";
+        double[] score = {Double.NaN};
+        ProcessRunner.run(cmd, metric.toUpperCase(Locale.ROOT) + " measurement", line -> {
+            if (line.contains("Parsed_" + metric)) {
+                int start = line.indexOf(marker);
+                if (start >= 0) {
+                    start += marker.length();
+                    int end = start;
+                    while (end < line.length() && line.charAt(end) != ' ') end++;
+                    String value = line.substring(start, end);
+                    score[0] = "inf".equals(value) ? Double.POSITIVE_INFINITY : Double.parseDouble(value);
+                }
+            }
+        });
+
+        if (Double.isNaN(score[0])) {
+            throw new Exception("FFmpeg did not report a " + metric.toUpperCase(Locale.ROOT) + " score");
+        }
+        return score[0];
+    }
+
+    private static void addInput(List<String> cmd, String path, double start, double length) {
+        if (start > 0) {
+            cmd.add("-ss");
+            cmd.add(String.format(Locale.ROOT, "%.3f", start));
+        }
+        if (length > 0) {
+            cmd.add("-t");
+            cmd.add(String.format(Locale.ROOT, "%.3f", length));
+        }
+        cmd.add("-i");
+        cmd.add(path);
+    }
+}
@@ -0,0 +1,63 @@
+package com.mkvcompressor.service;
+
+import java.nio.file.Path;
+
+/**
+ * How an encode spends bits: a constant rate factor, or a video bit rate,
+ * optionally as one pass of a two-pass encode sharing a stats file
+ */
+final class RateControl {
+
+    private final int crf;
+    private final int bitrateKbps; // 0 = CRF
+    private final int pass; // 0 = single pass, otherwise 1 or 2
+    private final Path statsFile;
+
+    private RateControl(int crf, int bitrateKbps, int pass, Path statsFile) {
+        this.crf = crf;
+        this.bitrateKbps = bitrateKbps;
+        this.pass = pass;
+        this.statsFile = statsFile;
+    }
+
+    static RateControl crf(int crf) {
+        return new RateControl(crf, 0, 0, null);
+    }
+
+    static RateControl bitrate(int bitrateKbps) {
+        return new RateControl(0, bitrateKbps, 0, null);
+    }
+
+    /**
+     * First pass at a CRF: the stats describe the content, so any bit rate can follow
+     */
+    static RateControl firstPass(int crf, Path statsFile) {
+        return new RateControl(crf, 0, 1, statsFile);
+    }
+
+    static RateControl secondPass(int bitrateKbps, Path statsFile) {
+        return new RateControl(0, bitrateKbps, 2, statsFile);
+    }
+
+    int getCrf() {
+        return crf;
+    }
+
+    int getBitrateKbps() {
+        return bitrateKbps;
+    }
+
+    int getPass() {
+        return pass;
+    }
+
+    Path getStatsFile() {
+        return statsFile;
+    }
+
+    @Override
+    public String toString() {
+        String rate = bitrateKbps > 0 ? bitrateKbps + " kb/s" : "CRF " + crf;
+        return pass > 0 ? rate + ", pass " + pass : rate;
+    }
+}
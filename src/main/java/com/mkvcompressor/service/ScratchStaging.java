@@ -0,0 +1,402 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Stages inputs and outputs on a fast local scratch directory (NVMe, tmpfs).
+ * Upcoming inputs are copied there with large sequential transfers while the
+ * current jobs encode, encodes read and write on scratch, and finished outputs
+ * are moved to their destination in the background. Everything on scratch
+ * counts against a byte budget. Prefetching only uses free room; when a job needs
+ * room now, prefetched inputs nobody uses yet are evicted, the one needed last first.
+ */
+public class ScratchStaging implements AutoCloseable {
+
+    private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+    private static final long DESTINATION_MARGIN = 256L * 1024 * 1024; // Kept free on the destination
+
+    /**
+     * An input copied (or being copied) to scratch
+     */
+    private static final class StagedInput {
+        final String source;
+        final Path local;
+        final long size;
+        CompletableFuture<Void> ready;
+        boolean inUse;
+        boolean copying; // Its bytes stay counted until a running copy has stopped
+        volatile boolean discarded;
+
+        StagedInput(String source, Path local, long size) {
+            this.source = source;
+            this.local = local;
+            this.size = size;
+        }
+    }
+
+    private final Path scratchDir;
+    private final long budgetBytes;
+    private final int prefetchAhead;
+    private final ExecutorService copier;
+    private final ExecutorService mover;
+
+    private final Map<String, StagedInput> staged = new LinkedHashMap<>(); // Oldest staged first
+    private final Deque<String> upcoming = new ArrayDeque<>();
+    private final List<CompletableFuture<Void>> moves = new ArrayList<>();
+    private long usedBytes;
+    private int stoppingCopies; // Discarded inputs whose copy has not stopped yet
+
+    /**
+     * @param budgetBytes scratch space we may use, 0 for 80% of what is free now
+     * @param prefetchAhead inputs to copy ahead of the jobs that need them
+     */
+    public ScratchStaging(Path scratchDir, long budgetBytes, int prefetchAhead) throws IOException {
+        Files.createDirectories(scratchDir);
+        this.scratchDir = Files.createTempDirectory(scratchDir, "mkv-compressor-");
+        this.budgetBytes = budgetBytes > 0 ? budgetBytes
+                : (long) (Files.getFileStore(scratchDir).getUsableSpace() * 0.8);
+        this.prefetchAhead = prefetchAhead;
+        this.copier = Executors.newSingleThreadExecutor(daemonThreads("scratch-prefetch"));
+        this.mover = Executors.newSingleThreadExecutor(daemonThreads("scratch-publish"));
+        System.out.println("Scratch staging in " + this.scratchDir + " (budget "
+                + VideoFile.formatFileSize(this.budgetBytes) + ")");
+    }
+
+    /**
+     * Announces an input that a job will need later, in queue order
+     */
+    public synchronized void schedule(String inputPath) {
+        upcoming.addLast(inputPath);
+        prefetch();
+    }
+
+    /**
+     * Returns the scratch copy of the input, waiting for its prefetch if needed.
+     * Falls back to the original path when the file does not fit the budget.
+     */
+    public Path acquireInput(String inputPath) throws IOException {
+        StagedInput input;
+        synchronized (this) {
+            upcoming.remove(inputPath);
+            input = staged.get(inputPath);
+            if (input == null) {
+                input = stage(inputPath, true);
+                if (input == null) {
+                    return Paths.get(inputPath);
+                }
+            }
+            input.inUse = true;
+        }
+
+        try {
+            input.ready.join();
+            return input.local;
+        } catch (CompletionException e) {
+            System.err.println("Warning: staging failed, reading from the source: " + e.getCause().getMessage());
+            releaseInput(inputPath);
+            return Paths.get(inputPath);
+        }
+    }
+
+    /**
+     * Frees the scratch copy once the job no longer reads it
+     */
+    public synchronized void releaseInput(String inputPath) {
+        StagedInput input = staged.remove(inputPath);
+        if (input != null) {
+            discard(input);
+        }
+        prefetch();
+    }
+
+    /**
+     * Reserves room for an output of up to expectedBytes and returns where to write it,
+     * or null when it does not fit (the job then writes to the destination directly)
+     */
+    public synchronized Path reserveOutput(long expectedBytes) {
+        if (!makeRoom(expectedBytes, true)) {
+            return null;
+        }
+        usedBytes += expectedBytes;
+        return scratchDir.resolve("out-" + UUID.randomUUID() + ".mkv");
+    }
+
+    /**
+     * Gives back an output reservation that was not published (failed or skipped encode)
+     */
+    public synchronized void cancelOutput(Path scratchOutput, long reservedBytes) {
+        deleteQuietly(scratchOutput);
+        usedBytes -= reservedBytes;
+        prefetch();
+    }
+
+    /**
+     * Replaces an output reservation by the actual size of the finished output, which
+     * may be larger, and returns that size; publish it with this size
+     */
+    public synchronized long accountOutput(Path scratchOutput, long reservedBytes) throws IOException {
+        long size = Files.size(scratchOutput);
+        usedBytes += size - reservedBytes;
+        return size;
+    }
+
+    /**
+     * Moves a finished output to its destination in the background. The destination
+     * must have room for it, and it appears there under its final name only when complete.
+     * whenDone receives null on success or the error that stopped the move.
+     */
+    public CompletableFuture<Void> publish(Path scratchOutput, long reservedBytes, Path destination,
+                                           Consumer<Exception> whenDone) {
+        CompletableFuture<Void> move = CompletableFuture.runAsync(() -> {
+            Exception error = null;
+            try {
+                moveToDestination(scratchOutput, destination);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                cancelOutput(scratchOutput, reservedBytes);
+            }
+            whenDone.accept(error);
+        }, mover);
+        synchronized (moves) {
+            moves.add(move);
+        }
+        return move;
+    }
+
+    /**
+     * Waits until every output handed to {@link #publish} has reached its destination
+     */
+    public void awaitPublished() {
+        List<CompletableFuture<Void>> pending;
+        synchronized (moves) {
+            pending = new ArrayList<>(moves);
+            moves.clear();
+        }
+        for (CompletableFuture<Void> move : pending) {
+            try {
+                move.join();
+            } catch (CompletionException e) {
+                System.err.println("Warning: output move failed: " + e.getCause().getMessage());
+            }
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    synchronized boolean isStaged(String inputPath) {
+        return staged.containsKey(inputPath);
+    }
+
+    @Override
+    public void close() {
+        awaitPublished();
+        copier.shutdownNow();
+        mover.shutdown();
+        synchronized (this) {
+            for (StagedInput input : staged.values()) {
+                discard(input);
+            }
+            staged.clear();
+        }
+        deleteQuietly(scratchDir);
+    }
+
+    /**
+     * Starts copies for the next upcoming inputs while fewer than prefetchAhead are waiting.
+     * Never evicts: a prefetch must not push out an input that is needed sooner.
+     */
+    private void prefetch() {
+        while (!upcoming.isEmpty() && waitingInputs() < prefetchAhead) {
+            String next = upcoming.peekFirst();
+            if (staged.containsKey(next) || !Files.isRegularFile(Paths.get(next))) {
+                upcoming.remove(next);
+                continue;
+            }
+            if (stage(next, false) == null) {
+                return; // No room yet; tried again when space frees up
+            }
+            upcoming.remove(next);
+        }
+    }
+
+    private StagedInput stage(String inputPath, boolean evict) {
+        long size;
+        try {
+            size = Files.size(Paths.get(inputPath));
+        } catch (IOException e) {
+            return null; // The job reports the missing file itself
+        }
+        if (!makeRoom(size, evict)) {
+            return null;
+        }
+        Path local = scratchDir.resolve("in-" + UUID.randomUUID() + ".mkv");
+        StagedInput input = new StagedInput(inputPath, local, size);
+        usedBytes += size;
+        input.ready = CompletableFuture.runAsync(() -> {
+            synchronized (this) {
+                if (input.discarded) {
+                    return; // Evicted before its turn came
+                }
+                input.copying = true;
+            }
+            try {
+                transfer(Paths.get(inputPath), local, input);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                copyStopped(input);
+            }
+        }, copier);
+        staged.put(inputPath, input);
+        return input;
+    }
+
+    /**
+     * Checks that the bytes fit the budget, first evicting prefetched inputs that no
+     * job uses yet when allowed. The most recently staged input is needed last, so it goes first.
+     */
+    private boolean makeRoom(long bytes, boolean evict) {
+        if (evict && usedBytes + bytes > budgetBytes) {
+            List<StagedInput> newestFirst = new ArrayList<>(staged.values());
+            Collections.reverse(newestFirst);
+            for (StagedInput input : newestFirst) {
+                if (usedBytes + bytes <= budgetBytes) {
+                    break;
+                }
+                if (!input.inUse) {
+                    staged.remove(input.source);
+                    discard(input);
+                    upcoming.addFirst(input.source); // Staged again later, ahead of the rest of the queue
+                }
+            }
+            // An evicted copy stops at its next chunk; its room is only free once it has
+            while (usedBytes + bytes > budgetBytes && stoppingCopies > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return usedBytes + bytes <= budgetBytes;
+    }
+
+    private int waitingInputs() {
+        int waiting = 0;
+        for (StagedInput input : staged.values()) {
+            if (!input.inUse) {
+                waiting++;
+            }
+        }
+        return waiting;
+    }
+
+    private void discard(StagedInput input) {
+        input.discarded = true;
+        if (input.copying) {
+            stoppingCopies++; // The copy stops at its next chunk and frees the room then
+            return;
+        }
+        deleteQuietly(input.local);
+        usedBytes -= input.size;
+    }
+
+    /**
+     * Called by the copier when a copy ended, completed or not
+     */
+    private synchronized void copyStopped(StagedInput input) {
+        input.copying = false;
+        if (input.discarded) {
+            deleteQuietly(input.local); // Evicted or released while copying
+            usedBytes -= input.size;
+            stoppingCopies--;
+            notifyAll(); // The job that evicted it waits for the room
+        }
+    }
+
+    private static void moveToDestination(Path scratchOutput, Path destination) throws IOException {
+        Path parent = destination.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        long size = Files.size(scratchOutput);
+        long usable = Files.getFileStore(parent).getUsableSpace();
+        if (usable < size + DESTINATION_MARGIN) {
+            throw new IOException("Not enough space for " + destination + ": needs "
+                    + VideoFile.formatFileSize(size) + ", " + VideoFile.formatFileSize(usable) + " free");
+        }
+
+        // Same rules as a direct encode: never a partial file under the final name
+        Path partial = Paths.get(VideoCompressor.partialPath(destination.toString()));
+        try {
+            transfer(scratchOutput, partial, null);
+            Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(partial);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a file with large transferTo calls and flushes it to disk. The copy of a
+     * staged input stops at the next chunk once the input is discarded.
+     */
+    private static void transfer(Path source, Path target, StagedInput input) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new IOException("Copy interrupted: " + source);
+                }
+                if (input != null && input.discarded) {
+                    throw new IOException("Copy abandoned, the input was evicted: " + source);
+                }
+                position += in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+            }
+            out.force(true);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Warning: could not remove " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
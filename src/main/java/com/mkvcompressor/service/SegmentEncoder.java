@@ -0,0 +1,352 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.ProgressEvent;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Encodes one long video as several keyframe-aligned segments in parallel,
+ * then joins them losslessly and muxes the original audio and subtitles back in.
+ * A single encoder process stops scaling after a number of threads; running
+ * several of them on separate parts of the file keeps all cores busy.
+ * Their progress is added up and reported like that of a single encode,
+ * including the early abort when the output is projected too large.
+ */
+public class SegmentEncoder {
+
+    private final VideoCompressor compressor;
+    private final MatroskaParser matroskaParser = new MatroskaParser();
+
+    public SegmentEncoder(VideoCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Encodes the video in segments and writes the joined result to outputPath
+     */
+    public void encode(VideoFile videoFile, String outputPath, int crf) throws Exception {
+        encode(videoFile, outputPath, crf, 0);
+    }
+
+    /**
+     * Same as {@link #encode(VideoFile, String, int)}, limiting each segment encoder
+     * to the given number of threads (0 leaves the choice to the encoder)
+     */
+    public void encode(VideoFile videoFile, String outputPath, int crf, int threads) throws Exception {
+        CompressionSettings settings = compressor.getSettings();
+        List<Double> keyframes = findKeyframes(videoFile);
+        List<Double> splitPoints = chooseSplitPoints(keyframes, videoFile.getDurationSeconds(),
+                settings.getSegmentSeconds());
+
+        File outputFile = new File(outputPath).getAbsoluteFile();
+        Path workDir = Files.createTempDirectory(outputFile.getParentFile().toPath(), ".segments-");
+        System.out.println("\nSegmented encoding: " + splitPoints.size() + " segments, "
+                + settings.getSegmentParallelism() + " in parallel");
+
+        VideoCompressor.EncodeProgress progress = compressor.new EncodeProgress(videoFile, true);
+        try {
+            List<Path> segments;
+            try {
+                segments = encodeSegments(videoFile, splitPoints, workDir, settings.getSegmentParallelism(), crf,
+                        threads, progress);
+            } finally {
+                progress.end();
+            }
+            joinSegments(videoFile, segments, workDir, outputPath);
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * Reads keyframe times from the Matroska Cues, or asks FFprobe for them
+     */
+    private List<Double> findKeyframes(VideoFile videoFile) throws Exception {
+        try {
+            return matroskaParser.readKeyframeTimes(videoFile.getFilePath());
+        } catch (IOException e) {
+            System.out.println("No usable Cues (" + e.getMessage() + "), probing keyframes with FFprobe");
+        }
+
+        // Packet flags tell keyframes apart without decoding any video
+        List<String> command = new ArrayList<>();
+        command.add("ffprobe");
+        command.add("-v");
+        command.add("error");
+        command.add("-select_streams");
+        command.add("v:0");
+        command.add("-show_entries");
+        command.add("packet=pts_time,flags");
+        command.add("-of");
+        command.add("csv=p=0");
+        command.add(videoFile.getFilePath());
+
+        List<Double> keyframes = new ArrayList<>();
+        ProcessRunner.run(command, "Keyframe probe", line -> {
+            int comma = line.indexOf(',');
+            if (comma > 0 && line.indexOf('K', comma) > comma) {
+                try {
+                    keyframes.add(Double.parseDouble(line.substring(0, comma)));
+                } catch (NumberFormatException ignored) {
+                    // "N/A" timestamps can't be used as split points
+                }
+            }
+        });
+        keyframes.sort(null);
+        return keyframes;
+    }
+
+    /**
+     * Picks segment start times: roughly every segmentSeconds, always on a keyframe
+     */
+    static List<Double> chooseSplitPoints(List<Double> keyframes, double duration, int segmentSeconds) {
+        List<Double> points = new ArrayList<>();
+        points.add(0.0);
+        double nextTarget = segmentSeconds;
+        for (double keyframe : keyframes) {
+            if (keyframe >= nextTarget) {
+                points.add(keyframe);
+                nextTarget = keyframe + segmentSeconds;
+            }
+        }
+        // Avoid a very short last segment
+        if (points.size() > 1 && duration - points.get(points.size() - 1) < segmentSeconds / 2.0) {
+            points.remove(points.size() - 1);
+        }
+        return points;
+    }
+
+    private List<Path> encodeSegments(VideoFile videoFile, List<Double> splitPoints, Path workDir, int parallelism,
+                                      int crf, int threads, VideoCompressor.EncodeProgress progress)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Path> segments = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        AtomicInteger done = new AtomicInteger();
+        int total = splitPoints.size();
+        CombinedProgress combined = new CombinedProgress(videoFile.getFilePath(), videoFile.getDurationSeconds(),
+                total);
+        List<Process> running = new CopyOnWriteArrayList<>();
+
+        try {
+            for (int i = 0; i < total; i++) {
+                double start = splitPoints.get(i);
+                Double length = i + 1 < total ? splitPoints.get(i + 1) - start : null;
+                Path segment = workDir.resolve(String.format("segment_%05d.mkv", i));
+                segments.add(segment);
+
+                List<String> command = buildSegmentCommand(videoFile, start, length, segment, crf, threads);
+                double segmentSeconds = length != null ? length : videoFile.getDurationSeconds() - start;
+                int number = i + 1;
+                futures.add(executor.submit(() -> {
+                    runSegment(command, number, segmentSeconds, videoFile, combined, progress, running);
+                    System.out.println("Segment " + number + "/" + total + " encoded ("
+                            + done.incrementAndGet() + "/" + total + " done)");
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (progress.isExceeded()) {
+                        throw progress.toException(); // We stopped the segment encoders
+                    }
+                    throw new Exception(e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            running.forEach(Process::destroyForcibly);
+        }
+        return segments;
+    }
+
+    /**
+     * Runs one segment encoder, reporting its progress as part of the whole file's.
+     * When the combined output is projected too large, every segment encoder is stopped.
+     */
+    private static void runSegment(List<String> command, int number, double segmentSeconds, VideoFile videoFile,
+                                   CombinedProgress combined, VideoCompressor.EncodeProgress progress,
+                                   List<Process> running) throws Exception {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        // Progress comes on stdout; FFmpeg's own messages (errors only) go to the console
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = CompressionScope.start(processBuilder);
+        running.add(process);
+        if (progress.isExceeded()) {
+            process.destroyForcibly(); // Started while the others were being stopped
+        }
+
+        ProgressParser parser = new ProgressParser(videoFile.getFilePath(), segmentSeconds, event -> {
+            synchronized (combined) {
+                if (progress.report(combined.update(number - 1, event))) {
+                    running.forEach(Process::destroyForcibly);
+                }
+            }
+        });
+        try (InputStream output = process.getInputStream()) {
+            parser.parse(output);
+        } catch (Exception e) {
+            process.destroyForcibly();
+            throw e;
+        } finally {
+            running.remove(process);
+        }
+
+        int exitCode = process.waitFor();
+        EncodeMetrics.recordExit("ffmpeg", exitCode);
+        if (exitCode != 0) {
+            throw new Exception("Segment " + number + " encode failed. Exit code: " + exitCode);
+        }
+    }
+
+    /**
+     * Adds up the latest progress of every segment encoder into the progress of the whole file
+     */
+    static final class CombinedProgress {
+        private final String inputPath;
+        private final double durationSeconds;
+        private final ProgressEvent[] latest;
+
+        CombinedProgress(String inputPath, double durationSeconds, int segments) {
+            this.inputPath = inputPath;
+            this.durationSeconds = durationSeconds;
+            this.latest = new ProgressEvent[segments];
+        }
+
+        synchronized ProgressEvent update(int segment, ProgressEvent event) {
+            latest[segment] = event;
+            long frame = 0;
+            double fps = 0;
+            long outTimeMicros = 0;
+            double speed = 0;
+            long totalSize = 0;
+            for (ProgressEvent segmentEvent : latest) {
+                if (segmentEvent != null) {
+                    frame += segmentEvent.getFrame();
+                    outTimeMicros += segmentEvent.getOutTimeMicros();
+                    totalSize += segmentEvent.getTotalSize();
+                    if (!segmentEvent.isFinished()) {
+                        fps += segmentEvent.getFps(); // Encoders still running
+                        speed += segmentEvent.getSpeed();
+                    }
+                }
+            }
+            double outSeconds = outTimeMicros / 1e6;
+            double bitrateKbps = outSeconds > 0 ? totalSize * 8 / outSeconds / 1000 : 0;
+            double percent = durationSeconds > 0 ? Math.min(100, outSeconds * 100 / durationSeconds) : -1;
+            // The whole file is finished after the join, not with the last segment
+            return new ProgressEvent(inputPath, frame, fps, outTimeMicros, bitrateKbps, speed, totalSize, percent,
+                    false);
+        }
+    }
+
+    private List<String> buildSegmentCommand(VideoFile videoFile, double start, Double length, Path segment,
+                                             int crf, int threads) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error"); // Only errors on stderr
+        cmd.add("-nostats");
+        cmd.add("-progress");
+        cmd.add("pipe:1"); // Machine-readable progress on stdout
+        cmd.add("-nostdin");
+        // Input seeking lands exactly on the keyframe the segment starts with
+        cmd.add("-ss");
+        cmd.add(formatSeconds(start));
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        if (length != null) {
+            cmd.add("-t");
+            cmd.add(formatSeconds(length));
+        }
+        cmd.add("-map");
+        cmd.add("0:v:0");
+        cmd.add("-an");
+        cmd.add("-sn");
+        cmd.add("-dn");
+        compressor.addVideoEncodingArgs(cmd, crf, threads);
+        cmd.add(segment.toString());
+        cmd.add("-y");
+        return cmd;
+    }
+
+    /**
+     * Concatenates the encoded segments without re-encoding and adds every
+     * other stream (audio, subtitles, attachments) from the original file
+     */
+    private void joinSegments(VideoFile videoFile, List<Path> segments, Path workDir, String outputPath)
+            throws Exception {
+        Path list = workDir.resolve("segments.txt");
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(list, StandardCharsets.UTF_8))) {
+            for (Path segment : segments) {
+                writer.println("file '" + segment.toString().replace("'", "'\\''") + "'");
+            }
+        }
+
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error");
+        cmd.add("-nostdin");
+        cmd.add("-f");
+        cmd.add("concat");
+        cmd.add("-safe");
+        cmd.add("0");
+        cmd.add("-i");
+        cmd.add(list.toString());
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        cmd.add("-map");
+        cmd.add("0:v:0");
+        cmd.add("-map");
+        cmd.add("1"); // Everything from the original...
+        cmd.add("-map");
+        cmd.add("-1:v:0"); // ...except the video we just re-encoded
+        cmd.add("-c:v");
+        cmd.add("copy");
+        compressor.addAudioSubtitleArgs(cmd);
+        cmd.add("-map_metadata");
+        cmd.add("1");
+        cmd.add("-f");
+        cmd.add("matroska");
+        cmd.add(outputPath);
+        cmd.add("-y");
+
+        System.out.println("Joining segments...");
+        ProcessRunner.run(cmd, "Segment join");
+    }
+
+    private static String formatSeconds(double seconds) {
+        return String.format(Locale.ROOT, "%.6f", seconds);
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Warning: could not remove " + dir + ": " + e.getMessage());
+        }
+    }
+}
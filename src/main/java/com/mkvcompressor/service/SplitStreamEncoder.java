@@ -0,0 +1,274 @@
+package com.mkvcompressor.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+/**
+ * Encodes the video, converts each audio track and extracts the subtitles as
+ * separate FFmpeg processes running at the same time, then muxes the pieces.
+ *
+ * In a single process, decoding TrueHD or DTS-HD tracks and encoding them to AAC
+ * happens in the same pipeline as the video encode and slows it down. Here the
+ * audio work runs next to the video on other cores, and only the final mux (a
+ * copy) is added to the video's own time. The mux restores the original track order,
+ * the stream metadata (language, title, ...), the default/forced flags, the
+ * chapters, the attachments and the global metadata.
+ */
+public class SplitStreamEncoder {
+
+    private final VideoCompressor compressor;
+
+    public SplitStreamEncoder(VideoCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Whether the file's tracks are known well enough to be split and put back in order
+     */
+    static boolean canSplit(VideoFile videoFile) {
+        boolean video = false;
+        boolean audio = false;
+        for (StreamInfo stream : videoFile.getStreams()) {
+            video |= StreamInfo.TYPE_VIDEO.equals(stream.getType());
+            audio |= StreamInfo.TYPE_AUDIO.equals(stream.getType());
+        }
+        return video && audio;
+    }
+
+    /**
+     * Writes the encoded (or copied, with copyVideo) video with converted audio to outputPath
+     */
+    void encode(VideoFile videoFile, String outputPath, boolean copyVideo, RateControl rate, int threads)
+            throws Exception {
+        List<StreamInfo> streams = new ArrayList<>(videoFile.getStreams());
+        streams.sort(Comparator.comparingInt(StreamInfo::getIndex));
+        int audioTracks = count(streams, StreamInfo.TYPE_AUDIO);
+        boolean subtitles = count(streams, StreamInfo.TYPE_SUBTITLE) > 0;
+
+        File outputFile = new File(outputPath).getAbsoluteFile();
+        Path workDir = Files.createTempDirectory(outputFile.getParentFile().toPath(), ".streams-");
+        System.out.println("\nSplit-stream encoding: video, " + audioTracks + " audio track(s)"
+                + (subtitles ? " and subtitles" : "") + " in parallel");
+
+        // The side tasks are created from this thread, so they belong to the same job
+        // scope: cancelling or pausing the job reaches their processes too
+        ExecutorService executor = Executors.newFixedThreadPool(audioTracks + (subtitles ? 1 : 0));
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            List<Path> audioFiles = new ArrayList<>();
+            for (int i = 0; i < audioTracks; i++) {
+                Path audioFile = workDir.resolve(String.format("audio_%02d.mka", i));
+                audioFiles.add(audioFile);
+                List<String> command = buildAudioCommand(videoFile, i, audioFile);
+                String description = "Audio track " + (i + 1) + " conversion";
+                tasks.add(executor.submit(() -> {
+                    ProcessRunner.run(command, description);
+                    return null;
+                }));
+            }
+            Path subtitleFile = subtitles ? workDir.resolve("subtitles.mks") : null;
+            if (subtitles) {
+                List<String> command = buildSubtitleCommand(videoFile, subtitleFile);
+                tasks.add(executor.submit(() -> {
+                    ProcessRunner.run(command, "Subtitle extraction");
+                    return null;
+                }));
+            }
+
+            // The video runs here, with progress and the early size check as usual
+            Path videoOutput = workDir.resolve("video.mkv");
+            List<String> videoCommand = buildVideoCommand(videoFile, videoOutput, copyVideo, rate, threads);
+            System.out.println("Command: " + String.join(" ", videoCommand));
+            compressor.executeCompression(videoCommand, videoFile, !copyVideo);
+
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new Exception(e.getCause().getMessage(), e.getCause());
+                }
+            }
+
+            System.out.println("Muxing streams...");
+            ProcessRunner.run(buildMuxCommand(videoFile, streams, videoOutput, audioFiles, subtitleFile, outputPath),
+                    "Stream mux");
+        } finally {
+            executor.shutdownNow(); // Interrupted tasks kill their processes
+            deleteRecursively(workDir);
+        }
+    }
+
+    private List<String> buildVideoCommand(VideoFile videoFile, Path output, boolean copyVideo, RateControl rate,
+                                           int threads) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error");
+        cmd.add("-nostats");
+        cmd.add("-nostdin");
+        cmd.add("-progress");
+        cmd.add("pipe:1");
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        cmd.add("-map");
+        cmd.add("0:v");
+        if (copyVideo) {
+            cmd.add("-c:v");
+            cmd.add("copy");
+        } else {
+            compressor.addVideoEncodingArgs(cmd, rate, threads);
+        }
+        cmd.add("-f");
+        cmd.add("matroska");
+        cmd.add(output.toString());
+        cmd.add("-y");
+        return cmd;
+    }
+
+    private List<String> buildAudioCommand(VideoFile videoFile, int track, Path output) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error");
+        cmd.add("-nostdin");
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        cmd.add("-map");
+        cmd.add("0:a:" + track);
+        compressor.addAudioSubtitleArgs(cmd);
+        cmd.add("-f");
+        cmd.add("matroska");
+        cmd.add(output.toString());
+        cmd.add("-y");
+        return cmd;
+    }
+
+    private List<String> buildSubtitleCommand(VideoFile videoFile, Path output) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error");
+        cmd.add("-nostdin");
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        cmd.add("-map");
+        cmd.add("0:s");
+        compressor.addAudioSubtitleArgs(cmd);
+        cmd.add("-f");
+        cmd.add("matroska");
+        cmd.add(output.toString());
+        cmd.add("-y");
+        return cmd;
+    }
+
+    /**
+     * Copies every piece into the output, stream by stream in the original order.
+     * Input 0 is the source, for the data streams, attachments, chapters and metadata;
+     * then come the video, the audio tracks and the subtitles.
+     */
+    List<String> buildMuxCommand(VideoFile videoFile, List<StreamInfo> streams, Path videoOutput,
+                                 List<Path> audioFiles, Path subtitleFile, String outputPath) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error");
+        cmd.add("-nostdin");
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+        cmd.add("-i");
+        cmd.add(videoOutput.toString());
+        for (Path audioFile : audioFiles) {
+            cmd.add("-i");
+            cmd.add(audioFile.toString());
+        }
+        int subtitleInput = 2 + audioFiles.size();
+        if (subtitleFile != null) {
+            cmd.add("-i");
+            cmd.add(subtitleFile.toString());
+        }
+
+        List<String> streamOptions = new ArrayList<>();
+        int output = 0;
+        int video = 0;
+        int audio = 0;
+        int subtitle = 0;
+        for (StreamInfo stream : streams) {
+            String source;
+            if (StreamInfo.TYPE_VIDEO.equals(stream.getType())) {
+                source = "1:v:" + video++;
+            } else if (StreamInfo.TYPE_AUDIO.equals(stream.getType())) {
+                source = (2 + audio++) + ":a:0";
+            } else if (StreamInfo.TYPE_SUBTITLE.equals(stream.getType())) {
+                source = subtitleInput + ":s:" + subtitle++;
+            } else if ("attachment".equals(stream.getType())) {
+                continue; // Mapped as a group below
+            } else {
+                source = "0:" + stream.getIndex(); // Data streams are copied from the source
+            }
+            cmd.add("-map");
+            cmd.add(source);
+
+            // Tags and flags of the original stream, whatever the intermediate file kept
+            streamOptions.add("-map_metadata:s:" + output);
+            streamOptions.add("0:s:" + stream.getIndex());
+            streamOptions.add("-disposition:" + output);
+            streamOptions.add(disposition(stream));
+            output++;
+        }
+        cmd.add("-map");
+        cmd.add("0:t?"); // Fonts and other attachments
+        cmd.add("-c");
+        cmd.add("copy");
+        cmd.addAll(streamOptions);
+        cmd.add("-map_metadata");
+        cmd.add("0");
+        cmd.add("-map_chapters");
+        cmd.add("0");
+        cmd.add("-f");
+        cmd.add("matroska");
+        cmd.add(outputPath);
+        cmd.add("-y");
+        return cmd;
+    }
+
+    private static String disposition(StreamInfo stream) {
+        if (stream.isDefaultTrack() && stream.isForced()) {
+            return "default+forced";
+        }
+        if (stream.isDefaultTrack()) {
+            return "default";
+        }
+        return stream.isForced() ? "forced" : "0";
+    }
+
+    private static int count(List<StreamInfo> streams, String type) {
+        int count = 0;
+        for (StreamInfo stream : streams) {
+            if (type.equals(stream.getType())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.err.println("Warning: could not remove " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.mkvcompressor.service;
 
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 
 import com.mkvcompressor.model.VideoFile;
 
@@ -9,10 +12,21 @@ import com.mkvcompressor.model.VideoFile;
  */
 public class VideoAnalyzer {
 
+    private final MatroskaParser matroskaParser = new MatroskaParser();
+    private final FFprobeJsonParser ffprobeParser = new FFprobeJsonParser();
+    private AnalysisCache cache;
+
     /**
      * Analyzes a video file and extracts its information
      */
     public VideoFile analyzeVideo(String filePath) throws Exception {
+        return analyzeVideo(filePath, true);
+    }
+
+    /**
+     * Analyzes a video file, printing its details only when verbose is set
+     */
+    public VideoFile analyzeVideo(String filePath, boolean verbose) throws Exception {
         File file = new File(filePath);
         
         if (!file.exists()) {
@@ -23,45 +37,124 @@ public class VideoAnalyzer {
             throw new Exception("File is not MKV: " + filePath);
         }
 
+        long startNanos = System.nanoTime();
+        if (cache != null) {
+            VideoFile cached = cache.get(file);
+            if (cached != null) {
+                EncodeMetrics.probeSeconds("cache").observeSince(startNanos);
+                if (verbose) {
+                    System.out.println("Analysis cache hit: " + file.getName());
+                }
+                return cached;
+            }
+        }
+
         VideoFile videoFile = new VideoFile(filePath);
         videoFile.setOriginalSize(file.length());
 
-        System.out.println("Analyzing file: " + file.getName());
-        System.out.println("Original size: " + VideoFile.formatFileSize(file.length()));
+        if (verbose) {
+            System.out.println("Analyzing file: " + file.getName());
+            System.out.println("Original size: " + VideoFile.formatFileSize(file.length()));
+        }
 
-        // Here FFmpeg/FFprobe analysis would be performed
-        // For this educational example, we'll simulate it
-        analyzeWithFFprobe(videoFile);
+        // Read the Matroska headers directly; a single FFprobe call covers files we can't parse
+        try {
+            matroskaParser.parse(videoFile);
+            EncodeMetrics.probeSeconds("native").observeSince(startNanos);
+        } catch (Exception e) {
+            if (verbose) {
+                System.out.println("Native MKV analysis failed (" + e.getMessage() + "), using FFprobe");
+            }
+            videoFile = new VideoFile(filePath);
+            videoFile.setOriginalSize(file.length());
+            analyzeWithFFprobe(videoFile);
+            EncodeMetrics.probeSeconds("ffprobe").observeSince(startNanos);
+        }
+        // Lets a batch recognize content it compressed before, see FingerprintIndex
+        videoFile.setFingerprint(ContentFingerprint.compute(file, videoFile.getSegmentUid()));
+        if (verbose) {
+            printDetails(videoFile);
+        }
 
+        if (cache != null) {
+            cache.put(file, videoFile);
+        }
         return videoFile;
     }
 
     /**
-     * Uses FFprobe to extract video information
-     * NOTE: Requires FFmpeg installed on the system
+     * Reads the streams and duration of a Matroska file whatever its name (e.g. a .part
+     * output), bypassing the cache
      */
-    private void analyzeWithFFprobe(VideoFile videoFile) {
+    VideoFile analyzeContainer(String filePath) throws Exception {
+        VideoFile videoFile = new VideoFile(filePath);
+        videoFile.setOriginalSize(new File(filePath).length());
         try {
-            // Command to get file information
-            String command = "ffprobe -v quiet -print_format json -show_format -show_streams \"" 
-                           + videoFile.getFilePath() + "\"";
-            
-            // TODO: Execute command and parse JSON
-            // For now, example values for demonstration
-            videoFile.setVideoCodec("H.264");
-            videoFile.setResolution("1920x1080");
-            videoFile.addAudioTrack("AAC - English");
-            videoFile.addSubtitleTrack("SRT - English");
-            
-            System.out.println("Codec: " + videoFile.getVideoCodec());
-            System.out.println("Resolution: " + videoFile.getResolution());
-            System.out.println("Audio tracks: " + videoFile.getAudioTracks().size());
-            System.out.println("Subtitles: " + videoFile.getSubtitleTracks().size());
-
+            matroskaParser.parse(videoFile);
         } catch (Exception e) {
-            System.err.println("Warning: Could not analyze details with FFprobe");
-            System.err.println("Make sure FFmpeg is installed");
+            videoFile = new VideoFile(filePath);
+            videoFile.setOriginalSize(new File(filePath).length());
+            analyzeWithFFprobe(videoFile);
         }
+        return videoFile;
+    }
+
+    /**
+     * Uses FFprobe to extract video information with a single JSON probe
+     * NOTE: Requires FFmpeg installed on the system
+     */
+    private void analyzeWithFFprobe(VideoFile videoFile) throws Exception {
+        ProcessBuilder pb = new ProcessBuilder(
+                "ffprobe",
+                "-v", "quiet",
+                "-print_format", "json",
+                "-show_format",
+                "-show_streams",
+                videoFile.getFilePath()
+        );
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process = CompressionScope.start(pb);
+
+        // Parse while FFprobe is still writing, instead of buffering the whole document
+        try (Reader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+            ffprobeParser.parse(reader, videoFile);
+        } finally {
+            int exitCode = process.waitFor();
+            EncodeMetrics.recordExit("ffprobe", exitCode);
+            if (exitCode != 0) {
+                throw new Exception("FFprobe failed with exit code " + exitCode + ": " + videoFile.getFilePath());
+            }
+        }
+    }
+
+    /**
+     * Prints the analyzed video information
+     */
+    private void printDetails(VideoFile videoFile) {
+        System.out.println("Codec: " + videoFile.getVideoCodec());
+        System.out.println("Resolution: " + videoFile.getResolution());
+        if (videoFile.getDurationSeconds() > 0) {
+            System.out.printf("Duration: %.0f s\n", videoFile.getDurationSeconds());
+        }
+        if (videoFile.getFrameRate() > 0) {
+            System.out.printf("Frame rate: %.3f fps\n", videoFile.getFrameRate());
+        }
+        if (videoFile.getBitRate() > 0) {
+            System.out.println("Bit rate: " + videoFile.getBitRate() / 1000 + " kb/s");
+        }
+        System.out.println("Audio tracks: " + videoFile.getAudioTracks().size());
+        System.out.println("Subtitles: " + videoFile.getSubtitleTracks().size());
+    }
+
+    public AnalysisCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets a cache that lets unchanged files skip analysis (null disables caching)
+     */
+    public void setCache(AnalysisCache cache) {
+        this.cache = cache;
     }
 
     /**
@@ -69,10 +162,8 @@ public class VideoAnalyzer {
      */
     public boolean isFFmpegInstalled() {
         try {
-            ProcessBuilder pb = new ProcessBuilder("ffmpeg", "-version");
-            Process process = pb.start();
-            process.waitFor();
-            return process.exitValue() == 0;
+            FFmpegCapabilities.detect(); // Cached, spawns FFmpeg only when the binary changed
+            return true;
         } catch (Exception e) {
             return false;
         }
@@ -2,11 +2,26 @@ package com.mkvcompressor.service;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionJob;
 import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.DuplicateHandling;
+import com.mkvcompressor.model.ProgressEvent;
 import com.mkvcompressor.model.VideoFile;
 
 /**
@@ -15,6 +30,18 @@ import com.mkvcompressor.model.VideoFile;
 public class VideoCompressor {
 
     private CompressionSettings settings;
+    private VideoAnalyzer analyzer = new VideoAnalyzer();
+    private final List<ProgressListener> progressListeners = new CopyOnWriteArrayList<>();
+    private boolean consoleProgress = true;
+    private final DecisionEngine decisionEngine = new DecisionEngine();
+    private CrfSearch crfSearch;
+    private FirstPass firstPass;
+    private FingerprintIndex fingerprintIndex;
+    private Path libraryIndexPath = LibraryIndex.defaultPath(); // null = not kept
+    private ConcurrencyGovernor governor;
+    private final Map<String, Integer> allocatedBitrates = new ConcurrentHashMap<>(); // By input path
+    private ExecutorService asyncExecutor;
+    private Semaphore asyncSlots;
 
     public VideoCompressor(CompressionSettings settings) {
         this.settings = settings;
@@ -24,11 +51,30 @@ public class VideoCompressor {
      * Compresses a video file
      */
     public void compressVideo(VideoFile videoFile, String outputPath) throws Exception {
+        compressVideo(videoFile, outputPath, null);
+    }
+
+    /**
+     * Same as {@link #compressVideo(VideoFile, String)}, writing to a partial file named
+     * with partialTag, so encodes of the same output that overlap don't share one
+     */
+    void compressVideo(VideoFile videoFile, String outputPath, String partialTag) throws Exception {
+        long startNanos = System.nanoTime();
         System.out.println("\n=== Starting Compression ===");
         System.out.println("Input file: " + videoFile.getFilePath());
         System.out.println("Output file: " + outputPath);
         System.out.println("Settings: " + settings);
 
+        // Decide if the file is worth re-encoding at all
+        CompressionDecision decision = decisionEngine.decide(videoFile, settings);
+        videoFile.setDecision(decision);
+        System.out.println("Decision: " + decision);
+        if (decision.getAction() == CompressionDecision.Action.SKIP) {
+            videoFile.setCompressedSize(videoFile.getOriginalSize());
+            System.out.println("Skipping, the file is kept as it is");
+            return;
+        }
+
         // Create output directory if it doesn't exist
         File outputFile = new File(outputPath);
         File outputDir = outputFile.getParentFile();
@@ -36,186 +82,733 @@ public class VideoCompressor {
             outputDir.mkdirs();
         }
 
-        // Build FFmpeg command
-        String command = buildFFmpegCommand(videoFile, outputPath);
-        
-        System.out.println("\nExecuting compression...");
-        System.out.println("Command: " + command);
-        
-        // Execute compression with progress
-        Double durationSeconds = getVideoDurationSeconds(videoFile.getFilePath());
-        executeCompression(command, durationSeconds);
+        boolean copyVideo = decision.getAction() == CompressionDecision.Action.REMUX;
+        RateControl rate = RateControl.crf(settings.getCrf());
+        int bitrateKbps = videoFile.getTargetBitrateKbps() > 0
+                ? videoFile.getTargetBitrateKbps() : settings.getTargetBitrateKbps();
+        if (!copyVideo && bitrateKbps > 0) {
+            rate = RateControl.bitrate(bitrateKbps);
+        } else if (!copyVideo && settings.isAutoCrf()) {
+            rate = RateControl.crf(getCrfSearch().findCrf(videoFile, settings));
+        }
+
+        try {
+            encode(videoFile, outputFile, copyVideo, rate, partialTag);
+        } catch (OutputTooLargeException e) {
+            // Not worth finishing: keep the video stream as it is instead
+            EncodeMetrics.EARLY_ABORTS.inc();
+            decision = decisionEngine.keepVideo(settings, "encode stopped, " + e.getMessage());
+            videoFile.setDecision(decision);
+            System.out.println("\nDecision: " + decision);
+            if (decision.getAction() == CompressionDecision.Action.SKIP) {
+                videoFile.setCompressedSize(videoFile.getOriginalSize());
+                EncodeMetrics.ENCODE_SECONDS.observeSince(startNanos);
+                System.out.println("Skipping, the file is kept as it is");
+                return;
+            }
+            encode(videoFile, outputFile, true, rate, partialTag);
+        }
 
         // Update compressed file information
-        if (outputFile.exists()) {
-            videoFile.setCompressedSize(outputFile.length());
-            
-            System.out.println("\n=== Compression Completed ===");
-            System.out.println("Original size: " + VideoFile.formatFileSize(videoFile.getOriginalSize()));
-            System.out.println("Compressed size: " + VideoFile.formatFileSize(videoFile.getCompressedSize()));
-            System.out.printf("Reduction: %.2f%%\n", videoFile.getCompressionPercentage());
-        } else {
-            throw new Exception("Compression failed - output file was not created");
+        videoFile.setCompressedSize(outputFile.length());
+        EncodeMetrics.ENCODE_SECONDS.observeSince(startNanos);
+
+        System.out.println("\n=== Compression Completed ===");
+        System.out.println("Original size: " + VideoFile.formatFileSize(videoFile.getOriginalSize()));
+        System.out.println("Compressed size: " + VideoFile.formatFileSize(videoFile.getCompressedSize()));
+        System.out.printf("Reduction: %.2f%%\n", videoFile.getCompressionPercentage());
+    }
+
+    /**
+     * Starts compressVideo in the background and returns at once. Up to
+     * {@link #batchWorkers()} jobs run at the same time; the others wait in line,
+     * each on a virtual thread where the JVM has them.
+     */
+    public CompressionHandle compressAsync(VideoFile videoFile, String outputPath) {
+        CompressionHandle handle = new CompressionHandle(videoFile, outputPath);
+        Semaphore slots;
+        ExecutorService executor;
+        synchronized (this) {
+            if (asyncExecutor == null) {
+                getGovernor(); // Created here, so its sampler thread does not belong to a job
+                asyncSlots = new Semaphore(batchWorkers());
+                asyncExecutor = JobThreads.newExecutor("compress-async", batchWorkers());
+            }
+            slots = asyncSlots;
+            executor = asyncExecutor;
+        }
+        executor.execute(() -> handle.run(this, slots));
+        return handle;
+    }
+
+    /**
+     * Runs the encode (or remux) into a temporary file and moves it to outputFile when complete
+     */
+    private void encode(VideoFile videoFile, File outputFile, boolean copyVideo, RateControl rate,
+                        String partialTag) throws Exception {
+        // Segments can't share one rate control, so bit rate encodes always run whole
+        boolean segmented = !copyVideo && rate.getBitrateKbps() == 0 && settings.isSegmentedEncoding()
+                && videoFile.getDurationSeconds() > 2 * settings.getSegmentSeconds();
+
+        // Wait for CPU and memory headroom; remuxing is cheap and always runs
+        ConcurrencyGovernor governor = copyVideo ? null : getGovernor();
+        ConcurrencyGovernor.Ticket ticket = governor == null ? null
+                : governor.acquire(videoFile, segmented ? settings.getSegmentParallelism() : 1);
+        int threads = ticket == null ? 0 : ticket.getThreads();
+
+        // Write to a temporary name and rename at the end, so an interrupted
+        // encode never leaves a truncated file under the final name
+        File partialFile = new File(partialPath(outputFile.getPath(), partialTag));
+        Files.deleteIfExists(partialFile.toPath());
+        try {
+            if (segmented) {
+                // Long file: encode keyframe-aligned segments in parallel and join them
+                int segmentThreads = threads == 0 ? 0 : Math.max(1, threads / settings.getSegmentParallelism());
+                new SegmentEncoder(this).encode(videoFile, partialFile.getPath(), rate.getCrf(), segmentThreads);
+            } else {
+                if (!copyVideo && rate.getBitrateKbps() > 0 && settings.isTwoPass()) {
+                    rate = secondPass(videoFile, rate, threads);
+                }
+
+                if (settings.isSplitStreams() && !settings.isKeepAllAudioTracks()
+                        && SplitStreamEncoder.canSplit(videoFile)) {
+                    // Audio conversion off the critical path: separate processes, muxed at the end
+                    new SplitStreamEncoder(this).encode(videoFile, partialFile.getPath(), copyVideo, rate, threads);
+                } else {
+                    // Build FFmpeg command
+                    List<String> command = buildFFmpegCommand(videoFile, partialFile.getPath(), copyVideo, rate,
+                            threads);
+
+                    System.out.println("\nExecuting " + (copyVideo ? "remux" : "compression") + "...");
+                    System.out.println("Command: " + String.join(" ", command));
+
+                    // Execute compression with progress, using the duration found during analysis
+                    executeCompression(command, videoFile, !copyVideo);
+                }
+            }
+
+            if (!partialFile.exists()) {
+                throw new Exception("Compression failed - output file was not created");
+            }
+            if (settings.isVerifyOutput()) {
+                // Before the rename, so an output that fails never appears under its final name
+                new OutputVerifier(analyzer).verify(videoFile, partialFile.getPath(), copyVideo, settings);
+            }
+            Files.move(partialFile.toPath(), outputFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            Files.deleteIfExists(partialFile.toPath());
+            throw e;
+        } finally {
+            if (ticket != null) {
+                governor.release(ticket);
+            }
         }
     }
 
+    /**
+     * Runs the first pass unless it is cached, and returns the matching second pass.
+     * Encoders without a stats file keep the single-pass bit rate.
+     */
+    private RateControl secondPass(VideoFile videoFile, RateControl rate, int threads) throws Exception {
+        if (!FirstPass.supports(settings.getOutputCodec())) {
+            System.out.println("Two-pass encoding is not available for " + settings.getOutputCodec()
+                    + ", using a single pass");
+            return rate;
+        }
+        FirstPass.Result result = getFirstPass().run(videoFile, threads);
+        return RateControl.secondPass(rate.getBitrateKbps(), result.getStatsFile());
+    }
+
+    /**
+     * Temporary name an output is written to until it is complete
+     */
+    public static String partialPath(String outputPath) {
+        return outputPath + ".part";
+    }
+
+    /**
+     * Temporary name of an output written under a tag, e.g. a batch lease (null for no tag)
+     */
+    public static String partialPath(String outputPath, String tag) {
+        return tag == null ? partialPath(outputPath) : outputPath + "." + tag + ".part";
+    }
+
     /**
      * Builds FFmpeg command based on settings
      */
-    private String buildFFmpegCommand(VideoFile videoFile, String outputPath) {
-        StringBuilder cmd = new StringBuilder("ffmpeg -i \"");
-        cmd.append(videoFile.getFilePath()).append("\"");
+    List<String> buildFFmpegCommand(VideoFile videoFile, String outputPath, boolean copyVideo, int crf) {
+        return buildFFmpegCommand(videoFile, outputPath, copyVideo, RateControl.crf(crf), 0);
+    }
+
+    /**
+     * Builds FFmpeg command based on settings (threads 0 leaves the choice to the encoder)
+     */
+    List<String> buildFFmpegCommand(VideoFile videoFile, String outputPath, boolean copyVideo, RateControl rate,
+                                    int threads) {
+        List<String> cmd = new ArrayList<>();
+        cmd.add("ffmpeg");
+        cmd.add("-v");
+        cmd.add("error"); // Only errors on stderr
+        cmd.add("-nostats");
+        cmd.add("-progress");
+        cmd.add("pipe:1"); // Machine-readable progress on stdout
+        cmd.add("-i");
+        cmd.add(videoFile.getFilePath());
+
+        if (copyVideo) {
+            cmd.add("-c:v");
+            cmd.add("copy"); // Remux: video is already efficient
+        } else {
+            addVideoEncodingArgs(cmd, rate, threads);
+        }
+        addAudioSubtitleArgs(cmd);
 
-        // Video settings
-        cmd.append(" -c:v ").append(settings.getOutputCodec());
-        cmd.append(" -crf ").append(settings.getCrf());
-        cmd.append(" -preset ").append(settings.getPreset());
+        if (rate.getPass() == 2) {
+            // Every stream as well, but the video first: the encoded stream must be output
+            // stream 0, as in the first pass
+            for (String type : new String[] {"0:v", "0:a?", "0:s?", "0:t?", "0:d?"}) {
+                cmd.add("-map");
+                cmd.add(type);
+            }
+        } else {
+            cmd.add("-map");
+            cmd.add("0"); // Map all streams
+        }
+        // Keep metadata
+        cmd.add("-map_metadata");
+        cmd.add("0"); // Preserve metadata
 
+        cmd.add("-f");
+        cmd.add("matroska"); // The temporary ".part" name has no usable extension
+        cmd.add(outputPath);
+        cmd.add("-y"); // Overwrite output file if it exists
+
+        return cmd;
+    }
+
+    /**
+     * Adds the video codec, CRF and preset options
+     */
+    void addVideoEncodingArgs(List<String> cmd, int crf) {
+        addVideoEncodingArgs(cmd, crf, 0);
+    }
+
+    /**
+     * Adds the video codec, CRF and preset options, limiting the encoder to the
+     * given number of threads (0 leaves the choice to the encoder)
+     */
+    void addVideoEncodingArgs(List<String> cmd, int crf, int threads) {
+        addVideoEncodingArgs(cmd, RateControl.crf(crf), threads);
+    }
+
+    /**
+     * Adds the video codec, rate control and preset options. A pass of a two-pass
+     * encode reads or writes its stats file: x265 takes it in -x265-params, the
+     * other encoders through FFmpeg's -pass and -passlogfile. The stats describe one
+     * stream, so the passes encode the first video stream of the output and copy any
+     * other; both must map it as output stream 0, where libx264 and others look for
+     * PREFIX-0.log.
+     */
+    void addVideoEncodingArgs(List<String> cmd, RateControl rate, int threads) {
+        boolean x265 = settings.getOutputCodec().equals("libx265");
+        List<String> x265Params = new ArrayList<>();
+        String video = ":v"; // Stream specifiers of the encoder options
+        String stream = "";
+        if (rate.getPass() > 0) {
+            cmd.add("-c:v");
+            cmd.add("copy");
+            video = ":v:0";
+            stream = video;
+        }
+        cmd.add("-c" + video);
+        cmd.add(settings.getOutputCodec());
+        if (rate.getBitrateKbps() > 0) {
+            cmd.add("-b" + video);
+            cmd.add(rate.getBitrateKbps() + "k");
+        } else {
+            cmd.add("-crf" + stream);
+            cmd.add(String.valueOf(rate.getCrf()));
+        }
+        cmd.add("-preset" + stream);
+        cmd.add(settings.getPreset());
+        if (threads > 0) {
+            cmd.add("-threads" + stream);
+            cmd.add(String.valueOf(threads));
+            if (x265) {
+                // x265 sizes its own thread pool and ignores -threads for it
+                x265Params.add("pools=" + threads);
+            }
+        }
+        if (rate.getPass() > 0) {
+            if (x265) {
+                x265Params.add("pass=" + rate.getPass());
+                x265Params.add("stats=" + rate.getStatsFile());
+                if (rate.getPass() == 1) {
+                    // Fast analysis settings, frame types kept (FFmpeg's libx264 does this by default)
+                    x265Params.add("slow-firstpass=0");
+                }
+            } else {
+                cmd.add("-pass" + stream);
+                cmd.add(String.valueOf(rate.getPass()));
+                cmd.add("-passlogfile" + stream);
+                cmd.add(rate.getStatsFile().toString());
+            }
+        }
+        if (!x265Params.isEmpty()) {
+            cmd.add("-x265-params" + stream);
+            cmd.add(String.join(":", x265Params));
+        }
+    }
+
+    /**
+     * Adds the audio and subtitle codec options
+     */
+    void addAudioSubtitleArgs(List<String> cmd) {
         // Keep all audio tracks
         if (settings.isKeepAllAudioTracks()) {
-            cmd.append(" -c:a copy"); // Copy audio without re-encoding
+            cmd.add("-c:a");
+            cmd.add("copy"); // Copy audio without re-encoding
         } else {
-            cmd.append(" -c:a aac -b:a 128k"); // Re-encode to AAC
+            cmd.add("-c:a");
+            cmd.add("aac"); // Re-encode to AAC
+            cmd.add("-b:a");
+            cmd.add("128k");
         }
 
         // Keep all subtitles
         if (settings.isKeepAllSubtitles()) {
-            cmd.append(" -c:s copy"); // Copy subtitles
+            cmd.add("-c:s");
+            cmd.add("copy"); // Copy subtitles
         }
+    }
 
-        // Keep metadata
-        cmd.append(" -map 0"); // Map all streams
-        cmd.append(" -map_metadata 0"); // Preserve metadata
+    /**
+     * Executes the compression command, reading machine-readable progress from stdout.
+     * With checkSize, the encode is stopped as soon as its output is projected to end up
+     * too close to the source size (see {@link CompressionSettings#getEarlyAbortRatio()}).
+     */
+    void executeCompression(List<String> command, VideoFile videoFile, boolean checkSize)
+            throws Exception {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        // Progress comes on stdout; FFmpeg's own messages (errors only) go to the console
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = CompressionScope.start(processBuilder);
+
+        EncodeProgress progress = new EncodeProgress(videoFile, checkSize);
+        ProgressParser parser = new ProgressParser(videoFile.getFilePath(), videoFile.getDurationSeconds(),
+                event -> {
+                    if (progress.report(event)) {
+                        process.destroyForcibly(); // Progress output ends and parse() returns
+                    }
+                });
 
-        cmd.append(" \"").append(outputPath).append("\"");
-        cmd.append(" -y"); // Overwrite output file if it exists
+        try (InputStream output = process.getInputStream()) {
+            parser.parse(output);
+        } catch (Exception e) {
+            process.destroyForcibly();
+            if (progress.isExceeded()) {
+                process.waitFor();
+                throw progress.toException(); // The stream closed because we stopped the encode
+            }
+            throw e;
+        } finally {
+            progress.end();
+        }
 
-        return cmd.toString();
+        int exitCode = process.waitFor();
+        if (progress.isExceeded()) {
+            throw progress.toException();
+        }
+        EncodeMetrics.recordExit("ffmpeg", exitCode);
+        if (exitCode != 0) {
+            throw new Exception("Compression error. Exit code: " + exitCode);
+        }
     }
 
     /**
-     * Executes the compression command
+     * Where the progress of one encode goes: the console line, the early abort check,
+     * the metrics, the compression scope and the progress listeners
      */
-    private void executeCompression(String command, Double durationSeconds) throws Exception {
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        
-        // Split command into parts for ProcessBuilder
-        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
-            processBuilder.command("cmd.exe", "/c", command);
-        } else {
-            processBuilder.command("bash", "-c", command);
+    final class EncodeProgress {
+        private final String inputPath;
+        private final SizeProjection projection;
+        private final ConsoleProgress console = new ConsoleProgress();
+        private final long startNanos = System.nanoTime();
+        private final long pausedBefore = CompressionScope.currentPausedNanos();
+
+        /**
+         * @param checkSize stop the encode when its output is projected too large
+         *                  (see {@link CompressionSettings#getEarlyAbortRatio()})
+         */
+        EncodeProgress(VideoFile videoFile, boolean checkSize) {
+            this.inputPath = videoFile.getFilePath();
+            this.projection = checkSize && settings.getEarlyAbortRatio() > 0
+                    ? new SizeProjection(videoFile.getOriginalSize(), settings.getEarlyAbortRatio()) : null;
+        }
+
+        /**
+         * Passes on a progress event from FFmpeg. Returns true once, when the encode must be stopped.
+         */
+        synchronized boolean report(ProgressEvent ffmpegEvent) {
+            ProgressEvent event = excludePausedTime(ffmpegEvent, startNanos,
+                    CompressionScope.currentPausedNanos() - pausedBefore);
+            if (consoleProgress) {
+                console.print(event);
+            }
+            boolean stop = projection != null && projection.exceeds(event);
+            EncodeMetrics.listener().onProgress(event);
+            CompressionScope.progress(event);
+            for (ProgressListener listener : progressListeners) {
+                listener.onProgress(event);
+            }
+            return stop;
         }
 
-        processBuilder.redirectErrorStream(true);
-        Process process = processBuilder.start();
+        synchronized boolean isExceeded() {
+            return projection != null && projection.isExceeded();
+        }
 
-        // Read and display progress
-        try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(process.getInputStream()))) {
-            String line;
-            int lastPercent = -1;
-            while ((line = reader.readLine()) != null) {
-                if (durationSeconds != null) {
-                    Double currentSeconds = extractTimeSeconds(line);
-                    if (currentSeconds != null) {
-                        int percent = (int) Math.min(100, Math.max(0,
-                                Math.round((currentSeconds / durationSeconds) * 100)));
-                        if (percent != lastPercent) {
-                            System.out.print("\rProgress: " + percent + "%");
-                            lastPercent = percent;
-                        }
-                    }
-                } else {
-                    // Fallback: show FFmpeg status lines when duration is unknown
-                    if (line.contains("frame=") || line.contains("time=") || 
-                        line.contains("speed=") || line.contains("error")) {
-                        System.out.println(line);
-                    }
+        synchronized OutputTooLargeException toException() {
+            return projection.toException();
+        }
+
+        /**
+         * Ends the console line and the encode's progress metrics
+         */
+        void end() {
+            EncodeMetrics.listener().encodeEnded(inputPath);
+            if (consoleProgress) {
+                System.out.println();
+            }
+        }
+    }
+
+    /**
+     * FFmpeg computes fps and speed over the wall time since it started, so a pause
+     * would drag them down for the rest of the encode. Recomputes them over the time
+     * the process actually ran.
+     */
+    static ProgressEvent excludePausedTime(ProgressEvent event, long startNanos, long pausedNanos) {
+        if (pausedNanos <= 0) {
+            return event;
+        }
+        double runSeconds = (System.nanoTime() - startNanos - pausedNanos) / 1e9;
+        if (runSeconds <= 0) {
+            return event;
+        }
+        return new ProgressEvent(event.getInputPath(), event.getFrame(), event.getFrame() / runSeconds,
+                event.getOutTimeMicros(), event.getBitrateKbps(), event.getOutTimeSeconds() / runSeconds,
+                event.getTotalSize(), event.getPercent(), event.isFinished());
+    }
+
+    /**
+     * Projects the final output size from the bytes written so far and the share of
+     * the duration they cover, and tells when it passes ratio * the source size
+     */
+    static final class SizeProjection {
+        static final double MIN_PERCENT = 10; // Headers and the first scenes say little before this
+
+        private final long originalSize;
+        private final double ratio;
+        private long projectedBytes;
+        private double percent;
+        private boolean exceeded;
+
+        SizeProjection(long originalSize, double ratio) {
+            this.originalSize = originalSize;
+            this.ratio = ratio;
+        }
+
+        /**
+         * Returns true once, for the first progress event whose projection is too large
+         */
+        boolean exceeds(ProgressEvent event) {
+            if (exceeded || event.isFinished() || originalSize <= 0
+                    || event.getPercent() < MIN_PERCENT || event.getTotalSize() <= 0) {
+                return false;
+            }
+            long projected = (long) (event.getTotalSize() * 100.0 / event.getPercent());
+            if (projected <= ratio * originalSize) {
+                return false;
+            }
+            projectedBytes = projected;
+            percent = event.getPercent();
+            exceeded = true;
+            return true;
+        }
+
+        boolean isExceeded() {
+            return exceeded;
+        }
+
+        OutputTooLargeException toException() {
+            return new OutputTooLargeException(projectedBytes, originalSize, percent, ratio);
+        }
+    }
+
+    /**
+     * Prints progress on a single console line, only when the percentage changes
+     */
+    private static class ConsoleProgress {
+        private int lastPercent = -1;
+
+        void print(ProgressEvent event) {
+            if (event.getPercent() >= 0) {
+                int percent = (int) Math.round(event.getPercent());
+                if (percent != lastPercent) {
+                    System.out.print("\rProgress: " + percent + "%");
+                    lastPercent = percent;
                 }
+            } else {
+                // Duration unknown: show the raw counters instead
+                System.out.printf("\rframe=%d fps=%.1f time=%.1fs speed=%.2fx",
+                        event.getFrame(), event.getFps(), event.getOutTimeSeconds(), event.getSpeed());
             }
         }
+    }
 
-        if (durationSeconds != null) {
-            System.out.println();
+    /**
+     * Compresses every MKV file below inputDirectory, keeping the folder structure
+     * in outputDirectory. Files are processed in the order of
+     * {@link CompressionSettings#getJobOrder()}, up to
+     * {@link CompressionSettings#getParallelJobs()} at the same time. With a library
+     * budget, each file is encoded at the bit rate {@link BudgetAllocator} gives it.
+     */
+    public List<CompressionJob> compressBatch(String inputDirectory, String outputDirectory) throws Exception {
+        Path inputRoot = Paths.get(inputDirectory).toAbsolutePath().normalize();
+        Path outputRoot = Paths.get(outputDirectory).toAbsolutePath().normalize();
+        List<LibraryScanner.Entry> entries = scanLibrary(inputRoot, outputRoot);
+        if (entries.isEmpty()) {
+            return new ArrayList<>();
         }
+        System.out.println("Parallel jobs: " + (settings.isAdaptiveConcurrency()
+                ? "adaptive, up to " + batchWorkers() : String.valueOf(settings.getParallelJobs())));
 
-        int exitCode = process.waitFor();
-        if (exitCode != 0) {
-            throw new Exception("Compression error. Exit code: " + exitCode);
+        // The journal lets a restarted batch skip finished files
+        List<CompressionJob> jobs;
+        // Staging closes first, after its last outputs were moved and journaled
+        try (BatchJournal journal = new BatchJournal(Paths.get(outputDirectory, BatchJournal.FILE_NAME));
+             ScratchStaging staging = openStaging()) {
+            journal.removePartialOutputs();
+            if (settings.getLibraryBudgetBytes() > 0) {
+                allocateBudget(entries, inputRoot, outputRoot, journal);
+            }
+
+            BatchScheduler scheduler = new BatchScheduler(analyzer, this, batchWorkers());
+            scheduler.setJournal(journal);
+            scheduler.setStaging(staging);
+            for (LibraryScanner.Entry entry : entries) {
+                Path outputPath = outputRoot.resolve(inputRoot.relativize(entry.getFile()));
+                scheduler.submit(entry.getFile().toString(), outputPath.toString());
+            }
+            jobs = scheduler.awaitCompletion();
+            if (staging != null) {
+                staging.awaitPublished();
+            }
+        }
+        printBatchSummary(jobs);
+        if (analyzer.getCache() != null) {
+            System.out.println("Analysis cache: " + analyzer.getCache().getHitCount() + " hits, "
+                    + analyzer.getCache().getMissCount() + " misses");
         }
+        return jobs;
     }
 
     /**
-     * Reads video duration in seconds using FFprobe
+     * Compresses the files listed in a manifest, one "input[TAB]output[TAB]priority" per line
+     * (output optional, see {@link #defaultOutputPath}; priority LOW, NORMAL or URGENT,
+     * NORMAL when missing; blank lines and lines starting with # are ignored). Lines are
+     * read as they arrive, so jobs start while a long manifest or a pipe is still being
+     * read, and an URGENT line pauses a lower priority job if every worker is busy.
+     * The journal at journalPath lets a rerun of the same manifest skip finished files.
      */
-    private Double getVideoDurationSeconds(String filePath) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder(
-                    "ffprobe",
-                    "-v", "error",
-                    "-show_entries", "format=duration",
-                    "-of", "default=noprint_wrappers=1:nokey=1",
-                    filePath
-            );
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
-
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()))) {
-                String line = reader.readLine();
-                process.waitFor();
-                if (line != null && !line.trim().isEmpty()) {
-                    return Double.parseDouble(line.trim());
+    public List<CompressionJob> compressManifest(BufferedReader manifest, Path journalPath) throws Exception {
+        List<CompressionJob> jobs;
+        try (BatchJournal journal = new BatchJournal(journalPath)) {
+            journal.removePartialOutputs();
+
+            BatchScheduler scheduler = new BatchScheduler(analyzer, this, batchWorkers());
+            scheduler.setJournal(journal);
+            String line;
+            while ((line = manifest.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
                 }
+                String[] fields = line.split("\t");
+                String output = fields.length > 1 && !fields[1].isBlank() ? fields[1] : defaultOutputPath(fields[0]);
+                scheduler.submit(fields[0], output, parsePriority(fields.length > 2 ? fields[2] : ""));
             }
-        } catch (Exception ignored) {
-            // If duration cannot be detected, return null to use fallback output
+            jobs = scheduler.awaitCompletion();
+        }
+        printBatchSummary(jobs);
+        return jobs;
+    }
+
+    private static CompressionJob.Priority parsePriority(String value) {
+        if (value.isBlank()) {
+            return CompressionJob.Priority.NORMAL;
+        }
+        try {
+            return CompressionJob.Priority.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: unknown priority '" + value.trim() + "', using NORMAL");
+            return CompressionJob.Priority.NORMAL;
         }
-        return null;
     }
 
     /**
-     * Extracts the current time (in seconds) from an FFmpeg output line
+     * Output used when none is given: output/NAME_compressed.mkv
      */
-    private Double extractTimeSeconds(String line) {
-        Matcher matcher = Pattern.compile("time=(\\d{2}):(\\d{2}):(\\d{2}\\.\\d+)").matcher(line);
-        if (!matcher.find()) {
-            return null;
+    public static String defaultOutputPath(String inputPath) {
+        String filename = inputPath.substring(inputPath.lastIndexOf('/') + 1);
+        return "output/" + filename.replace(".mkv", "_compressed.mkv");
+    }
+
+    /**
+     * Scans a library like {@link #compressBatch} but lets {@link BatchWorker} processes on
+     * other hosts do the work: the files are queued on a {@link BatchCoordinator} listening
+     * on port, which returns once every file was processed or failed
+     */
+    public List<CompressionJob> coordinateBatch(String inputDirectory, String outputDirectory, int port,
+                                                long leaseMillis) throws Exception {
+        Path inputRoot = Paths.get(inputDirectory).toAbsolutePath().normalize();
+        Path outputRoot = Paths.get(outputDirectory).toAbsolutePath().normalize();
+        List<LibraryScanner.Entry> entries = scanLibrary(inputRoot, outputRoot);
+        if (entries.isEmpty()) {
+            return new ArrayList<>();
         }
-        int hours = Integer.parseInt(matcher.group(1));
-        int minutes = Integer.parseInt(matcher.group(2));
-        double seconds = Double.parseDouble(matcher.group(3));
-        return (hours * 3600) + (minutes * 60) + seconds;
+
+        List<CompressionJob> jobs;
+        try (BatchJournal journal = new BatchJournal(outputRoot.resolve(BatchJournal.FILE_NAME));
+             BatchCoordinator coordinator = new BatchCoordinator(port, journal, leaseMillis)) {
+            journal.removePartialOutputs();
+            for (LibraryScanner.Entry entry : entries) {
+                Path outputPath = outputRoot.resolve(inputRoot.relativize(entry.getFile()));
+                coordinator.submit(entry.getFile().toString(), outputPath.toString(), entry.getVideoFile());
+            }
+            System.out.println("Waiting for workers...");
+            jobs = coordinator.awaitCompletion();
+        }
+        printBatchSummary(jobs);
+        return jobs;
     }
 
     /**
-     * Compresses multiple files in batch mode
+     * Finds and analyzes the MKV files below inputRoot, in the configured job order
      */
-    public void compressBatch(String inputDirectory, String outputDirectory) throws Exception {
-        File dir = new File(inputDirectory);
-        File[] mkvFiles = dir.listFiles((d, name) -> name.toLowerCase().endsWith(".mkv"));
+    private List<LibraryScanner.Entry> scanLibrary(Path inputRoot, Path outputRoot) throws IOException {
+        System.out.println("Scanning " + inputRoot + "...");
+        List<LibraryScanner.Entry> entries = new LibraryScanner(analyzer).scan(inputRoot, outputRoot, settings);
+        updateLibraryIndex(inputRoot, entries);
+
+        if (entries.isEmpty()) {
+            System.out.println("No MKV files found in: " + inputRoot);
+            return entries;
+        }
+
+        long expectedSavings = 0;
+        for (LibraryScanner.Entry entry : entries) {
+            expectedSavings += entry.getExpectedSavings();
+        }
+        System.out.println("Found " + entries.size() + " MKV files, about "
+                + VideoFile.formatFileSize(expectedSavings) + " to save");
+        System.out.println("Order: " + settings.getJobOrder());
+        return entries;
+    }
 
-        if (mkvFiles == null || mkvFiles.length == 0) {
-            System.out.println("No MKV files found in: " + inputDirectory);
+    /**
+     * Merges a scan into the library index, for later queries; a failure only costs the index
+     */
+    private void updateLibraryIndex(Path inputRoot, List<LibraryScanner.Entry> entries) {
+        Path indexPath = getLibraryIndexPath();
+        if (indexPath == null) {
             return;
         }
+        try {
+            LibraryIndex.open(indexPath).update(inputRoot, entries);
+        } catch (IOException e) {
+            System.err.println("Warning: could not update the library index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Splits the library budget between the files still to do; finished files count with
+     * their output, or their source when it was kept
+     */
+    private void allocateBudget(List<LibraryScanner.Entry> entries, Path inputRoot, Path outputRoot,
+                                BatchJournal journal) throws Exception {
+        long budget = settings.getLibraryBudgetBytes();
+        List<VideoFile> pending = new ArrayList<>();
+        for (LibraryScanner.Entry entry : entries) {
+            Path outputPath = outputRoot.resolve(inputRoot.relativize(entry.getFile()));
+            if (journal.isDone(entry.getFile().toString(), outputPath.toString())) {
+                budget -= Files.isRegularFile(outputPath) ? Files.size(outputPath) : Files.size(entry.getFile());
+            } else if (entry.getVideoFile() != null) {
+                pending.add(entry.getVideoFile());
+            }
+        }
+        allocatedBitrates.clear();
+        allocatedBitrates.putAll(new BudgetAllocator(getFirstPass()).allocate(pending, budget, settings,
+                batchWorkers()));
+    }
 
-        System.out.println("Found " + mkvFiles.length + " MKV files");
-        
-        VideoAnalyzer analyzer = new VideoAnalyzer();
-        int count = 1;
+    /**
+     * Video bit rate the library budget gave the file, 0 when there is none
+     */
+    int getAllocatedBitrate(String inputPath) {
+        return allocatedBitrates.getOrDefault(inputPath, 0);
+    }
 
-        for (File file : mkvFiles) {
-            System.out.println("\n[" + count + "/" + mkvFiles.length + "] Processing: " + file.getName());
-            
-            VideoFile videoFile = analyzer.analyzeVideo(file.getAbsolutePath());
-            String outputPath = outputDirectory + File.separator + file.getName();
-            
-            compressVideo(videoFile, outputPath);
-            count++;
+    /**
+     * Opens scratch staging when a scratch directory is configured, otherwise returns null
+     */
+    private ScratchStaging openStaging() throws IOException {
+        if (settings.getScratchDirectory() == null) {
+            return null;
         }
+        // Keep one input ready for every worker
+        return new ScratchStaging(Paths.get(settings.getScratchDirectory()), settings.getScratchBudgetBytes(),
+                Math.max(2, batchWorkers()));
+    }
+
+    /**
+     * Prints the final status of every job in a batch
+     */
+    private void printBatchSummary(List<CompressionJob> jobs) {
+        long originalTotal = 0;
+        long compressedTotal = 0;
+        int failed = 0;
 
         System.out.println("\n=== Batch compression completed ===");
+        for (CompressionJob job : jobs) {
+            String name = new File(job.getInputPath()).getName();
+            if (job.isResumed()) {
+                System.out.println("  DONE   " + name + " (previous run)");
+                continue;
+            }
+            if (job.getStatus() == CompressionJob.Status.COMPLETED) {
+                VideoFile videoFile = job.getVideoFile();
+                CompressionDecision decision = videoFile.getDecision();
+                if (decision != null && decision.getAction() == CompressionDecision.Action.SKIP) {
+                    System.out.println("  SKIP   " + name + ": " + decision.getReason());
+                    continue;
+                }
+                if (decision != null && decision.getAction() == CompressionDecision.Action.DUPLICATE) {
+                    System.out.println("  DUP    " + name + ": " + decision.getReason());
+                    continue;
+                }
+                originalTotal += videoFile.getOriginalSize();
+                compressedTotal += videoFile.getCompressedSize();
+                System.out.printf("  OK     %s (%.2f%% reduction)\n", name, videoFile.getCompressionPercentage());
+            } else {
+                failed++;
+                System.out.println("  FAILED " + name + ": " + job.getErrorMessage());
+            }
+        }
+
+        System.out.println("Completed: " + (jobs.size() - failed) + ", failed: " + failed);
+        System.out.println("Total saved: " + VideoFile.formatFileSize(originalTotal - compressedTotal));
     }
 
     // Getters and Setters
@@ -226,4 +819,116 @@ public class VideoCompressor {
     public void setSettings(CompressionSettings settings) {
         this.settings = settings;
     }
+
+    /**
+     * Registers a listener that receives progress events of every compression
+     */
+    public void addProgressListener(ProgressListener listener) {
+        progressListeners.add(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        progressListeners.remove(listener);
+    }
+
+    public boolean isConsoleProgress() {
+        return consoleProgress;
+    }
+
+    /**
+     * Enables or disables the "Progress: N%" console line (enabled by default)
+     */
+    public void setConsoleProgress(boolean consoleProgress) {
+        this.consoleProgress = consoleProgress;
+    }
+
+    /**
+     * Returns the CRF search used in auto CRF mode, with the default cache unless one was set
+     */
+    public synchronized CrfSearch getCrfSearch() {
+        if (crfSearch == null) {
+            crfSearch = CrfSearch.withDefaultCache();
+        }
+        return crfSearch;
+    }
+
+    public synchronized void setCrfSearch(CrfSearch crfSearch) {
+        this.crfSearch = crfSearch;
+    }
+
+    /**
+     * Returns the first-pass runner of two-pass encodes, with the default cache unless one was set
+     */
+    public synchronized FirstPass getFirstPass() {
+        if (firstPass == null) {
+            firstPass = FirstPass.withDefaultCache(this);
+        }
+        return firstPass;
+    }
+
+    public synchronized void setFirstPass(FirstPass firstPass) {
+        this.firstPass = firstPass;
+    }
+
+    /**
+     * Returns the index batches check for content compressed before, with the default
+     * file unless one was set; null when duplicates are encoded like any other file
+     */
+    public synchronized FingerprintIndex getFingerprintIndex() throws IOException {
+        if (settings.getDuplicateHandling() == DuplicateHandling.ENCODE) {
+            return null;
+        }
+        if (fingerprintIndex == null) {
+            fingerprintIndex = FingerprintIndex.openDefault();
+        }
+        return fingerprintIndex;
+    }
+
+    public synchronized void setFingerprintIndex(FingerprintIndex fingerprintIndex) {
+        this.fingerprintIndex = fingerprintIndex;
+    }
+
+    public synchronized Path getLibraryIndexPath() {
+        return libraryIndexPath;
+    }
+
+    /**
+     * Sets the library index every scan updates (null keeps none)
+     */
+    public synchronized void setLibraryIndexPath(Path libraryIndexPath) {
+        this.libraryIndexPath = libraryIndexPath;
+    }
+
+    /**
+     * Returns the governor used in adaptive mode, or null when parallelJobs is fixed
+     */
+    public synchronized ConcurrencyGovernor getGovernor() {
+        if (governor == null && settings.isAdaptiveConcurrency()) {
+            governor = new ConcurrencyGovernor(ConcurrencyGovernor.defaultMaxJobs());
+        }
+        return governor;
+    }
+
+    public synchronized void setGovernor(ConcurrencyGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Worker threads a batch needs: in adaptive mode the governor limits the encodes
+     */
+    int batchWorkers() {
+        ConcurrencyGovernor governor = getGovernor();
+        return governor != null ? governor.getMaxJobs() : settings.getParallelJobs();
+    }
+
+    public VideoAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * Sets the analyzer used in batch mode, e.g. one with an AnalysisCache
+     */
+    public void setAnalyzer(VideoAnalyzer analyzer) {
+        this.analyzer = analyzer;
+    }
 }
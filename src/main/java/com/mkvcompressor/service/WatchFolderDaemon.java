@@ -0,0 +1,321 @@
+package com.mkvcompressor.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mkvcompressor.model.CompressionJob;
+
+/**
+ * Long-running ingest mode: watches a folder tree for new or modified MKV files
+ * and compresses each one once it has stopped changing.
+ *
+ * A file is handed to the workers only after its size and modification time stayed
+ * the same for {@link #getStableSeconds()} and no other process holds a lock on it.
+ * Stable files go into a bounded queue; while it is full they simply wait as
+ * candidates, so a large bulk copy never turns into thousands of pending jobs.
+ * A file that is queued or running is never queued a second time.
+ */
+public class WatchFolderDaemon {
+
+    /**
+     * Size and modification time of a file the last time it was looked at
+     */
+    private static class Observation {
+        final long size;
+        final long modified;
+        final long changedAt; // System.nanoTime() of the last change seen
+
+        Observation(long size, long modified, long changedAt) {
+            this.size = size;
+            this.modified = modified;
+            this.changedAt = changedAt;
+        }
+
+        String fingerprint() {
+            return size + ":" + modified;
+        }
+    }
+
+    private final Path watchDir;
+    private final Path outputDir;
+    private final VideoCompressor compressor;
+    private final JobRunner runner;
+
+    private int stableSeconds = 10;
+    private int queueCapacity = 16;
+
+    private final Map<Path, Observation> candidates = new ConcurrentHashMap<>();
+    private final Set<Path> active = ConcurrentHashMap.newKeySet(); // Queued or running
+    private final Map<Path, String> completed = new ConcurrentHashMap<>(); // Fingerprint when processed
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private BlockingQueue<Path> queue;
+    private volatile boolean running;
+
+    public WatchFolderDaemon(VideoAnalyzer analyzer, VideoCompressor compressor, String watchDir, String outputDir) {
+        this.watchDir = Path.of(watchDir).toAbsolutePath().normalize();
+        this.outputDir = Path.of(outputDir).toAbsolutePath().normalize();
+        this.compressor = compressor;
+        this.runner = new JobRunner(analyzer, compressor);
+    }
+
+    /**
+     * Watches the folder until {@link #stop()} is called. Files already in the
+     * folder are picked up as well, except those the journal shows as done.
+     */
+    public void run() throws Exception {
+        if (!Files.isDirectory(watchDir)) {
+            throw new IOException("Watch folder not found: " + watchDir);
+        }
+        int workers = compressor.batchWorkers();
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+
+        System.out.println("Watching " + watchDir + " (" + workers + " workers, files must be stable for "
+                + stableSeconds + "s)");
+
+        try (BatchJournal journal = new BatchJournal(outputDir.resolve(BatchJournal.FILE_NAME));
+             WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            journal.removePartialOutputs();
+            runner.setJournal(journal);
+
+            Thread[] threads = new Thread[workers];
+            for (int i = 0; i < workers; i++) {
+                threads[i] = new Thread(this::workerLoop, "watch-worker-" + (i + 1));
+                threads[i].start();
+            }
+
+            registerTree(watchService, watchDir);
+            long nextCheck = 0;
+            while (running) {
+                WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    handleEvents(watchService, key);
+                }
+                if (System.nanoTime() >= nextCheck) {
+                    promoteStableFiles();
+                    nextCheck = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+                }
+            }
+
+            // Let the running encodes finish; queued files are picked up again on the next start
+            EncodeMetrics.JOBS_QUEUED.add(-queue.drainTo(new ArrayList<>()));
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        System.out.println("Watch mode stopped");
+    }
+
+    /**
+     * Asks {@link #run()} to return once the running jobs have finished
+     */
+    public void stop() {
+        running = false;
+    }
+
+    private void handleEvents(WatchService watchService, WatchKey key) throws IOException {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost: rescan everything, the candidate map removes duplicates
+                System.out.println("Watch events overflowed, rescanning " + watchDir);
+                registerTree(watchService, watchDir);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                registerTree(watchService, path);
+            } else if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE) {
+                observe(path);
+            }
+        }
+        key.reset();
+    }
+
+    /**
+     * Watches a directory and its subdirectories and records the MKV files already in them
+     */
+    private void registerTree(WatchService watchService, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.startsWith(outputDir)) {
+                    return FileVisitResult.SKIP_SUBTREE; // Never ingest our own outputs
+                }
+                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                observe(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // Deleted while walking
+            }
+        });
+    }
+
+    /**
+     * Notes a file as a candidate, or restarts its stability timer when it changed
+     */
+    private void observe(Path file) {
+        if (!file.getFileName().toString().toLowerCase().endsWith(".mkv") || file.startsWith(outputDir)) {
+            return;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return;
+            }
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            candidates.compute(file, (path, previous) ->
+                    previous != null && previous.size == size && previous.modified == modified
+                            ? previous
+                            : new Observation(size, modified, System.nanoTime()));
+        } catch (IOException e) {
+            candidates.remove(file); // Gone already
+        }
+    }
+
+    /**
+     * Moves candidates that have settled into the job queue, as long as it has room
+     */
+    private void promoteStableFiles() {
+        long stableNanos = TimeUnit.SECONDS.toNanos(stableSeconds);
+        Iterator<Map.Entry<Path, Observation>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Observation> entry = iterator.next();
+            Path file = entry.getKey();
+            if (active.contains(file)) {
+                continue; // Looked at again when the current run finishes
+            }
+
+            observe(file);
+            Observation observation = candidates.get(file);
+            if (observation == null) {
+                continue;
+            }
+            if (System.nanoTime() - observation.changedAt < stableNanos) {
+                continue;
+            }
+            if (!isUnlocked(file)) {
+                candidates.put(file, new Observation(observation.size, observation.modified, System.nanoTime()));
+                continue;
+            }
+            if (observation.fingerprint().equals(completed.get(file))) {
+                iterator.remove(); // Unchanged since we processed it
+                continue;
+            }
+
+            active.add(file);
+            if (!queue.offer(file)) {
+                active.remove(file);
+                return; // Queue full: leave the rest waiting until workers catch up
+            }
+            EncodeMetrics.JOBS_QUEUED.inc();
+            iterator.remove();
+        }
+    }
+
+    private void workerLoop() {
+        while (running) {
+            Path file;
+            try {
+                file = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (file == null) {
+                continue;
+            }
+
+            String fingerprint = null;
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                fingerprint = attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+            } catch (IOException e) {
+                // Deleted while queued; the job reports the missing file
+            }
+
+            Path output = outputDir.resolve(watchDir.relativize(file));
+            CompressionJob job = new CompressionJob(nextId.getAndIncrement(), file.toString(), output.toString());
+            // A file we already processed in this session was replaced, so the journal entry is stale
+            runner.run(job, !completed.containsKey(file));
+            System.out.println("[job " + job.getId() + "] " + job.getStatus() + " (" + queue.size() + " queued, "
+                    + candidates.size() + " waiting)");
+
+            if (fingerprint != null) {
+                completed.put(file, fingerprint);
+            }
+            active.remove(file);
+            observe(file); // Changes made while it was running get a new turn
+        }
+    }
+
+    /**
+     * Checks that no other process holds a lock on the file. Writers that do not
+     * lock are covered by the size and modification time checks.
+     */
+    private static boolean isUnlocked(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true)) {
+            return lock != null;
+        } catch (IOException | OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    // Getters and Setters
+    public int getStableSeconds() {
+        return stableSeconds;
+    }
+
+    public void setStableSeconds(int stableSeconds) {
+        if (stableSeconds < 1) {
+            throw new IllegalArgumentException("Stable time must be at least 1 second");
+        }
+        this.stableSeconds = stableSeconds;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Maximum number of stable files waiting for a worker
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+}
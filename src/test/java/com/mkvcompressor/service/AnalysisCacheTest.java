@@ -0,0 +1,154 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+class AnalysisCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsAnAnalysis() throws IOException {
+        File movie = movie("movie.mkv", "content");
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            cache.put(movie, analysis(movie));
+        }
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            VideoFile cached = cache.get(movie);
+            assertNotNull(cached);
+            assertEquals("H.264", cached.getVideoCodec());
+            assertEquals(8_000_000, cached.getBitRate());
+            assertEquals(640_000, cached.getStreams().get(1).getBitRate());
+        }
+    }
+
+    @Test
+    void instancesSeeEachOthersRecords() throws IOException {
+        File first = movie("first.mkv", "1");
+        File second = movie("second.mkv", "2");
+        try (AnalysisCache a = new AnalysisCache(cachePath());
+             AnalysisCache b = new AnalysisCache(cachePath())) {
+            a.put(first, analysis(first));
+            b.put(second, analysis(second));
+            a.put(first, analysis(first));
+        }
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            assertEquals(2, cache.size());
+            assertNotNull(cache.get(first));
+            assertNotNull(cache.get(second));
+        }
+    }
+
+    @Test
+    void keepsWorkingAfterAnotherInstanceCompacts() throws IOException {
+        File first = movie("first.mkv", "1");
+        File second = movie("second.mkv", "2");
+        AnalysisCache b = new AnalysisCache(cachePath());
+        try (AnalysisCache a = new AnalysisCache(cachePath())) {
+            for (int i = 0; i < 3; i++) {
+                a.put(first, analysis(first)); // Two stale records: compacted on close
+            }
+        }
+        try (b) {
+            b.put(second, analysis(second));
+            assertNotNull(b.get(first));
+        }
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            assertEquals(2, cache.size());
+            assertNotNull(cache.get(first));
+            assertNotNull(cache.get(second));
+        }
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.filter(path -> path.toString().endsWith(".tmp")).count());
+        }
+    }
+
+    @Test
+    void startsOverOnADamagedRecord() throws IOException {
+        File movie = movie("movie.mkv", "content");
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            cache.put(movie, analysis(movie));
+        }
+        try (OutputStream out = Files.newOutputStream(cachePath(), StandardOpenOption.APPEND)) {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(4);
+            data.writeInt(0xFFFF0000); // Key length beyond the record
+        }
+
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            assertEquals(0, cache.size());
+            cache.put(movie, analysis(movie));
+        }
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            assertNotNull(cache.get(movie));
+        }
+    }
+
+    @Test
+    void dropsATornTail() throws IOException {
+        File movie = movie("movie.mkv", "content");
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            cache.put(movie, analysis(movie));
+        }
+        long length = Files.size(cachePath());
+        Files.write(cachePath(), new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            assertEquals(length, Files.size(cachePath()));
+            assertNotNull(cache.get(movie));
+        }
+    }
+
+    @Test
+    void contentHashCatchesInPlaceEdits() throws IOException {
+        File movie = movie("movie.mkv", "content");
+        FileTime modified = Files.getLastModifiedTime(movie.toPath());
+        try (AnalysisCache cache = new AnalysisCache(cachePath())) {
+            cache.setContentHashEnabled(true);
+            cache.put(movie, analysis(movie));
+            assertNotNull(cache.get(movie));
+
+            Files.writeString(movie.toPath(), "CONTENT"); // Same size, same mtime
+            Files.setLastModifiedTime(movie.toPath(), modified);
+            assertNull(cache.get(movie));
+        }
+    }
+
+    private Path cachePath() {
+        return dir.resolve("analysis-cache.bin");
+    }
+
+    private File movie(String name, String content) throws IOException {
+        return Files.writeString(dir.resolve(name), content).toFile();
+    }
+
+    private static VideoFile analysis(File file) {
+        VideoFile videoFile = new VideoFile(file.getPath());
+        videoFile.setOriginalSize(file.length());
+        videoFile.setVideoCodec("H.264");
+        videoFile.setResolution("1920x1080");
+        videoFile.setBitRate(8_000_000);
+        videoFile.addStream(new StreamInfo(0, StreamInfo.TYPE_VIDEO, "H.264"));
+        StreamInfo audio = new StreamInfo(1, StreamInfo.TYPE_AUDIO, "AC3");
+        audio.setBitRate(640_000);
+        videoFile.addStream(audio);
+        return videoFile;
+    }
+}
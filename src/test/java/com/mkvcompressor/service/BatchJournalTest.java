@@ -0,0 +1,60 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBackFinishedFiles() throws IOException {
+        Path output = Files.writeString(dir.resolve("out.mkv"), "encoded");
+        try (BatchJournal journal = new BatchJournal(journalPath())) {
+            journal.record(BatchJournal.State.ENCODING, "a.mkv", output.toString());
+            journal.record(BatchJournal.State.DONE, "a.mkv", output.toString(), 7, 0xABC, null);
+            journal.record(BatchJournal.State.ENCODING, "b.mkv", "b-out.mkv");
+        }
+        try (BatchJournal journal = new BatchJournal(journalPath())) {
+            assertTrue(journal.isDone("a.mkv", output.toString()));
+            assertEquals(0xABC, journal.getEntry("a.mkv").getChecksum());
+            assertEquals(1, journal.getInterrupted().size());
+        }
+    }
+
+    @Test
+    void survivesACharacterCutInHalf() throws IOException {
+        try (BatchJournal journal = new BatchJournal(journalPath())) {
+            journal.record(BatchJournal.State.DONE, "a.mkv", "a-out.mkv", -1, 0, null);
+        }
+        // Crash in the middle of "é": only the first of its two bytes reached the disk
+        byte[] line = "1\tENCODING\tfilmé.mkv\touté.mkv\t-1\t0\tmessage é"
+                .getBytes(StandardCharsets.UTF_8);
+        Files.write(journalPath(), Arrays.copyOf(line, line.length - 1), StandardOpenOption.APPEND);
+
+        try (BatchJournal journal = new BatchJournal(journalPath())) {
+            assertTrue(journal.isDone("a.mkv", "a-out.mkv"));
+            assertNull(journal.getEntry("filmé.mkv"));
+            journal.record(BatchJournal.State.DONE, "c.mkv", "c-out.mkv", -1, 0, null);
+        }
+        try (BatchJournal journal = new BatchJournal(journalPath())) {
+            assertTrue(journal.isDone("c.mkv", "c-out.mkv"));
+        }
+    }
+
+    private Path journalPath() {
+        return dir.resolve(BatchJournal.FILE_NAME);
+    }
+}
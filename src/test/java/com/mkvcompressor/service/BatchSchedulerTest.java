@@ -0,0 +1,71 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionJob;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.VideoFile;
+
+class BatchSchedulerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void urgentJobWithTheContentOfThePausedJobRuns() throws Exception {
+        CountDownLatch normalStarted = new CountDownLatch(1);
+        CountDownLatch urgentEncoded = new CountDownLatch(1);
+        boolean[] urgentFirst = new boolean[1];
+
+        CompressionSettings settings = new CompressionSettings();
+        VideoCompressor compressor = new VideoCompressor(settings) {
+            @Override
+            public void compressVideo(VideoFile videoFile, String outputPath) throws Exception {
+                if (outputPath.endsWith("normal.mkv")) {
+                    normalStarted.countDown();
+                    // Paused while the urgent job runs; must not be needed by it
+                    urgentFirst[0] = urgentEncoded.await(30, TimeUnit.SECONDS);
+                } else {
+                    urgentEncoded.countDown();
+                }
+                Files.writeString(Path.of(outputPath), "encoded");
+                videoFile.setDecision(new CompressionDecision(CompressionDecision.Action.ENCODE, "test"));
+                videoFile.setCompressedSize(7);
+            }
+        };
+        compressor.setFingerprintIndex(new FingerprintIndex(dir.resolve("fingerprints.tsv")));
+        VideoAnalyzer analyzer = new VideoAnalyzer() {
+            @Override
+            public VideoFile analyzeVideo(String filePath) {
+                VideoFile videoFile = new VideoFile(filePath);
+                videoFile.setFingerprint("same-content");
+                videoFile.setOriginalSize(100);
+                return videoFile;
+            }
+        };
+
+        BatchScheduler scheduler = new BatchScheduler(analyzer, compressor, 1);
+        scheduler.submit(dir.resolve("a.mkv").toString(), dir.resolve("normal.mkv").toString());
+        assertTrue(normalStarted.await(10, TimeUnit.SECONDS));
+        CompressionJob urgent = scheduler.submit(dir.resolve("b.mkv").toString(),
+                dir.resolve("urgent.mkv").toString(), CompressionJob.Priority.URGENT);
+        List<CompressionJob> jobs = scheduler.awaitCompletion();
+
+        assertTrue(urgentFirst[0], "the urgent job waited for the job it paused");
+        assertEquals(CompressionDecision.Action.ENCODE, urgent.getVideoFile().getDecision().getAction());
+        for (CompressionJob job : jobs) {
+            assertEquals(CompressionJob.Status.COMPLETED, job.getStatus());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.CompressionJob;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.VideoFile;
+
+class BatchWorkerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void workersShareTheBatch() throws Exception {
+        Set<String> partials = ConcurrentHashMap.newKeySet();
+        List<CompressionJob> jobs;
+        List<Thread> threads = new ArrayList<>();
+        try (BatchCoordinator coordinator = new BatchCoordinator(0, null, 5000)) {
+            for (int i = 0; i < 6; i++) {
+                Path input = Files.writeString(dir.resolve("in" + i + ".mkv"), "source " + i);
+                coordinator.submit(input.toString(), dir.resolve("out" + i + ".mkv").toString(), null);
+            }
+            for (int i = 0; i < 2; i++) {
+                FakeCompressor compressor = new FakeCompressor(partials, null);
+                BatchWorker worker = new BatchWorker("http://localhost:" + coordinator.getPort() + "/",
+                        new FakeAnalyzer(), compressor);
+                Thread thread = new Thread(() -> {
+                    try {
+                        worker.run();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            jobs = coordinator.awaitCompletion();
+        }
+        for (Thread thread : threads) {
+            thread.join(30_000);
+            assertFalse(thread.isAlive());
+        }
+
+        assertEquals(6, jobs.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(CompressionJob.Status.COMPLETED, jobs.get(i).getStatus());
+            assertEquals("encoded source " + i, Files.readString(dir.resolve("out" + i + ".mkv")));
+        }
+        assertEquals(6, partials.size()); // One partial name per lease
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.filter(path -> path.toString().endsWith(".part")).count());
+        }
+    }
+
+    @Test
+    void stopsTheEncodeWhenTheLeaseCannotBeRenewed() throws Exception {
+        Path input = Files.writeString(dir.resolve("in.mkv"), "source");
+        String output = dir.resolve("out.mkv").toString();
+        CountDownLatch started = new CountDownLatch(1);
+        FakeCompressor compressor = new FakeCompressor(ConcurrentHashMap.newKeySet(), started);
+        BatchWorker worker;
+        Thread thread;
+        try (BatchCoordinator coordinator = new BatchCoordinator(0, null, 1000)) {
+            coordinator.submit(input.toString(), output, null);
+            worker = new BatchWorker("http://localhost:" + coordinator.getPort(), new FakeAnalyzer(), compressor);
+            thread = new Thread(() -> {
+                try {
+                    worker.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            thread.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+        } // The coordinator goes away: no more renewals
+
+        long stopped = System.nanoTime();
+        worker.stop();
+        thread.join(20_000);
+        assertFalse(thread.isAlive());
+        // The encode was killed half a lease after the last renewal, not after its 30 seconds
+        assertTrue(compressor.encodeEnded > 0 && compressor.encodeEnded - stopped < TimeUnit.SECONDS.toNanos(5));
+        assertFalse(Files.exists(dir.resolve("out.mkv")));
+    }
+
+    @Test
+    void restartRemovesThePartialOutputsOfLostLeases() throws Exception {
+        Path input = Files.writeString(dir.resolve("in.mkv"), "source");
+        String output = dir.resolve("out.mkv").toString();
+        Path journalPath = dir.resolve(BatchJournal.FILE_NAME);
+        Path partial;
+        try (BatchJournal journal = new BatchJournal(journalPath);
+             BatchCoordinator coordinator = new BatchCoordinator(0, journal, 60_000)) {
+            coordinator.submit(input.toString(), output, null);
+            Properties request = new Properties();
+            request.setProperty("worker", "crashed/1");
+            HttpResponse<byte[]> response = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create("http://localhost:" + coordinator.getPort() + "/lease"))
+                            .POST(HttpRequest.BodyPublishers.ofByteArray(BatchCoordinator.encode(request)))
+                            .build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            String leaseId = BatchCoordinator.decode(response.body()).getProperty("lease");
+            partial = Files.writeString(Path.of(VideoCompressor.partialPath(output, leaseId)), "half");
+        } // The coordinator goes down with the lease still out
+        Path unrelated = Files.writeString(dir.resolve("other.mkv.part"), "someone else's");
+
+        try (BatchJournal journal = new BatchJournal(journalPath)) {
+            journal.removePartialOutputs();
+        }
+        assertFalse(Files.exists(partial));
+        assertTrue(Files.exists(unrelated));
+    }
+
+    private static final class FakeAnalyzer extends VideoAnalyzer {
+        @Override
+        public VideoFile analyzeVideo(String filePath) throws Exception {
+            VideoFile videoFile = new VideoFile(filePath);
+            videoFile.setOriginalSize(Files.size(Path.of(filePath)));
+            return videoFile;
+        }
+    }
+
+    /**
+     * "Encodes" by prefixing the input, or runs a 30 second process that the lease watchdog must kill
+     */
+    private static final class FakeCompressor extends VideoCompressor {
+        private final Set<String> partials;
+        private final CountDownLatch hang;
+        volatile long encodeEnded;
+
+        FakeCompressor(Set<String> partials, CountDownLatch hang) {
+            super(settings());
+            this.partials = partials;
+            this.hang = hang;
+        }
+
+        @Override
+        void compressVideo(VideoFile videoFile, String outputPath, String partialTag) throws Exception {
+            Path partial = Path.of(VideoCompressor.partialPath(outputPath, partialTag));
+            partials.add(partial.toString());
+            Files.writeString(partial, "encoded " + Files.readString(Path.of(videoFile.getFilePath())));
+            try {
+                if (hang != null) {
+                    Process process = CompressionScope.start(new ProcessBuilder("sleep", "30"));
+                    hang.countDown();
+                    int exitCode = process.waitFor();
+                    encodeEnded = System.nanoTime();
+                    throw new Exception("Compression error. Exit code: " + exitCode);
+                }
+                Thread.sleep(100);
+                Files.move(partial, Path.of(outputPath));
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+            videoFile.setCompressedSize(Files.size(Path.of(outputPath)));
+        }
+
+        private static CompressionSettings settings() {
+            CompressionSettings settings = new CompressionSettings();
+            settings.setParallelJobs(2);
+            return settings;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.mkvcompressor.model.CompressionDecision;
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+class DecisionEngineTest {
+
+    private final DecisionEngine engine = new DecisionEngine();
+
+    @Test
+    void subtractsLosslessAudioBeforeBitsPerPixel() {
+        // 3 Mb/s of HEVC next to an 8-channel TrueHD track: efficient video, large file
+        VideoFile videoFile = hevc1080p(7_400_000);
+        videoFile.addStream(audio("TrueHD", 8, 0));
+
+        assertEquals(7_400_000 - 4_400_000, DecisionEngine.videoBitRate(videoFile));
+        assertEquals(CompressionDecision.Action.SKIP, engine.decide(videoFile, new CompressionSettings()).getAction());
+    }
+
+    @Test
+    void prefersTheStatedVideoRate() {
+        VideoFile videoFile = hevc1080p(20_000_000);
+        videoFile.getStreams().get(0).setBitRate(2_500_000);
+        videoFile.addStream(audio("DTS", 6, 0));
+
+        assertEquals(2_500_000, DecisionEngine.videoBitRate(videoFile));
+        assertEquals(CompressionDecision.Action.SKIP, engine.decide(videoFile, new CompressionSettings()).getAction());
+    }
+
+    @Test
+    void usesStatedAudioRates() {
+        VideoFile videoFile = hevc1080p(12_000_000);
+        videoFile.addStream(audio("TrueHD", 8, 3_000_000));
+        videoFile.addStream(audio("AC3", 6, 640_000));
+
+        assertEquals(12_000_000 - 3_640_000, DecisionEngine.videoBitRate(videoFile));
+        assertEquals(CompressionDecision.Action.ENCODE,
+                engine.decide(videoFile, new CompressionSettings()).getAction());
+    }
+
+    @Test
+    void keepsAShareForTheVideoWhenEstimatesOvershoot() {
+        VideoFile videoFile = hevc1080p(2_000_000);
+        videoFile.addStream(audio("PCM_S24LE", 8, 0));
+
+        assertEquals(200_000, DecisionEngine.videoBitRate(videoFile));
+    }
+
+    @Test
+    void savingsCountOnlyTheVideoShare() {
+        CompressionSettings settings = new CompressionSettings();
+        VideoFile videoOnly = hevc1080p(10_000_000);
+        VideoFile withAudio = hevc1080p(10_000_000);
+        withAudio.addStream(audio("TrueHD", 8, 5_000_000));
+        CompressionDecision encode = new CompressionDecision(CompressionDecision.Action.ENCODE, "test");
+
+        long all = engine.estimateSavings(videoOnly, encode, settings);
+        long half = engine.estimateSavings(withAudio, encode, settings);
+        // Half the file is audio, and the half that is video has the lower bits per pixel
+        assertTrue(half < all / 2);
+    }
+
+    private static VideoFile hevc1080p(long bitRate) {
+        VideoFile videoFile = new VideoFile("movie.mkv");
+        videoFile.setVideoCodec("H.265");
+        videoFile.setResolution("1920x1080");
+        videoFile.setFrameRate(24);
+        videoFile.setBitRate(bitRate);
+        videoFile.setOriginalSize(bitRate / 8 * 7200);
+        videoFile.addStream(new StreamInfo(0, StreamInfo.TYPE_VIDEO, "H.265"));
+        return videoFile;
+    }
+
+    private static StreamInfo audio(String codec, int channels, long bitRate) {
+        StreamInfo stream = new StreamInfo(1, StreamInfo.TYPE_AUDIO, codec);
+        stream.setChannels(channels);
+        stream.setBitRate(bitRate);
+        return stream;
+    }
+}
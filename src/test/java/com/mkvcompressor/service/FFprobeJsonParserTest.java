@@ -0,0 +1,87 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+class FFprobeJsonParserTest {
+
+    private static final String PROBE = "{\n"
+            + "  \"programs\": [],\n"
+            + "  \"streams\": [\n"
+            + "    {\"index\": 0, \"codec_name\": \"hevc\", \"codec_type\": \"video\", \"width\": 3840,\n"
+            + "     \"height\": 2160, \"pix_fmt\": \"yuv420p10le\", \"r_frame_rate\": \"24/1\",\n"
+            + "     \"avg_frame_rate\": \"24000/1001\", \"side_data_list\": [{\"type\": \"x\", \"v\": [1, 2]}],\n"
+            + "     \"disposition\": {\"default\": 1, \"forced\": 0},\n"
+            + "     \"tags\": {\"language\": \"eng\", \"BPS\": \"2500000\"}},\n"
+            + "    {\"index\": 1, \"codec_name\": \"truehd\", \"codec_type\": \"audio\", \"channels\": 8,\n"
+            + "     \"bit_rate\": \"4100000\",\n"
+            + "     \"disposition\": {\"default\": 0, \"forced\": 0},\n"
+            + "     \"tags\": {\"LANGUAGE\": \"fre\", \"title\": \"Fran\\u00e7ais \\\"VF\\\"\"}},\n"
+            + "    {\"index\": 2, \"codec_name\": \"hdmv_pgs_subtitle\", \"codec_type\": \"subtitle\",\n"
+            + "     \"disposition\": {\"default\": 0, \"forced\": 1}},\n"
+            + "    {\"index\": 3, \"codec_name\": \"mjpeg\", \"codec_type\": \"video\", \"width\": 600,\n"
+            + "     \"height\": 900, \"avg_frame_rate\": \"0/0\"}\n"
+            + "  ],\n"
+            + "  \"format\": {\"filename\": \"movie.mkv\", \"duration\": \"7265.123000\",\n"
+            + "             \"bit_rate\": \"41000000\", \"tags\": {\"title\": \"Movie\"}}\n"
+            + "}\n";
+
+    @Test
+    void readsStreamsAndFormat() throws IOException {
+        VideoFile videoFile = new VideoFile("movie.mkv");
+        new FFprobeJsonParser().parse(new StringReader(PROBE), videoFile);
+
+        assertEquals("H.265", videoFile.getVideoCodec());
+        assertEquals("3840x2160", videoFile.getResolution()); // Not the cover art
+        assertEquals(24000.0 / 1001, videoFile.getFrameRate(), 1e-9);
+        assertEquals("yuv420p10le", videoFile.getPixelFormat());
+        assertEquals(7265.123, videoFile.getDurationSeconds(), 1e-9);
+        assertEquals(41_000_000L, videoFile.getBitRate());
+
+        List<StreamInfo> streams = videoFile.getStreams();
+        assertEquals(4, streams.size());
+        StreamInfo audio = streams.get(1);
+        assertEquals(StreamInfo.TYPE_AUDIO, audio.getType());
+        assertEquals("TrueHD", audio.getCodec());
+        assertEquals(8, audio.getChannels());
+        assertEquals(4_100_000, audio.getBitRate());
+        assertEquals(2_500_000, streams.get(0).getBitRate());
+        assertEquals("fre", audio.getLanguage());
+        assertEquals("Français \"VF\"", audio.getTitle());
+        assertFalse(audio.isDefaultTrack());
+        assertTrue(streams.get(0).isDefaultTrack());
+        assertTrue(streams.get(2).isForced());
+        assertEquals(List.of("TrueHD - French"), videoFile.getAudioTracks());
+        assertEquals(List.of("PGS - Unknown"), videoFile.getSubtitleTracks());
+    }
+
+    @Test
+    void failsOnTruncatedOutput() {
+        String truncated = PROBE.substring(0, PROBE.indexOf("\"format\""));
+        assertThrows(IOException.class,
+                () -> new FFprobeJsonParser().parse(new StringReader(truncated), new VideoFile("movie.mkv")));
+        String cutInValue = PROBE.substring(0, PROBE.indexOf("\"channels\": 8") + 12);
+        assertThrows(IOException.class,
+                () -> new FFprobeJsonParser().parse(new StringReader(cutInValue), new VideoFile("movie.mkv")));
+    }
+
+    @Test
+    void parsesFrameRates() {
+        assertEquals(25, FFprobeJsonParser.parseFrameRate("25/1"), 1e-9);
+        assertEquals(23.976, FFprobeJsonParser.parseFrameRate("23.976"), 1e-9);
+        assertEquals(0, FFprobeJsonParser.parseFrameRate("0/0"), 1e-9);
+        assertEquals(0, FFprobeJsonParser.parseFrameRate("N/A"), 1e-9);
+        assertEquals(0, FFprobeJsonParser.parseFrameRate(null), 1e-9);
+    }
+}
@@ -0,0 +1,82 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.CompressionSettings;
+
+class FingerprintIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void duplicateWaitsForTheRunningJob() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(dir.resolve("fingerprints.tsv"));
+        String first = dir.resolve("first.mkv").toString();
+        assertNull(index.claim("content", first));
+
+        CompletableFuture<String> duplicate = CompletableFuture.supplyAsync(() -> {
+            try {
+                return index.claim("content", dir.resolve("second.mkv").toString());
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(duplicate.isDone());
+
+        Files.writeString(Path.of(first), "encoded");
+        index.record("content", first);
+        assertEquals(first, duplicate.get(5, TimeUnit.SECONDS));
+        assertEquals(first, new FingerprintIndex(dir.resolve("fingerprints.tsv")).findOutput("content"));
+    }
+
+    @Test
+    void doesNotWaitForAPausedJob() throws Exception {
+        FingerprintIndex index = new FingerprintIndex(dir.resolve("fingerprints.tsv"));
+        CompressionScope victim = new CompressionScope(null);
+        victim.enter();
+        try {
+            assertNull(index.claim("content", dir.resolve("victim.mkv").toString()));
+        } finally {
+            victim.exit();
+        }
+        assertTrue(victim.pause()); // Preempted by an urgent job with the same content
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> assertNull(index.claim("content", dir.resolve("urgent.mkv").toString())));
+        victim.resume();
+    }
+
+    @Test
+    void keysTellSettingsApart() {
+        CompressionSettings settings = new CompressionSettings();
+        String crf = FingerprintIndex.key("content", settings, 0);
+        assertEquals(crf, FingerprintIndex.key("content", new CompressionSettings(), 0));
+        assertNotEquals(crf, FingerprintIndex.key("content", settings, 3000));
+        assertNotEquals(crf, FingerprintIndex.key("other", settings, 0));
+
+        settings.setPreset("slow");
+        assertNotEquals(crf, FingerprintIndex.key("content", settings, 0));
+        settings = new CompressionSettings();
+        settings.setKeepAllAudioTracks(false);
+        assertNotEquals(crf, FingerprintIndex.key("content", settings, 0));
+        settings = new CompressionSettings();
+        settings.setCrf(settings.getCrf() + 2);
+        assertNotEquals(crf, FingerprintIndex.key("content", settings, 0));
+    }
+}
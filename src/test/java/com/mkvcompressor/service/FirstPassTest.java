@@ -0,0 +1,94 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.VideoFile;
+
+class FirstPassTest {
+
+    @TempDir
+    Path dir;
+
+    private final CompressionSettings settings = new CompressionSettings();
+
+    @Test
+    void rewrittenFileGetsANewKey() throws IOException {
+        Path movie = Files.writeString(dir.resolve("movie.mkv"), "first cut");
+        String before = FirstPass.cacheKey(new VideoFile(movie.toString()), settings);
+
+        Files.writeString(movie, "final cut"); // Same name and size
+        Files.setLastModifiedTime(movie, FileTime.fromMillis(Files.getLastModifiedTime(movie).toMillis() + 5000));
+        assertNotEquals(before, FirstPass.cacheKey(new VideoFile(movie.toString()), settings));
+    }
+
+    @Test
+    void stagedCopyKeepsTheKeyOfItsContent() throws IOException {
+        Path movie = Files.writeString(dir.resolve("movie.mkv"), "content");
+        Path staged = Files.writeString(dir.resolve("in-1234.mkv"), "content");
+        Files.setLastModifiedTime(staged, FileTime.fromMillis(Files.getLastModifiedTime(movie).toMillis() + 5000));
+
+        assertEquals(FirstPass.cacheKey(withUid(movie), settings), FirstPass.cacheKey(withUid(staged), settings));
+        VideoFile other = withUid(movie);
+        other.setSegmentUid("00ff");
+        assertNotEquals(FirstPass.cacheKey(withUid(movie), settings), FirstPass.cacheKey(other, settings));
+    }
+
+    @Test
+    void keyFollowsThePassSettings() throws IOException {
+        VideoFile videoFile = withUid(Files.writeString(dir.resolve("movie.mkv"), "content"));
+        String key = FirstPass.cacheKey(videoFile, settings);
+        settings.setCrf(settings.getCrf() + 1);
+        assertNotEquals(key, FirstPass.cacheKey(videoFile, settings));
+    }
+
+    @Test
+    void firstPassUsesTheFastMode() {
+        settings.setOutputCodec("libx265");
+        List<String> command = new ArrayList<>();
+        new VideoCompressor(settings).addVideoEncodingArgs(command,
+                RateControl.firstPass(23, dir.resolve("stats")), 0);
+        String params = command.get(command.indexOf("-x265-params:v:0") + 1);
+        assertTrue(params.contains("pass=1"));
+        assertTrue(params.contains("slow-firstpass=0"));
+
+        command.clear();
+        new VideoCompressor(settings).addVideoEncodingArgs(command,
+                RateControl.secondPass(3000, dir.resolve("stats")), 0);
+        assertFalse(command.get(command.indexOf("-x265-params:v:0") + 1).contains("slow-firstpass"));
+    }
+
+    @Test
+    void secondPassEncodesTheVideoStreamTheStatsDescribe() {
+        settings.setOutputCodec("libx264");
+        VideoFile videoFile = new VideoFile("movie.mkv");
+        List<String> command = new VideoCompressor(settings).buildFFmpegCommand(videoFile, "out.mkv", false,
+                RateControl.secondPass(3000, dir.resolve("stats")), 0);
+        String args = String.join(" ", command);
+
+        // Other video streams are copied, and the encoded one is output stream 0 as in the first pass
+        assertTrue(args.contains("-c:v copy -c:v:0 libx264 -b:v:0 3000k"));
+        assertTrue(args.contains("-pass:v:0 2 -passlogfile:v:0 " + dir.resolve("stats")));
+        assertTrue(args.contains("-map 0:v -map 0:a? -map 0:s? -map 0:t? -map 0:d?"));
+        assertFalse(command.contains("-pass"));
+    }
+
+    private static VideoFile withUid(Path path) {
+        VideoFile videoFile = new VideoFile(path.toString());
+        videoFile.setSegmentUid("0123456789abcdef");
+        return videoFile;
+    }
+}
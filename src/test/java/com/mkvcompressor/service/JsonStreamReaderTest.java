@@ -0,0 +1,159 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+class JsonStreamReaderTest {
+
+    @Test
+    void skipsNestedObjectsAndArrays() throws IOException {
+        JsonStreamReader json = reader("{\"a\": {\"b\": [1, {\"c\": [[], {}]}, \"x\"], \"d\": {}}, \"e\": \"last\"}");
+        json.beginObject();
+        assertEquals("a", json.nextName());
+        json.skipValue();
+        assertTrue(json.hasNext());
+        assertEquals("e", json.nextName());
+        assertEquals("last", json.nextValue());
+        assertFalse(json.hasNext());
+        json.endObject();
+    }
+
+    @Test
+    void readsNestedObjectsMemberByMember() throws IOException {
+        JsonStreamReader json = reader("{\"outer\":{\"inner\":{\"k\":\"v\"},\"n\":2}}");
+        json.beginObject();
+        assertEquals("outer", json.nextName());
+        json.beginObject();
+        assertEquals("inner", json.nextName());
+        json.beginObject();
+        assertEquals("k", json.nextName());
+        assertEquals("v", json.nextValue());
+        assertFalse(json.hasNext());
+        json.endObject();
+        assertTrue(json.hasNext());
+        assertEquals("n", json.nextName());
+        assertEquals("2", json.nextValue());
+        json.endObject();
+        json.endObject();
+    }
+
+    @Test
+    void decodesEscapes() throws IOException {
+        JsonStreamReader json = reader("[\"a\\\"b\\\\c\\/d\", \"\\n\\t\\r\\b\\f\", \"caf\\u00e9\", \"\\ud83c\\udfac\"]");
+        json.beginArray();
+        assertEquals("a\"b\\c/d", next(json));
+        assertEquals("\n\t\r\b\f", next(json));
+        assertEquals("caf\u00e9", next(json));
+        assertEquals("\ud83c\udfac", next(json));
+        assertFalse(json.hasNext());
+        json.endArray();
+    }
+
+    @Test
+    void returnsNumbersAndLiteralsAsText() throws IOException {
+        JsonStreamReader json = reader("[0, -12, 3.25, -1.5e3, 1E-2, true, false, null]");
+        json.beginArray();
+        assertEquals("0", next(json));
+        assertEquals("-12", next(json));
+        assertEquals("3.25", next(json));
+        assertEquals("-1.5e3", next(json));
+        assertEquals("1E-2", next(json));
+        assertEquals("true", next(json));
+        assertEquals("false", next(json));
+        assertNull(next(json));
+        assertFalse(json.hasNext());
+        json.endArray();
+    }
+
+    @Test
+    void readsAcrossBufferBoundaries() throws IOException {
+        StringBuilder document = new StringBuilder("{");
+        for (int i = 0; i < 2000; i++) {
+            document.append(i == 0 ? "" : ",")
+                    .append("\"key").append(i).append("\": \"value\\u0041").append(i).append('"');
+        }
+        document.append('}');
+        JsonStreamReader json = new JsonStreamReader(new OneCharReader(document.toString()));
+        json.beginObject();
+        int count = 0;
+        while (json.hasNext()) {
+            assertEquals("key" + count, json.nextName());
+            assertEquals("valueA" + count, json.nextValue());
+            count++;
+        }
+        json.endObject();
+        assertEquals(2000, count);
+    }
+
+    @Test
+    void rejectsTruncatedInput() {
+        assertThrows(IOException.class, () -> readAll("{\"a\": \"unterminated"));
+        assertThrows(IOException.class, () -> readAll("{\"a\": \"x\\"));
+        assertThrows(IOException.class, () -> readAll("{\"a\": \"\\u00"));
+        assertThrows(IOException.class, () -> readAll("{\"a\": "));
+        assertThrows(IOException.class, () -> readAll("{\"a\": 1"));
+        assertThrows(IOException.class, () -> readAll("{\"a\": [1, 2"));
+        assertThrows(IOException.class, () -> readAll("{\"a\""));
+        assertThrows(IOException.class, () -> readAll(""));
+    }
+
+    @Test
+    void rejectsInvalidEscape() {
+        assertThrows(IOException.class, () -> readAll("[\"\\u12x4\"]"));
+    }
+
+    @Test
+    void rejectsContainerWhereScalarIsExpected() throws IOException {
+        JsonStreamReader json = reader("[{}]");
+        json.beginArray();
+        assertThrows(IOException.class, json::nextValue);
+    }
+
+    private static JsonStreamReader reader(String document) {
+        return new JsonStreamReader(new StringReader(document));
+    }
+
+    private static String next(JsonStreamReader json) throws IOException {
+        assertTrue(json.hasNext());
+        return json.nextValue();
+    }
+
+    private static void readAll(String document) throws IOException {
+        JsonStreamReader json = reader(document);
+        json.skipValue();
+    }
+
+    /**
+     * Hands out one character per read, like a slow process pipe
+     */
+    private static final class OneCharReader extends Reader {
+        private final String text;
+        private int position;
+
+        OneCharReader(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (position >= text.length()) {
+                return -1;
+            }
+            buffer[offset] = text.charAt(position++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.VideoFile;
+
+class LibraryIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void updatesFromStaleInstancesKeepEachOthersRows() throws IOException {
+        Path movies = dir.resolve("movies");
+        Path shows = dir.resolve("shows");
+        LibraryIndex first = LibraryIndex.open(indexPath());
+        LibraryIndex second = LibraryIndex.open(indexPath()); // Opened before the first update
+
+        first.update(movies, entries(movies, "a.mkv", "b.mkv"));
+        LibraryIndex index = second.update(shows, entries(shows, "c.mkv"));
+
+        assertEquals(3, index.size());
+        assertTrue(index.find(movies.resolve("a.mkv")) >= 0);
+        assertTrue(index.find(shows.resolve("c.mkv")) >= 0);
+        assertEquals(3, LibraryIndex.open(indexPath()).size());
+        try (var files = Files.list(dir)) {
+            assertEquals(0, files.filter(path -> path.toString().endsWith(".tmp")).count());
+        }
+    }
+
+    @Test
+    void concurrentUpdatesAreNotLost() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Path root = dir.resolve("library" + i);
+            Thread thread = new Thread(() -> {
+                try {
+                    LibraryIndex.open(indexPath()).update(root, entries(root, "x.mkv", "y.mkv"));
+                } catch (IOException e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(List.of(), failures);
+        assertEquals(8, LibraryIndex.open(indexPath()).size());
+    }
+
+    private Path indexPath() {
+        return dir.resolve("library-index.bin");
+    }
+
+    private static List<LibraryScanner.Entry> entries(Path root, String... names) {
+        List<LibraryScanner.Entry> entries = new ArrayList<>();
+        for (String name : names) {
+            Path file = root.resolve(name);
+            VideoFile videoFile = new VideoFile(file.toString());
+            videoFile.setOriginalSize(1000);
+            videoFile.setVideoCodec("H.264");
+            videoFile.setResolution("1920x1080");
+            entries.add(new LibraryScanner.Entry(file, 0, videoFile, 0));
+        }
+        return entries;
+    }
+}
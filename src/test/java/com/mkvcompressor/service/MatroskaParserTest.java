@@ -0,0 +1,292 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+class MatroskaParserTest {
+
+    private static final byte[] UNKNOWN_SIZE = {0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsHeadersWithoutSeekHead() throws IOException {
+        byte[] segment = element(MatroskaParser.SEGMENT, concat(info(), tracks(), cluster(4096)));
+        VideoFile videoFile = parse(concat(ebmlHeader(), segment));
+
+        assertEquals("H.265", videoFile.getVideoCodec());
+        assertEquals("3840x2160", videoFile.getResolution());
+        assertEquals(2640, videoFile.getDurationSeconds(), 1e-9);
+        assertEquals(23.976, videoFile.getFrameRate(), 1e-3);
+        assertEquals("0123456789abcdeffedcba9876543210", videoFile.getSegmentUid());
+        assertEquals(List.of("AAC - English"), videoFile.getAudioTracks());
+        assertEquals(List.of("SRT - Portuguese"), videoFile.getSubtitleTracks());
+
+        List<StreamInfo> streams = videoFile.getStreams();
+        assertEquals(3, streams.size());
+        for (int i = 0; i < streams.size(); i++) {
+            assertEquals(i, streams.get(i).getIndex());
+        }
+        assertEquals(6, streams.get(1).getChannels());
+        assertTrue(streams.get(2).isForced());
+    }
+
+    @Test
+    void acceptsUnknownSizeSegmentAndCluster() throws IOException {
+        byte[] cluster = concat(id(MatroskaParser.CLUSTER), UNKNOWN_SIZE, new byte[2048]);
+        byte[] segment = concat(id(MatroskaParser.SEGMENT), UNKNOWN_SIZE, info(), tracks(), cluster);
+        VideoFile videoFile = parse(concat(ebmlHeader(), segment));
+
+        assertEquals("H.265", videoFile.getVideoCodec());
+        assertEquals(3, videoFile.getStreams().size());
+    }
+
+    @Test
+    void followsSeekHeadToElementsAfterTheClusters() throws IOException {
+        byte[] cluster = cluster(8192);
+        byte[] cues = cues();
+        // The SeekHead has a fixed size, so its own length does not depend on the positions in it
+        byte[] placeholder = seekHead(0, 0);
+        long tracksPosition = placeholder.length + info().length + cluster.length;
+        long cuesPosition = tracksPosition + tracks().length;
+        byte[] seekHead = seekHead(tracksPosition, cuesPosition);
+        byte[] file = concat(ebmlHeader(),
+                element(MatroskaParser.SEGMENT, concat(seekHead, info(), cluster, tracks(), cues)));
+        Path path = write(file);
+
+        VideoFile videoFile = new VideoFile(path.toString());
+        new MatroskaParser().parse(videoFile);
+        assertEquals("H.265", videoFile.getVideoCodec());
+
+        List<Double> keyframes = new MatroskaParser().readKeyframeTimes(path.toString());
+        assertEquals(List.of(0.0, 2.5, 5.0), keyframes);
+    }
+
+    @Test
+    void failsWithoutTracksOrCues() throws IOException {
+        // Tracks only after the first Cluster and no SeekHead: nothing points at them
+        byte[] hidden = concat(ebmlHeader(), element(MatroskaParser.SEGMENT, concat(info(), cluster(512), tracks())));
+        assertThrows(IOException.class, () -> parse(hidden));
+
+        Path noCues = write(concat(ebmlHeader(), element(MatroskaParser.SEGMENT,
+                concat(info(), tracks(), cluster(512)))));
+        assertThrows(IOException.class, () -> new MatroskaParser().readKeyframeTimes(noCues.toString()));
+    }
+
+    @Test
+    void rejectsOtherDocuments() {
+        byte[] webmLike = element(MatroskaParser.EBML_HEADER, element(MatroskaParser.DOC_TYPE, text("mp4")));
+        assertThrows(IOException.class, () -> parse(concat(webmLike, element(MatroskaParser.SEGMENT, tracks()))));
+        assertThrows(IOException.class, () -> parse(new byte[] {0, 0, 0, 0x18, 'f', 't', 'y', 'p'}));
+    }
+
+    @Test
+    void truncatedHeadersFailWithIOException() throws IOException {
+        byte[] headers = concat(ebmlHeader(), id(MatroskaParser.SEGMENT), UNKNOWN_SIZE, info(), tracks());
+        byte[] file = concat(headers, cluster(1024));
+        for (int length = 0; length < headers.length; length++) {
+            byte[] truncated = Arrays.copyOf(file, length);
+            assertThrows(IOException.class, () -> parse(truncated), "cut at " + length);
+        }
+        // Cut inside the media data: the headers are all there
+        VideoFile videoFile = parse(Arrays.copyOf(file, headers.length + 100));
+        assertEquals("3840x2160", videoFile.getResolution());
+    }
+
+    @Test
+    void truncatedCuesFailWithIOException() throws IOException {
+        byte[] placeholder = seekHead(0, 0);
+        long tracksPosition = placeholder.length + info().length;
+        long cuesPosition = tracksPosition + tracks().length + cluster(256).length;
+        byte[] file = concat(ebmlHeader(), element(MatroskaParser.SEGMENT,
+                concat(seekHead(tracksPosition, cuesPosition), info(), tracks(), cluster(256), cues())));
+        for (int cut = 1; cut < cues().length; cut++) {
+            Path path = write(Arrays.copyOf(file, file.length - cut));
+            assertThrows(IOException.class, () -> new MatroskaParser().readKeyframeTimes(path.toString()),
+                    "cut " + cut + " bytes");
+        }
+    }
+
+    @Test
+    void readsTrackStatisticsTags() throws IOException {
+        byte[] tags = element(MatroskaParser.TAGS, concat(
+                statisticsTag(0x1111, "2500000"),
+                statisticsTag(0x2222, "3900000"),
+                statisticsTag(0x9999, "1000"))); // No such track
+        byte[] segment = element(MatroskaParser.SEGMENT, concat(info(), tracks(), tags, cluster(512)));
+        List<StreamInfo> streams = parse(concat(ebmlHeader(), segment)).getStreams();
+
+        assertEquals(2_500_000, streams.get(0).getBitRate());
+        assertEquals(3_900_000, streams.get(1).getBitRate());
+        assertEquals(0, streams.get(2).getBitRate());
+    }
+
+    @Test
+    void readsElementHeaders() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {(byte) 0xAE, (byte) 0x85, 0, 0, 0, 0, 0});
+        MatroskaParser.Element element = MatroskaParser.readElement(buf, 100, 0);
+        assertEquals(0xAE, element.id);
+        assertEquals(5, element.size);
+        assertEquals(102, element.dataOffset);
+
+        ByteBuffer unknown = ByteBuffer.wrap(new byte[] {(byte) 0xAE, (byte) 0xFF});
+        assertEquals(-1, MatroskaParser.readElement(unknown, 0, 0).size);
+
+        ByteBuffer truncated = ByteBuffer.wrap(new byte[] {0x1A, 0x45, (byte) 0xDF});
+        assertNull(MatroskaParser.readElement(truncated, 0, 0));
+    }
+
+    private VideoFile parse(byte[] file) throws IOException {
+        VideoFile videoFile = new VideoFile(write(file).toString());
+        new MatroskaParser().parse(videoFile);
+        return videoFile;
+    }
+
+    private Path write(byte[] file) throws IOException {
+        Path path = Files.createTempFile(dir, "fixture", ".mkv");
+        Files.write(path, file);
+        return path;
+    }
+
+    private static byte[] ebmlHeader() {
+        return element(MatroskaParser.EBML_HEADER, concat(
+                element(0x4286, uint(1)),                           // EBMLVersion
+                element(MatroskaParser.DOC_TYPE, text("matroska")),
+                element(0x4287, uint(4))));                         // DocTypeVersion
+    }
+
+    private static byte[] info() {
+        byte[] uid = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            uid[i] = (byte) (0x01 + 0x22 * i);
+            uid[15 - i] = (byte) (0x10 + 0x22 * i);
+        }
+        return element(MatroskaParser.INFO, concat(
+                element(MatroskaParser.SEGMENT_UID, uid),
+                element(MatroskaParser.TIMECODE_SCALE, uint(1_000_000)),
+                element(MatroskaParser.DURATION, float64(2_640_000))));
+    }
+
+    private static byte[] tracks() {
+        byte[] video = element(MatroskaParser.TRACK_ENTRY, concat(
+                element(MatroskaParser.TRACK_NUMBER, uint(1)),
+                element(MatroskaParser.TRACK_UID, uint(0x1111)),
+                element(MatroskaParser.TRACK_TYPE, uint(1)),
+                element(MatroskaParser.CODEC_ID, text("V_MPEGH/ISO/HEVC")),
+                element(MatroskaParser.DEFAULT_DURATION, uint(41_708_333)),
+                element(MatroskaParser.VIDEO, concat(
+                        element(MatroskaParser.PIXEL_WIDTH, uint(3840)),
+                        element(MatroskaParser.PIXEL_HEIGHT, uint(2160))))));
+        byte[] audio = element(MatroskaParser.TRACK_ENTRY, concat(
+                element(MatroskaParser.TRACK_NUMBER, uint(2)),
+                element(MatroskaParser.TRACK_UID, uint(0x2222)),
+                element(MatroskaParser.TRACK_TYPE, uint(2)),
+                element(MatroskaParser.CODEC_ID, text("A_AAC")),
+                element(MatroskaParser.LANGUAGE, text("eng")),
+                element(MatroskaParser.AUDIO, element(MatroskaParser.CHANNELS, uint(6)))));
+        byte[] subtitle = element(MatroskaParser.TRACK_ENTRY, concat(
+                element(MatroskaParser.TRACK_NUMBER, uint(3)),
+                element(MatroskaParser.TRACK_UID, uint(0x3333)),
+                element(MatroskaParser.TRACK_TYPE, uint(17)),
+                element(MatroskaParser.CODEC_ID, text("S_TEXT/UTF8")),
+                element(MatroskaParser.LANGUAGE, text("por")),
+                element(MatroskaParser.FLAG_FORCED, uint(1))));
+        return element(MatroskaParser.TRACKS, concat(video, audio, subtitle));
+    }
+
+    private static byte[] cluster(int bytes) {
+        return element(MatroskaParser.CLUSTER, new byte[bytes]);
+    }
+
+    private static byte[] cues() {
+        return element(MatroskaParser.CUES, concat(cuePoint(2500, 1), cuePoint(0, 1), cuePoint(1000, 2),
+                cuePoint(5000, 1)));
+    }
+
+    private static byte[] cuePoint(long time, long track) {
+        return element(MatroskaParser.CUE_POINT, concat(
+                element(MatroskaParser.CUE_TIME, uint(time)),
+                element(MatroskaParser.CUE_TRACK_POSITIONS, element(MatroskaParser.CUE_TRACK, uint(track)))));
+    }
+
+    private static byte[] statisticsTag(long trackUid, String bitsPerSecond) {
+        return element(MatroskaParser.TAG, concat(
+                element(MatroskaParser.TARGETS, element(MatroskaParser.TAG_TRACK_UID, uint(trackUid))),
+                element(MatroskaParser.SIMPLE_TAG, concat(
+                        element(MatroskaParser.TAG_NAME, text("DURATION")),
+                        element(MatroskaParser.TAG_STRING, text("02:00:00.000000000")))),
+                element(MatroskaParser.SIMPLE_TAG, concat(
+                        element(MatroskaParser.TAG_NAME, text("BPS")),
+                        element(MatroskaParser.TAG_STRING, text(bitsPerSecond))))));
+    }
+
+    private static byte[] seekHead(long tracksPosition, long cuesPosition) {
+        return element(MatroskaParser.SEEK_HEAD, concat(
+                element(MatroskaParser.SEEK, concat(
+                        element(MatroskaParser.SEEK_ID, id(MatroskaParser.TRACKS)),
+                        element(MatroskaParser.SEEK_POSITION, uint(tracksPosition)))),
+                element(MatroskaParser.SEEK, concat(
+                        element(MatroskaParser.SEEK_ID, id(MatroskaParser.CUES)),
+                        element(MatroskaParser.SEEK_POSITION, uint(cuesPosition))))));
+    }
+
+    private static byte[] element(int id, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(id(id), 0, id(id).length);
+        // Always an 8-byte size, which every EBML reader accepts
+        out.write(0x01);
+        for (int i = 6; i >= 0; i--) {
+            out.write((int) ((long) payload.length >>> (8 * i)));
+        }
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] id(int id) {
+        int length = id > 0xFFFFFF ? 4 : id > 0xFFFF ? 3 : id > 0xFF ? 2 : 1;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (id >>> (8 * (length - 1 - i)));
+        }
+        return bytes;
+    }
+
+    private static byte[] uint(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static byte[] float64(double value) {
+        return ByteBuffer.allocate(8).putDouble(value).array();
+    }
+
+    private static byte[] text(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,35 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.StreamInfo;
+import com.mkvcompressor.model.VideoFile;
+
+class OutputVerifierTest {
+
+    @Test
+    void convertedAudioKeepsEveryTrack() {
+        CompressionSettings settings = new CompressionSettings();
+        settings.setKeepAllAudioTracks(false); // Converted to AAC, still one output track per source track
+        VideoFile source = file("AC3", "DTS", "AC3");
+
+        assertEquals(List.of(), OutputVerifier.checkLayout(source, file("AAC", "AAC", "AAC"), settings));
+        assertEquals(List.of("1 audio streams, source has 3"),
+                OutputVerifier.checkLayout(source, file("AAC"), settings));
+    }
+
+    private static VideoFile file(String... audioCodecs) {
+        VideoFile videoFile = new VideoFile("movie.mkv");
+        videoFile.setDurationSeconds(600);
+        videoFile.addStream(new StreamInfo(0, StreamInfo.TYPE_VIDEO, "HEVC"));
+        for (int i = 0; i < audioCodecs.length; i++) {
+            videoFile.addStream(new StreamInfo(i + 1, StreamInfo.TYPE_AUDIO, audioCodecs[i]));
+        }
+        return videoFile;
+    }
+}
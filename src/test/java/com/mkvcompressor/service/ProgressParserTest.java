@@ -0,0 +1,125 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.mkvcompressor.model.ProgressEvent;
+
+class ProgressParserTest {
+
+    private final List<ProgressEvent> events = new ArrayList<>();
+
+    @Test
+    void readsCompleteBlocks() throws IOException {
+        parse(100, "frame=240\nfps=48.50\nbitrate=1234.5kbits/s\ntotal_size=1048576\n"
+                + "out_time_us=10000000\nspeed= 1.5x\nprogress=continue\n"
+                + "frame=480\nout_time_us=100000000\ntotal_size=2097152\nprogress=end\n");
+
+        assertEquals(2, events.size());
+        ProgressEvent first = events.get(0);
+        assertEquals("in.mkv", first.getInputPath());
+        assertEquals(240, first.getFrame());
+        assertEquals(48.5, first.getFps(), 1e-9);
+        assertEquals(1234.5, first.getBitrateKbps(), 1e-9);
+        assertEquals(1048576, first.getTotalSize());
+        assertEquals(10, first.getOutTimeSeconds(), 1e-9);
+        assertEquals(1.5, first.getSpeed(), 1e-9);
+        assertEquals(10, first.getPercent(), 1e-9);
+        assertFalse(first.isFinished());
+
+        ProgressEvent last = events.get(1);
+        assertEquals(480, last.getFrame());
+        assertEquals(48.5, last.getFps(), 1e-9); // Keys missing from a block keep their value
+        assertEquals(100, last.getPercent(), 1e-9);
+        assertTrue(last.isFinished());
+    }
+
+    @Test
+    void keepsThePreviousValueForNotAvailable() throws IOException {
+        parse(100, "out_time_us=N/A\nbitrate=N/A\nspeed=N/A\ntotal_size=N/A\nprogress=continue\n"
+                + "out_time_us=5000000\nbitrate=800.0kbits/s\nspeed=2x\nprogress=continue\n"
+                + "out_time_us=N/A\nbitrate=N/A\nspeed=N/A\nprogress=continue\n"
+                + "out_time_us=-9223372036854775807\nprogress=continue\n");
+
+        assertEquals(4, events.size());
+        assertEquals(0, events.get(0).getOutTimeMicros());
+        assertEquals(0, events.get(0).getPercent(), 1e-9);
+        assertEquals(0, events.get(0).getBitrateKbps(), 1e-9);
+        assertEquals(5_000_000, events.get(2).getOutTimeMicros());
+        assertEquals(800, events.get(2).getBitrateKbps(), 1e-9);
+        assertEquals(2, events.get(2).getSpeed(), 1e-9);
+        assertEquals(0, events.get(3).getOutTimeMicros()); // Negative times are clamped
+    }
+
+    @Test
+    void endsWithoutFinishedEventWhenProgressEndIsMissing() throws IOException {
+        // FFmpeg killed mid-encode: the last block never ends
+        parse(100, "out_time_us=20000000\nprogress=continue\nframe=10\nout_time_us=30000000\n");
+
+        assertEquals(1, events.size());
+        assertEquals(20, events.get(0).getPercent(), 1e-9);
+        assertFalse(events.get(0).isFinished());
+    }
+
+    @Test
+    void handlesAFinalLineWithoutNewline() throws IOException {
+        parse(100, "out_time_us=100000000\nprogress=end");
+
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).isFinished());
+    }
+
+    @Test
+    void joinsLinesSplitAcrossChunks() {
+        ProgressParser parser = parser(60);
+        byte[] data = "frame=12\r\nout_time_us=30000000\r\nprogress=continue\r\nframe=24\nprogress=end\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < data.length; i += 3) {
+            parser.feed(data, i, Math.min(3, data.length - i));
+            if (i < 30) {
+                assertTrue(events.isEmpty()); // No event before its block is complete
+            }
+        }
+
+        assertEquals(2, events.size());
+        assertEquals(12, events.get(0).getFrame());
+        assertEquals(50, events.get(0).getPercent(), 1e-9);
+        assertEquals(24, events.get(1).getFrame());
+        assertTrue(events.get(1).isFinished());
+    }
+
+    @Test
+    void reportsNoPercentWithoutDuration() throws IOException {
+        parse(0, "out_time_us=5000000\nprogress=continue\nprogress=end\n");
+
+        assertEquals(-1, events.get(0).getPercent(), 1e-9);
+        assertEquals(-1, events.get(1).getPercent(), 1e-9);
+        assertTrue(events.get(1).isFinished());
+    }
+
+    @Test
+    void ignoresUnknownAndMalformedLines() throws IOException {
+        parse(100, "stream_0_0_q=28.0\n=5\nnoequals\ndup_frames=0\nout_time=00:00:01.000000\n"
+                + "out_time_us=1000000\nprogress=continue\n");
+
+        assertEquals(1, events.size());
+        assertEquals(1, events.get(0).getPercent(), 1e-9);
+    }
+
+    private void parse(double durationSeconds, String output) throws IOException {
+        parser(durationSeconds).parse(new ByteArrayInputStream(output.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private ProgressParser parser(double durationSeconds) {
+        return new ProgressParser("in.mkv", durationSeconds, events::add);
+    }
+}
@@ -0,0 +1,95 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ScratchStagingTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void prefetchOnlyUsesFreeRoom() throws IOException {
+        String a = input("a.mkv");
+        String b = input("b.mkv");
+        String c = input("c.mkv");
+        try (ScratchStaging staging = new ScratchStaging(dir.resolve("scratch"), 250, 3)) {
+            staging.schedule(a);
+            staging.schedule(b);
+            staging.schedule(c);
+            // c does not fit next to a and b, and must not push a out
+            assertTrue(staging.isStaged(a));
+            assertTrue(staging.isStaged(b));
+            assertFalse(staging.isStaged(c));
+            assertEquals(200, staging.getUsedBytes());
+
+            Path local = staging.acquireInput(a);
+            assertNotEquals(Path.of(a), local);
+            assertEquals(Files.readString(Path.of(a)), Files.readString(local));
+            staging.releaseInput(a);
+
+            assertTrue(staging.isStaged(c)); // Waited in the queue for the room a left
+            assertEquals(200, staging.getUsedBytes());
+        }
+    }
+
+    @Test
+    void jobsEvictTheInputNeededLast() throws IOException {
+        String a = input("a.mkv");
+        String b = input("b.mkv");
+        String urgent = input("urgent.mkv");
+        try (ScratchStaging staging = new ScratchStaging(dir.resolve("scratch"), 250, 3)) {
+            staging.schedule(a);
+            staging.schedule(b);
+
+            Path local = staging.acquireInput(urgent);
+            assertNotEquals(Path.of(urgent), local);
+            assertTrue(staging.isStaged(a));
+            assertFalse(staging.isStaged(b));
+            assertEquals(200, staging.getUsedBytes());
+
+            staging.releaseInput(urgent);
+            assertTrue(staging.isStaged(b)); // Requeued, staged again once there is room
+            assertEquals(200, staging.getUsedBytes());
+        }
+    }
+
+    @Test
+    void fallsBackToTheSourceWhenNothingCanBeEvicted() throws IOException {
+        String a = input("a.mkv");
+        String b = input("b.mkv");
+        try (ScratchStaging staging = new ScratchStaging(dir.resolve("scratch"), 150, 2)) {
+            staging.acquireInput(a);
+            assertEquals(Path.of(b), staging.acquireInput(b));
+            assertEquals(100, staging.getUsedBytes());
+        }
+    }
+
+    @Test
+    void countsTheActualSizeOfAnOutputLargerThanReserved() throws IOException {
+        try (ScratchStaging staging = new ScratchStaging(dir.resolve("scratch"), 1000, 1)) {
+            Path output = staging.reserveOutput(100);
+            Files.write(output, new byte[150]);
+            assertEquals(150, staging.accountOutput(output, 100));
+            assertEquals(150, staging.getUsedBytes());
+            staging.cancelOutput(output, 150);
+            assertEquals(0, staging.getUsedBytes());
+        }
+    }
+
+    private String input(String name) throws IOException {
+        byte[] content = new byte[100];
+        Arrays.fill(content, (byte) name.charAt(0));
+        return Files.write(dir.resolve(name), content).toString();
+    }
+}
@@ -0,0 +1,70 @@
+package com.mkvcompressor.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.mkvcompressor.model.CompressionSettings;
+import com.mkvcompressor.model.ProgressEvent;
+import com.mkvcompressor.model.VideoFile;
+
+class SegmentEncoderTest {
+
+    @Test
+    void splitsOnKeyframesWithoutAShortLastSegment() {
+        List<Double> keyframes = List.of(0.0, 50.0, 119.0, 121.0, 200.0, 245.0, 290.0);
+        assertEquals(List.of(0.0, 121.0, 245.0),
+                SegmentEncoder.chooseSplitPoints(keyframes, 400, 120));
+        assertEquals(List.of(0.0, 121.0),
+                SegmentEncoder.chooseSplitPoints(keyframes, 280, 120));
+    }
+
+    @Test
+    void addsUpTheSegmentsIntoProgressOfTheWholeFile() {
+        SegmentEncoder.CombinedProgress combined = new SegmentEncoder.CombinedProgress("in.mkv", 400, 3);
+        combined.update(0, event(100, 2.0, 30_000_000, 1_000_000, false));
+        ProgressEvent event = combined.update(2, event(200, 3.0, 10_000_000, 500_000, false));
+
+        assertEquals("in.mkv", event.getInputPath());
+        assertEquals(300, event.getFrame());
+        assertEquals(40, event.getOutTimeSeconds(), 1e-9);
+        assertEquals(1_500_000, event.getTotalSize());
+        assertEquals(10, event.getPercent(), 1e-9);
+        assertEquals(5.0, event.getSpeed(), 1e-9);
+        assertEquals(300, event.getBitrateKbps(), 1e-9);
+
+        // A finished segment keeps its size and time but no longer adds to the speed
+        event = combined.update(0, event(120, 2.0, 121_000_000, 4_000_000, true));
+        assertEquals(3.0, event.getSpeed(), 1e-9);
+        assertEquals(4_500_000, event.getTotalSize());
+        assertFalse(event.isFinished());
+    }
+
+    @Test
+    void feedsTheEarlyAbortCheck() {
+        CompressionSettings settings = new CompressionSettings();
+        settings.setEarlyAbortRatio(0.5);
+        VideoCompressor compressor = new VideoCompressor(settings);
+        compressor.setConsoleProgress(false);
+        VideoFile videoFile = new VideoFile("in.mkv");
+        videoFile.setOriginalSize(10_000_000);
+        videoFile.setDurationSeconds(400);
+        VideoCompressor.EncodeProgress progress = compressor.new EncodeProgress(videoFile, true);
+        SegmentEncoder.CombinedProgress combined = new SegmentEncoder.CombinedProgress("in.mkv", 400, 2);
+
+        // 5% of the file says too little; 15% written as 2 MB projects 13 MB, above the 5 MB limit
+        assertFalse(progress.report(combined.update(0, event(100, 2.0, 20_000_000, 1_000_000, false))));
+        assertTrue(progress.report(combined.update(1, event(100, 2.0, 40_000_000, 1_000_000, false))));
+        assertTrue(progress.isExceeded());
+        progress.end();
+    }
+
+    private static ProgressEvent event(long frame, double speed, long outTimeMicros, long totalSize,
+                                       boolean finished) {
+        return new ProgressEvent("in.mkv", frame, frame / 10.0, outTimeMicros, 0, speed, totalSize, -1, finished);
+    }
+}